@@ -32,12 +32,14 @@
     [java.io EOFException] ; abused to indicate canceled burst image collection
     [java.net InetAddress UnknownHostException]
     [java.util Date UUID]
-    [java.util.concurrent CountDownLatch LinkedBlockingQueue TimeUnit]
+    [java.util.concurrent Callable CountDownLatch ExecutionException Executors
+                          ExecutorService LinkedBlockingQueue ThreadFactory TimeUnit]
     [mmcorej Configuration Metadata TaggedImage]
     [org.json JSONArray JSONObject]
-    [org.micromanager.acquisition MMAcquisition TaggedImageQueue]
+    [org.micromanager.acquisition DeviceLatencyModel MMAcquisition TaggedImageQueue]
     [org.micromanager.api PositionList SequenceSettings]
-    [org.micromanager.utils MDUtils ReportingUtils])
+    [org.micromanager.diagnostics LatencyHistogram PerformanceMetrics]
+    [org.micromanager.utils ImageMetadata MDUtils ReportingUtils])
   (:gen-class
     :name org.micromanager.AcquisitionEngine2010
     :implements [org.micromanager.api.IAcquisitionEngine2010]
@@ -62,10 +64,29 @@
 (defn add-to-pending [dev]
   (swap! pending-devices conj dev))
 
+; {device [kind feature start-ms]} of commands whose device was still busy
+; when they returned, their latency is recorded when waiting for the device.
+(def pending-commands (atom {}))
+
 (def active-property-sequences (atom nil))
 
 (def active-slice-sequence (atom nil))
 
+; When true, the hardware moves of the next event are started while the
+; image of the current event is being read out and sent on.
+(def look-ahead (atom true))
+
+; When true, the stage moves and channel properties of an event are sent to
+; different devices at the same time, rather than one after another.
+(def parallel-device-setup (atom false))
+
+(def device-setup-executor
+  (delay (Executors/newFixedThreadPool
+           4 (reify ThreadFactory
+               (newThread [_ runnable]
+                 (doto (Thread. runnable "AcquisitionEngine2010 device setup thread")
+                   (.setDaemon true)))))))
+
 (def pixel-type-depths {"GRAY8" 1 "GRAY16" 2 "RGB32" 4 "RGB64" 8})
 
 (defn throw-exception [msg] 
@@ -162,9 +183,11 @@
    :tags (json-to-data (.tags tagged-image))})
 
 (defn make-TaggedImage
-  "Take a clojure map with keys :pix and :tags and generate a TaggedImage."
+  "Take a clojure map with keys :pix and :tags and generate a TaggedImage.
+   The tags become an ImageMetadata, so that downstream MDUtils lookups of
+   the image coordinates don't go through the JSON map."
   [annotated-img]
-  (TaggedImage. (:pix annotated-img) (JSONObject. (:tags annotated-img))))
+  (TaggedImage. (:pix annotated-img) (ImageMetadata. (:tags annotated-img))))
 
 ;; hardware error handling
 
@@ -188,11 +211,34 @@
 
 ;; hardware control
 
+(defn record-latency [dev kind feature latency-ms]
+  (.record (DeviceLatencyModel/getInstance) dev kind (double feature) (double latency-ms)))
+
+(defn run-timed-command
+  "Runs the command f to dev and records its latency in the device latency
+   model. If dev is still busy when f returns, the latency is recorded
+   once waiting for the device returns."
+  [dev kind feature f]
+  (let [start (jvm-time-ms)]
+    (f)
+    (if (try (core deviceBusy dev) (catch Exception e false))
+      (swap! pending-commands assoc dev [kind feature start])
+      (record-latency dev kind feature (- (jvm-time-ms) start)))))
+
 (defn wait-for-device [dev]
   (when-not (empty? dev)
     (try
-      (core waitForDevice dev)
-      (swap! pending-devices disj dev)
+      (let [command (@pending-commands dev)
+            ; if the device is already idle, it is not known when it got there
+            busy (and command
+                      (try (core deviceBusy dev) (catch Exception e false)))]
+        (core waitForDevice dev)
+        (swap! pending-devices disj dev)
+        (when command
+          (swap! pending-commands dissoc dev)
+          (when busy
+            (let [[kind feature start] command]
+              (record-latency dev kind feature (- (jvm-time-ms) start))))))
       (catch Exception e (log "wait for device" dev "failed.")))))
 
 (defn set-exposure [camera exp]
@@ -222,19 +268,31 @@
   (let [shutter (core getShutterDevice)]
     (device-best-effort shutter
       (when (not= open? (get-in @state [:shutter-states shutter]))
-        (core setShutterOpen open?)
+        (run-timed-command shutter DeviceLatencyModel/SHUTTER 0
+                           #(core setShutterOpen open?))
         (swap! state assoc-in [:shutter-states shutter] open?)))))
 
 (defn is-continuous-focus-drive [stage]
   (when-not (empty? stage)
     (core isContinuousFocusDrive stage)))
 
+(defn move-distance
+  "Distance along the longest axis between two stage positions, 0 if the
+   previous position isn't known."
+  [from to]
+  (if (and from to)
+    (apply max (map #(Math/abs (double (- %1 %2))) (flatten [from]) (flatten [to])))
+    0))
+
 (defn set-z-stage-position [stage pos]
   (when (and (@state :init-continuous-focus)
              (not (is-continuous-focus-drive stage))
              (core isContinuousFocusEnabled))
     (enable-continuous-focus false))
-  (device-best-effort stage (core setPosition stage pos)))
+  (let [distance (move-distance (get-in @state [:last-stage-positions stage]) pos)]
+    (device-best-effort stage
+      (run-timed-command stage DeviceLatencyModel/Z_MOVE distance
+                         #(core setPosition stage pos)))))
 
 (defn set-stage-position
   ([stage-dev z]
@@ -245,14 +303,19 @@
   ([stage-dev x y]
     (when (and x y
                (not= [x y] (get-in @state [:last-stage-positions stage-dev])))
-      (device-best-effort stage-dev (core setXYPosition stage-dev x y))
+      (let [distance (move-distance (get-in @state [:last-stage-positions stage-dev]) [x y])]
+        (device-best-effort stage-dev
+          (run-timed-command stage-dev DeviceLatencyModel/XY_MOVE distance
+                             #(core setXYPosition stage-dev x y))))
       (swap! state assoc-in [:last-stage-positions stage-dev] [x y]))))
 
 (defn set-property
   [prop]
   (let [[[d p] v] prop]
     (when (not= v (get-in @state [:last-property-settings d p]))
-      (device-best-effort d (core setProperty d p v))
+      (device-best-effort d
+        (run-timed-command d DeviceLatencyModel/PROPERTY_CHANGE 0
+                           #(core setProperty d p v)))
       (swap! state assoc-in [:last-property-settings d p] v))))
 
 (defn run-autofocus []
@@ -260,7 +323,11 @@
         z0 (get-z-stage-position z-drive)]
   (try
     (log "running autofocus" (-> @state :autofocus-device .getDeviceName))
-    (let [z (-> @state :autofocus-device .fullFocus)]
+    (let [af (@state :autofocus-device)
+          start (jvm-time-ms)
+          z (.fullFocus af)]
+      (record-latency (.getDeviceName af) DeviceLatencyModel/AUTOFOCUS 0
+                      (- (jvm-time-ms) start))
       (swap! state assoc-in [:last-stage-positions (@state :default-z-drive)] z))
     (catch Exception e
            (ReportingUtils/logError e "Autofocus failed.")
@@ -273,7 +340,13 @@
       (when open-before
         (set-shutter-open true)
         (wait-for-device shutter))
-      (device-best-effort (core getCameraDevice) (core snapImage))
+      (let [camera (core getCameraDevice)
+            start (jvm-time-ms)]
+        (device-best-effort camera (core snapImage))
+        ; the time beyond the exposure is mostly readout, by ROI size
+        (record-latency camera DeviceLatencyModel/CAMERA_READOUT
+                        (* (core getImageWidth) (core getImageHeight))
+                        (- (jvm-time-ms) start (core getExposure))))
       (swap! state assoc :last-image-time (elapsed-time @state))
       (when close-after
         (set-shutter-open false)
@@ -352,9 +425,14 @@
           0
           true)))
 
+(def pop-latency (PerformanceMetrics/getHistogram "core.popNextTaggedImage"))
+
 (defn pop-tagged-image []
-  (try (. mmc popNextTaggedImage)
-       (catch Exception e nil)))
+  (let [start (System/nanoTime)]
+    (try (let [image (. mmc popNextTaggedImage)]
+           (.recordSince ^LatencyHistogram pop-latency start)
+           image)
+         (catch Exception e nil))))
 
 (defn pop-tagged-image-timeout
   [timeout-ms]
@@ -512,13 +590,13 @@
           camera-channel-names (get-camera-channel-names)]
       (produce-burst-images burst-events camera-channel-names pop-timeout-ms out-queue))))
 
-(defn collect-snap-image [event out-queue]
+(defn collect-snap-image [event acq-state out-queue]
   (let [image (unwrap-tagged-image (core getTaggedImage (event :camera-channel-index)))]
     (select-keys event [:position-index :frame-index
                         :slice-index :channel-index])
     (when out-queue
       (send-tagged-image out-queue
-            (make-TaggedImage (annotate-image image event @state (elapsed-time @state)))))
+            (make-TaggedImage (annotate-image image event acq-state (elapsed-time acq-state)))))
     image))
 
 (defn return-config []
@@ -573,7 +651,6 @@
          (if (core getAutoShutter)
            [true (:close-shutter event)]
            [false false])]
-    (swap! state assoc :system-state (map-config (core getSystemStateCache)))
     (condp = (:task event)
       :snap (apply snap-image shutter-states)
       :burst (init-burst (count (:burst-data event))
@@ -581,12 +658,15 @@
                          (:relative-z event))
       nil)))
 
-(defn collect [event out-queue settings]
+(defn collect
+  "Reads out and sends on the images of an exposed event. acq-state is the
+   state at the time of exposure, used for the image metadata."
+  [event acq-state out-queue settings]
   (log "collecting image(s)")
   (try
     (condp = (:task event)
       :snap (doseq [sub-event (make-multicamera-events event)]
-              (collect-snap-image sub-event out-queue))
+              (collect-snap-image sub-event acq-state out-queue))
       :burst (collect-burst-images event out-queue settings))
     (catch EOFException eat
       (log "halted image collection and output due to engine stop"))))
@@ -671,6 +751,7 @@
            :pixel-size-um (core getPixelSizeUm)
            :source (core getCameraDevice)
            :pixel-type (get-pixel-type)
+           :camera-devices (set (mm/all-cameras))
            )))
 
 (defn cleanup []
@@ -683,6 +764,8 @@
       (stop-triggering)
       (reset! active-property-sequences nil)
       (reset! active-slice-sequence nil)
+      (reset! pending-commands {})
+      (.save (DeviceLatencyModel/getInstance))
       (return-config)
       (core setAutoShutter (@state :init-auto-shutter))
       (set-exposure (core getCameraDevice) (@state :init-exposure))
@@ -697,7 +780,82 @@
 
 ;; running events
 
-(defn make-event-fns [event out-queue settings]
+(defn device-group
+  "Devices on the same hub share its port or bus, so their commands are
+   kept in order on one thread."
+  [dev]
+  (let [hub (try (core getParentLabel dev) (catch Exception e ""))]
+    (if (empty? hub) dev hub)))
+
+(defn run-device-commands
+  "Runs a sequence of [device f] commands. In parallel-device-setup mode,
+   the commands of each device group run in order on the device setup
+   executor, concurrently with the other groups. Commands to the Core run
+   first, as they can change which devices the others address. Returns
+   when all commands are done, throwing the first failure."
+  [commands]
+  (if-not @parallel-device-setup
+    (doseq [[_ f] commands] (f))
+    (let [{core-commands true device-commands false}
+            (group-by #(= "Core" (first %)) commands)]
+      (doseq [[_ f] core-commands] (f))
+      (let [futures (doall
+                      (for [group (vals (group-by #(device-group (first %))
+                                                  device-commands))]
+                        (.submit ^ExecutorService @device-setup-executor
+                                 ^Callable (bound-fn [] (doseq [[_ f] group] (f))))))
+            errors (doall
+                     (keep #(try (.get %) nil
+                              (catch ExecutionException e (.getCause e)))
+                           futures))]
+        (when-let [e (first errors)]
+          (throw e))))))
+
+(defn position-commands [event]
+  (when (:new-position event)
+    (for [[axis pos]
+          (:axes (MultiStagePosition-to-map
+                   (get-msp (@state :position-list) (:position event))))
+          :when pos]
+      [axis #(do
+               (log "BEGIN set position of stage" axis)
+               (apply set-stage-position axis pos)
+               (log "END set position of stage" axis))])))
+
+(defn channel-commands [event]
+  (for [[[d _] :as prop] (get-in event [:channel :properties])]
+    [d #(set-property prop)]))
+
+(defn look-ahead? [event next-event]
+  (and @look-ahead
+       next-event
+       (= :snap (:task event)) ; a burst is still exposing during collection
+       (not (:stop @state))
+       (not (:pause @state))))
+
+(defn start-next-event
+  "Issues the commands of next-event that can't affect the image of the
+   current event, once its exposure is over: stage moves and properties of
+   devices other than the cameras. The devices become pending, so
+   next-event still waits for them before it exposes, and its own commands
+   are skipped later as the values are already set. Z is only moved early
+   if nothing else of next-event decides where it should be."
+  [next-event]
+  (log "BEGIN look-ahead")
+  (let [z-drive (@state :default-z-drive)
+        cameras (@state :camera-devices)]
+    (run-device-commands
+      (concat (position-commands next-event)
+              (remove (fn [[d _]] (or (cameras d) (= "Core" d)))
+                      (channel-commands next-event))))
+    (when (and z-drive
+               (not (:autofocus next-event))
+               (not (:wait-time-ms next-event))
+               (empty? (:runnables next-event)))
+      (set-stage-position z-drive (compute-z-position next-event))))
+  (log "END look-ahead"))
+
+(defn make-event-fns [event next-event out-queue settings]
   (let [current-position (:position event)
         z-drive (@state :default-z-drive)
         check-z-ref (and z-drive
@@ -710,18 +868,16 @@
             (flatten
               (list
                 #(log "#####" "BEGIN acquisition event:" event)
-                (when (:new-position event)
-                  (for [[axis pos]
-                        (:axes (MultiStagePosition-to-map
-                                 (get-msp (@state :position-list) current-position)))
-                        :when pos]
-                    #(do
-                       (log "BEGIN set position of stage" axis)
-                       (apply set-stage-position axis pos)
-                       (log "END set position of stage" axis))))
-                #(log "BEGIN channel properties and exposure")
-                (for [prop (get-in event [:channel :properties])]
-                  #(set-property prop))
+                (if @parallel-device-setup
+                  #(do
+                     (log "BEGIN concurrent position and channel properties")
+                     (run-device-commands (concat (position-commands event)
+                                                  (channel-commands event)))
+                     (log "END concurrent position and channel properties"))
+                  (list
+                    (map second (position-commands event))
+                    #(log "BEGIN channel properties and exposure")
+                    (map second (channel-commands event))))
                 #(when-lets [exposure (:exposure event)
                              camera (core getCameraDevice)]
                             (set-exposure camera exposure))
@@ -754,7 +910,10 @@
                    (wait-for-pending-devices)
                    (log "BEGIN acquire")
                    (expose event)
-                   (collect event out-queue settings)
+                   (let [acq-state @state]
+                     (when (look-ahead? event next-event)
+                       (start-next-event next-event))
+                     (collect event acq-state out-queue settings))
                    (stop-triggering)
                    (log "END acquire"))
                 #(log "#####" "END acquisition event"))))))
@@ -774,9 +933,11 @@
           (.enableRoiButtons false)))
       (prepare-state state (when (:use-position-list settings) position-list) autofocus-device)
       (def last-state state) ; for debugging
+      ; The events are generated as they are executed, don't hold on to
+      ; the head of the sequence or all of them are kept in memory.
       (let [acq-seq (generate-acq-sequence settings @attached-runnables)]
-        (def acq-sequence acq-seq) ; for debugging
-        (execute (mapcat #(make-event-fns % out-queue settings) acq-seq)))
+        (execute (mapcat #(make-event-fns %1 %2 out-queue settings)
+                         acq-seq (concat (rest acq-seq) [nil]))))
       (catch Throwable t
              (def acq-error t) ; for debugging
              ; XXX There ought to be a way to get errors programmatically...
@@ -91,21 +91,43 @@
         b (if time-first b (reverse b))]
     (concat a b)))
         
-(defn nest-loop
-  "Create a loop for a given dimension, as generated by make-dimensions."
-  [events dim-vals dim dim-index-kw]
-  (if (and dim-vals (pos? (count dim-vals)))
-    (for [i (range (count dim-vals)) event events]
-      (assoc event
-        dim-index-kw i
-        dim (if (= dim-index-kw :frame-index) i (get dim-vals i))))
-    (map #(assoc % dim-index-kw 0) events)))
+(defn compact-dimensions
+  "Reduce dimensions, as generated by make-dimensions, to their sizes and
+   indexable values. Frames are numbered rather than looked up, so their
+   values aren't kept."
+  [dimensions]
+  (vec
+    (for [[dim-vals dim dim-index-kw] dimensions]
+      [(count dim-vals)
+       (when-not (= dim-index-kw :frame-index) (vec dim-vals))
+       dim
+       dim-index-kw])))
+
+(defn event-at
+  "Build event number n of the loops over compact dimensions. The first
+   dimension changes fastest. An empty dimension only sets its index to 0."
+  [dimensions n]
+  (loop [event {} n n dims dimensions]
+    (if-let [[size dim-vals dim dim-index-kw] (first dims)]
+      (if (pos? size)
+        (let [i (rem n size)]
+          (recur (assoc event
+                   dim-index-kw i
+                   dim (if (= dim-index-kw :frame-index) i (nth dim-vals i)))
+                 (quot n size)
+                 (next dims)))
+        (recur (assoc event dim-index-kw 0) n (next dims)))
+      event)))
 
 (defn create-loops
   "Generate loops of events from a set of dimensions parameters as
-   generated by make-dimensinos."
+   generated by make-dimensions. Events are built from their index as the
+   sequence is consumed, so it takes the same memory however many
+   positions and time points there are."
   [dimensions]
-  (reduce #(apply (partial nest-loop %1) %2) [{}] dimensions))
+  (let [dims (compact-dimensions dimensions)
+        n-events (reduce * (map #(max 1 (first %)) dims))]
+    (map #(event-at dims %) (range n-events))))
 
 (defn make-main-loops
   "Make the sequence of multi-d acq. events using the acquisition settings."
@@ -267,7 +289,7 @@
   [events]
   (loop [remaining-events (next events)
          burst [(first events)]]
-    (let [e1 (last burst)
+    (let [e1 (peek burst)
           e2 (first remaining-events)]
       (if (and e1
                (burst-valid e1 e2)
@@ -32,11 +32,20 @@ import ij.gui.OvalRoi;
 
 import java.awt.Rectangle;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.SwingUtilities;
 
 import mmcorej.CMMCore;
 import mmcorej.Configuration;
+import mmcorej.DoubleVector;
 import mmcorej.TaggedImage;
 
 import org.apache.commons.math.FunctionEvaluationException;
@@ -71,6 +80,12 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       "SharpEdges", "Redondo", "Volath", "Volath5", "MedianEdges", "FFTBandpass"};
    private final static String FFT_UPPER_CUTOFF = "FFTUpperCutoff(%)";
    private final static String FFT_LOWER_CUTOFF = "FFTLowerCutoff(%)";
+   private static final String CROP_MODE = "CropMode";
+   private final static String cropModes[] = {"Camera", "Software"};
+   private static final String DOWNSAMPLE = "Downsample";
+   private final static String downsampleValues[] = {"1", "2", "4", "8"};
+   private static final String Z_SCAN_MODE = "ZScanMode";
+   private final static String zScanModes[] = {"BrentSearch", "SequencedBurst"};
    private double searchRange = 10;
    private double tolerance = 1;
    private double cropFactor = 1;
@@ -80,11 +95,22 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private String scoringMethod = "Edges";
    private double fft_upper_cutoff = 14;
    private double fft_lower_cutoff = 2.5;
+   private String cropMode = "Camera";
+   private int downsample = 1;
+   private String zScanMode = "BrentSearch";
    private int imageCount_;
    private long startTimeMs_;
    private double startZUm_;
    private boolean liveModeOn_;
    private boolean settingsLoaded_ = false;
+   private final ScoreKernel kernel_ = new ScoreKernel(true);
+   private static final ThreadLocal<ScoreKernel> planeKernels_ =
+           new ThreadLocal<ScoreKernel>() {
+              @Override
+              protected ScoreKernel initialValue() {
+                 return new ScoreKernel(false);
+              }
+           };
 
    public OughtaFocus() {
       super();
@@ -96,6 +122,9 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       createProperty(FFT_UPPER_CUTOFF, NumberUtils.doubleToDisplayString(fft_upper_cutoff));
       createProperty(SHOW_IMAGES, show, showValues);
       createProperty(SCORING_METHOD, scoringMethod, scoringMethods);
+      createProperty(CROP_MODE, cropMode, cropModes);
+      createProperty(DOWNSAMPLE, Integer.toString(downsample), downsampleValues);
+      createProperty(Z_SCAN_MODE, zScanMode, zScanModes);
       imageCount_ = 0;
    }
 
@@ -114,11 +143,16 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          fft_upper_cutoff = MathFunctions.clip(0.0, fft_upper_cutoff, 100.0);
          show = getPropertyValue(SHOW_IMAGES);
          scoringMethod = getPropertyValue(SCORING_METHOD);
+         cropMode = getPropertyValue(CROP_MODE);
+         downsample = Integer.parseInt(getPropertyValue(DOWNSAMPLE));
+         zScanMode = getPropertyValue(Z_SCAN_MODE);
 
       } catch (MMException ex) {
          ReportingUtils.logError(ex);
       } catch (ParseException ex) {
          ReportingUtils.logError(ex);
+      } catch (NumberFormatException ex) {
+         ReportingUtils.logError(ex);
       }
    }
 
@@ -151,7 +185,8 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          }
 
          // avoid wasting time on setting roi if it is the same
-         if (cropFactor < 1.0) {
+         boolean cropCamera = cropFactor < 1.0 && !isSoftwareCrop();
+         if (cropCamera) {
             app_.setROI(newROI);
             core.waitForDevice(core.getCameraDevice());
          }
@@ -160,7 +195,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
 
          double z = runAutofocusAlgorithm();
 
-         if (cropFactor < 1.0) {
+         if (cropCamera) {
             app_.setROI(oldROI);
             core.waitForDevice(core.getCameraDevice());
          }
@@ -175,7 +210,44 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       }
    }
 
+   private boolean isSoftwareCrop() {
+      return cropMode.contentEquals("Software");
+   }
+
+   /**
+    * Region of a width x height image that is scored: the central part
+    * selected by the crop factor in software crop mode, otherwise all of it
+    * (the camera ROI has already been cropped).
+    */
+   private Rectangle getScoreRoi(int width, int height) {
+      if (!isSoftwareCrop() || cropFactor >= 1.0) {
+         return null;
+      }
+      int w = Math.max(1, (int) (width * cropFactor));
+      int h = Math.max(1, (int) (height * cropFactor));
+      return new Rectangle((width - w) / 2, (height - h) / 2, w, h);
+   }
+
+   private double scoreImage(ScoreKernel kernel, TaggedImage img)
+           throws Exception {
+      CMMCore core = app_.getMMCore();
+      int w = (int) core.getImageWidth();
+      int h = (int) core.getImageHeight();
+      kernel.setImage(getMonochromePixels(img), w, h, getScoreRoi(w, h),
+              downsample);
+      return computeScore(kernel);
+   }
+
    private double runAutofocusAlgorithm() throws Exception {
+      if (zScanMode.contentEquals("SequencedBurst") && !liveModeOn_) {
+         CMMCore core = app_.getMMCore();
+         String focusDevice = core.getFocusDevice();
+         if (core.isStageSequenceable(focusDevice)) {
+            return runSequencedAutofocus();
+         }
+         ReportingUtils.logMessage("OughtaFocus: " + focusDevice
+                 + " can not be sequenced, using Brent search");
+      }
       UnivariateRealFunction scoreFun = new UnivariateRealFunction() {
 
          public double value(double d) throws FunctionEvaluationException {
@@ -202,6 +274,112 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       return zResult;
    }
 
+   /**
+    * Acquires the whole search range as one hardware triggered Z stack, at
+    * Tolerance spacing (or fewer planes if the stage can not store that
+    * many), and scores the planes on the scoring pool as they arrive. The
+    * best plane is refined with a parabola through its neighbors.
+    */
+   private double runSequencedAutofocus() throws Exception {
+      final CMMCore core = app_.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      startZUm_ = core.getPosition(focusDevice);
+      imageCount_ = 0;
+      int numPlanes = (int) Math.round(searchRange / tolerance) + 1;
+      numPlanes = Math.min(numPlanes,
+              core.getStageSequenceMaxLength(focusDevice));
+      if (numPlanes < 3) {
+         throw new MMException("OughtaFocus: too few planes for a sequenced "
+                 + "search; increase SearchRange or use BrentSearch");
+      }
+      final double step = searchRange / (numPlanes - 1);
+      final double firstZ = startZUm_ - searchRange / 2;
+      DoubleVector positions = new DoubleVector();
+      for (int i = 0; i < numPlanes; ++i) {
+         positions.add(firstZ + i * step);
+      }
+
+      final double[] scores = new double[numPlanes];
+      List<Future<?>> pending = new ArrayList<Future<?>>();
+      int received = 0;
+      setZPosition(firstZ);
+      core.loadStageSequence(focusDevice, positions);
+      core.startStageSequence(focusDevice);
+      try {
+         core.startSequenceAcquisition(numPlanes, 0, true);
+         long timeoutMs = System.currentTimeMillis() + 10000
+                 + (long) (numPlanes * Math.max(exposure, 1) * 2);
+         while (received < numPlanes) {
+            if (core.getRemainingImageCount() > 0) {
+               final TaggedImage img = core.popNextTaggedImage();
+               final int plane = received++;
+               if (show.contentEquals("Yes")) {
+                  SwingUtilities.invokeLater(new Runnable() {
+                     public void run() {
+                        app_.displayImage(img);
+                     }
+                  });
+               }
+               pending.add(ScoreKernel.getPool().submit(new Runnable() {
+                  public void run() {
+                     try {
+                        scores[plane] = scoreImage(planeKernels_.get(), img);
+                     } catch (Exception e) {
+                        ReportingUtils.logError(e);
+                        scores[plane] = Double.NaN;
+                     }
+                  }
+               }));
+            } else if (!core.isSequenceRunning()
+                    || System.currentTimeMillis() > timeoutMs) {
+               break;
+            } else {
+               Thread.sleep(1);
+            }
+         }
+      } finally {
+         if (core.isSequenceRunning()) {
+            core.stopSequenceAcquisition();
+         }
+         core.stopStageSequence(focusDevice);
+      }
+      for (Future<?> future : pending) {
+         future.get();
+      }
+      imageCount_ = received;
+      if (received < numPlanes) {
+         ReportingUtils.logError("OughtaFocus: received " + received
+                 + " of " + numPlanes + " planes");
+      }
+
+      int best = -1;
+      for (int i = 0; i < received; ++i) {
+         ReportingUtils.logMessage("OughtaFocus: image=" + i
+                 + ", z=" + TextUtils.FMT2.format(firstZ + i * step)
+                 + ", score=" + TextUtils.FMT2.format(scores[i]));
+         if (!Double.isNaN(scores[i]) && (best < 0 || scores[i] > scores[best])) {
+            best = i;
+         }
+      }
+      if (best < 0) {
+         throw new MMException("OughtaFocus: no planes could be scored");
+      }
+      double zResult = firstZ + best * step;
+      if (best > 0 && best < received - 1) {
+         double left = scores[best - 1];
+         double right = scores[best + 1];
+         double curvature = left - 2 * scores[best] + right;
+         if (curvature < 0) {
+            zResult += step * 0.5 * (left - right) / curvature;
+         }
+      }
+      ReportingUtils.logMessage("OughtaFocus sequenced planes: " + received
+              + ", z=" + TextUtils.FMT2.format(zResult)
+              + ", dz=" + TextUtils.FMT2.format(zResult - startZUm_)
+              + ", t=" + (System.currentTimeMillis() - startTimeMs_));
+      return zResult;
+   }
+
    private void setZPosition(double z) throws Exception {
       CMMCore core = app_.getMMCore();
       String focusDevice = core.getFocusDevice();
@@ -270,8 +448,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
             }
          }
          long tI = System.currentTimeMillis() - start - tZ;
-         ImageProcessor proc = makeMonochromeProcessor(core, getMonochromePixels(img));
-         double score = computeScore(proc);
+         double score = scoreImage(kernel_, img);
          long tC = System.currentTimeMillis() - start - tZ - tI;
          ReportingUtils.logMessage("OughtaFocus: image=" + imageCount_++
                  + ", t=" + (System.currentTimeMillis() - startTimeMs_)
@@ -312,8 +489,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          if (show.contentEquals("Yes")) {
             app_.displayImage(img);
          }
-         ImageProcessor proc = ImageUtils.makeProcessor(core, img);
-         score = computeScore(proc);
+         score = scoreImage(kernel_, img);
          ReportingUtils.logMessage("OughtaFocus: z=" + TextUtils.FMT2.format(z)
                  + ", score=" + TextUtils.FMT2.format(score));
       } catch (Exception e) {
@@ -327,153 +503,6 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       throw new UnsupportedOperationException("Not supported yet.");
    }
 
-   private double computeEdges(ImageProcessor proc) {
-      // mean intensity for the original image
-      double meanIntensity = proc.getStatistics().mean;
-      ImageProcessor proc1 = proc.duplicate();
-      // mean intensity of the edge map
-      // looks for horizontal and vertical edges with 3x3 Sobel
-      // filter and then combines them in RMS fashion
-      // http://rsb.info.nih.gov/ij/developer/source/ij/process/ByteProcessor.java.html
-      proc1.findEdges();
-      double meanEdge = proc1.getStatistics().mean;
-
-      return meanEdge / meanIntensity;
-   }
-
-   private double computeSharpEdges(ImageProcessor proc) {
-      // mean intensity for the original image
-      double meanIntensity = proc.getStatistics().mean;
-      ImageProcessor proc1 = proc.duplicate();
-      // mean intensity of the edge map
-      proc1.sharpen();
-      proc1.findEdges();
-      double meanEdge = proc1.getStatistics().mean;
-
-      return meanEdge / meanIntensity;
-   }
-
-   private double computeMean(ImageProcessor proc) {
-      return proc.getStatistics().mean;
-   }
-
-   private double computeNormalizedStdDev(ImageProcessor proc) {
-      ImageStatistics stats = proc.getStatistics();
-      return stats.stdDev / stats.mean;
-   }
-
-   private double computeNormalizedVariance(ImageProcessor proc) {
-      ImageStatistics stats = proc.getStatistics();
-      return (stats.stdDev * stats.stdDev) / stats.mean;
-   }
-
-   
-   // this is NOT a traditional Laplace filter; the "center" weight is
-   // actually the bottom-center cell of the 3x3 matrix.  AFAICT it's a
-   // typo in the source paper, but works better than the traditional
-   // Laplace filter.
-   //
-   // Redondo R, Bueno G, Valdiviezo J et al.  "Autofocus evaluation for
-   // brightfield microscopy pathology", J Biomed Opt 17(3) 036008 (2012)
-   //
-   // from
-   //
-   // Russel M, Douglas T.  "Evaluation of autofocus algorithms for
-   // tuberculosis microscopy". Proc 29th International Conference of the
-   // IEEE EMBS, Lyon, 3489-3492 (22-26 Aug 2007)
-   private double computeRedondo(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
-
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 1; j < h - 1; ++j) {
-            double p = proc.getPixel(i - 1, j)
-                    + proc.getPixel(i + 1, j)
-                    + proc.getPixel(i, j - 1)
-                    + proc.getPixel(i, j + 1)
-                    - 4 * (proc.getPixel(i - 1, j));
-            sum += (p * p);
-         }
-      }
-
-      return sum;
-   }
-
-   // Volath's 1D autocorrelation
-   // Volath  D., "The influence of the scene parameters and of noise on
-   // the behavior of automatic focusing algorithms,"
-   // J. Microsc. 151, (2), 133 –146 (1988).
-   private double computeVolath(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum1 = 0.0;
-      double sum2 = 0.0;
-
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum1 += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
-         }
-      }
-
-      for (int i = 0; i < w - 2; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum2 += proc.getPixel(i, j) * proc.getPixel(i + 2, j);
-         }
-      }
-
-      return (sum1 - sum2);
-   }
-
-   // Volath 5 - smoothes out high-frequency (suppresses noise)
-   // Volath  D., "The influence of the scene parameters and of noise on
-   // the behavior of automatic focusing algorithms,"
-   // J. Microsc. 151, (2), 133 –146 (1988).
-   private double computeVolath5(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
-
-      for (int i = 0; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
-         }
-      }
-
-      ImageStatistics stats = proc.getStatistics();
-
-      sum -= ((w - 1) * h * stats.mean * stats.mean);
-      return sum;
-   }
-
-   /**
-    * Modified version of the algorithm used by the AutoFocus JAF(H&P) code
-    * in Micro-Manager's Autofocus.java by Pakpoom Subsoontorn & Hernan Garcia.
-    * Looks for diagonal edges in both directions, then combines them (RMS).
-    * (Original algorithm only looked for edges in one diagonal direction).
-    * Similar to Edges algorithm except it does no normalization by original
-    * intensity and adds a median filter before edge detection.
-    * @author Jon
-    */
-   private double computeMedianEdges(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
-      int[] ken1 = {2, 1, 0, 1, 0, -1, 0, -1, -2};
-      int[] ken2 = {0, 1, 2, -1, 0, 1, -2, -1, 0};
-
-      proc.medianFilter();    // 3x3 median filter
-      ImageProcessor proc2 = proc.duplicate();
-      proc.convolve3x3(ken1);
-      proc2.convolve3x3(ken2);
-      for (int i=0; i<w; i++){
-         for (int j=0; j<h; j++){
-            sum += Math.sqrt(Math.pow(proc.getPixel(i,j),2) + Math.pow(proc2.getPixel(i, j), 2));
-         }
-      }
-      return sum;
-   }
-
    /**
     * Per suggestion of William "Bill" Mohler @ UConn.  Returns the power in a
     * specified band of spatial frequencies via the FFT.  Key according to Bill is
@@ -508,26 +537,36 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
 
    @Override
    public double computeScore(final ImageProcessor proc) {
+      Object pixels = proc.getPixels();
+      if (!(pixels instanceof byte[] || pixels instanceof short[]
+              || pixels instanceof float[])) {
+         pixels = proc.convertToFloat().getPixels();
+      }
+      kernel_.setImage(pixels, proc.getWidth(), proc.getHeight(), null, 1);
+      return computeScore(kernel_);
+   }
+
+   private double computeScore(ScoreKernel kernel) {
       if (scoringMethod.contentEquals("Mean")) {
-         return computeMean(proc);
+         return kernel.mean();
       } else if (scoringMethod.contentEquals("StdDev")) {
-         return computeNormalizedStdDev(proc);
+         return kernel.normalizedStdDev();
       } else if (scoringMethod.contentEquals("NormalizedVariance")) {
-         return computeNormalizedVariance(proc);
+         return kernel.normalizedVariance();
       } else if (scoringMethod.contentEquals("Edges")) {
-         return computeEdges(proc);
+         return kernel.edges();
       } else if (scoringMethod.contentEquals("SharpEdges")) {
-         return computeSharpEdges(proc);
+         return kernel.sharpEdges();
       } else if (scoringMethod.contentEquals("Redondo")) {
-         return computeRedondo(proc);
+         return kernel.redondo();
       } else if (scoringMethod.contentEquals("Volath")) {
-         return computeVolath(proc);
+         return kernel.volath();
       } else if (scoringMethod.contentEquals("Volath5")) {
-         return computeVolath5(proc);
+         return kernel.volath5();
       } else if (scoringMethod.contentEquals("MedianEdges")) {
-         return computeMedianEdges(proc);
+         return kernel.medianEdges();
       } else if (scoringMethod.contentEquals("FFTBandpass")) {
-         return computeFFTBandpass(proc);
+         return computeFFTBandpass(kernel.toProcessor());
       } else {
          return 0;
       }
@@ -554,6 +593,503 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
 
 
 
+   /**
+    * Focus score kernels working on a float copy of the image (optionally
+    * cropped and binned). The copy and the scratch buffers are kept between
+    * calls, so scoring a plane does not allocate image-sized arrays, and no
+    * ImageJ processors are involved except for the FFT based score.
+    * Large images are split into row stripes that are scored on a shared pool
+    * of daemon threads.
+    *
+    * Scores match the ImageJ based implementations OughtaFocus used to have,
+    * except for the treatment of the outermost rows and columns.
+    *
+    * An instance is not thread safe.
+    */
+   static class ScoreKernel {
+      private static final int MIN_PIXELS_PER_STRIPE = 65536;
+      private static final int[] KERNEL1 = {2, 1, 0, 1, 0, -1, 0, -1, -2};
+      private static final int[] KERNEL2 = {0, 1, 2, -1, 0, 1, -2, -1, 0};
+      private static ExecutorService pool_;
+
+      private final boolean parallel_;
+      private float[] plane_ = new float[0];
+      private float[] scratch_ = new float[0];
+      private int width_;
+      private int height_;
+      // Results are rounded and clipped to [0, maxValue_] like ImageJ does
+      // for integer images; 0 for float images.
+      private float maxValue_;
+      private int numStripes_ = 1;
+      private double[][] partials_ = new double[1][2];
+      private float[][] neighborhoods_ = new float[1][9];
+
+      private interface StripeKernel {
+         void run(int stripe, int rowStart, int rowEnd);
+      }
+
+      /**
+       * @param parallel whether to split the work over the shared thread
+       * pool; kernels that are themselves run on the pool must not.
+       */
+      ScoreKernel(boolean parallel) {
+         parallel_ = parallel;
+      }
+
+      static synchronized ExecutorService getPool() {
+         if (pool_ == null) {
+            pool_ = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                       public Thread newThread(Runnable r) {
+                          Thread thread = new Thread(r, "OughtaFocus scoring");
+                          thread.setDaemon(true);
+                          return thread;
+                       }
+                    });
+         }
+         return pool_;
+      }
+
+      /**
+       * Copies the pixels to score.
+       * @param pixels byte[], short[] or float[] monochrome pixels
+       * @param roi region to score, or null for the whole image
+       * @param binning the region is averaged over binning x binning blocks
+       */
+      void setImage(final Object pixels, final int width, int height,
+              Rectangle roi, int binning) {
+         if (pixels instanceof byte[]) {
+            maxValue_ = 255;
+         } else if (pixels instanceof short[]) {
+            maxValue_ = 65535;
+         } else if (pixels instanceof float[]) {
+            maxValue_ = 0;
+         } else {
+            throw new IllegalArgumentException("Unsupported pixel type: "
+                    + (pixels == null ? null : pixels.getClass()));
+         }
+         final Rectangle region = roi == null
+                 ? new Rectangle(0, 0, width, height)
+                 : roi.intersection(new Rectangle(0, 0, width, height));
+         if (region.isEmpty()) {
+            region.setBounds(0, 0, width, height);
+         }
+         final int bin = Math.max(1,
+                 Math.min(binning, Math.min(region.width, region.height)));
+         width_ = region.width / bin;
+         height_ = region.height / bin;
+         int numPixels = width_ * height_;
+         if (plane_.length < numPixels) {
+            plane_ = new float[numPixels];
+         }
+         numStripes_ = 1;
+         if (parallel_) {
+            numStripes_ = Math.max(1, Math.min(Math.min(
+                    Runtime.getRuntime().availableProcessors(),
+                    numPixels / MIN_PIXELS_PER_STRIPE), height_));
+         }
+         if (partials_.length < numStripes_) {
+            partials_ = new double[numStripes_][2];
+            neighborhoods_ = new float[numStripes_][9];
+         }
+
+         final float norm = 1.0f / (bin * bin);
+         runStripes(new StripeKernel() {
+            public void run(int stripe, int rowStart, int rowEnd) {
+               for (int y = rowStart; y < rowEnd; ++y) {
+                  int dest = y * width_;
+                  Arrays.fill(plane_, dest, dest + width_, 0);
+                  for (int dy = 0; dy < bin; ++dy) {
+                     int src = (region.y + y * bin + dy) * width + region.x;
+                     addRow(pixels, src, dest, bin);
+                  }
+                  if (bin > 1) {
+                     for (int x = 0; x < width_; ++x) {
+                        plane_[dest + x] *= norm;
+                     }
+                  }
+               }
+            }
+         });
+      }
+
+      private void addRow(Object pixels, int src, int dest, int bin) {
+         if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int x = 0; x < width_; ++x) {
+               int sum = 0;
+               for (int i = src + x * bin; i < src + (x + 1) * bin; ++i) {
+                  sum += p[i] & 0xff;
+               }
+               plane_[dest + x] += sum;
+            }
+         } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int x = 0; x < width_; ++x) {
+               int sum = 0;
+               for (int i = src + x * bin; i < src + (x + 1) * bin; ++i) {
+                  sum += p[i] & 0xffff;
+               }
+               plane_[dest + x] += sum;
+            }
+         } else {
+            float[] p = (float[]) pixels;
+            for (int x = 0; x < width_; ++x) {
+               float sum = 0;
+               for (int i = src + x * bin; i < src + (x + 1) * bin; ++i) {
+                  sum += p[i];
+               }
+               plane_[dest + x] += sum;
+            }
+         }
+      }
+
+      int getWidth() {
+         return width_;
+      }
+
+      int getHeight() {
+         return height_;
+      }
+
+      /**
+       * Returns a FloatProcessor with a copy of the scored pixels, for the
+       * scores that still go through ImageJ.
+       */
+      ImageProcessor toProcessor() {
+         return new FloatProcessor(width_, height_,
+                 Arrays.copyOf(plane_, width_ * height_), null);
+      }
+
+      double mean() {
+         return statistics()[0];
+      }
+
+      double normalizedStdDev() {
+         double[] stats = statistics();
+         return stats[1] / stats[0];
+      }
+
+      double normalizedVariance() {
+         double[] stats = statistics();
+         return (stats[1] * stats[1]) / stats[0];
+      }
+
+      /**
+       * Mean and standard deviation (n - 1 denominator, as ImageJ).
+       */
+      private double[] statistics() {
+         runStripes(new StripeKernel() {
+            public void run(int stripe, int rowStart, int rowEnd) {
+               double sum = 0;
+               double sumSq = 0;
+               for (int i = rowStart * width_; i < rowEnd * width_; ++i) {
+                  double v = plane_[i];
+                  sum += v;
+                  sumSq += v * v;
+               }
+               partials_[stripe][0] = sum;
+               partials_[stripe][1] = sumSq;
+            }
+         });
+         double n = (double) width_ * height_;
+         double sum = sumPartials(0);
+         double sumSq = sumPartials(1);
+         double stdDev = n > 1 ?
+                 Math.sqrt(Math.max(0, (n * sumSq - sum * sum) / n / (n - 1))) : 0;
+         return new double[] {sum / n, stdDev};
+      }
+
+      /**
+       * Mean of the 3x3 Sobel edge map (ImageJ's findEdges) relative to the
+       * mean intensity.
+       */
+      double edges() {
+         return sobelMean(plane_) / mean();
+      }
+
+      /**
+       * As edges(), after ImageJ's 3x3 sharpening filter.
+       */
+      double sharpEdges() {
+         ensureScratch();
+         runStripes(new StripeKernel() {
+            public void run(int stripe, int rowStart, int rowEnd) {
+               float[] p = neighborhoods_[stripe];
+               for (int y = rowStart; y < rowEnd; ++y) {
+                  for (int x = 0; x < width_; ++x) {
+                     neighborhood(plane_, x, y, p);
+                     double sum = 12 * p[4] - p[0] - p[1] - p[2] - p[3]
+                             - p[5] - p[6] - p[7] - p[8];
+                     scratch_[y * width_ + x] = clip(sum / 4);
+                  }
+               }
+            }
+         });
+         return sobelMean(scratch_) / mean();
+      }
+
+      // this is NOT a traditional Laplace filter; the "center" weight is
+      // actually the bottom-center cell of the 3x3 matrix.  AFAICT it's a
+      // typo in the source paper, but works better than the traditional
+      // Laplace filter.
+      //
+      // Redondo R, Bueno G, Valdiviezo J et al.  "Autofocus evaluation for
+      // brightfield microscopy pathology", J Biomed Opt 17(3) 036008 (2012)
+      //
+      // from
+      //
+      // Russel M, Douglas T.  "Evaluation of autofocus algorithms for
+      // tuberculosis microscopy". Proc 29th International Conference of the
+      // IEEE EMBS, Lyon, 3489-3492 (22-26 Aug 2007)
+      double redondo() {
+         runStripes(new StripeKernel() {
+            public void run(int stripe, int rowStart, int rowEnd) {
+               double sum = 0;
+               for (int j = Math.max(1, rowStart);
+                       j < Math.min(height_ - 1, rowEnd); ++j) {
+                  int row = j * width_;
+                  for (int i = 1; i < width_ - 1; ++i) {
+                     double p = plane_[row + i - 1] + plane_[row + i + 1]
+                             + plane_[row - width_ + i]
+                             + plane_[row + width_ + i]
+                             - 4 * plane_[row + i - 1];
+                     sum += p * p;
+                  }
+               }
+               partials_[stripe][0] = sum;
+            }
+         });
+         return sumPartials(0);
+      }
+
+      // Volath's 1D autocorrelation
+      // Volath  D., "The influence of the scene parameters and of noise on
+      // the behavior of automatic focusing algorithms,"
+      // J. Microsc. 151, (2), 133 -146 (1988).
+      double volath() {
+         runStripes(new StripeKernel() {
+            public void run(int stripe, int rowStart, int rowEnd) {
+               double sum1 = 0;
+               double sum2 = 0;
+               for (int j = rowStart; j < rowEnd; ++j) {
+                  int row = j * width_;
+                  for (int i = 1; i < width_ - 1; ++i) {
+                     sum1 += (double) plane_[row + i] * plane_[row + i + 1];
+                  }
+                  for (int i = 0; i < width_ - 2; ++i) {
+                     sum2 += (double) plane_[row + i] * plane_[row + i + 2];
+                  }
+               }
+               partials_[stripe][0] = sum1;
+               partials_[stripe][1] = sum2;
+            }
+         });
+         return sumPartials(0) - sumPartials(1);
+      }
+
+      // Volath 5 - smoothes out high-frequency (suppresses noise)
+      double volath5() {
+         runStripes(new StripeKernel() {
+            public void run(int stripe, int rowStart, int rowEnd) {
+               double sum = 0;
+               double total = 0;
+               for (int j = rowStart; j < rowEnd; ++j) {
+                  int row = j * width_;
+                  for (int i = 0; i < width_ - 1; ++i) {
+                     sum += (double) plane_[row + i] * plane_[row + i + 1];
+                     total += plane_[row + i];
+                  }
+                  total += plane_[row + width_ - 1];
+               }
+               partials_[stripe][0] = sum;
+               partials_[stripe][1] = total;
+            }
+         });
+         double mean = sumPartials(1) / ((double) width_ * height_);
+         return sumPartials(0) - ((width_ - 1) * (double) height_ * mean * mean);
+      }
+
+      /**
+       * Modified version of the algorithm used by the AutoFocus JAF(H&P)
+       * code: 3x3 median filter, then diagonal edges in both directions,
+       * combined in RMS fashion.
+       */
+      double medianEdges() {
+         ensureScratch();
+         runStripes(new StripeKernel() {
+            public void run(int stripe, int rowStart, int rowEnd) {
+               float[] p = neighborhoods_[stripe];
+               for (int y = rowStart; y < rowEnd; ++y) {
+                  for (int x = 0; x < width_; ++x) {
+                     neighborhood(plane_, x, y, p);
+                     scratch_[y * width_ + x] = median9(p);
+                  }
+               }
+            }
+         });
+         runStripes(new StripeKernel() {
+            public void run(int stripe, int rowStart, int rowEnd) {
+               float[] p = neighborhoods_[stripe];
+               double sum = 0;
+               for (int y = rowStart; y < rowEnd; ++y) {
+                  for (int x = 0; x < width_; ++x) {
+                     neighborhood(scratch_, x, y, p);
+                     double a = clip(convolve(KERNEL1, p));
+                     double b = clip(convolve(KERNEL2, p));
+                     sum += Math.sqrt(a * a + b * b);
+                  }
+               }
+               partials_[stripe][0] = sum;
+            }
+         });
+         return sumPartials(0);
+      }
+
+      private double sobelMean(final float[] a) {
+         runStripes(new StripeKernel() {
+            public void run(int stripe, int rowStart, int rowEnd) {
+               float[] p = neighborhoods_[stripe];
+               double sum = 0;
+               for (int y = rowStart; y < rowEnd; ++y) {
+                  for (int x = 0; x < width_; ++x) {
+                     neighborhood(a, x, y, p);
+                     double sum1 = p[0] + 2 * p[1] + p[2]
+                             - p[6] - 2 * p[7] - p[8];
+                     double sum2 = p[0] + 2 * p[3] + p[6]
+                             - p[2] - 2 * p[5] - p[8];
+                     sum += clip(Math.sqrt(sum1 * sum1 + sum2 * sum2));
+                  }
+               }
+               partials_[stripe][0] = sum;
+            }
+         });
+         return sumPartials(0) / ((double) width_ * height_);
+      }
+
+      /**
+       * Copies the 3x3 neighborhood of (x, y) into p, replicating the edge
+       * pixels.
+       */
+      private void neighborhood(float[] a, int x, int y, float[] p) {
+         int up = (y > 0 ? y - 1 : 0) * width_;
+         int mid = y * width_;
+         int down = (y < height_ - 1 ? y + 1 : y) * width_;
+         int left = x > 0 ? x - 1 : 0;
+         int right = x < width_ - 1 ? x + 1 : x;
+         p[0] = a[up + left];
+         p[1] = a[up + x];
+         p[2] = a[up + right];
+         p[3] = a[mid + left];
+         p[4] = a[mid + x];
+         p[5] = a[mid + right];
+         p[6] = a[down + left];
+         p[7] = a[down + x];
+         p[8] = a[down + right];
+      }
+
+      private static double convolve(int[] kernel, float[] p) {
+         double sum = 0;
+         for (int i = 0; i < 9; ++i) {
+            sum += kernel[i] * p[i];
+         }
+         return sum;
+      }
+
+      /**
+       * Median of the 9 values in p (which is reordered), using the
+       * 19-exchange sorting network.
+       */
+      private static float median9(float[] p) {
+         sort(p, 1, 2); sort(p, 4, 5); sort(p, 7, 8);
+         sort(p, 0, 1); sort(p, 3, 4); sort(p, 6, 7);
+         sort(p, 1, 2); sort(p, 4, 5); sort(p, 7, 8);
+         sort(p, 0, 3); sort(p, 5, 8); sort(p, 4, 7);
+         sort(p, 3, 6); sort(p, 1, 4); sort(p, 2, 5);
+         sort(p, 4, 7); sort(p, 4, 2); sort(p, 6, 4);
+         sort(p, 4, 2);
+         return p[4];
+      }
+
+      private static void sort(float[] p, int a, int b) {
+         if (p[a] > p[b]) {
+            float t = p[a];
+            p[a] = p[b];
+            p[b] = t;
+         }
+      }
+
+      private float clip(double v) {
+         if (maxValue_ == 0) {
+            return (float) v;
+         }
+         if (v < 0) {
+            return 0;
+         }
+         return v >= maxValue_ ? maxValue_ : (float) Math.floor(v + 0.5);
+      }
+
+      private void ensureScratch() {
+         if (scratch_.length < width_ * height_) {
+            scratch_ = new float[width_ * height_];
+         }
+      }
+
+      private double sumPartials(int index) {
+         double sum = 0;
+         for (int i = 0; i < numStripes_; ++i) {
+            sum += partials_[i][index];
+         }
+         return sum;
+      }
+
+      private int rowStart(int stripe) {
+         return (int) ((long) height_ * stripe / numStripes_);
+      }
+
+      /**
+       * Runs kernel on every stripe, the first one on the calling thread,
+       * and waits for all of them.
+       */
+      private void runStripes(final StripeKernel kernel) {
+         if (numStripes_ == 1) {
+            kernel.run(0, 0, height_);
+            return;
+         }
+         final CountDownLatch done = new CountDownLatch(numStripes_ - 1);
+         final RuntimeException[] failure = new RuntimeException[1];
+         for (int s = 1; s < numStripes_; ++s) {
+            final int stripe = s;
+            getPool().execute(new Runnable() {
+               public void run() {
+                  try {
+                     kernel.run(stripe, rowStart(stripe), rowStart(stripe + 1));
+                  } catch (RuntimeException e) {
+                     synchronized (failure) {
+                        failure[0] = e;
+                     }
+                  } finally {
+                     done.countDown();
+                  }
+               }
+            });
+         }
+         kernel.run(0, 0, rowStart(1));
+         try {
+            done.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+         }
+         synchronized (failure) {
+            if (failure[0] != null) {
+               throw failure[0];
+            }
+         }
+      }
+   }
+
    /**
     * This is a modified version of ImageJ FHT class which is in the public domain
     *   (http://rsb.info.nih.gov/ij/developer/source/ij/process/FHT.java.html).
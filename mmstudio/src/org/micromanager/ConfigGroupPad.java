@@ -25,6 +25,7 @@
 package org.micromanager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.prefs.Preferences;
 
@@ -108,6 +109,26 @@ public class ConfigGroupPad extends JScrollPane{
       }
    }
 
+   /**
+    * Reads the config groups and their current presets from the core,
+    * without touching the table, so that it can be done off the EDT.
+    * @return groups to pass to updateGroups(), null if there is no core yet
+    * @throws Exception
+    */
+   public ArrayList<StateItem> readGroups(boolean fromCache) throws Exception {
+      return data_ == null ? null : data_.readGroups(fromCache);
+   }
+
+   /**
+    * Shows groups read by readGroups(), repainting only the rows that
+    * changed unless the groups themselves changed. Call on the EDT.
+    */
+   public void updateGroups(ArrayList<StateItem> groups) {
+      if (data_ != null && groups != null) {
+         data_.updateGroups(groups);
+      }
+   }
+
    public void refreshGroup(String groupName, String configName) {
       if (data_ != null) {
          data_.refreshGroup(groupName, configName);
@@ -268,61 +289,97 @@ public class ConfigGroupPad extends JScrollPane{
 
       public void rebuildModel(boolean fromCache) {
          try {
-            ReportingUtils.logMessage("Rebuilding config group table");
-            StrVector groups = core_.getAvailableConfigGroups();
-            groupList_.clear();
-
-            for (String group : groups) {
-               StateItem item = new StateItem();
-               item.group = group;
-               if (fromCache) {
-                  item.config = core_.getCurrentConfigFromCache(item.group);
-               } else {
-                  item.config = core_.getCurrentConfig(item.group);
-               }
-               item.allowed = core_.getAvailableConfigs(item.group).toArray();
+            groupList_ = readGroups(fromCache);
+         } catch (Exception e) {
+            handleException(e);
+         }
+      }
 
+      ArrayList<StateItem> readGroups(boolean fromCache) throws Exception {
+         ReportingUtils.logMessage("Rebuilding config group table");
+         StrVector groups = core_.getAvailableConfigGroups();
+         ArrayList<StateItem> groupList = new ArrayList<StateItem>();
+
+         for (String group : groups) {
+            StateItem item = new StateItem();
+            item.group = group;
+            if (fromCache) {
+               item.config = core_.getCurrentConfigFromCache(item.group);
+            } else {
+               item.config = core_.getCurrentConfig(item.group);
+            }
+            item.allowed = core_.getAvailableConfigs(item.group).toArray();
 
-               if (item.config.length() > 0) {
-                  Configuration curCfg = core_.getConfigData(item.group, item.config);
-                  item.descr = curCfg.getVerbose();
-               } else {
-                  item.descr = "";
-               }
 
-               if (item.allowed.length == 1) {
-                  Configuration cfg = core_.getConfigData(item.group, item.allowed[0]);
-                  if (cfg.size() == 1) {
-                     item.device = cfg.getSetting(0).getDeviceLabel();
-                     item.name = cfg.getSetting(0).getPropertyName();
-                     item.hasLimits = core_.hasPropertyLimits(item.device, item.name);
-                     boolean itemHasAllowedValues = (0 < core_.getAllowedPropertyValues(item.device, item.name).size());
-                     if (item.hasLimits || !itemHasAllowedValues) {
-                        item.singleProp = true;
-                        item.type = core_.getPropertyType(item.device, item.name);
-                        if (fromCache) {
-                           item.setValueFromCoreString(core_.getPropertyFromCache(item.device, item.name));
-                        } else {
-                           item.setValueFromCoreString(core_.getProperty(item.device, item.name));
-                        }
-                        item.config = item.value;
-                        item.lowerLimit = core_.getPropertyLowerLimit(item.device, item.name);
-                        item.upperLimit = core_.getPropertyUpperLimit(item.device, item.name);
-                        item.singlePropAllowed = core_.getAllowedPropertyValues(item.device, item.name).toArray();
-                     }
+            if (item.config.length() > 0) {
+               Configuration curCfg = core_.getConfigData(item.group, item.config);
+               item.descr = curCfg.getVerbose();
+            } else {
+               item.descr = "";
+            }
 
+            if (item.allowed.length == 1) {
+               Configuration cfg = core_.getConfigData(item.group, item.allowed[0]);
+               if (cfg.size() == 1) {
+                  item.device = cfg.getSetting(0).getDeviceLabel();
+                  item.name = cfg.getSetting(0).getPropertyName();
+                  item.hasLimits = core_.hasPropertyLimits(item.device, item.name);
+                  boolean itemHasAllowedValues = (0 < core_.getAllowedPropertyValues(item.device, item.name).size());
+                  if (item.hasLimits || !itemHasAllowedValues) {
+                     item.singleProp = true;
+                     item.type = core_.getPropertyType(item.device, item.name);
+                     if (fromCache) {
+                        item.setValueFromCoreString(core_.getPropertyFromCache(item.device, item.name));
+                     } else {
+                        item.setValueFromCoreString(core_.getProperty(item.device, item.name));
+                     }
+                     item.config = item.value;
+                     item.lowerLimit = core_.getPropertyLowerLimit(item.device, item.name);
+                     item.upperLimit = core_.getPropertyUpperLimit(item.device, item.name);
+                     item.singlePropAllowed = core_.getAllowedPropertyValues(item.device, item.name).toArray();
                   }
+
                }
+            }
+
 
+            groupList.add(item);
+         }
+         ReportingUtils.logMessage("Finished rebuilding config group table");
+         return groupList;
+      }
 
-               groupList_.add(item);
+      void updateGroups(ArrayList<StateItem> groups) {
+         ArrayList<StateItem> old = groupList_;
+         groupList_ = groups;
+         boolean sameGroups = old.size() == groups.size();
+         for (int i = 0; sameGroups && i < groups.size(); i++) {
+            StateItem a = old.get(i);
+            StateItem b = groups.get(i);
+            sameGroups = a.group.equals(b.group)
+                  && Arrays.equals(a.allowed, b.allowed)
+                  && a.singleProp == b.singleProp
+                  && Arrays.equals(a.singlePropAllowed, b.singlePropAllowed);
+         }
+         if (!sameGroups) {
+            fireTableStructureChanged();
+            table_.repaint();
+            return;
+         }
+         for (int i = 0; i < groups.size(); i++) {
+            StateItem a = old.get(i);
+            StateItem b = groups.get(i);
+            if (!equal(a.config, b.config) || !equal(a.descr, b.descr)
+                  || !equal(a.value, b.value)) {
+               fireTableRowsUpdated(i, i);
             }
-            ReportingUtils.logMessage("Finished rebuilding config group table");
-         } catch (Exception e) {
-            handleException(e);
          }
       }
 
+      private boolean equal(String a, String b) {
+         return a == null ? b == null : a.equals(b);
+      }
+
       // Update the current presets for each config group, without updating
       // the list of config groups and presets.
       public void refreshStatus() {
@@ -67,7 +67,8 @@ public class CoreEventCallback extends MMEventCallback {
          return;
       }
 
-      core_.updateSystemStateCache();
+      // The system state cache is updated by the GUI refresh, once for all
+      // the notifications that arrive in a burst
 
       core_.logMessage("Notification from MMCore!", true);
       for (MMListenerInterface mmIntf : MMListeners_) {
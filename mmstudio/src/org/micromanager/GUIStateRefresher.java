@@ -0,0 +1,261 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          GUIStateRefresher.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import mmcorej.CMMCore;
+import mmcorej.DeviceType;
+import mmcorej.MMCoreJ;
+
+import org.micromanager.utils.CalibrationList;
+import org.micromanager.utils.PropertyItem;
+import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.StateItem;
+
+/**
+ * Refreshes the main window from the core when its state changed.
+ *
+ * Devices can send many change notifications in a row (while a
+ * configuration is loading, or while a property is being adjusted), so
+ * requests that come in before a refresh starts are merged into it. The
+ * values are read from the core on a background thread, and only the ones
+ * that differ from the previous refresh are shown, on the EDT.
+ */
+class GUIStateRefresher {
+   // time to wait for further requests before refreshing
+   private static final long COALESCE_MS = 50;
+
+   private final MMStudio studio_;
+   private final CMMCore core_;
+   private final ScheduledExecutorService executor_;
+
+   // merged requests not yet handled, guarded by this
+   private boolean pending_ = false;
+   private boolean structure_ = false;
+   private boolean fromCache_ = true;
+
+   // last state shown, only used on the refresh thread
+   private State shown_ = null;
+
+   /**
+    * Values shown in the main window, read from the core.
+    */
+   static class State {
+      String camera_ = "";
+      double exposure_ = 0;
+      String binning_ = null;
+      String activeShutter_ = "";
+      boolean autoShutter_ = false;
+      boolean shutterOpen_ = false;
+      String[] binningValues_ = null;
+      String[] autofocusDevices_ = new String[0];
+      String[] channelGroups_ = new String[0];
+      String[] channelConfigs_ = new String[0];
+      // null unless the window that shows them exists
+      CalibrationList calibrations_ = null;
+      String pixelSizeConfig_ = "";
+      ArrayList<PropertyItem> properties_ = null;
+      ArrayList<StateItem> groups_ = null;
+
+      private static boolean equal(Object a, Object b) {
+         return a == null ? b == null : a.equals(b);
+      }
+
+      boolean sameCamera(State other) {
+         return other != null && camera_.equals(other.camera_);
+      }
+
+      boolean sameExposure(State other) {
+         return sameCamera(other) && exposure_ == other.exposure_;
+      }
+
+      boolean sameBinning(State other) {
+         return sameCamera(other) && equal(binning_, other.binning_);
+      }
+
+      boolean sameBinningValues(State other) {
+         return sameCamera(other)
+               && Arrays.equals(binningValues_, other.binningValues_);
+      }
+
+      boolean sameAutofocusDevices(State other) {
+         return other != null
+               && Arrays.equals(autofocusDevices_, other.autofocusDevices_);
+      }
+
+      boolean sameChannels(State other) {
+         return other != null
+               && Arrays.equals(channelGroups_, other.channelGroups_)
+               && Arrays.equals(channelConfigs_, other.channelConfigs_);
+      }
+
+      boolean sameShutter(State other) {
+         return other != null && activeShutter_.equals(other.activeShutter_)
+               && autoShutter_ == other.autoShutter_
+               && shutterOpen_ == other.shutterOpen_;
+      }
+   }
+
+   GUIStateRefresher(MMStudio studio, CMMCore core) {
+      studio_ = studio;
+      core_ = core;
+      executor_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "GUI state refresh");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   /**
+    * Asks for a refresh, which happens shortly on the refresh thread.
+    * @param structure also re-read the config groups and the lists that
+    *    depend on the configuration (channels, calibrations, autofocus)
+    * @param fromCache read property values from the system state cache
+    *    rather than from the devices
+    */
+   synchronized void requestRefresh(boolean structure, boolean fromCache) {
+      // late requests, e.g. from devices being unloaded, are dropped
+      if (executor_.isShutdown()) {
+         return;
+      }
+      structure_ |= structure;
+      fromCache_ &= fromCache;
+      if (!pending_) {
+         try {
+            executor_.schedule(new Runnable() {
+               @Override
+               public void run() {
+                  refresh();
+               }
+            }, COALESCE_MS, TimeUnit.MILLISECONDS);
+            pending_ = true;
+         } catch (RejectedExecutionException e) {
+            // shut down after the check above
+         }
+      }
+   }
+
+   /**
+    * Stops refreshing, called before the core is deleted.
+    */
+   void shutdown() {
+      executor_.shutdownNow();
+      try {
+         executor_.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void refresh() {
+      boolean structure;
+      boolean fromCache;
+      synchronized (this) {
+         structure = structure_;
+         fromCache = fromCache_;
+         pending_ = false;
+         structure_ = false;
+         fromCache_ = true;
+      }
+      ReportingUtils.logMessage("Updating GUI; config pad = " +
+            structure + "; from cache = " + fromCache);
+      try {
+         if (structure && !fromCache) {
+            // Needed to update read-only properties, done once for all
+            // the requests that were merged
+            core_.updateSystemStateCache();
+            fromCache = true;
+         }
+         final State state = readState(structure, fromCache);
+         final State shown = shown_;
+         final boolean updateStructure = structure;
+         shown_ = state;
+         SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+               studio_.showGUIState(shown, state, updateStructure);
+            }
+         });
+      } catch (Exception e) {
+         ReportingUtils.logError(e);
+      }
+   }
+
+   private State readState(boolean structure, boolean fromCache) throws Exception {
+      StaticInfo staticInfo = studio_.getStaticInfo();
+      if (staticInfo != null) {
+         staticInfo.readValues();
+      }
+      State state = new State();
+      state.camera_ = core_.getCameraDevice();
+      if (state.camera_.length() > 0) {
+         state.exposure_ = core_.getExposure();
+         if (fromCache) {
+            state.binning_ = core_.getPropertyFromCache(state.camera_, MMCoreJ.getG_Keyword_Binning());
+         } else {
+            state.binning_ = core_.getProperty(state.camera_, MMCoreJ.getG_Keyword_Binning());
+         }
+         state.binningValues_ = core_.getAllowedPropertyValues(state.camera_,
+               MMCoreJ.getG_Keyword_Binning()).toArray();
+      }
+      String activeShutter = core_.getShutterDevice();
+      state.activeShutter_ = activeShutter != null ? activeShutter : "";
+      state.autoShutter_ = core_.getAutoShutter();
+      state.shutterOpen_ = core_.getShutterOpen();
+      state.autofocusDevices_ = core_.getLoadedDevicesOfType(DeviceType.AutoFocusDevice).toArray();
+      if (studio_.getAcquisitionEngine() != null) {
+         state.channelGroups_ = studio_.getAcquisitionEngine().getAvailableGroups();
+      }
+      state.channelConfigs_ = core_.getAvailableConfigs(core_.getChannelGroup()).toArray();
+      if (studio_.hasCalibrationListDlg()) {
+         state.calibrations_ = new CalibrationList(core_);
+         state.calibrations_.getCalibrationsFromCore();
+         try {
+            state.pixelSizeConfig_ = core_.getCurrentPixelSizeConfig();
+         } catch (Exception e) {
+            ReportingUtils.logError(e);
+         }
+      }
+      PropertyEditor propertyBrowser = studio_.getPropertyBrowser();
+      if (propertyBrowser != null) {
+         state.properties_ = propertyBrowser.readProperties();
+      }
+      if (structure) {
+         ConfigGroupPad pad = studio_.getConfigPad();
+         if (pad != null) {
+            state.groups_ = pad.readGroups(fromCache);
+         }
+      }
+      return state;
+   }
+}
@@ -115,6 +115,7 @@ import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ReportingUtils;
 import org.micromanager.utils.TextUtils;
 import org.micromanager.utils.UIMonitor;
@@ -203,6 +204,7 @@ public class MMStudio implements ScriptInterface {
    private static MainFrame frame_;
    // Callback
    private CoreEventCallback coreCallback_;
+   private GUIStateRefresher guiRefresher_;
    // Lock invoked while shutting down
    private final Object shutdownLock_ = new Object();
 
@@ -325,6 +327,7 @@ public class MMStudio implements ScriptInterface {
       }
 
       core_.enableStderrLog(true);
+      guiRefresher_ = new GUIStateRefresher(this, core_);
 
       snapLiveManager_ = new SnapLiveManager(studio_, core_);
 
@@ -615,7 +618,8 @@ public class MMStudio implements ScriptInterface {
    /**
     * Shows images as they appear in the default display window. Uses
     * the default processor stack to process images as they arrive on
-    * the rawImageQueue.
+    * the rawImageQueue. Each image is released to the PixelBufferPool once
+    * displayImageRoutine has shown it.
     * @param rawImageQueue
     * @param displayImageRoutine
     * @return the display thread, which can be joined to ensure all images
@@ -635,7 +639,12 @@ public class MMStudio implements ScriptInterface {
                do {
                   image = processedImageQueue.take();
                   if (image != TaggedImageQueue.POISON) {
-                     displayImageRoutine.show(image);
+                     try {
+                        displayImageRoutine.show(image);
+                     } finally {
+                        // processors may have taken the pixels from the pool
+                        PixelBufferPool.getInstance().release(image);
+                     }
                   }
                } while (image != TaggedImageQueue.POISON);
             } catch (InterruptedException ex) {
@@ -647,6 +656,13 @@ public class MMStudio implements ScriptInterface {
       return displayThread;
    }
 
+   /**
+    * Shows the images of runDisplayThread. The pixels of the image may come
+    * from the PixelBufferPool and are recycled when show returns, so an
+    * implementation that keeps the image afterwards must call
+    * PixelBufferPool.retain on it (and release once done). Storing the image
+    * through addImage is safe, the storages keep a copy of pooled pixels.
+    */
    public interface DisplayImageRoutine {
       public void show(TaggedImage image);
    }
@@ -1414,65 +1430,85 @@ public class MMStudio implements ScriptInterface {
       updateGUI(updateConfigPadStructure, false);
    }
 
+   /**
+    * Refreshes the main window and the dialogs that depend on the
+    * configuration. Returns right away, the core is read on a background
+    * thread and calls made in quick succession are merged into one refresh.
+    * @param updateConfigPadStructure also rebuild the config groups
+    * @param fromCache read property values from the system state cache
+    */
    public void updateGUI(boolean updateConfigPadStructure, boolean fromCache) {
-      ReportingUtils.logMessage("Updating GUI; config pad = " +
-            updateConfigPadStructure + "; from cache = " + fromCache);
+      if (guiRefresher_ != null) {
+         guiRefresher_.requestRefresh(updateConfigPadStructure, fromCache);
+      }
+   }
+
+   /**
+    * Shows the state read by the GUIStateRefresher, on the EDT. Controls are
+    * only updated where the state differs from the one shown before.
+    * @param shown state shown by the previous refresh, null if none
+    * @param state new state
+    * @param structure the config groups were read as well
+    */
+   void showGUIState(GUIStateRefresher.State shown,
+         GUIStateRefresher.State state, boolean structure) {
+      if (frame_ == null) {
+         return;
+      }
       try {
-         staticInfo_.refreshValues();
-         afMgr_.refresh();
+         // image info and stage positions, read on the refresh thread
+         if (staticInfo_ != null) {
+            staticInfo_.updateInfoDisplay();
+         }
+         if (afMgr_ != null && !state.sameAutofocusDevices(shown)) {
+            afMgr_.refresh();
+         }
 
          // camera settings
-         if (isCameraAvailable()) {
-            double exp = core_.getExposure();
-            frame_.setDisplayedExposureTime(exp);
-            configureBinningCombo();
-            String binSize;
-            if (fromCache) {
-               binSize = core_.getPropertyFromCache(StaticInfo.cameraLabel_, MMCoreJ.getG_Keyword_Binning());
-            } else {
-               binSize = core_.getProperty(StaticInfo.cameraLabel_, MMCoreJ.getG_Keyword_Binning());
+         if (state.camera_.length() > 0) {
+            if (!state.sameExposure(shown)) {
+               frame_.setDisplayedExposureTime(state.exposure_);
+            }
+            boolean rebuildBinning = state.binningValues_ != null
+                  && !state.sameBinningValues(shown);
+            if (rebuildBinning) {
+               frame_.configureBinningCombo(state.binningValues_);
+            }
+            if (rebuildBinning || !state.sameBinning(shown)) {
+               frame_.setBinSize(state.binning_);
             }
-            frame_.setBinSize(binSize);
          }
 
-
-
-         // active shutter combo
-         if (shutters_ != null) {
-            String activeShutter = core_.getShutterDevice();
-            frame_.setShutterComboSelection(
-                  activeShutter != null ? activeShutter : "");
+         if (!state.sameShutter(shown)) {
+            // active shutter combo
+            if (shutters_ != null) {
+               frame_.setShutterComboSelection(state.activeShutter_);
+            }
+            frame_.setAutoShutterSelected(state.autoShutter_);
+            frame_.setShutterButton(state.shutterOpen_);
          }
-         
-         // Set AutoShutterCheckBox
-         frame_.setAutoShutterSelected(core_.getAutoShutter());
-          
-         // Set Shutter button
-         frame_.setShutterButton(core_.getShutterOpen());
-            
          if (snapLiveManager_.getIsLiveModeOn()) {
-            frame_.setToggleShutterButtonEnabled(!core_.getAutoShutter());
+            frame_.setToggleShutterButtonEnabled(!state.autoShutter_);
          }
 
-         ConfigGroupPad pad = frame_.getConfigPad();
          // state devices
-         if (updateConfigPadStructure && (pad != null)) {
-            pad.refreshStructure(fromCache);
-            // Needed to update read-only properties.  May slow things down...
-            if (!fromCache) {
-               core_.updateSystemStateCache();
-            }
+         ConfigGroupPad pad = frame_.getConfigPad();
+         if (structure && pad != null && state.groups_ != null) {
+            pad.updateGroups(state.groups_);
          }
 
          // update Channel menus in Multi-dimensional acquisition dialog
-         updateChannelCombos();
+         if (!state.sameChannels(shown)) {
+            updateChannelCombos();
+         }
 
          // update list of pixel sizes in pixel size configuration window
-         if (calibrationListDlg_ != null) {
-            calibrationListDlg_.refreshCalibrations();
+         if (calibrationListDlg_ != null && state.calibrations_ != null) {
+            calibrationListDlg_.showCalibrations(state.calibrations_,
+                  state.pixelSizeConfig_);
          }
          if (propertyBrowser_ != null) {
-            propertyBrowser_.refresh();
+            propertyBrowser_.showProperties(state.properties_);
          }
 
          ReportingUtils.logMessage("Finished updating GUI");
@@ -1482,6 +1518,22 @@ public class MMStudio implements ScriptInterface {
       frame_.updateTitle(sysConfigFile_);
    }
 
+   StaticInfo getStaticInfo() {
+      return staticInfo_;
+   }
+
+   ConfigGroupPad getConfigPad() {
+      return frame_ == null ? null : frame_.getConfigPad();
+   }
+
+   PropertyEditor getPropertyBrowser() {
+      return propertyBrowser_;
+   }
+
+   boolean hasCalibrationListDlg() {
+      return calibrationListDlg_ != null;
+   }
+
    // Cancel acquisitions and stop live mode.
    public void stopAllActivity() {
         if (acquisitionEngine2010_ != null) {
@@ -1571,6 +1623,9 @@ public class MMStudio implements ScriptInterface {
 
       synchronized (shutdownLock_) {
          EDTHangLogger.stopDefault();
+         if (guiRefresher_ != null) {
+            guiRefresher_.shutdown();
+         }
 
          try {
             if (core_ != null) {
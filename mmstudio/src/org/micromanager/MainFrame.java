@@ -618,37 +618,48 @@ public class MainFrame extends MMFrame implements LiveModeListener {
    }
 
    public void configureBinningComboForCamera(String cameraLabel) {
-      ActionListener[] listeners;
       if (comboBinning_.getItemCount() > 0) {
           comboBinning_.removeAllItems();
       }
       try {
          StrVector binSizes = core_.getAllowedPropertyValues(
                  cameraLabel, MMCoreJ.getG_Keyword_Binning());
-         List<String> items = sortBinningItems(Arrays.asList(binSizes.toArray()));
+         configureBinningCombo(binSizes.toArray());
+      } catch (Exception e) {
+         // getAllowedPropertyValues probably failed.
+         ReportingUtils.showError(e);
+      }
+   }
 
-         listeners = comboBinning_.getActionListeners();
-         for (int i = 0; i < listeners.length; i++) {
-             comboBinning_.removeActionListener(listeners[i]);
-         }
+   /**
+    * Fills the binning combo with the allowed binning values of the current
+    * camera, e.g. as read off the EDT when the GUI is refreshed.
+    */
+   public void configureBinningCombo(String[] binSizes) {
+      ActionListener[] listeners;
+      if (comboBinning_.getItemCount() > 0) {
+          comboBinning_.removeAllItems();
+      }
+      List<String> items = sortBinningItems(Arrays.asList(binSizes));
 
-         for (String item : items) {
-             comboBinning_.addItem(item);
-         }
+      listeners = comboBinning_.getActionListeners();
+      for (int i = 0; i < listeners.length; i++) {
+          comboBinning_.removeActionListener(listeners[i]);
+      }
 
-         comboBinning_.setMaximumRowCount(items.size());
-         if (items.isEmpty()) {
-             comboBinning_.setEditable(true);
-         } else {
-             comboBinning_.setEditable(false);
-         }
+      for (String item : items) {
+          comboBinning_.addItem(item);
+      }
 
-         for (int i = 0; i < listeners.length; i++) {
-             comboBinning_.addActionListener(listeners[i]);
-         }
-      } catch (Exception e) {
-         // getAllowedPropertyValues probably failed.
-         ReportingUtils.showError(e);
+      comboBinning_.setMaximumRowCount(items.size());
+      if (items.isEmpty()) {
+          comboBinning_.setEditable(true);
+      } else {
+          comboBinning_.setEditable(false);
+      }
+
+      for (int i = 0; i < listeners.length; i++) {
+          comboBinning_.addActionListener(listeners[i]);
       }
    }
 
@@ -35,6 +35,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.prefs.Preferences;
 
 import javax.swing.JButton;
@@ -281,6 +284,28 @@ public class PropertyEditor extends MMFrame {
       data_.refresh(false);
    }
 
+   /**
+    * Reads the listed properties from the system state cache, so that the
+    * browser can be refreshed without blocking the EDT. Pass the result to
+    * showProperties() on the EDT.
+    */
+   ArrayList<PropertyItem> readProperties() {
+      if (data_ == null) {
+         return null;
+      }
+      return data_.readProperties(flags_, true);
+   }
+
+   /**
+    * Shows properties read by readProperties(), repainting only the rows
+    * whose value changed unless the properties themselves changed.
+    */
+   void showProperties(ArrayList<PropertyItem> properties) {
+      if (data_ != null && properties != null) {
+         data_.showProperties(properties);
+      }
+   }
+
    public void updateStatus() {
       if (data_ != null)
          data_.update(false);
@@ -344,28 +369,15 @@ public class PropertyEditor extends MMFrame {
       @Override
       public void update(ShowFlags flags, String groupName, String presetName, boolean fromCache) {  
          try {
-            StrVector devices = core_.getLoadedDevices();
-            propList_.clear();
-
             boolean liveMode = gui_.isLiveModeOn();
             if (!fromCache) {
                // Some properties may not be readable if we are
                // mid-acquisition.
                gui_.enableLiveMode(false);
             }
-            for (int i=0; i<devices.size(); i++) { 
-               if (data_.showDevice(flags, devices.get(i))) {
-                  StrVector properties = core_.getDevicePropertyNames(devices.get(i));
-                  for (int j=0; j<properties.size(); j++){
-                     PropertyItem item = new PropertyItem();
-                     item.readFromCore(core_, devices.get(i), properties.get(j), fromCache);
-
-                     if ((!item.readOnly || showReadOnly_) && !item.preInit) {
-                        propList_.add(item);
-                     }
-                  }
-               }
-            }
+            ArrayList<PropertyItem> props = readProperties(flags, fromCache);
+            propList_.clear();
+            propList_.addAll(props);
 
             updateRowVisibility(flags); 
 
@@ -378,6 +390,72 @@ public class PropertyEditor extends MMFrame {
          this.fireTableStructureChanged();
 
       }
+
+      /**
+       * Reads the properties to list from the core without touching the
+       * table, so that it can be called off the EDT.
+       */
+      public ArrayList<PropertyItem> readProperties(ShowFlags flags, boolean fromCache) {
+         ArrayList<PropertyItem> props = new ArrayList<PropertyItem>();
+         StrVector devices = core_.getLoadedDevices();
+         for (int i=0; i<devices.size(); i++) { 
+            if (showDevice(flags, devices.get(i))) {
+               StrVector properties;
+               try {
+                  properties = core_.getDevicePropertyNames(devices.get(i));
+               } catch (Exception e) {
+                  ReportingUtils.logError(e);
+                  continue;
+               }
+               for (int j=0; j<properties.size(); j++){
+                  PropertyItem item = new PropertyItem();
+                  item.readFromCore(core_, devices.get(i), properties.get(j), fromCache);
+
+                  if ((!item.readOnly || showReadOnly_) && !item.preInit) {
+                     props.add(item);
+                  }
+               }
+            }
+         }
+         return props;
+      }
+
+      /**
+       * Shows properties read by readProperties(). If the same properties
+       * are listed as before, only the rows whose value changed are
+       * repainted. Call on the EDT.
+       */
+      public void showProperties(ArrayList<PropertyItem> props) {
+         boolean sameProperties = props.size() == propList_.size();
+         for (int i = 0; sameProperties && i < props.size(); i++) {
+            PropertyItem a = propList_.get(i);
+            PropertyItem b = props.get(i);
+            sameProperties = a.device.equals(b.device) && a.name.equals(b.name)
+                  && a.readOnly == b.readOnly && a.type == b.type
+                  && a.hasRange == b.hasRange && a.lowerLimit == b.lowerLimit
+                  && a.upperLimit == b.upperLimit
+                  && Arrays.equals(a.allowed, b.allowed);
+         }
+         if (!sameProperties) {
+            propList_.clear();
+            propList_.addAll(props);
+            updateRowVisibility(flags_);
+            return;
+         }
+         HashSet<PropertyItem> changed = new HashSet<PropertyItem>();
+         for (int i = 0; i < props.size(); i++) {
+            PropertyItem item = propList_.get(i);
+            if (!item.value.equals(props.get(i).value)) {
+               item.value = props.get(i).value;
+               changed.add(item);
+            }
+         }
+         for (int row = 0; row < propListVisible_.size(); row++) {
+            if (changed.contains(propListVisible_.get(row))) {
+               fireTableRowsUpdated(row, row);
+            }
+         }
+      }
    }
 
  
@@ -116,6 +116,15 @@ class StaticInfo {
    }
 
    public void refreshValues() {
+      readValues();
+      updateInfoDisplay();
+   }
+
+   /**
+    * Reads the values from the core without showing them, so that it can
+    * be called off the EDT. Follow with updateInfoDisplay() on the EDT.
+    */
+   public void readValues() {
       try {
          cameraLabel_ = core_.getCameraDevice();
          shutterLabel_ = core_.getShutterDevice();
@@ -148,7 +157,6 @@ class StaticInfo {
       catch (Exception e) {
          ReportingUtils.showError(e);
       }
-      updateInfoDisplay();
    }
 
    public void updateInfoDisplay() {
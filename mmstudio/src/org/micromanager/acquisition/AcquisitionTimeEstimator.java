@@ -0,0 +1,347 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          AcquisitionTimeEstimator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.acquisition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import mmcorej.CMMCore;
+import mmcorej.Configuration;
+import mmcorej.PropertySetting;
+
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.PositionList;
+import org.micromanager.api.SequenceSettings;
+import org.micromanager.utils.ChannelSpec;
+
+/**
+ * Estimates how long the acquisition engine takes to run a SequenceSettings,
+ * from the device latencies recorded in the DeviceLatencyModel, by walking
+ * through the images of one time point in the order the engine takes them.
+ *
+ * Latencies that were never recorded count as 0 and are listed in the
+ * estimate, so the result is a lower bound until every device involved has
+ * been used in an acquisition.
+ */
+public class AcquisitionTimeEstimator {
+   private final CMMCore core_;
+   private final DeviceLatencyModel model_;
+   private String autofocusDevice_ = null;
+   // state of one estimate
+   private Set<String> uncalibrated_;
+   private Map<String, Configuration> configs_;
+   private double readoutMs_;
+
+   /**
+    * Result of an estimate, all times in ms.
+    */
+   public static class Estimate {
+      private final double durationMs_;
+      private final double minIntervalMs_;
+      private final Set<String> uncalibrated_;
+
+      Estimate(double durationMs, double minIntervalMs, Set<String> uncalibrated) {
+         durationMs_ = durationMs;
+         minIntervalMs_ = minIntervalMs;
+         uncalibrated_ = Collections.unmodifiableSet(uncalibrated);
+      }
+
+      /**
+       * @return time from the start to the end of the acquisition
+       */
+      public double getDurationMs() {
+         return durationMs_;
+      }
+
+      /**
+       * @return shortest interval between time points the hardware can
+       *    sustain, intervals shorter than this stretch the acquisition
+       */
+      public double getMinIntervalMs() {
+         return minIntervalMs_;
+      }
+
+      /**
+       * @return "kind device" for each latency that was needed but never
+       *    recorded
+       */
+      public Set<String> getUncalibrated() {
+         return uncalibrated_;
+      }
+
+      public boolean isCalibrated() {
+         return uncalibrated_.isEmpty();
+      }
+   }
+
+   public AcquisitionTimeEstimator(CMMCore core) {
+      this(core, DeviceLatencyModel.getInstance());
+   }
+
+   public AcquisitionTimeEstimator(CMMCore core, DeviceLatencyModel model) {
+      core_ = core;
+      model_ = model;
+   }
+
+   /**
+    * @param device name of the autofocus device used by the acquisition,
+    *    the core's autofocus device if null
+    */
+   public synchronized void setAutofocusDevice(String device) {
+      autofocusDevice_ = device;
+   }
+
+   /**
+    * @param settings
+    * @param positions used if settings.usePositionList is set, may be null
+    * @return estimate for the current camera ROI and devices
+    * @throws Exception if the core fails
+    */
+   public synchronized Estimate estimate(SequenceSettings settings,
+         PositionList positions) throws Exception {
+      uncalibrated_ = new TreeSet<String>();
+      configs_ = new HashMap<String, Configuration>();
+      double pixels = (double) core_.getImageWidth() * core_.getImageHeight();
+      readoutMs_ = predict(core_.getCameraDevice(), DeviceLatencyModel.CAMERA_READOUT, pixels);
+
+      List<ChannelSpec> channels = new ArrayList<ChannelSpec>();
+      for (ChannelSpec channel : settings.channels) {
+         if (channel.useChannel) {
+            channels.add(channel);
+         }
+      }
+      if (channels.isEmpty()) {
+         ChannelSpec channel = new ChannelSpec();
+         channel.config = null;
+         channel.exposure = core_.getExposure();
+         channels.add(channel);
+      }
+      List<Double> slices = settings.slices.isEmpty()
+            ? Collections.singletonList(0.0) : settings.slices;
+
+      List<MultiStagePosition> msps = new ArrayList<MultiStagePosition>();
+      if (settings.usePositionList && positions != null) {
+         for (int i = 0; i < positions.getNumberOfPositions(); i++) {
+            msps.add(positions.getPosition(i));
+         }
+      }
+
+      boolean customIntervals = settings.customIntervalsMs != null
+            && !settings.customIntervalsMs.isEmpty();
+      double[] waits = new double[Math.max(1, settings.numFrames)];
+      if (customIntervals) {
+         waits = new double[settings.customIntervalsMs.size()];
+         for (int i = 0; i < waits.length; i++) {
+            waits[i] = settings.customIntervalsMs.get(i);
+         }
+      } else {
+         for (int i = 1; i < waits.length; i++) {
+            waits[i] = settings.intervalMs;
+         }
+      }
+
+      // the engine runs time points as a burst only if they follow each
+      // other without waiting, otherwise each image is a separate snap
+      boolean burst = msps.size() <= 1 && slices.size() == 1
+            && channels.size() == 1 && !settings.useAutofocus
+            && settings.numFrames > 1 && !customIntervals
+            && settings.intervalMs <= channels.get(0).exposure;
+      // time to acquire the channels and slices at one position, the stage
+      // returns to the first slice in the end
+      double stackMs;
+      if (burst) {
+         // readout overlaps the exposure
+         stackMs = Math.max(channels.get(0).exposure, readoutMs_);
+      } else {
+         double afMs = 0;
+         if (settings.useAutofocus) {
+            String afDevice = autofocusDevice_ != null
+                  ? autofocusDevice_ : core_.getAutoFocusDevice();
+            afMs = predict(afDevice, DeviceLatencyModel.AUTOFOCUS, 0)
+                  / (1 + settings.skipAutofocusCount);
+         }
+         boolean shutterOpen = settings.keepShutterOpenChannels
+               || settings.keepShutterOpenSlices;
+         double shutterMs = shutterOpen ? 0
+               : 2 * predict(core_.getShutterDevice(), DeviceLatencyModel.SHUTTER, 0);
+         stackMs = afMs + stackTimeMs(settings, channels, slices, shutterMs);
+      }
+
+      double durationMs;
+      double minIntervalMs;
+      if (msps.size() <= 1) {
+         durationMs = runTimePoints(waits, stackMs);
+         minIntervalMs = stackMs;
+      } else if (!settings.timeFirst) {
+         // every time point visits all positions and returns to the first
+         double frameMs = 0;
+         for (int i = 0; i < msps.size(); i++) {
+            frameMs += stackMs + moveTimeMs(msps.get(i), msps.get((i + 1) % msps.size()));
+         }
+         durationMs = runTimePoints(waits, frameMs);
+         minIntervalMs = frameMs;
+      } else {
+         // all time points of a position before moving on
+         durationMs = 0;
+         for (int i = 0; i < msps.size(); i++) {
+            durationMs += runTimePoints(waits, stackMs);
+            if (i + 1 < msps.size()) {
+               durationMs += moveTimeMs(msps.get(i), msps.get(i + 1));
+            }
+         }
+         minIntervalMs = stackMs;
+      }
+      return new Estimate(durationMs, minIntervalMs, uncalibrated_);
+   }
+
+   /*
+    * Time points start waits[i] after the previous one started, or when it
+    * ends if it takes longer than that.
+    */
+   private static double runTimePoints(double[] waits, double frameMs) {
+      double start = waits[0];
+      for (int i = 1; i < waits.length; i++) {
+         start += Math.max(waits[i], frameMs);
+      }
+      return start + frameMs;
+   }
+
+   private double stackTimeMs(SequenceSettings settings,
+         List<ChannelSpec> channels, List<Double> slices, double shutterMs)
+         throws Exception {
+      String zStage = core_.getFocusDevice();
+      double span = Math.abs(slices.get(slices.size() - 1) - slices.get(0));
+      double total = 0;
+      if (settings.slicesFirst) {
+         for (int c = 0; c < channels.size(); c++) {
+            ChannelSpec channel = channels.get(c);
+            total += switchTimeMs(channels.get((c + channels.size() - 1) % channels.size()), channel);
+            int n = channel.doZStack ? slices.size() : 1;
+            total += n * (channel.exposure + readoutMs_ + shutterMs);
+            if (n > 1) {
+               for (int s = 1; s < n; s++) {
+                  total += zMoveTimeMs(zStage, slices.get(s) - slices.get(s - 1));
+               }
+               total += zMoveTimeMs(zStage, span);
+            }
+         }
+      } else {
+         for (int s = 0; s < slices.size(); s++) {
+            if (slices.size() > 1) {
+               total += zMoveTimeMs(zStage, s == 0 ? span : slices.get(s) - slices.get(s - 1));
+            }
+            ChannelSpec previous = channels.get(channels.size() - 1);
+            for (ChannelSpec channel : channels) {
+               // channels without a z stack are taken at one slice only
+               if (channel.doZStack || s == slices.size() / 2) {
+                  total += switchTimeMs(previous, channel);
+                  total += channel.exposure + readoutMs_ + shutterMs;
+                  previous = channel;
+               }
+            }
+         }
+      }
+      return total;
+   }
+
+   private double zMoveTimeMs(String zStage, double distance) {
+      if (distance == 0) {
+         return 0;
+      }
+      return predict(zStage, DeviceLatencyModel.Z_MOVE, Math.abs(distance));
+   }
+
+   private double moveTimeMs(MultiStagePosition from, MultiStagePosition to) {
+      String xyStage = to.getDefaultXYStage();
+      if (xyStage == null || xyStage.length() == 0) {
+         xyStage = core_.getXYStageDevice();
+      }
+      double distance = Math.max(Math.abs(to.getX() - from.getX()),
+            Math.abs(to.getY() - from.getY()));
+      double total = distance == 0 ? 0
+            : predict(xyStage, DeviceLatencyModel.XY_MOVE, distance);
+      String zStage = to.getDefaultZStage();
+      if (zStage != null && zStage.length() > 0) {
+         total += zMoveTimeMs(zStage, to.getZ() - from.getZ());
+      }
+      return total;
+   }
+
+   /*
+    * Time to set the properties of a channel that differ from the previous
+    * one, the engine sets them one after the other.
+    */
+   private double switchTimeMs(ChannelSpec from, ChannelSpec to) throws Exception {
+      if (from == to || to.config == null) {
+         return 0;
+      }
+      String group = core_.getChannelGroup();
+      Configuration fromConfig = getConfig(group, from.config);
+      Configuration toConfig = getConfig(group, to.config);
+      Set<String> devices = new TreeSet<String>();
+      for (int i = 0; i < toConfig.size(); i++) {
+         PropertySetting setting = toConfig.getSetting(i);
+         if (fromConfig == null || !fromConfig.isPropertyIncluded(
+               setting.getDeviceLabel(), setting.getPropertyName())
+               || !fromConfig.getSetting(setting.getDeviceLabel(),
+                     setting.getPropertyName()).getPropertyValue()
+                        .equals(setting.getPropertyValue())) {
+            devices.add(setting.getDeviceLabel());
+         }
+      }
+      double total = 0;
+      for (String device : devices) {
+         if (!device.equals("Core")) {
+            total += predict(device, DeviceLatencyModel.PROPERTY_CHANGE, 0);
+         }
+      }
+      return total;
+   }
+
+   private Configuration getConfig(String group, String config) throws Exception {
+      if (config == null) {
+         return null;
+      }
+      Configuration configuration = configs_.get(config);
+      if (configuration == null) {
+         configuration = core_.getConfigData(group, config);
+         configs_.put(config, configuration);
+      }
+      return configuration;
+   }
+
+   private double predict(String device, String kind, double feature) {
+      if (device == null || device.length() == 0) {
+         return 0;
+      }
+      double latency = model_.predict(device, kind, feature);
+      if (Double.isNaN(latency)) {
+         uncalibrated_.add(kind + " " + device);
+         return 0;
+      }
+      return latency;
+   }
+}
@@ -1002,7 +1002,10 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       long totalMB = getTotalMB();
 
       double totalDurationSec = 0;
-      if (!useCustomIntervals_ || customTimeIntervalsMs_ == null) {
+      AcquisitionTimeEstimator.Estimate estimate = estimateTime();
+      if (estimate != null) {
+         totalDurationSec = estimate.getDurationMs() / 1000.0;
+      } else if (!useCustomIntervals_ || customTimeIntervalsMs_ == null) {
          totalDurationSec = interval_ * numFrames / 1000.0;
       } else {
          for (Double d : customTimeIntervalsMs_) {
@@ -1024,6 +1027,15 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
               + "\nTotal images: " + totalImages
               + "\nTotal memory: " + (totalMB <= 1024 ? totalMB + " MB" : NumberUtils.doubleToDisplayString(totalMB/1024.0) + " GB")
               + "\nDuration: " + hrs + "h " + mins + "m " + NumberUtils.doubleToDisplayString(remainSec) + "s";
+      if (estimate != null) {
+         if (!estimate.isCalibrated()) {
+            txt += " or more (not all device timings measured yet)";
+         }
+         if (useFrames_) {
+            txt += "\nShortest interval: "
+                    + NumberUtils.doubleToDisplayString(estimate.getMinIntervalMs()) + " ms";
+         }
+      }
 
       if (useFrames_ || useMultiPosition_ || useChannels_ || useSlices_) {
          StringBuffer order = new StringBuffer("\nOrder: ");
@@ -1063,6 +1075,26 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       }
    }
 
+   /**
+    * Estimates the duration of the acquisition from the device latencies
+    * measured in earlier acquisitions.
+    * @return null if the estimate failed
+    */
+   public AcquisitionTimeEstimator.Estimate estimateTime() {
+      try {
+         AcquisitionTimeEstimator estimator = new AcquisitionTimeEstimator(core_);
+         if (studio_ != null && studio_.getAutofocusManager().getDevice() != null) {
+            estimator.setAutofocusDevice(
+                    studio_.getAutofocusManager().getDevice().getDeviceName());
+         }
+         return estimator.estimate(getSequenceSettings(), posList_);
+      } catch (Exception ex) {
+         ReportingUtils.logDebugMessage("Could not estimate the acquisition duration: "
+                 + ex.getMessage());
+         return null;
+      }
+   }
+
    /**
     * Find out if the configuration is compatible with the current group.
     * This method should be used to verify if the acquisition protocol is consistent
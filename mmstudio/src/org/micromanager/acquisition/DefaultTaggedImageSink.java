@@ -6,6 +6,7 @@ import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
 import org.micromanager.api.ImageCache;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -47,6 +48,9 @@ public class DefaultTaggedImageSink  {
                      ++imageCount;
                      try {
                         imageCache_.putImage(image);
+                        // The sink is the last stage of the pipeline; storage
+                        // and listeners retain the pixels if they need them.
+                        PixelBufferPool.getInstance().release(image);
                      }
                      catch (OutOfMemoryError e) {
                         handleOutOfMemory(e, sinkFullCallback);
@@ -59,6 +63,9 @@ public class DefaultTaggedImageSink  {
             }
             long t2 = System.currentTimeMillis();
             ReportingUtils.logMessage(imageCount + " images stored in " + (t2 - t1) + " ms.");
+            if (PixelBufferPool.getInstance().isLeakDetectionEnabled()) {
+               PixelBufferPool.getInstance().logLeaks(10000);
+            }
             imageCache_.finished();
          }
       };
@@ -0,0 +1,220 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DeviceLatencyModel.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.acquisition;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Latencies of device commands measured during acquisitions, used to
+ * estimate how long a proposed acquisition will take.
+ *
+ * Each device and kind of command has a straight line fit of latency
+ * against a feature of the command (the distance of a stage move, the
+ * number of pixels read out by a camera). Only the running sums of the fit
+ * are kept, with older samples weighted down so that the model follows
+ * changes in the hardware, and they are stored in the user preferences
+ * between sessions.
+ */
+public class DeviceLatencyModel {
+   /** Time from an XY stage command until the stage is idle, by distance
+    * in um along the longer axis. */
+   public static final String XY_MOVE = "XYMove";
+   /** Time from a focus stage command until the stage is idle, by distance
+    * in um. */
+   public static final String Z_MOVE = "ZMove";
+   /** Time from setting a property (filter wheel, turret...) until the
+    * device is idle. */
+   public static final String PROPERTY_CHANGE = "PropertyChange";
+   /** Time from opening or closing a shutter until it is idle. */
+   public static final String SHUTTER = "Shutter";
+   /** Duration of a snap beyond the exposure, by number of ROI pixels. */
+   public static final String CAMERA_READOUT = "CameraReadout";
+   /** Duration of a full focus. */
+   public static final String AUTOFOCUS = "Autofocus";
+
+   // weight of the previous samples when a new one is added, about the
+   // last hundred samples of each device count
+   private static final double DECAY = 0.99;
+   private static final String PREFS_NODE = "DeviceLatency";
+   // prefs keys are limited to 80 characters
+   private static final int MAX_KEY_LENGTH = Preferences.MAX_KEY_LENGTH;
+
+   private static DeviceLatencyModel instance_;
+
+   private final Preferences prefs_;
+   private final Map<String, Fit> fits_ = new HashMap<String, Fit>();
+   private final Set<String> changed_ = new HashSet<String>();
+
+   private static class Fit {
+      double n_;
+      double sx_;
+      double sy_;
+      double sxx_;
+      double sxy_;
+
+      void add(double x, double y) {
+         n_ = DECAY * n_ + 1;
+         sx_ = DECAY * sx_ + x;
+         sy_ = DECAY * sy_ + y;
+         sxx_ = DECAY * sxx_ + x * x;
+         sxy_ = DECAY * sxy_ + x * y;
+      }
+
+      double predict(double x) {
+         double meanX = sx_ / n_;
+         double meanY = sy_ / n_;
+         double varX = sxx_ / n_ - meanX * meanX;
+         // all samples (nearly) at the same feature, e.g. property changes
+         if (varX <= 1e-9 * Math.max(1, meanX * meanX)) {
+            return meanY;
+         }
+         double slope = (sxy_ / n_ - meanX * meanY) / varX;
+         return Math.max(0, meanY + slope * (x - meanX));
+      }
+
+      String encode() {
+         // full precision, the variance is a difference of the sums
+         return n_ + " " + sx_ + " " + sy_ + " " + sxx_ + " " + sxy_;
+      }
+
+      static Fit decode(String s) {
+         String[] parts = s.trim().split(" ");
+         if (parts.length != 5) {
+            return null;
+         }
+         try {
+            Fit fit = new Fit();
+            fit.n_ = Double.parseDouble(parts[0]);
+            fit.sx_ = Double.parseDouble(parts[1]);
+            fit.sy_ = Double.parseDouble(parts[2]);
+            fit.sxx_ = Double.parseDouble(parts[3]);
+            fit.sxy_ = Double.parseDouble(parts[4]);
+            return fit.n_ > 0 ? fit : null;
+         } catch (NumberFormatException e) {
+            return null;
+         }
+      }
+   }
+
+   public static synchronized DeviceLatencyModel getInstance() {
+      if (instance_ == null) {
+         instance_ = new DeviceLatencyModel(
+               Preferences.userNodeForPackage(DeviceLatencyModel.class).node(PREFS_NODE));
+      }
+      return instance_;
+   }
+
+   DeviceLatencyModel(Preferences prefs) {
+      prefs_ = prefs;
+      if (prefs_ == null) {
+         return;
+      }
+      try {
+         for (String key : prefs_.keys()) {
+            Fit fit = Fit.decode(prefs_.get(key, ""));
+            if (fit != null) {
+               fits_.put(key, fit);
+            }
+         }
+      } catch (BackingStoreException e) {
+         ReportingUtils.logError(e, "Could not read the device latencies");
+      }
+   }
+
+   private static String key(String device, String kind) {
+      String key = kind + ":" + device;
+      return key.length() > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key;
+   }
+
+   /**
+    * Adds a measured latency.
+    * @param device label of the device the command was sent to
+    * @param kind one of the kinds defined here
+    * @param feature distance or pixel count, depending on kind, 0 if
+    *    the kind has none
+    * @param latencyMs
+    */
+   public synchronized void record(String device, String kind,
+         double feature, double latencyMs) {
+      if (device == null || device.length() == 0
+            || Double.isNaN(latencyMs) || latencyMs < 0) {
+         return;
+      }
+      String key = key(device, kind);
+      Fit fit = fits_.get(key);
+      if (fit == null) {
+         fit = new Fit();
+         fits_.put(key, fit);
+      }
+      fit.add(feature, latencyMs);
+      changed_.add(key);
+   }
+
+   /**
+    * @return predicted latency in ms, or NaN if nothing was recorded for
+    *    this device and kind
+    */
+   public synchronized double predict(String device, String kind,
+         double feature) {
+      Fit fit = device == null ? null : fits_.get(key(device, kind));
+      return fit == null ? Double.NaN : fit.predict(feature);
+   }
+
+   /**
+    * Stores the latencies recorded since the last call in the preferences.
+    */
+   public synchronized void save() {
+      if (prefs_ == null || changed_.isEmpty()) {
+         return;
+      }
+      for (String key : changed_) {
+         prefs_.put(key, fits_.get(key).encode());
+      }
+      changed_.clear();
+      try {
+         prefs_.flush();
+      } catch (BackingStoreException e) {
+         ReportingUtils.logError(e, "Could not store the device latencies");
+      }
+   }
+
+   /**
+    * Forgets all recorded latencies, e.g. after the hardware changed.
+    */
+   public synchronized void clear() {
+      fits_.clear();
+      changed_.clear();
+      if (prefs_ != null) {
+         try {
+            prefs_.clear();
+         } catch (BackingStoreException e) {
+            ReportingUtils.logError(e, "Could not clear the device latencies");
+         }
+      }
+   }
+}
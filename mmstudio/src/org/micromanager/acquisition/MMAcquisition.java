@@ -50,6 +50,7 @@ import org.micromanager.api.ImageCache;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.dialogs.AcqControlDlg;
 import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
+import org.micromanager.utils.ImageMetadata;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
@@ -588,7 +589,7 @@ public class MMAcquisition {
       // update acq data
       try {
 
-         JSONObject tags = new JSONObject();
+         JSONObject tags = new ImageMetadata();
 
          MDUtils.setChannelName(tags, getChannelName(channel));
          MDUtils.setChannelIndex(tags, channel);
@@ -26,12 +26,16 @@ import java.awt.Color;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.SwingUtilities;
 
@@ -42,11 +46,15 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import org.micromanager.api.ImageCache;
+import org.micromanager.api.ImageCacheBatchListener;
 import org.micromanager.api.ImageCacheListener;
 import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PerformanceMetrics;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ProgressBar;
 import org.micromanager.utils.ReportingUtils;
 
@@ -54,53 +62,70 @@ import org.micromanager.utils.ReportingUtils;
  * MMImageCache: central repository of Images
  * Holds pixels and metadata to be used for display or save on disk
  * 
+ * Listeners are notified on a single background thread. Images that arrive
+ * while a notification is still in progress are queued and delivered
+ * together in the next notification, so a slow listener sees one call per
+ * batch ("images N..M arrived") rather than falling behind by one call per
+ * image. Listeners implementing ImageCacheBatchListener receive the whole
+ * batch at once; plain ImageCacheListeners get imageReceived() per image.
  * 
  * @author arthur
  */
 public class MMImageCache implements ImageCache {
+   // Copy-on-write: listeners change rarely, images arrive at camera rate.
    public final List<ImageCacheListener> imageStorageListeners_ = 
-           Collections.synchronizedList(new ArrayList<ImageCacheListener>());
+           new CopyOnWriteArrayList<ImageCacheListener>();
    private TaggedImageStorage imageStorage_;
-   private Set<String> changingKeys_;
-   private JSONObject firstTags_;
-   private int lastFrame_ = -1;
-   private JSONObject lastTags_;
+   private final Set<String> changingKeys_;
+   private volatile JSONObject firstTags_;
+   private final AtomicInteger lastFrame_ = new AtomicInteger(-1);
+   private volatile JSONObject lastTags_;
    private final ExecutorService listenerExecutor_;
+   private static final LatencyHistogram putImageLatency_ =
+         PerformanceMetrics.getHistogram("imagecache.putImage");
+   // Images put into the cache but not yet handed to the listeners.
+   private final ConcurrentLinkedQueue<TaggedImage> pendingImages_ =
+           new ConcurrentLinkedQueue<TaggedImage>();
+   // True while a notification task is queued and has not started draining.
+   private final AtomicBoolean notificationScheduled_ = new AtomicBoolean(false);
+   // Only touched on the listener thread.
+   private final ArrayList<TaggedImage> notificationBatch_ =
+           new ArrayList<TaggedImage>();
+   private long numImagesNotified_ = 0;
+   private final Runnable notificationTask_ = new Runnable() {
+      @Override
+      public void run() {
+         notifyImagesReceived();
+      }
+   };
 
    @Override
    public void addImageCacheListener(ImageCacheListener l) {
-      synchronized (imageStorageListeners_) {
-         imageStorageListeners_.add(l);
-      }
+      imageStorageListeners_.add(l);
    }
 
    @Override
    public ImageCacheListener[] getImageCacheListeners() {
-      synchronized (imageStorageListeners_) {
-         return (ImageCacheListener[]) imageStorageListeners_.toArray();
-      }
+      return imageStorageListeners_.toArray(new ImageCacheListener[0]);
    }
 
    @Override
    public void removeImageCacheListener(ImageCacheListener l) {
-      synchronized (imageStorageListeners_) {
-         imageStorageListeners_.remove(l);
-      }
+      imageStorageListeners_.remove(l);
    }
 
    public MMImageCache(TaggedImageStorage imageStorage) {
       imageStorage_ = imageStorage;
-      changingKeys_ = new HashSet<String>();
+      changingKeys_ = Collections.newSetFromMap(
+              new ConcurrentHashMap<String, Boolean>());
       listenerExecutor_ = Executors.newFixedThreadPool(1);
    }
 
    public void finished() {
       imageStorage_.finished();
       String path = getDiskLocation();
-      synchronized (imageStorageListeners_) {
-         for (ImageCacheListener l : imageStorageListeners_) {
-            l.imagingFinished(path);
-         }
+      for (ImageCacheListener l : imageStorageListeners_) {
+         l.imagingFinished(path);
       }
       listenerExecutor_.shutdown();
    }
@@ -110,9 +135,14 @@ public class MMImageCache implements ImageCache {
    }
 
    public int lastAcquiredFrame() {
-      synchronized (this) {
-         lastFrame_ = Math.max(imageStorage_.lastAcquiredFrame(), lastFrame_);
-         return lastFrame_;
+      updateLastFrame(imageStorage_.lastAcquiredFrame());
+      return lastFrame_.get();
+   }
+
+   private void updateLastFrame(int frame) {
+      int last = lastFrame_.get();
+      while (frame > last && !lastFrame_.compareAndSet(last, frame)) {
+         last = lastFrame_.get();
       }
    }
 
@@ -134,9 +164,7 @@ public class MMImageCache implements ImageCache {
 
    public void close() {
       imageStorage_.close();
-      synchronized (imageStorageListeners_) {
-         imageStorageListeners_.clear();
-      }
+      imageStorageListeners_.clear();
    }
 
    @Override
@@ -192,18 +220,17 @@ public class MMImageCache implements ImageCache {
    }
 
    public void putImage(final TaggedImage taggedImg) {
+      long startNanos = System.nanoTime();
       try {
          
          checkForChangingTags(taggedImg);
          imageStorage_.putImage(taggedImg);
-         
-           synchronized (this) {
-            lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImg.tags));
-            lastTags_ = taggedImg.tags;
-         }
+
+         updateLastFrame(MDUtils.getFrameIndex(taggedImg.tags));
+         lastTags_ = taggedImg.tags;
          JSONObject displayAndComments = imageStorage_.getDisplayAndComments();
          if (displayAndComments.length() > 0) {
-            JSONArray channelSettings = imageStorage_.getDisplayAndComments().getJSONArray("Channels");
+            JSONArray channelSettings = displayAndComments.getJSONArray("Channels");
             JSONObject imageTags = taggedImg.tags;
             int chanIndex = MDUtils.getChannelIndex(imageTags);
             if (chanIndex >= channelSettings.length()) {
@@ -214,27 +241,59 @@ public class MMImageCache implements ImageCache {
             }
          }
 
-         synchronized (imageStorageListeners_) {
-            for (final ImageCacheListener l : imageStorageListeners_) {
-               listenerExecutor_.submit(
-                       new Runnable() {
-                          @Override
-                          public void run() {
-                             l.imageReceived(taggedImg);
-                          }
-                       });
-            }
+         // Keep pooled pixels alive until the listeners have seen them.
+         PixelBufferPool.getInstance().retain(taggedImg);
+         pendingImages_.add(taggedImg);
+         if (notificationScheduled_.compareAndSet(false, true)) {
+            listenerExecutor_.submit(notificationTask_);
          }
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
+      putImageLatency_.recordSince(startNanos);
+   }
+
+   /**
+    * Runs on the listener thread. Drains every image that has arrived since
+    * the last notification and hands them to the listeners as one batch.
+    */
+   private void notifyImagesReceived() {
+      // Clear the flag before draining, so that an image added after the
+      // drain below schedules a fresh task instead of being stranded.
+      notificationScheduled_.set(false);
+      TaggedImage image;
+      while ((image = pendingImages_.poll()) != null) {
+         notificationBatch_.add(image);
+      }
+      if (notificationBatch_.isEmpty()) {
+         return;
+      }
+      long first = numImagesNotified_;
+      long last = first + notificationBatch_.size() - 1;
+      numImagesNotified_ = last + 1;
+      List<TaggedImage> batch = Collections.unmodifiableList(notificationBatch_);
+      for (ImageCacheListener l : imageStorageListeners_) {
+         try {
+            if (l instanceof ImageCacheBatchListener) {
+               ((ImageCacheBatchListener) l).imagesReceived(batch, first, last);
+            } else {
+               for (int i = 0; i < notificationBatch_.size(); ++i) {
+                  l.imageReceived(notificationBatch_.get(i));
+               }
+            }
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex);
+         }
+      }
+      for (int i = 0; i < notificationBatch_.size(); ++i) {
+         PixelBufferPool.getInstance().release(notificationBatch_.get(i));
+      }
+      notificationBatch_.clear();
    }
 
    @Override
    public JSONObject getLastImageTags() {
-      synchronized (this) {
-         return lastTags_;
-      }
+      return lastTags_;
    }
 
    @Override
@@ -258,26 +317,44 @@ public class MMImageCache implements ImageCache {
       return tags;
    }
 
+   /**
+    * Incrementally updates the set of keys whose values differ from those of
+    * the first image. Keys already known to be changing are skipped without
+    * looking at their values, and values are only stringified when they are
+    * not trivially equal, so in steady state this is one set lookup per key.
+    */
    private void checkForChangingTags(TaggedImage taggedImg) {
+      JSONObject tags = taggedImg.tags;
       if (firstTags_ == null) {
-         firstTags_ = taggedImg.tags;
-      } else {
-         Iterator<String> keys = taggedImg.tags.keys();
-         while (keys.hasNext()) {
-            String key = keys.next();
-            try {
-               if (!taggedImg.tags.isNull(key)) {
-                  if (!firstTags_.has(key) || firstTags_.isNull(key)) {
-                     changingKeys_.add(key);
-                  } else if (!taggedImg.tags.getString(key).contentEquals(firstTags_.getString(key))) {
-                     changingKeys_.add(key);
-                  }
-               }
-            } catch (Exception e) {
-               ReportingUtils.logError(e);
+         synchronized (changingKeys_) {
+            if (firstTags_ == null) {
+               firstTags_ = tags;
+               return;
             }
          }
       }
+      JSONObject firstTags = firstTags_;
+      if (tags == firstTags) {
+         return;
+      }
+      Iterator<String> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         if (changingKeys_.contains(key)) {
+            continue;
+         }
+         Object value = tags.opt(key);
+         if (value == null || value == JSONObject.NULL) {
+            continue;
+         }
+         Object firstValue = firstTags.opt(key);
+         if (firstValue == null || firstValue == JSONObject.NULL) {
+            changingKeys_.add(key);
+         } else if (!firstValue.equals(value)
+                 && !firstValue.toString().contentEquals(value.toString())) {
+            changingKeys_.add(key);
+         }
+      }
    }
 
    private JSONObject getCommentsJSONObject() {
@@ -38,6 +38,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.imagedisplay.DisplaySettings;
+import org.micromanager.utils.LazyJSONObject;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
@@ -432,12 +433,14 @@ public class MultipageTiffReader {
       ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
       fileChannel_.read(pixelBuffer, data.pixelOffset);
       fileChannel_.read(mdBuffer, data.mdOffset);
-      JSONObject md = new JSONObject();
-      try {
-         md = new JSONObject(getString(mdBuffer));
-      } catch (JSONException ex) {
-         ReportingUtils.logError("Error reading image metadata from file");
-      }
+      // Fields are only parsed when asked for; the raw bytes are reused
+      // as-is if the image is written out again unchanged.
+      int mdLength = (int) data.mdLength;
+      byte[] mdBytes = mdBuffer.array();
+      while (mdLength > 0 && mdBytes[mdLength - 1] == 0) {
+         --mdLength; // TIFF ASCII null terminator
+      }
+      JSONObject md = new LazyJSONObject(mdBytes, 0, mdLength);
       
       if ( byteDepth_ == 0) {
          getRGBAndByteDepth(md);
@@ -33,6 +33,7 @@ import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -44,7 +45,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
+import org.micromanager.diagnostics.EventCounter;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PerformanceMetrics;
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.JSONByteWriter;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -87,6 +92,15 @@ public class MultipageTiffWriter {
    public static final int SUMMARY_MD_HEADER = 2355492;
          
    public static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
+
+   private static final LatencyHistogram enqueueLatency_ =
+           PerformanceMetrics.getHistogram("writer.enqueue");
+   private static final EventCounter backpressureCount_ =
+           PerformanceMetrics.getCounter("writer.backpressure");
+   private static final LatencyHistogram flushLatency_ =
+           PerformanceMetrics.getHistogram("writer.flush");
+   private static final EventCounter bytesWritten_ =
+           PerformanceMetrics.getCounter("writer.bytes");
    
    final private boolean omeTiff_;
    
@@ -168,6 +182,11 @@ public class MultipageTiffWriter {
    
    private BlockingQueue<ByteBuffer> currentImageByteBuffers_ = new LinkedBlockingQueue<ByteBuffer>(10);
    private int currentImageByteBufferCapacity_ = 0;
+   // Metadata serializers whose buffers are free for the next image; a
+   // writer is in use from writeIFD() until its buffer has been written.
+   private final BlockingQueue<JSONByteWriter> mdWriters_ = new LinkedBlockingQueue<JSONByteWriter>();
+   private JSONByteWriter pendingMDWriter_ = null;
+   private int lastMDLength_ = 0;
            
    private ByteBuffer allocateByteBufferMemo(int capacity) {
        // HACK: if we are running on 32-bit mode, then we don't want to cache
@@ -200,7 +219,9 @@ public class MultipageTiffWriter {
            public void run() {
              try {
                 buffer.rewind();
-                fileChannel_.write(buffer, position);
+                long startNanos = System.nanoTime();
+                bytesWritten_.add(fileChannel_.write(buffer, position));
+                flushLatency_.recordSince(startNanos);
                 if (buffer.limit() == currentImageByteBufferCapacity_) {
                     currentImageByteBuffers_.offer(buffer);
                 }
@@ -211,21 +232,29 @@ public class MultipageTiffWriter {
         });
    }
    
-   private void fileChannelWrite(final ByteBuffer[] buffers) {
+   private void fileChannelWrite(final ByteBuffer[] buffers,
+           final JSONByteWriter mdWriter) {
       executeWritingTask(
         new Runnable() {
            @Override
            public void run() {
              try {
-                fileChannel_.write(buffers);
+                long startNanos = System.nanoTime();
+                bytesWritten_.add(fileChannel_.write(buffers));
+                flushLatency_.recordSince(startNanos);
                 for (ByteBuffer buffer:buffers) {
-                    if (buffer.limit() == currentImageByteBufferCapacity_) {
+                    if (buffer.isDirect() &&
+                            buffer.limit() == currentImageByteBufferCapacity_) {
                         currentImageByteBuffers_.offer(buffer);
                     }
                 }
               } catch (IOException e) {
                 ReportingUtils.logError(e);
-              } 
+              } finally {
+                 if (mdWriter != null) {
+                    mdWriters_.offer(mdWriter);
+                 }
+              }
            }
         });
    }
@@ -285,7 +314,7 @@ public class MultipageTiffWriter {
       buffers[1] = ByteBuffer.wrap(summaryMDBytes);
       buffers[2] = indexMapBuffer;
       
-      fileChannelWrite(buffers);
+      fileChannelWrite(buffers, null);
       filePosition_ += headerBuffer.capacity() + mdLength +indexMapSpace;
    }
    
@@ -366,7 +395,10 @@ public class MultipageTiffWriter {
    }
    
    public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
-      int mdLength = img.tags.toString().length();
+      // Tags of consecutive images are nearly the same size; avoid
+      // serializing them twice per image and use the last size with margin.
+      int mdLength = lastMDLength_ > 0 ? 2 * lastMDLength_ :
+              img.tags.toString().length();
       int IFDSize = ENTRIES_PER_IFD*12 + 4 + 16;
       //5 MB extra padding...just to be safe...
       int extraPadding = 5000000; 
@@ -392,12 +424,14 @@ public class MultipageTiffWriter {
    }
         
    public void writeImage(TaggedImage img) throws IOException {
+      long startNanos = System.nanoTime();
       if (writingExecutor_ != null) {
          int queueSize = writingExecutor_.getQueue().size();
          int attemptCount = 0;
          while (queueSize > 20) {
             if (attemptCount == 0) {
                ReportingUtils.logMessage("Warning: writing queue behind by " + queueSize + " images.");
+               backpressureCount_.increment();
             }
             ++attemptCount;
             try {
@@ -412,6 +446,7 @@ public class MultipageTiffWriter {
       writeIFD(img);
       addToIndexMap(MDUtils.getLabel(img.tags), offset);
       writeBuffers();
+      enqueueLatency_.recordSince(startNanos);
       //wait until image has finished writing to return
 //      int size = writingExecutor_.getQueue().size();
 //      while (size > 0) {
@@ -438,7 +473,8 @@ public class MultipageTiffWriter {
       for (int i = 0; i < buffs.length; i++) {
          buffs[i] = buffers_.removeFirst();
       }
-      fileChannelWrite(buffs);
+      fileChannelWrite(buffs, pendingMDWriter_);
+      pendingMDWriter_ = null;
    }
    
     private long unsignInt(int i) {
@@ -489,13 +525,14 @@ public class MultipageTiffWriter {
       if (img.tags.has("Summary")) {
          img.tags.remove("Summary");
       }
-      byte[] mdBytes = getBytesFromString(img.tags.toString() + " ");
-      mdBytes[mdBytes.length - 1] = 0; // null terminate TIFF ASCII string
+      ByteBuffer mdBuffer = getMetadataBuffer(img.tags);
+      int mdLength = mdBuffer.remaining();
+      lastMDLength_ = mdLength;
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length + bytesPerImagePixels_;
+     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdLength + bytesPerImagePixels_;
      int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
      
      ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
@@ -539,8 +576,8 @@ public class MultipageTiffWriter {
          ijMetadataTagPosition_ = filePosition_ + bufferPosition_;
          writeIFDEntry(ifdBuffer,charView,IJ_METADATA,(char)1,0,0);
       }
-      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
-      tagDataOffset += mdBytes.length;
+      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdLength,tagDataOffset);
+      tagDataOffset += mdLength;
       //NextIFDOffset
       ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
       bufferPosition_ += 4;
@@ -553,12 +590,36 @@ public class MultipageTiffWriter {
       buffers_.add(ifdBuffer);
       buffers_.add(getPixelBuffer(img.pix));
       buffers_.add(getResolutionValuesBuffer());   
-      buffers_.add(ByteBuffer.wrap(mdBytes));
+      buffers_.add(mdBuffer);
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
    }
 
+   /**
+    * Serializes image tags as a null-terminated TIFF ASCII string, using a
+    * recycled JSONByteWriter. The writer is handed back once the buffer has
+    * been written to disk (see writeBuffers()).
+    */
+   private ByteBuffer getMetadataBuffer(JSONObject tags) {
+      JSONByteWriter mdWriter = mdWriters_.poll();
+      if (mdWriter == null) {
+         mdWriter = new JSONByteWriter();
+      }
+      try {
+         ByteBuffer buffer = mdWriter.write(tags, true);
+         pendingMDWriter_ = mdWriter;
+         return buffer;
+      } catch (JSONException ex) {
+         // E.g. a non-finite number; fall back to JSONObject's rendering.
+         ReportingUtils.logError(ex);
+         mdWriters_.offer(mdWriter);
+         byte[] mdBytes = getBytesFromString(tags.toString() + " ");
+         mdBytes[mdBytes.length - 1] = 0; // null terminate TIFF ASCII string
+         return ByteBuffer.wrap(mdBytes);
+      }
+   }
+
    private void writeIFDEntry(ByteBuffer buffer, CharBuffer cBuffer, char tag, char type, long count, long value) throws IOException {
       cBuffer.put(bufferPosition_ / 2, tag);
       cBuffer.put(bufferPosition_ / 2 + 1, type);
@@ -586,50 +647,37 @@ public class MultipageTiffWriter {
    }
 
    private ByteBuffer getPixelBuffer(Object pixels) throws IOException {
+      // RGB pixels are repacked straight into a recycled direct buffer,
+      // skipping the alpha channel and swapping R and B for correct format.
       if (rgb_) {
          if (byteDepth_ == 1) {
             byte[] originalPix = (byte[]) pixels;
-            byte[] rgbaPix = new byte[originalPix.length * 3 / 4];
+            ByteBuffer buffer = allocateByteBufferMemo(originalPix.length * 3 / 4);
             int count = 0;
-            for (int i = 0; i < originalPix.length; i++) {
-               //skip alpha channel
-               if ((i + 1) % 4 != 0) {
-                  //swap R and B for correct format
-                  if ((i + 1) % 4 == 1 ) {
-                     rgbaPix[count] = originalPix[i + 2];
-                  } else if ((i + 1) % 4 == 3) {
-                     rgbaPix[count] = originalPix[i - 2];
-                  } else {                      
-                     rgbaPix[count] = originalPix[i];
-                  }
-                  count++;
-               }
+            for (int i = 0; i < originalPix.length; i += 4) {
+               buffer.put(count++, originalPix[i + 2]);
+               buffer.put(count++, originalPix[i + 1]);
+               buffer.put(count++, originalPix[i]);
             }
-            return ByteBuffer.wrap(rgbaPix);
+            buffer.rewind();
+            return buffer;
          } else {
             short[] originalPix = (short[]) pixels;
-            short[] rgbaPix = new short[originalPix.length * 3 / 4];
+            ByteBuffer buffer = allocateByteBufferMemo(originalPix.length * 3 / 4 * 2);
+            buffer.rewind();
+            ShortBuffer shortView = buffer.asShortBuffer();
             int count = 0;
-            for (int i = 0; i < originalPix.length; i++) {
-               if ((i + 1) % 4 != 0) {
-                  //swap R and B for correct format
-                  if ((i + 1) % 4 == 1 ) {
-                     rgbaPix[count] = originalPix[i + 2];
-                  } else if ((i + 1) % 4 == 3) {
-                     rgbaPix[count] = originalPix[i - 2];
-                  } else {                      
-                     rgbaPix[count] = originalPix[i];
-                  }
-                  count++;
-               }
+            for (int i = 0; i < originalPix.length; i += 4) {
+               shortView.put(count++, originalPix[i + 2]);
+               shortView.put(count++, originalPix[i + 1]);
+               shortView.put(count++, originalPix[i]);
             }
-            ByteBuffer buffer = allocateByteBufferMemo(rgbaPix.length * 2);
-            buffer.rewind();
-            buffer.asShortBuffer().put(rgbaPix);
             return buffer;
          }
       } else {
          if (byteDepth_ == 1) {
+            // Written asynchronously from the caller's array; callers that
+            // use pooled arrays keep them retained until the write is done.
             return ByteBuffer.wrap((byte[]) pixels);
          } else {
             short[] pix = (short[]) pixels;
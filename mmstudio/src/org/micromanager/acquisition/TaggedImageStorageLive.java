@@ -30,6 +30,7 @@ import org.json.JSONObject;
 
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -80,7 +81,10 @@ public class TaggedImageStorageLive implements TaggedImageStorage {
    public void putImage(TaggedImage image) {
       try {
          int channel = MDUtils.getChannelIndex(image.tags);
-         channelToImage_.put(channel, image);
+         // getImage() hands the image to displays that don't retain it,
+         // so don't keep pooled pixels
+         channelToImage_.put(channel,
+               PixelBufferPool.getInstance().copyIfPooled(image));
       }
       catch (JSONException e) {
          ReportingUtils.logError(e, "Couldn't extract channel from tags");
@@ -128,7 +132,9 @@ public class TaggedImageStorageLive implements TaggedImageStorage {
    }
 
    @Override
-   public void close() {}
+   public void close() {
+      channelToImage_.clear();
+   }
 
    @Override
    public String getDiskLocation() {
@@ -48,6 +48,7 @@ import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ProgressBar;
 import org.micromanager.utils.ReportingUtils;
 
@@ -219,9 +220,14 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
       String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
 
-      TaggedImage image = writePendingImages_.get(label);
-      if (image != null) {
-         return image;
+      // Pooled pixels may be recycled once written, and callers don't
+      // retain them, so hand out a copy. The lock keeps the writer from
+      // releasing the image while it is copied.
+      synchronized (writePendingImages_) {
+         TaggedImage image = writePendingImages_.get(label);
+         if (image != null) {
+            return PixelBufferPool.getInstance().copyIfPooled(image);
+         }
       }
 
       MultipageTiffReader reader = tiffReadersByLabel_.get(label);
@@ -268,10 +274,15 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       // ListenableFuture.
       // Also note that the image will be dropped if the writing fails due to
       // any error. This is acceptable for disk-backed storage.
+      // Pooled pixel arrays must not be recycled before they are written.
+      PixelBufferPool.getInstance().retain(taggedImage);
       writePendingImages_.put(label, taggedImage);
       writingExecutor_.submit(new Runnable() {
          @Override public void run() {
-            writePendingImages_.remove(label);
+            synchronized (writePendingImages_) {
+               PixelBufferPool.getInstance().release(
+                     writePendingImages_.remove(label));
+            }
          }
       });
    }
@@ -16,6 +16,7 @@ import org.micromanager.utils.ImageLabelComparator;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -40,7 +41,7 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
       }
       
       @Override
-      protected boolean removeEldestEntry(Map.Entry eldest) {
+      protected boolean removeEldestEntry(Map.Entry<T,U> eldest) {
          return super.size() > max_size_;
       }
    }
@@ -62,12 +63,12 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
       lruCache_ = new LRUCache<String, TaggedImage>(10);
    }
 
-   private ByteBuffer bufferFromJSON(JSONObject json) {
-      return DirectBuffers.bufferFromString(json.toString());
+   private ByteBuffer bufferFromJSON(JSONObject json) throws JSONException {
+      return DirectBuffers.bufferFromJSON(json);
    }
    
    private JSONObject JSONFromBuffer(ByteBuffer byteBuffer) throws JSONException {
-      return new JSONObject(DirectBuffers.stringFromBuffer(byteBuffer));
+      return DirectBuffers.JSONFromBuffer(byteBuffer);
    }
    
    private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) throws JSONException, MMScriptException{
@@ -100,7 +101,10 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
          DirectTaggedImage directImage =
                taggedImageToDirectTaggedImage(taggedImage);
 
-         lruCache_.put(label, taggedImage);
+         // getImage() hands cached images to callers that don't retain
+         // them, so the cache must not hold pooled pixels
+         lruCache_.put(label,
+               PixelBufferPool.getInstance().copyIfPooled(taggedImage));
          imageMap_.put(label, directImage);
          lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
       } catch (Exception ex) {
@@ -24,6 +24,8 @@ package org.micromanager.api;
 import java.util.Collection;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PerformanceMetrics;
 import org.micromanager.events.EventManager;
 import org.micromanager.events.ProcessorEnabledEvent;
 import org.micromanager.utils.ReportingUtils;
@@ -40,6 +42,15 @@ import org.micromanager.utils.ReportingUtils;
  * If you use your own constructor, make sure that it accepts no arguments.
  * If you need to initialize variables, do this in the makeConfigurationGUI 
  * method instead.  That method is the first to be called.
+ *
+ * Processors that replace the pixels of a TaggedImage may take the new
+ * array from org.micromanager.utils.PixelBufferPool and should release the
+ * pixels of the image they replaced, so that the old array can be recycled.
+ * See PixelBufferPool for the reference-counting rules.
+ *
+ * The time between poll() returning an object and the next produce() is
+ * recorded in the "processor.&lt;class name&gt;" latency histogram of
+ * org.micromanager.diagnostics.PerformanceMetrics.
  */
 public abstract class DataProcessor<E> extends Thread {
    private BlockingQueue<E> input_;
@@ -49,6 +60,8 @@ public abstract class DataProcessor<E> extends Thread {
    // This boolean controls whether or not this DataProcessor will receive
    // images.
    private boolean isEnabled_ = true;
+   private LatencyHistogram latency_;
+   private long lastPollNanos_ = 0;
 
    /**
     * The scripting interface (commonly known as the "gui" object).
@@ -183,6 +196,7 @@ public abstract class DataProcessor<E> extends Thread {
             if (tmpQueue != null) {
                E datum = tmpQueue.poll(100, TimeUnit.MILLISECONDS);
                if (datum != null) {
+                  lastPollNanos_ = System.nanoTime();
                   return datum;
                }
             }
@@ -216,6 +230,10 @@ public abstract class DataProcessor<E> extends Thread {
     * Do not override this method (it should have been final).
     */
    protected void produce(E datum) {
+      if (lastPollNanos_ != 0) {
+         getLatencyHistogram().recordSince(lastPollNanos_);
+         lastPollNanos_ = 0;
+      }
       try {
          output_.put(datum);
       } catch (InterruptedException ex) {
@@ -223,6 +241,17 @@ public abstract class DataProcessor<E> extends Thread {
       }
    };
 
+   private LatencyHistogram getLatencyHistogram() {
+      if (latency_ == null) {
+         String name = getClass().getSimpleName();
+         if (name.length() == 0) {
+            name = getClass().getName();
+         }
+         latency_ = PerformanceMetrics.getHistogram("processor." + name);
+      }
+      return latency_;
+   }
+
    /**
     * Returns true if stop has been requested.
     *
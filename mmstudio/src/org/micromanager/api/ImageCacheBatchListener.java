@@ -0,0 +1,44 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageCacheBatchListener.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.api;
+
+import java.util.List;
+
+import mmcorej.TaggedImage;
+
+/**
+ * Optional extension of ImageCacheListener for listeners that can handle
+ * several newly arrived images in a single call. When images arrive faster
+ * than listeners are notified, the ImageCache coalesces them and hands a
+ * listener implementing this interface the whole run of images at once,
+ * instead of calling imageReceived() once per image.
+ */
+public interface ImageCacheBatchListener extends ImageCacheListener {
+
+   /*
+    * Implement this method to be informed that one or more TaggedImages have
+    * been added to the image cache. The list is in arrival order, is never
+    * empty, and must not be modified or retained after the call returns.
+    * The first and last sequence numbers of the batch are given for
+    * convenience; they count images put into the cache, starting at 0.
+    */
+   public void imagesReceived(List<TaggedImage> taggedImages,
+         long firstSequence, long lastSequence);
+}
@@ -0,0 +1,70 @@
+// COPYRIGHT:    University of California, San Francisco, 2015
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.diagnostics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free event (or byte) counter that also remembers when it was first
+ * and last updated, so that an average rate can be reported.
+ *
+ * Obtain instances from PerformanceMetrics.getCounter().
+ */
+public final class EventCounter {
+   private final String name_;
+   private final AtomicLong count_ = new AtomicLong();
+   private final AtomicLong firstNanos_ = new AtomicLong();
+   private volatile long lastNanos_;
+
+   EventCounter(String name) {
+      name_ = name;
+   }
+
+   public String getName() {
+      return name_;
+   }
+
+   public void increment() {
+      add(1);
+   }
+
+   public void add(long amount) {
+      long now = System.nanoTime();
+      if (firstNanos_.get() == 0) {
+         firstNanos_.compareAndSet(0, now);
+      }
+      lastNanos_ = now;
+      count_.addAndGet(amount);
+   }
+
+   public long getCount() {
+      return count_.get();
+   }
+
+   /**
+    * Average rate per second between the first and the last update, or 0
+    * if there have not been at least two updates.
+    */
+   public double getAverageRate() {
+      long first = firstNanos_.get();
+      long elapsed = lastNanos_ - first;
+      if (first == 0 || elapsed <= 0) {
+         return 0;
+      }
+      return getCount() * 1e9 / elapsed;
+   }
+
+   void reset() {
+      firstNanos_.set(0);
+      lastNanos_ = 0;
+      count_.set(0);
+   }
+}
@@ -0,0 +1,108 @@
+// COPYRIGHT:    University of California, San Francisco, 2015
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.diagnostics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power-of-two nanosecond buckets.
+ * Recording is a handful of atomic increments, so it can be used on every
+ * image. Percentiles are reported as the upper bound of the bucket they
+ * fall in, i.e. to within a factor of two.
+ *
+ * Obtain instances from PerformanceMetrics.getHistogram().
+ */
+public final class LatencyHistogram {
+   private static final int NUM_BUCKETS = 64;
+
+   private final String name_;
+   // Bucket i counts durations d with 2^i <= d < 2^(i+1) ns (d = 0 in 0).
+   private final AtomicLongArray buckets_ = new AtomicLongArray(NUM_BUCKETS);
+   private final AtomicLong count_ = new AtomicLong();
+   private final AtomicLong totalNanos_ = new AtomicLong();
+   private final AtomicLong maxNanos_ = new AtomicLong();
+
+   LatencyHistogram(String name) {
+      name_ = name;
+   }
+
+   public String getName() {
+      return name_;
+   }
+
+   public void record(long nanos) {
+      if (nanos < 0) {
+         nanos = 0;
+      }
+      int bucket = nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+      buckets_.incrementAndGet(bucket);
+      count_.incrementAndGet();
+      totalNanos_.addAndGet(nanos);
+      long max = maxNanos_.get();
+      while (nanos > max && !maxNanos_.compareAndSet(max, nanos)) {
+         max = maxNanos_.get();
+      }
+   }
+
+   /**
+    * Records the time elapsed since startNanos (a System.nanoTime() value).
+    */
+   public void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+   }
+
+   public long getCount() {
+      return count_.get();
+   }
+
+   public long getTotalNanos() {
+      return totalNanos_.get();
+   }
+
+   public double getMeanMs() {
+      long count = getCount();
+      return count == 0 ? 0 : getTotalNanos() / 1e6 / count;
+   }
+
+   public double getMaxMs() {
+      return maxNanos_.get() / 1e6;
+   }
+
+   /**
+    * @param fraction e.g. 0.99 for the 99th percentile
+    */
+   public double getPercentileMs(double fraction) {
+      long count = getCount();
+      if (count == 0) {
+         return 0;
+      }
+      long target = (long) Math.ceil(fraction * count);
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; ++i) {
+         seen += buckets_.get(i);
+         if (seen >= target) {
+            return Math.min((double) (2L << Math.min(i, 61)),
+                    maxNanos_.get()) / 1e6;
+         }
+      }
+      return getMaxMs();
+   }
+
+   void reset() {
+      for (int i = 0; i < NUM_BUCKETS; ++i) {
+         buckets_.set(i, 0);
+      }
+      count_.set(0);
+      totalNanos_.set(0);
+      maxNanos_.set(0);
+   }
+}
@@ -0,0 +1,281 @@
+// COPYRIGHT:    University of California, San Francisco, 2015
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.diagnostics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Registry of the counters and latency histograms that instrument the image
+ * path (core, processors, image cache, writer, display), so that it can be
+ * seen which stage falls behind when frames are dropped.
+ *
+ * Metrics are created on first use and live for the rest of the session;
+ * look them up once and keep the reference on hot paths. The values are
+ * exported over JMX (org.micromanager:type=PerformanceMetrics), shown by
+ * the Performance Metrics window and included in problem reports.
+ *
+ * Names in use:
+ * <pre>
+ * core.popNextTaggedImage    latency of popping an image from the core
+ * processor.&lt;class&gt;        time from poll() to produce() in a DataProcessor
+ * imagecache.putImage        latency of MMImageCache.putImage()
+ * writer.enqueue             time to queue an image for writing, including
+ *                            back-pressure waits
+ * writer.backpressure        number of images that had to wait for the
+ *                            writing queue
+ * writer.flush               latency of each write to the file channel
+ * writer.bytes               bytes written to disk
+ * display.show               time spent showing an image on the EDT
+ * display.frames             images shown
+ * </pre>
+ */
+public final class PerformanceMetrics {
+   public static final String JMX_NAME =
+         "org.micromanager:type=PerformanceMetrics";
+
+   private static final ConcurrentMap<String, EventCounter> counters_ =
+         new ConcurrentHashMap<String, EventCounter>();
+   private static final ConcurrentMap<String, LatencyHistogram> histograms_ =
+         new ConcurrentHashMap<String, LatencyHistogram>();
+   private static boolean jmxRegistered_ = false;
+
+   private PerformanceMetrics() {
+   }
+
+   public static EventCounter getCounter(String name) {
+      EventCounter counter = counters_.get(name);
+      if (counter == null) {
+         EventCounter newCounter = new EventCounter(name);
+         counter = counters_.putIfAbsent(name, newCounter);
+         if (counter == null) {
+            counter = newCounter;
+         }
+         registerWithJMX();
+      }
+      return counter;
+   }
+
+   public static LatencyHistogram getHistogram(String name) {
+      LatencyHistogram histogram = histograms_.get(name);
+      if (histogram == null) {
+         LatencyHistogram newHistogram = new LatencyHistogram(name);
+         histogram = histograms_.putIfAbsent(name, newHistogram);
+         if (histogram == null) {
+            histogram = newHistogram;
+         }
+         registerWithJMX();
+      }
+      return histogram;
+   }
+
+   public static List<EventCounter> getCounters() {
+      List<EventCounter> result = new ArrayList<EventCounter>(counters_.values());
+      Collections.sort(result, new java.util.Comparator<EventCounter>() {
+         @Override
+         public int compare(EventCounter a, EventCounter b) {
+            return a.getName().compareTo(b.getName());
+         }
+      });
+      return result;
+   }
+
+   public static List<LatencyHistogram> getHistograms() {
+      List<LatencyHistogram> result =
+            new ArrayList<LatencyHistogram>(histograms_.values());
+      Collections.sort(result, new java.util.Comparator<LatencyHistogram>() {
+         @Override
+         public int compare(LatencyHistogram a, LatencyHistogram b) {
+            return a.getName().compareTo(b.getName());
+         }
+      });
+      return result;
+   }
+
+   /**
+    * Zeroes all metrics (e.g. at the start of an acquisition that is to be
+    * examined).
+    */
+   public static void resetAll() {
+      for (EventCounter counter : counters_.values()) {
+         counter.reset();
+      }
+      for (LatencyHistogram histogram : histograms_.values()) {
+         histogram.reset();
+      }
+   }
+
+   /**
+    * Plain text summary of all metrics that have seen any events.
+    */
+   public static String getReport() {
+      StringBuilder sb = new StringBuilder();
+      for (LatencyHistogram h : getHistograms()) {
+         if (h.getCount() == 0) {
+            continue;
+         }
+         sb.append(String.format(Locale.US,
+                  "%s: n = %d; mean = %.3f ms; p50 = %.3f ms; " +
+                  "p99 = %.3f ms; max = %.3f ms%n",
+                  h.getName(), h.getCount(), h.getMeanMs(),
+                  h.getPercentileMs(0.5), h.getPercentileMs(0.99),
+                  h.getMaxMs()));
+      }
+      for (EventCounter c : getCounters()) {
+         if (c.getCount() == 0) {
+            continue;
+         }
+         sb.append(String.format(Locale.US, "%s: count = %d; rate = %.1f/s%n",
+                  c.getName(), c.getCount(), c.getAverageRate()));
+      }
+      return sb.toString();
+   }
+
+   private static synchronized void registerWithJMX() {
+      if (jmxRegistered_) {
+         return;
+      }
+      jmxRegistered_ = true;
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName(JMX_NAME);
+         if (!server.isRegistered(name)) {
+            server.registerMBean(new MetricsMBean(), name);
+         }
+      }
+      catch (Exception e) {
+         ReportingUtils.logError(e, "Failed to register performance metrics with JMX");
+      }
+   }
+
+   /**
+    * Exposes each metric as a set of read-only attributes, e.g.
+    * "writer.flush.p99Ms" or "writer.bytes.count". The attribute list
+    * follows the metrics that exist at the time it is requested.
+    */
+   private static class MetricsMBean implements DynamicMBean {
+      private static final String[] HISTOGRAM_FIELDS =
+            {"count", "meanMs", "p50Ms", "p99Ms", "maxMs"};
+      private static final String[] COUNTER_FIELDS = {"count", "ratePerSecond"};
+
+      @Override
+      public Object getAttribute(String attribute)
+            throws AttributeNotFoundException {
+         int dot = attribute.lastIndexOf('.');
+         if (dot > 0) {
+            String metric = attribute.substring(0, dot);
+            String field = attribute.substring(dot + 1);
+            LatencyHistogram h = histograms_.get(metric);
+            if (h != null) {
+               if (field.equals("count")) {
+                  return h.getCount();
+               } else if (field.equals("meanMs")) {
+                  return h.getMeanMs();
+               } else if (field.equals("p50Ms")) {
+                  return h.getPercentileMs(0.5);
+               } else if (field.equals("p99Ms")) {
+                  return h.getPercentileMs(0.99);
+               } else if (field.equals("maxMs")) {
+                  return h.getMaxMs();
+               }
+            }
+            EventCounter c = counters_.get(metric);
+            if (c != null) {
+               if (field.equals("count")) {
+                  return c.getCount();
+               } else if (field.equals("ratePerSecond")) {
+                  return c.getAverageRate();
+               }
+            }
+         }
+         throw new AttributeNotFoundException(attribute);
+      }
+
+      @Override
+      public AttributeList getAttributes(String[] attributes) {
+         AttributeList list = new AttributeList();
+         for (String attribute : attributes) {
+            try {
+               list.add(new Attribute(attribute, getAttribute(attribute)));
+            }
+            catch (AttributeNotFoundException e) {
+               // Omitted, per the DynamicMBean contract
+            }
+         }
+         return list;
+      }
+
+      @Override
+      public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+         throw new AttributeNotFoundException("Metrics are read-only");
+      }
+
+      @Override
+      public AttributeList setAttributes(AttributeList attributes) {
+         return new AttributeList();
+      }
+
+      @Override
+      public Object invoke(String actionName, Object[] params,
+            String[] signature) throws ReflectionException {
+         if ("resetAll".equals(actionName)) {
+            resetAll();
+            return null;
+         }
+         throw new ReflectionException(new NoSuchMethodException(actionName),
+               "No operation " + actionName);
+      }
+
+      @Override
+      public MBeanInfo getMBeanInfo() {
+         List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+         for (LatencyHistogram h : getHistograms()) {
+            for (String field : HISTOGRAM_FIELDS) {
+               attributes.add(new MBeanAttributeInfo(h.getName() + "." + field,
+                        field.equals("count") ? "long" : "double",
+                        h.getName() + " " + field, true, false, false));
+            }
+         }
+         for (EventCounter c : getCounters()) {
+            for (String field : COUNTER_FIELDS) {
+               attributes.add(new MBeanAttributeInfo(c.getName() + "." + field,
+                        field.equals("count") ? "long" : "double",
+                        c.getName() + " " + field, true, false, false));
+            }
+         }
+         MBeanOperationInfo reset = new MBeanOperationInfo("resetAll",
+               "Zero all metrics", null, "void", MBeanOperationInfo.ACTION);
+         return new MBeanInfo(PerformanceMetrics.class.getName(),
+               "Micro-Manager image pipeline metrics",
+               attributes.toArray(new MBeanAttributeInfo[0]), null,
+               new MBeanOperationInfo[] {reset}, null);
+      }
+   }
+}
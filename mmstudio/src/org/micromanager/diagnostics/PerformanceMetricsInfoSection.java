@@ -0,0 +1,27 @@
+// COPYRIGHT:    University of California, San Francisco, 2015
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.diagnostics;
+
+class PerformanceMetricsInfoSection implements SystemInfo.SystemInfoSection {
+   private final String report_;
+
+   PerformanceMetricsInfoSection() {
+      String report = PerformanceMetrics.getReport().trim();
+      report_ = "Image pipeline performance metrics:\n" +
+         (report.length() > 0 ? report : "(no events recorded)");
+   }
+
+   public String getTitle() { return "Image pipeline performance metrics"; }
+
+   public String getReport() {
+      return report_;
+   }
+}
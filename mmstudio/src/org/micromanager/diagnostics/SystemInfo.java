@@ -62,6 +62,7 @@ public final class SystemInfo {
       sections.add(new JVMDeadlockedThreadInfoSection());
       sections.add(new CoreBasicInfoSection());
       sections.add(new CorePropertyCacheInfoSection());
+      sections.add(new PerformanceMetricsInfoSection());
 
       return sections;
    }
@@ -0,0 +1,153 @@
+// COPYRIGHT:    University of California, San Francisco, 2015
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.diagnostics.gui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.swing.table.AbstractTableModel;
+
+import org.micromanager.diagnostics.EventCounter;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PerformanceMetrics;
+
+/**
+ * Live view of PerformanceMetrics, refreshed once a second. Rates are
+ * computed over the last refresh interval, so a stage that falls behind
+ * shows up as its rate dropping below that of the stage feeding it.
+ */
+public class PerformanceMetricsFrame extends javax.swing.JFrame {
+   private static final int REFRESH_INTERVAL_MS = 1000;
+   private static PerformanceMetricsFrame instance_;
+
+   private final MetricsTableModel model_ = new MetricsTableModel();
+   private final javax.swing.Timer timer_;
+
+   public static void showFrame() {
+      if (instance_ == null) {
+         instance_ = new PerformanceMetricsFrame();
+      }
+      instance_.model_.refresh();
+      instance_.timer_.start();
+      instance_.setVisible(true);
+      instance_.toFront();
+   }
+
+   private PerformanceMetricsFrame() {
+      super("Performance Metrics");
+      setDefaultCloseOperation(javax.swing.WindowConstants.HIDE_ON_CLOSE);
+
+      javax.swing.JTable table = new javax.swing.JTable(model_);
+      table.setAutoCreateRowSorter(true);
+      javax.swing.JButton resetButton = new javax.swing.JButton("Reset");
+      resetButton.addActionListener(new java.awt.event.ActionListener() {
+         @Override
+         public void actionPerformed(java.awt.event.ActionEvent e) {
+            PerformanceMetrics.resetAll();
+            model_.refresh();
+         }
+      });
+
+      setLayout(new net.miginfocom.swing.MigLayout(
+               "fill, insets dialog",
+               "[grow, fill]",
+               "[grow, fill]related[]"));
+      add(new javax.swing.JScrollPane(table), "wrap");
+      add(resetButton, "align right, growx 0");
+      setSize(720, 320);
+      setLocationRelativeTo(null);
+
+      timer_ = new javax.swing.Timer(REFRESH_INTERVAL_MS,
+            new java.awt.event.ActionListener() {
+               @Override
+               public void actionPerformed(java.awt.event.ActionEvent e) {
+                  model_.refresh();
+               }
+            });
+      addComponentListener(new java.awt.event.ComponentAdapter() {
+         @Override
+         public void componentHidden(java.awt.event.ComponentEvent e) {
+            timer_.stop();
+         }
+      });
+      model_.refresh();
+   }
+
+   private static class MetricsTableModel extends AbstractTableModel {
+      private static final String[] COLUMNS = {"Metric", "Count",
+         "Rate (/s)", "Mean (ms)", "p50 (ms)", "p99 (ms)", "Max (ms)"};
+
+      private final List<Object[]> rows_ = new ArrayList<Object[]>();
+      private final Map<String, Long> lastCounts_ = new HashMap<String, Long>();
+      private long lastRefreshNanos_ = 0;
+
+      void refresh() {
+         long now = System.nanoTime();
+         double seconds = lastRefreshNanos_ == 0 ? 0 :
+               (now - lastRefreshNanos_) / 1e9;
+         lastRefreshNanos_ = now;
+         rows_.clear();
+         for (LatencyHistogram h : PerformanceMetrics.getHistograms()) {
+            long count = h.getCount();
+            rows_.add(new Object[] {h.getName(), count,
+               rate(h.getName(), count, seconds), format(h.getMeanMs()),
+               format(h.getPercentileMs(0.5)), format(h.getPercentileMs(0.99)),
+               format(h.getMaxMs())});
+         }
+         for (EventCounter c : PerformanceMetrics.getCounters()) {
+            long count = c.getCount();
+            rows_.add(new Object[] {c.getName(), count,
+               rate(c.getName(), count, seconds), "", "", "", ""});
+         }
+         fireTableDataChanged();
+      }
+
+      private String rate(String name, long count, double seconds) {
+         Long last = lastCounts_.put(name, count);
+         if (last == null || seconds <= 0 || count < last) {
+            return "";
+         }
+         return format((count - last) / seconds);
+      }
+
+      private static String format(double value) {
+         return String.format(Locale.US, "%.2f", value);
+      }
+
+      @Override
+      public int getRowCount() {
+         return rows_.size();
+      }
+
+      @Override
+      public int getColumnCount() {
+         return COLUMNS.length;
+      }
+
+      @Override
+      public String getColumnName(int column) {
+         return COLUMNS[column];
+      }
+
+      @Override
+      public Class<?> getColumnClass(int column) {
+         return column == 1 ? Long.class : String.class;
+      }
+
+      @Override
+      public Object getValueAt(int row, int column) {
+         return rows_.get(row)[column];
+      }
+   }
+}
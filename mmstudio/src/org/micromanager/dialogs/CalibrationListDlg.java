@@ -110,18 +110,22 @@ public class CalibrationListDlg extends MMDialog {
 
       public int getCurrentPixelConfigRow() {
          try {
-            String curConfig = core_.getCurrentPixelSizeConfig();
-            for (int i = 0; i < this.getRowCount(); ++i) {
-               if (this.getValueAt(i, 0).equals(curConfig)) {
-                  return i;
-               }
-            }
+            return getRow(core_.getCurrentPixelSizeConfig());
          } catch (Exception ex) {
             ReportingUtils.logError(ex);
          }
          return -1;
       }
 
+      public int getRow(String label) {
+         for (int i = 0; i < this.getRowCount(); ++i) {
+            if (this.getValueAt(i, 0).equals(label)) {
+               return i;
+            }
+         }
+         return -1;
+      }
+
       @Override
       public boolean isCellEditable(int rowIndex, int columnIndex) {
          if (columnIndex == 1)
@@ -321,6 +325,29 @@ public class CalibrationListDlg extends MMDialog {
           calTable_.setRowSelectionInterval(row, row);
    }
 
+   /**
+    * Shows calibrations read from the core off the EDT, repainting the table
+    * only if they changed. Call on the EDT.
+    * @param calibrations pixel size configurations read from the core
+    * @param currentConfig current pixel size configuration, to select
+    */
+   public void showCalibrations(CalibrationList calibrations, String currentConfig) {
+      CalTableModel ptm = (CalTableModel)calTable_.getModel();
+      boolean same = calibrations.size() == calibrationList_.size();
+      for (int i = 0; same && i < calibrations.size(); i++) {
+         same = calibrations.get(i).getLabel().equals(calibrationList_.get(i).getLabel())
+               && calibrations.get(i).getPixelSizeUm().equals(calibrationList_.get(i).getPixelSizeUm());
+      }
+      if (!same) {
+         calibrationList_ = calibrations;
+         ptm.setData(calibrationList_);
+         ptm.fireTableDataChanged();
+      }
+      int row = ptm.getRow(currentConfig);
+      if (row >= 0 && row != calTable_.getSelectedRow())
+          calTable_.setRowSelectionInterval(row, row);
+   }
+
    public void setParentGUI(ScriptInterface parent) {
       parentGUI_ = parent;
    }
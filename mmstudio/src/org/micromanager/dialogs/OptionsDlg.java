@@ -42,6 +42,7 @@ import javax.swing.WindowConstants;
 
 import mmcorej.CMMCore;
 
+import org.micromanager.acquisition.DeviceLatencyModel;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.logging.LogFileManager;
 import org.micromanager.MMOptions;
@@ -169,6 +170,28 @@ public class OptionsDlg extends MMDialog {
          }
       });
 
+      final JButton clearLatenciesButton = new JButton();
+      clearLatenciesButton.setText("Forget Device Timings");
+      clearLatenciesButton.setToolTipText("Forget the device timings measured " +
+            "during acquisitions, e.g. after the hardware changed");
+      clearLatenciesButton.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(final ActionEvent e) {
+            int answer = JOptionPane.showConfirmDialog(OptionsDlg.this,
+               "<html><body><p style='width: 400px;'>" +
+               "Forget the device timings used to estimate acquisition " +
+               "durations? They are measured again during the next " +
+               "acquisitions." +
+               "</p></body></html>",
+               "Forget Device Timings",
+               JOptionPane.YES_NO_OPTION,
+               JOptionPane.QUESTION_MESSAGE);
+            if (answer == JOptionPane.YES_OPTION) {
+               DeviceLatencyModel.getInstance().clear();
+            }
+         }
+      });
+
       final JButton clearRegistryButton = new JButton();
       clearRegistryButton.setText("Reset Preferences");
       clearRegistryButton.setToolTipText("Clear all preference settings and restore defaults");
@@ -405,6 +428,8 @@ public class OptionsDlg extends MMDialog {
 
       add(syncExposureMainAndMDA, "wrap");
       add(hideMDAdisplay, "wrap");
+      add(clearLatenciesButton,
+            "split 3, gapleft push, gapright push, wrap");
 
       add(new JSeparator(), "wrap");
 
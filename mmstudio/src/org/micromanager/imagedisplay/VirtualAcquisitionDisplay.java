@@ -42,6 +42,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -64,9 +65,12 @@ import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
 import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
 import org.micromanager.api.events.PixelSizeChangedEvent;
 import org.micromanager.api.ImageCache;
-import org.micromanager.api.ImageCacheListener;
+import org.micromanager.api.ImageCacheBatchListener;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.diagnostics.EventCounter;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PerformanceMetrics;
 import org.micromanager.events.DisplayCreatedEvent;
 import org.micromanager.events.EventManager;
 import org.micromanager.graph.HistogramControlsState;
@@ -84,7 +88,7 @@ import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
-public class VirtualAcquisitionDisplay implements ImageCacheListener {
+public class VirtualAcquisitionDisplay implements ImageCacheBatchListener {
 
    /**
     * Given an ImagePlus, retrieve the associated VirtualAcquisitionDisplay.
@@ -103,6 +107,10 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    }
 
    private static final int ANIMATION_AND_LOCK_RESTART_DELAY = 800;
+   private static final LatencyHistogram showLatency_ =
+         PerformanceMetrics.getHistogram("display.show");
+   private static final EventCounter framesShown_ =
+         PerformanceMetrics.getCounter("display.frames");
    final ImageCache imageCache_;
    private AcquisitionEngine eng_;
    private boolean isAcquisitionFinished_ = false;
@@ -463,6 +471,19 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       updateDisplay(taggedImage);
    }
 
+   /**
+    * required by ImageCacheBatchListener. Only the most recent image of a
+    * batch is worth drawing, so the rest are skipped.
+    * @param taggedImages
+    * @param firstSequence
+    * @param lastSequence
+    */
+   @Override
+   public void imagesReceived(List<TaggedImage> taggedImages,
+         long firstSequence, long lastSequence) {
+      updateDisplay(taggedImages.get(taggedImages.size() - 1));
+   }
+
    /**
     * Method required by ImageCacheListener
     * @param path
@@ -696,6 +717,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    }
    
    private void doShowImage(final JSONObject tags, boolean waitForDisplay) {
+      long startNanos = System.nanoTime();
       updateWindowTitleAndStatus();
 
       if (tags == null) {
@@ -774,6 +796,8 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       }
 
       updateAndDraw(true);
+      showLatency_.recordSince(startNanos);
+      framesShown_.increment();
    }
 
    private void initializeContrast() {
@@ -66,6 +66,15 @@ public class HelpMenu {
          }
       );
 
+      GUIUtils.addMenuItem(helpMenu, "Performance Metrics...", null,
+         new Runnable() {
+            @Override
+            public void run() {
+               org.micromanager.diagnostics.gui.PerformanceMetricsFrame.showFrame();
+            }
+         }
+      );
+
       GUIUtils.addMenuItem(helpMenu, "About Micromanager", null,
          new Runnable() {
             @Override
@@ -0,0 +1,308 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PluginIndex.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//COPYRIGHT:     University of California, San Francisco, 2015
+//LICENSE:       This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+package org.micromanager.pluginmanagement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.prefs.Preferences;
+import org.micromanager.api.Autofocus;
+import org.micromanager.api.MMPlugin;
+import org.micromanager.api.MMProcessorPlugin;
+import org.micromanager.utils.JavaUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Finds the plugin classes in JARs and class files without loading any
+ * classes, so that only the plugins themselves are loaded at startup.
+ *
+ * A JAR can list its plugins in service files
+ * (META-INF/services/org.micromanager.api.MMPlugin and likewise for
+ * MMProcessorPlugin and Autofocus). Otherwise the headers of its class files
+ * are read to find the classes that directly implement one of these
+ * interfaces. The result is kept in the preferences, keyed by the path,
+ * size and modification time of the file, together with the menu name and
+ * tooltip of each plugin once they are known, so the next startup reads
+ * nothing from unchanged files.
+ *
+ * Thread safe, files can be indexed in parallel.
+ */
+class PluginIndex {
+   private static final String PREFS_KEY = "PluginIndex";
+   private static final String SERVICES_DIR = "META-INF/services/";
+   private static final String[] PLUGIN_INTERFACES = {
+      MMPlugin.class.getName(),
+      MMProcessorPlugin.class.getName(),
+      Autofocus.class.getName()
+   };
+
+   private final Preferences prefs_;
+   private final HashMap<String, IndexedFile> files_;
+   private boolean changed_ = false;
+
+   /**
+    * Plugin class found in a file.
+    */
+   static class IndexedPlugin implements Serializable {
+      private static final long serialVersionUID = 1L;
+      final String className_;
+      // name of the plugin interface the class implements
+      final String interfaceName_;
+      // null until the plugin class has been loaded once
+      String menuName_ = null;
+      String tooltip_ = null;
+
+      IndexedPlugin(String className, String interfaceName) {
+         className_ = className;
+         interfaceName_ = interfaceName;
+      }
+
+      boolean hasMenuInfo() {
+         return menuName_ != null;
+      }
+   }
+
+   private static class IndexedFile implements Serializable {
+      private static final long serialVersionUID = 1L;
+      final long size_;
+      final long modified_;
+      final ArrayList<IndexedPlugin> plugins_;
+
+      IndexedFile(File file, ArrayList<IndexedPlugin> plugins) {
+         size_ = file.length();
+         modified_ = file.lastModified();
+         plugins_ = plugins;
+      }
+
+      boolean matches(File file) {
+         return size_ == file.length() && modified_ == file.lastModified();
+      }
+   }
+
+   PluginIndex() {
+      prefs_ = Preferences.userNodeForPackage(PluginIndex.class);
+      HashMap<String, IndexedFile> empty = new HashMap<String, IndexedFile>();
+      files_ = JavaUtils.getObjectFromPrefs(prefs_, PREFS_KEY, empty);
+   }
+
+   /**
+    * @param file JAR or class file
+    * @return plugin classes in the file, from the cache if it hasn't changed
+    */
+   List<IndexedPlugin> getPlugins(File file) {
+      String key = file.getAbsolutePath();
+      synchronized (this) {
+         IndexedFile indexed = files_.get(key);
+         if (indexed != null && indexed.matches(file)) {
+            return indexed.plugins_;
+         }
+      }
+      ArrayList<IndexedPlugin> plugins = new ArrayList<IndexedPlugin>();
+      try {
+         if (file.getName().endsWith(".jar")) {
+            indexJar(file, plugins);
+         } else {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+               addIfPlugin(in, plugins);
+            } finally {
+               in.close();
+            }
+         }
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "Failed to look for plugins in " + file);
+         return plugins;
+      }
+      synchronized (this) {
+         files_.put(key, new IndexedFile(file, plugins));
+         changed_ = true;
+      }
+      return plugins;
+   }
+
+   /**
+    * Records the menu name and tooltip of a plugin, read from its class.
+    */
+   synchronized void setMenuInfo(IndexedPlugin plugin, String menuName,
+         String tooltip) {
+      plugin.menuName_ = menuName;
+      plugin.tooltip_ = tooltip;
+      changed_ = true;
+   }
+
+   /**
+    * Stores the index in the preferences, dropping files that no longer
+    * exist.
+    */
+   synchronized void save() {
+      for (String path : new ArrayList<String>(files_.keySet())) {
+         if (!new File(path).exists()) {
+            files_.remove(path);
+            changed_ = true;
+         }
+      }
+      if (changed_) {
+         JavaUtils.putObjectInPrefs(prefs_, PREFS_KEY, files_);
+         changed_ = false;
+      }
+   }
+
+   private static void indexJar(File file, List<IndexedPlugin> plugins)
+         throws IOException {
+      JarFile jar = new JarFile(file);
+      try {
+         boolean declared = false;
+         for (String iface : PLUGIN_INTERFACES) {
+            JarEntry services = jar.getJarEntry(SERVICES_DIR + iface);
+            if (services != null) {
+               declared = true;
+               for (String className : readServiceFile(jar.getInputStream(services))) {
+                  plugins.add(new IndexedPlugin(className, iface));
+               }
+            }
+         }
+         if (declared) {
+            return;
+         }
+         Enumeration<JarEntry> entries = jar.entries();
+         while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            if (entry.getName().endsWith(".class")) {
+               InputStream in = new BufferedInputStream(jar.getInputStream(entry));
+               try {
+                  addIfPlugin(in, plugins);
+               } catch (IOException e) {
+                  ReportingUtils.logError(e, "Failed to read " + entry.getName()
+                        + " in " + file);
+               } finally {
+                  in.close();
+               }
+            }
+         }
+      } finally {
+         jar.close();
+      }
+   }
+
+   private static List<String> readServiceFile(InputStream in) throws IOException {
+      List<String> classNames = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+               line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.length() > 0) {
+               classNames.add(line);
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      return classNames;
+   }
+
+   private static void addIfPlugin(InputStream in, List<IndexedPlugin> plugins)
+         throws IOException {
+      String[] names = readClassAndInterfaceNames(new DataInputStream(in));
+      for (int i = 1; i < names.length; i++) {
+         for (String iface : PLUGIN_INTERFACES) {
+            if (iface.equals(names[i])) {
+               plugins.add(new IndexedPlugin(names[0], iface));
+            }
+         }
+      }
+   }
+
+   /**
+    * Reads the header of a class file, up to the list of interfaces.
+    * @return name of the class followed by the names of the interfaces it
+    *    implements directly
+    */
+   static String[] readClassAndInterfaceNames(DataInputStream in)
+         throws IOException {
+      if (in.readInt() != 0xCAFEBABE) {
+         throw new IOException("Not a class file");
+      }
+      in.readUnsignedShort(); // minor version
+      in.readUnsignedShort(); // major version
+      int count = in.readUnsignedShort();
+      String[] utf8 = new String[count];
+      int[] classNames = new int[count];
+      byte[] skipped = new byte[8];
+      for (int i = 1; i < count; i++) {
+         int tag = in.readUnsignedByte();
+         switch (tag) {
+            case 1: // Utf8
+               utf8[i] = in.readUTF();
+               break;
+            case 7: // Class
+               classNames[i] = in.readUnsignedShort();
+               break;
+            case 8: // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+               in.readFully(skipped, 0, 2);
+               break;
+            case 15: // MethodHandle
+               in.readFully(skipped, 0, 3);
+               break;
+            case 3: // Integer
+            case 4: // Float
+            case 9: // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 12: // NameAndType
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+               in.readFully(skipped, 0, 4);
+               break;
+            case 5: // Long
+            case 6: // Double, both take two entries
+               in.readFully(skipped, 0, 8);
+               i++;
+               break;
+            default:
+               throw new IOException("Unknown constant pool tag " + tag);
+         }
+      }
+      in.readUnsignedShort(); // access flags
+      int thisClass = in.readUnsignedShort();
+      in.readUnsignedShort(); // super class
+      int numInterfaces = in.readUnsignedShort();
+      String[] names = new String[numInterfaces + 1];
+      names[0] = utf8[classNames[thisClass]].replace('/', '.');
+      for (int i = 0; i < numInterfaces; i++) {
+         names[i + 1] = utf8[classNames[in.readUnsignedShort()]].replace('/', '.');
+      }
+      return names;
+   }
+}
@@ -16,8 +16,10 @@ import org.micromanager.utils.ReportingUtils;
  * Utility class used to to assemble information about the plugin
  */
 public class PluginItem {
-   // raw class as input by caller
+   // raw class as input by caller, or loaded from pluginClassName_ when
+   // first needed
    private Class<?> pluginClass_ = null; 
+   private String pluginClassName_ = null;
    // MMBasePlugin instance generated in PluginItem
    private MMBasePlugin plugin_ = null;
    // Enum indicating the type of this plugin for when we need to treat
@@ -38,6 +40,22 @@ public class PluginItem {
          PluginType pluginType, String menuItem, String tooltip, 
          String directory, String msg) {
       pluginClass_ = pluginClass;
+      pluginClassName_ = pluginClass.getName();
+      className_ = className;
+      pluginType_ = pluginType;
+      menuItem_ = menuItem;
+      tooltip_ = tooltip;
+      directory_ = directory;
+      msg_ = msg;
+   }
+
+   /**
+    * Plugin whose class is only loaded when it is first used
+    */
+   public PluginItem(String pluginClassName, String className, 
+         PluginType pluginType, String menuItem, String tooltip, 
+         String directory, String msg) {
+      pluginClassName_ = pluginClassName;
       className_ = className;
       pluginType_ = pluginType;
       menuItem_ = menuItem;
@@ -48,6 +66,7 @@ public class PluginItem {
    
    public PluginItem(PluginItem pio) {
       pluginClass_ = pio.pluginClass_;
+      pluginClassName_ = pio.pluginClassName_;
       className_ = pio.className_;
       pluginType_ = pio.pluginType_;
       menuItem_ = pio.menuItem_;
@@ -63,6 +82,22 @@ public class PluginItem {
    public String getTooltip() {return tooltip_; }
    public MMBasePlugin getPlugin() {return plugin_; }
 
+   /**
+    * @return the plugin class, loading it if needed, or null if that fails
+    */
+   public synchronized Class<?> getPluginClass() {
+      if (pluginClass_ == null) {
+         try {
+            pluginClass_ = Class.forName(pluginClassName_);
+         } catch (ClassNotFoundException e) {
+            ReportingUtils.logError(e, "Failed loading plugin " + pluginClassName_);
+         } catch (LinkageError e) {
+            ReportingUtils.logError(e, "Failed loading plugin " + pluginClassName_);
+         }
+      }
+      return pluginClass_;
+   }
+
    /**
     * Return the menu hierarchy path, including the leaf item name.
     */
@@ -82,14 +117,18 @@ public class PluginItem {
    }
    
    public void instantiate() {
+      Class<?> pluginClass = getPluginClass();
+      if (pluginClass == null) {
+         return;
+      }
       try {
          if (plugin_ == null) {
             switch (pluginType_) {
                case PLUGIN_STANDARD:
-                  plugin_ = (MMPlugin) pluginClass_.newInstance();
+                  plugin_ = (MMPlugin) pluginClass.newInstance();
                   break;
                case PLUGIN_PROCESSOR:
-                  plugin_ = (MMProcessorPlugin) pluginClass_.newInstance();
+                  plugin_ = (MMProcessorPlugin) pluginClass.newInstance();
                   break;
                default:
                   ReportingUtils.logError("Can't instantiate unrecognized plugin type " + pluginType_);
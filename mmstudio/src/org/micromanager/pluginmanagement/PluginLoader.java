@@ -25,6 +25,12 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
 import org.micromanager.MMStudio;
@@ -127,6 +133,27 @@ class PluginLoader {
             msg);
    }
 
+   /**
+    * Makes a PluginItem for a standard plugin from its index entry, without
+    * loading its class.
+    */
+   private PluginItem declareIndexedPlugin(PluginIndex.IndexedPlugin indexed,
+         String dir, PluginType pluginType) {
+      String className = indexed.className_.substring(
+            indexed.className_.lastIndexOf('.') + 1);
+      className = className.substring(className.lastIndexOf('$') + 1);
+      for (PluginItem plugin : plugins_) {
+         if (plugin.getClassName().contentEquals(className)) {
+            return new PluginItem(indexed.className_, "", pluginType, "", "",
+                  dir, className + " already loaded");
+         }
+      }
+      PluginItem pi = new PluginItem(indexed.className_, className, pluginType,
+            indexed.menuName_, indexed.tooltip_, dir, className + " module loaded.");
+      plugins_.add(pi);
+      return pi;
+   }
+
    private void addPluginToMenuLater(final PluginItem pi) {
       SwingUtilities.invokeLater(
               new Runnable() {
@@ -137,16 +164,94 @@ class PluginLoader {
       });
    }
 
+   /**
+    * Plugin found in a file, with its class if that had to be loaded.
+    */
+   private static class FoundPlugin {
+      final PluginIndex.IndexedPlugin indexed_;
+      final String dir_;
+      final Class<?> class_;
+
+      FoundPlugin(PluginIndex.IndexedPlugin indexed, String dir, Class<?> cl) {
+         indexed_ = indexed;
+         dir_ = dir;
+         class_ = cl;
+      }
+   }
+
+   /**
+    * Looks up the plugins in a file in the index. Standard plugins whose
+    * menu entry is known are left unloaded until they are used, all other
+    * plugin classes are loaded.
+    */
+   private List<FoundPlugin> findPlugins(PluginIndex index, File file, String dir) {
+      List<FoundPlugin> found = new ArrayList<FoundPlugin>();
+      for (PluginIndex.IndexedPlugin indexed : index.getPlugins(file)) {
+         Class<?> cl = null;
+         boolean standard = indexed.interfaceName_.equals(MMPlugin.class.getName());
+         boolean processor = indexed.interfaceName_.equals(MMProcessorPlugin.class.getName());
+         if (processor || (standard && !indexed.hasMenuInfo())) {
+            try {
+               cl = Class.forName(indexed.className_);
+            } catch (ClassNotFoundException e) {
+               ReportingUtils.logError(e, "Failed to load plugin " + indexed.className_);
+               continue;
+            } catch (LinkageError e) {
+               ReportingUtils.logError(e, "Failed to load plugin " + indexed.className_);
+               continue;
+            }
+         }
+         found.add(new FoundPlugin(indexed, dir, cl));
+      }
+      return found;
+   }
+
+   /**
+    * Indexes the files on the plugin loading threads, in parallel. The
+    * results are in the order of the files.
+    */
+   private List<Future<List<FoundPlugin>>> findPluginsLater(
+         ExecutorService executor, final PluginIndex index, List<File> files,
+         final String dir) {
+      List<Future<List<FoundPlugin>>> futures = new ArrayList<Future<List<FoundPlugin>>>();
+      for (final File file : files) {
+         futures.add(executor.submit(new Callable<List<FoundPlugin>>() {
+            @Override
+            public List<FoundPlugin> call() {
+               return findPlugins(index, file, dir);
+            }
+         }));
+      }
+      return futures;
+   }
+
+   private static List<FoundPlugin> getFoundPlugins(List<Future<List<FoundPlugin>>> futures) {
+      List<FoundPlugin> found = new ArrayList<FoundPlugin>();
+      for (Future<List<FoundPlugin>> future : futures) {
+         try {
+            found.addAll(future.get());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         } catch (ExecutionException e) {
+            ReportingUtils.logError(e.getCause(), "Failed to look for plugins");
+         }
+      }
+      return found;
+   }
+
    /**
     * Discovers Micro-Manager plugins and autofocus plugins at runtime 
     * Adds these to the plugins menu
+    *
+    * Plugins are looked up in the PluginIndex, so only the plugin classes
+    * are loaded, and standard plugins that were seen before are not loaded
+    * until they are chosen from the menu.
     */
    public void loadPlugins() {
       File pluginRootDir = new File(System.getProperty("org.micromanager.plugin.path", MMPLUGINSDIR));
       File autofocusRootDir = new File(System.getProperty("org.micromanager.autofocus.path", MMAUTOFOCUSDIR));
 
-      ArrayList<Class<?>> autofocusClasses = new ArrayList<Class<?>>();
-      List<Class<?>> classes;
       ArrayList<PluginItem> pis = new ArrayList<PluginItem>();
       
       FilenameFilter dirFilter = new FilenameFilter() {
@@ -162,53 +267,71 @@ class PluginLoader {
       if (dirNames != null) {
          dirs.addAll(Arrays.asList(dirNames));
       }
-      
+
+      PluginIndex index = new PluginIndex();
+      final ClassLoader classLoader = getClass().getClassLoader();
+      ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Plugin loading");
+            thread.setDaemon(true);
+            // Needed for loading clojure-based jars:
+            thread.setContextClassLoader(classLoader);
+            return thread;
+         }
+      });
+
+      List<Future<List<FoundPlugin>>> pluginFutures = new ArrayList<Future<List<FoundPlugin>>>();
       for (String dir : dirs) {
+         // Use recursion level of 0, because we don't want to redundantly
+         // search subdirectories here.
+         List<File> files = JavaUtils.addToClassPath(new File(pluginRootDir, dir), 0);
+         pluginFutures.addAll(findPluginsLater(executor, index, files, dir));
+      }
+      List<Future<List<FoundPlugin>>> autofocusFutures = findPluginsLater(executor,
+            index, JavaUtils.addToClassPath(autofocusRootDir, 2), "");
+      List<FoundPlugin> found = getFoundPlugins(pluginFutures);
+      List<FoundPlugin> foundAutofocus = getFoundPlugins(autofocusFutures);
+      executor.shutdown();
+
+      for (FoundPlugin plugin : found) {
+         String className = plugin.indexed_.className_;
+         PluginType pluginType;
+         if (plugin.indexed_.interfaceName_.equals(MMPlugin.class.getName())) {
+            pluginType = PluginType.PLUGIN_STANDARD;
+         } else if (plugin.indexed_.interfaceName_.equals(MMProcessorPlugin.class.getName())) {
+            pluginType = PluginType.PLUGIN_PROCESSOR;
+         } else {
+            continue;
+         }
+         // This class implements a valid plugin type; make a
+         // PluginItem out of it.
          try {
-            // Use recursion level of 0 for findAndLoadClasses, because we don't
-            // want to redundantly search subdirectories here.
-            classes = JavaUtils.findAndLoadClasses(new File(pluginRootDir, dir), 0);
-            for (Class<?> clazz : classes) {
-               PluginType pluginType = null;
-               for (Class<?> iface : clazz.getInterfaces()) {
-                  if (iface == MMPlugin.class) {
-                     pluginType = PluginType.PLUGIN_STANDARD;
-                  }
-                  else if (iface == MMProcessorPlugin.class) {
-                     pluginType = PluginType.PLUGIN_PROCESSOR;
-                  }
+            ReportingUtils.logMessage("Installing plugin " + className + "...");
+            PluginItem pi;
+            if (plugin.class_ == null) {
+               pi = declareIndexedPlugin(plugin.indexed_, plugin.dir_, pluginType);
+            } else {
+               pi = declarePlugin(plugin.class_, plugin.dir_, pluginType);
+               if (!pi.getClassName().isEmpty()) {
+                  index.setMenuInfo(plugin.indexed_, pi.getMenuItem(), pi.getTooltip());
                }
-               if (pluginType != null) {
-                  // This class implements a valid plugin type; make a
-                  // PluginItem out of it.
-                  try {
-                     ReportingUtils.logMessage("Installing plugin " + clazz.getName() + "...");
-                     PluginItem pi = declarePlugin(clazz, dir, pluginType);
-                     if (pi == null) {
-                        // Declaring the plugin failed.
-                        continue;
-                     }
-                     if (pluginType == PluginType.PLUGIN_PROCESSOR) {
-                        // Register the plugin with the acquisition engine.
-                        AcquisitionEngine engine = MMStudio.getInstance().getAcquisitionEngine();
-                        MMProcessorPlugin plugin = (MMProcessorPlugin) pi.getPlugin();
-                        String processorName = getNameForPluginClass(clazz);
-                        Class<? extends DataProcessor<TaggedImage>> processorClass = getProcessorClassForPluginClass(clazz);
-                        if (processorClass != null) {
-                           engine.registerProcessorClass(processorClass, processorName);
-                        }
-                     }
-                     if (pi != null && !pi.getClassName().isEmpty()) {
-                        pis.add(pi);
-                     }
-                  } catch (Exception e) {
-                     ReportingUtils.logError(e, "Failed to install the \"" + clazz.getName() + "\" plugin.");
-                  }
+            }
+            if (pluginType == PluginType.PLUGIN_PROCESSOR) {
+               // Register the plugin with the acquisition engine.
+               AcquisitionEngine engine = MMStudio.getInstance().getAcquisitionEngine();
+               String processorName = getNameForPluginClass(plugin.class_);
+               Class<? extends DataProcessor<TaggedImage>> processorClass = getProcessorClassForPluginClass(plugin.class_);
+               if (processorClass != null) {
+                  engine.registerProcessorClass(processorClass, processorName);
                }
             }
-         }
-         catch (Exception e) {
-            ReportingUtils.logError(e, "Couldn't load plugins from directory " + dir);
+            if (!pi.getClassName().isEmpty()) {
+               pis.add(pi);
+            }
+         } catch (Exception e) {
+            ReportingUtils.logError(e, "Failed to install the \"" + className + "\" plugin.");
          }
       }
 
@@ -219,26 +342,21 @@ class PluginLoader {
          }
       }
 
-
       // Install Autofocus classes found in mmautofocus
-      classes = JavaUtils.findAndLoadClasses(autofocusRootDir, 2);
-      for (Class<?> clazz : classes) {
-         for (Class<?> iface : clazz.getInterfaces()) {
-            if (iface == Autofocus.class) {
-               autofocusClasses.add(clazz);
-            }
+      for (FoundPlugin autofocus : foundAutofocus) {
+         if (!autofocus.indexed_.interfaceName_.equals(Autofocus.class.getName())) {
+            continue;
          }
-      }
-
-      for (Class<?> autofocus : autofocusClasses) {
+         String className = autofocus.indexed_.className_;
          try {
-            ReportingUtils.logMessage("Attempting to install autofocus plugin " + autofocus.getName());
-            MMStudio.getInstance().installAutofocusPlugin(autofocus.getName());
+            ReportingUtils.logMessage("Attempting to install autofocus plugin " + className);
+            MMStudio.getInstance().installAutofocusPlugin(className);
          } catch (Exception e) {
-            ReportingUtils.logError("Failed to install the \"" + autofocus.getName() + "\" autofocus plugin.");
+            ReportingUtils.logError("Failed to install the \"" + className + "\" autofocus plugin.");
          }
       }
 
+      index.save();
    }
 
    // Dispose of the UIs of extant plugins. Only valid for standard plugins
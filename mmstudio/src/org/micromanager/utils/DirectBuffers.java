@@ -7,6 +7,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
  *
@@ -88,6 +90,34 @@ public class DirectBuffers {
       }
    }
 
+   private static final ThreadLocal<JSONByteWriter> jsonWriter_ =
+         new ThreadLocal<JSONByteWriter>() {
+      @Override
+      protected JSONByteWriter initialValue() {
+         return new JSONByteWriter();
+      }
+   };
+
+   /**
+    * Serializes json as UTF-8 into a direct buffer of exactly the right size,
+    * without going through an intermediate String.
+    */
+   public static ByteBuffer bufferFromJSON(JSONObject json) throws JSONException {
+      ByteBuffer serialized = jsonWriter_.get().write(json);
+      return ByteBuffer.allocateDirect(serialized.remaining()).put(serialized);
+   }
+
+   /**
+    * Returns a JSONObject that parses the fields of the buffer's UTF-8 text
+    * only as they are accessed.
+    */
+   public static JSONObject JSONFromBuffer(ByteBuffer byteBuffer) {
+      synchronized(byteBuffer) {
+         byteBuffer.rewind();
+         return LazyJSONObject.fromBuffer(byteBuffer);
+      }
+   }
+
    public static String stringFromBuffer(ByteBuffer byteBuffer) {
       try {
          return new String(bytesFromBuffer(byteBuffer), "UTF-8");
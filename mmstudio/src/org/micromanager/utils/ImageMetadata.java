@@ -0,0 +1,323 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageMetadata.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Image tags with typed fields for the coordinates and dimensions that are
+ * read for every image (channel, slice, frame and position indices, width,
+ * height and pixel type). MDUtils reads these fields directly instead of
+ * looking them up (and parsing them) by key.
+ *
+ * All other tags live in the ordinary JSONObject map, which also mirrors the
+ * typed fields, so an ImageMetadata can be passed anywhere a JSONObject is
+ * expected and serializes exactly like one. Putting a typed key with a value
+ * of the wrong type (e.g. a String index) simply leaves the field unset, and
+ * MDUtils falls back to the JSON lookup.
+ *
+ * Like JSONObject, this class is not thread safe.
+ */
+public class ImageMetadata extends JSONObject {
+   private static final int CHANNEL_INDEX = 0;
+   private static final int SLICE_INDEX = 1;
+   private static final int SLICE = 2;
+   private static final int FRAME_INDEX = 3;
+   private static final int FRAME = 4;
+   private static final int POSITION_INDEX = 5;
+   private static final int WIDTH = 6;
+   private static final int HEIGHT = 7;
+   private static final int PIXEL_TYPE = 8;
+
+   private static final String[] KEYS = {"ChannelIndex", "SliceIndex",
+      "Slice", "FrameIndex", "Frame", "PositionIndex", "Width", "Height",
+      "PixelType"};
+   private static final HashMap<String, Integer> SLOTS =
+           new HashMap<String, Integer>();
+   static {
+      for (int i = 0; i < KEYS.length; ++i) {
+         SLOTS.put(KEYS[i], i);
+      }
+   }
+
+   private final int[] values_ = new int[PIXEL_TYPE];
+   // Bit i is set when slot i holds a valid typed value.
+   private int validMask_ = 0;
+   private String pixelType_;
+   private String label_;
+
+   public ImageMetadata() {
+      super();
+   }
+
+   /**
+    * Copies the entries of tags (not their contents; nested objects are
+    * shared, as with JSONObject's subset constructor).
+    */
+   public ImageMetadata(JSONObject tags) throws JSONException {
+      super();
+      Iterator<String> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         put(key, tags.opt(key));
+      }
+   }
+
+   /**
+    * Builds the tags from a map exactly as JSONObject(Map) does: values are
+    * taken as they are, without the checks of put(), so that e.g. a NaN
+    * property value doesn't fail the image.
+    */
+   public ImageMetadata(Map<String, ?> map) {
+      super(map);
+      for (Map.Entry<String, Integer> slot : SLOTS.entrySet()) {
+         if (map.containsKey(slot.getKey())) {
+            setSlot(slot.getValue(), map.get(slot.getKey()));
+         }
+      }
+   }
+
+   /**
+    * Returns tags itself if it already is an ImageMetadata, otherwise a
+    * shallow copy that is.
+    */
+   public static ImageMetadata fromJSON(JSONObject tags) throws JSONException {
+      if (tags instanceof ImageMetadata) {
+         return (ImageMetadata) tags;
+      }
+      return new ImageMetadata(tags);
+   }
+
+   /**
+    * Returns a deep copy, without the serialize/parse round trip of
+    * MDUtils.copy() for the typed fields.
+    */
+   public ImageMetadata copy() throws JSONException {
+      ImageMetadata result = new ImageMetadata();
+      System.arraycopy(values_, 0, result.values_, 0, values_.length);
+      result.validMask_ = validMask_;
+      result.pixelType_ = pixelType_;
+      result.label_ = label_;
+      Iterator<String> keys = keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         Object value = opt(key);
+         if (value instanceof JSONObject) {
+            value = new JSONObject(value.toString());
+         } else if (value instanceof JSONArray) {
+            value = new JSONArray(value.toString());
+         }
+         result.putUntyped(key, value);
+      }
+      return result;
+   }
+
+   @Override
+   public JSONObject put(String key, Object value) throws JSONException {
+      super.put(key, value);
+      Integer slot = key == null ? null : SLOTS.get(key);
+      if (slot != null) {
+         setSlot(slot, value);
+      }
+      return this;
+   }
+
+   @Override
+   public JSONObject put(String key, int value) throws JSONException {
+      Integer slot = key == null ? null : SLOTS.get(key);
+      if (slot != null && slot != PIXEL_TYPE) {
+         super.put(key, Integer.valueOf(value));
+         setInt(slot, value);
+         return this;
+      }
+      return put(key, Integer.valueOf(value));
+   }
+
+   @Override
+   public Object remove(String key) {
+      Integer slot = key == null ? null : SLOTS.get(key);
+      if (slot != null) {
+         clearSlot(slot);
+      }
+      return super.remove(key);
+   }
+
+   private void putUntyped(String key, Object value) throws JSONException {
+      super.put(key, value);
+   }
+
+   private void setSlot(int slot, Object value) {
+      if (slot == PIXEL_TYPE) {
+         pixelType_ = value instanceof String ? (String) value : null;
+         return;
+      }
+      if (value instanceof Integer || value instanceof Short ||
+              value instanceof Byte || (value instanceof Long &&
+              ((Long) value).longValue() == ((Long) value).intValue())) {
+         setInt(slot, ((Number) value).intValue());
+      } else {
+         clearSlot(slot);
+      }
+   }
+
+   private void setInt(int slot, int value) {
+      values_[slot] = value;
+      validMask_ |= 1 << slot;
+      label_ = null;
+   }
+
+   private void clearSlot(int slot) {
+      if (slot == PIXEL_TYPE) {
+         pixelType_ = null;
+         return;
+      }
+      validMask_ &= ~(1 << slot);
+      label_ = null;
+   }
+
+   private boolean isValid(int slot) {
+      return (validMask_ & (1 << slot)) != 0;
+   }
+
+   /**
+    * Typed lookups, used by MDUtils. Each has* method tells whether the
+    * corresponding tag is present with an integral value.
+    */
+   public boolean hasChannelIndex() {
+      return isValid(CHANNEL_INDEX);
+   }
+
+   public int getChannelIndex() {
+      return values_[CHANNEL_INDEX];
+   }
+
+   public void setChannelIndex(int channelIndex) throws JSONException {
+      put(KEYS[CHANNEL_INDEX], channelIndex);
+   }
+
+   /**
+    * Same precedence as MDUtils.getSliceIndex(): "SliceIndex" wins, but only
+    * when the key is present at all.
+    */
+   public boolean isSliceIndexKnown() {
+      return isValid(SLICE_INDEX) || (isValid(SLICE) && !has(KEYS[SLICE_INDEX]));
+   }
+
+   public int getSliceIndex() {
+      return isValid(SLICE_INDEX) ? values_[SLICE_INDEX] : values_[SLICE];
+   }
+
+   public void setSliceIndex(int sliceIndex) throws JSONException {
+      put(KEYS[SLICE_INDEX], sliceIndex);
+      put(KEYS[SLICE], sliceIndex);
+   }
+
+   /**
+    * Same precedence as MDUtils.getFrameIndex(): "Frame" wins over
+    * "FrameIndex" whenever the key is present.
+    */
+   public boolean isFrameIndexKnown() {
+      return isValid(FRAME) || (isValid(FRAME_INDEX) && !has(KEYS[FRAME]));
+   }
+
+   public int getFrameIndex() {
+      return isValid(FRAME) ? values_[FRAME] : values_[FRAME_INDEX];
+   }
+
+   public void setFrameIndex(int frameIndex) throws JSONException {
+      put(KEYS[FRAME], frameIndex);
+      put(KEYS[FRAME_INDEX], frameIndex);
+   }
+
+   public boolean hasPositionIndex() {
+      return isValid(POSITION_INDEX);
+   }
+
+   public int getPositionIndex() {
+      return values_[POSITION_INDEX];
+   }
+
+   public void setPositionIndex(int positionIndex) throws JSONException {
+      put(KEYS[POSITION_INDEX], positionIndex);
+   }
+
+   public boolean hasWidth() {
+      return isValid(WIDTH);
+   }
+
+   public int getWidth() {
+      return values_[WIDTH];
+   }
+
+   public void setWidth(int width) throws JSONException {
+      put(KEYS[WIDTH], width);
+   }
+
+   public boolean hasHeight() {
+      return isValid(HEIGHT);
+   }
+
+   public int getHeight() {
+      return values_[HEIGHT];
+   }
+
+   public void setHeight(int height) throws JSONException {
+      put(KEYS[HEIGHT], height);
+   }
+
+   /**
+    * Returns the "PixelType" tag, or null if it is not set to a String.
+    */
+   public String getPixelType() {
+      return pixelType_;
+   }
+
+   public void setPixelType(String pixelType) throws JSONException {
+      put(KEYS[PIXEL_TYPE], pixelType);
+   }
+
+   /**
+    * Returns the label built from the four indices (see
+    * MDUtils.generateLabel()), or null if any of them is not typed. The
+    * label is cached until one of the indices changes.
+    */
+   public String getLabel() {
+      if (label_ == null && hasChannelIndex() && isSliceIndexKnown() &&
+              isFrameIndexKnown() && hasPositionIndex()) {
+         label_ = MDUtils.generateLabel(getChannelIndex(), getSliceIndex(),
+                 getFrameIndex(), getPositionIndex());
+      }
+      return label_;
+   }
+
+   /**
+    * Converts to a plain JSONObject, for consumers that insist on the exact
+    * class.
+    */
+   public JSONObject toJSON() throws JSONException {
+      return new JSONObject(this, MDUtils.getKeys(this));
+   }
+}
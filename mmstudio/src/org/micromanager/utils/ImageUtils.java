@@ -636,7 +636,7 @@ public class ImageUtils {
    }
 
    public static TaggedImage makeTaggedImage(ImageProcessor proc) {
-      JSONObject tags = new JSONObject();
+      JSONObject tags = new ImageMetadata();
       try {
          MDUtils.setChannelIndex(tags, 0);
          MDUtils.setSliceIndex(tags, 0);
@@ -655,7 +655,7 @@ public class ImageUtils {
    public static TaggedImage makeTaggedImage(Object pixels, int channelIndex,
            int sliceIndex, int positionIndex, int frameIndex, int width,
            int height, int numberOfBytesPerPixel) {
-      JSONObject tags = new JSONObject();
+      JSONObject tags = new ImageMetadata();
       try {
          MDUtils.setChannelIndex(tags, channelIndex);
          MDUtils.setSliceIndex(tags, sliceIndex);
@@ -675,6 +675,15 @@ public class ImageUtils {
     * so that changes elsewhere in the program won't affect this one.
     */
    public static TaggedImage copyMetadata(TaggedImage image) {
+      if (image.tags instanceof ImageMetadata) {
+         try {
+            return new TaggedImage(image.pix, new ImageMetadata(image.tags));
+         }
+         catch (JSONException e) {
+            ReportingUtils.logError(e, "Unable to duplicate image metadata");
+            return null;
+         }
+      }
       JSONArray names = image.tags.names();
       String[] keys = new String[names.length()];
       try {
@@ -0,0 +1,285 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          JSONByteWriter.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Serializes JSONObjects as UTF-8 straight into a reusable ByteBuffer,
+ * without building the intermediate Strings that JSONObject.toString() and
+ * String.getBytes() produce. The output is identical to
+ * JSONObject.toString() encoded as UTF-8.
+ *
+ * Unmodified LazyJSONObjects (e.g. metadata just read from disk) are copied
+ * through as raw bytes without being parsed.
+ *
+ * An instance is not thread safe; the buffer returned by write() is reused
+ * by the next call.
+ */
+public class JSONByteWriter {
+   private static final byte[] NULL_BYTES = {'n', 'u', 'l', 'l'};
+   private static final byte[] TRUE_BYTES = {'t', 'r', 'u', 'e'};
+   private static final byte[] FALSE_BYTES = {'f', 'a', 'l', 's', 'e'};
+   private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5',
+      '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+   private final boolean direct_;
+   private ByteBuffer buffer_;
+   private final byte[] digits_ = new byte[20];
+
+   public JSONByteWriter() {
+      this(16384, false);
+   }
+
+   /**
+    * @param initialCapacity initial buffer size in bytes; the buffer grows
+    * as needed and keeps its largest size
+    * @param direct whether to serialize into a direct ByteBuffer
+    */
+   public JSONByteWriter(int initialCapacity, boolean direct) {
+      direct_ = direct;
+      buffer_ = allocate(Math.max(16, initialCapacity));
+   }
+
+   /**
+    * Serializes object. The returned buffer has position 0 and its limit at
+    * the end of the text, and is only valid until the next call to write().
+    */
+   public ByteBuffer write(JSONObject object) throws JSONException {
+      return write(object, false);
+   }
+
+   /**
+    * Serializes object, optionally followed by a 0 byte (as required for
+    * TIFF ASCII fields).
+    */
+   public ByteBuffer write(JSONObject object, boolean nullTerminate)
+           throws JSONException {
+      buffer_.clear();
+      writeObject(object);
+      if (nullTerminate) {
+         ensureRemaining(1);
+         buffer_.put((byte) 0);
+      }
+      buffer_.flip();
+      return buffer_;
+   }
+
+   /**
+    * Serializes object into a newly allocated array of exactly the right
+    * size.
+    */
+   public byte[] toByteArray(JSONObject object) throws JSONException {
+      ByteBuffer buffer = write(object);
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+   }
+
+   void writeRaw(byte[] bytes, int offset, int length) {
+      ensureRemaining(length);
+      buffer_.put(bytes, offset, length);
+   }
+
+   private void writeObject(JSONObject object) throws JSONException {
+      if (object instanceof LazyJSONObject &&
+              ((LazyJSONObject) object).writeRawTo(this)) {
+         return;
+      }
+      ensureRemaining(1);
+      buffer_.put((byte) '{');
+      boolean first = true;
+      Iterator<String> keys = object.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         ensureRemaining(1);
+         if (!first) {
+            buffer_.put((byte) ',');
+         }
+         first = false;
+         writeQuoted(key);
+         ensureRemaining(1);
+         buffer_.put((byte) ':');
+         writeValue(object.opt(key));
+      }
+      ensureRemaining(1);
+      buffer_.put((byte) '}');
+   }
+
+   private void writeArray(JSONArray array) throws JSONException {
+      ensureRemaining(1);
+      buffer_.put((byte) '[');
+      int length = array.length();
+      for (int i = 0; i < length; ++i) {
+         if (i > 0) {
+            ensureRemaining(1);
+            buffer_.put((byte) ',');
+         }
+         writeValue(array.opt(i));
+      }
+      ensureRemaining(1);
+      buffer_.put((byte) ']');
+   }
+
+   private void writeValue(Object value) throws JSONException {
+      if (value == null || value.equals(null)) {
+         writeRaw(NULL_BYTES, 0, NULL_BYTES.length);
+      } else if (value instanceof JSONObject) {
+         writeObject((JSONObject) value);
+      } else if (value instanceof JSONArray) {
+         writeArray((JSONArray) value);
+      } else if (value instanceof Integer || value instanceof Long ||
+              value instanceof Short || value instanceof Byte) {
+         writeLong(((Number) value).longValue());
+      } else if (value instanceof Number) {
+         writeAscii(JSONObject.numberToString((Number) value));
+      } else if (value instanceof Boolean) {
+         byte[] bytes = ((Boolean) value) ? TRUE_BYTES : FALSE_BYTES;
+         writeRaw(bytes, 0, bytes.length);
+      } else {
+         writeQuoted(value.toString());
+      }
+   }
+
+   private void writeLong(long value) {
+      if (value == Long.MIN_VALUE) {
+         writeAscii(Long.toString(value));
+         return;
+      }
+      ensureRemaining(20);
+      if (value < 0) {
+         buffer_.put((byte) '-');
+         value = -value;
+      }
+      int n = digits_.length;
+      do {
+         digits_[--n] = (byte) ('0' + (value % 10));
+         value /= 10;
+      } while (value != 0);
+      buffer_.put(digits_, n, digits_.length - n);
+   }
+
+   private void writeAscii(String s) {
+      int length = s.length();
+      ensureRemaining(length);
+      for (int i = 0; i < length; ++i) {
+         buffer_.put((byte) s.charAt(i));
+      }
+   }
+
+   /**
+    * Same escaping rules as JSONObject.quote(), encoded as UTF-8.
+    */
+   private void writeQuoted(String s) {
+      int length = s.length();
+      // Worst case is 6 bytes per char (\\u00XX), plus the quotes.
+      ensureRemaining(length * 6 + 2);
+      buffer_.put((byte) '"');
+      char c = 0;
+      for (int i = 0; i < length; ++i) {
+         char b = c;
+         c = s.charAt(i);
+         switch (c) {
+            case '\\':
+            case '"':
+               buffer_.put((byte) '\\');
+               buffer_.put((byte) c);
+               break;
+            case '/':
+               if (b == '<') {
+                  buffer_.put((byte) '\\');
+               }
+               buffer_.put((byte) c);
+               break;
+            case '\b':
+               putEscape('b');
+               break;
+            case '\t':
+               putEscape('t');
+               break;
+            case '\n':
+               putEscape('n');
+               break;
+            case '\f':
+               putEscape('f');
+               break;
+            case '\r':
+               putEscape('r');
+               break;
+            default:
+               if (c < ' ') {
+                  buffer_.put((byte) '\\');
+                  buffer_.put((byte) 'u');
+                  buffer_.put((byte) '0');
+                  buffer_.put((byte) '0');
+                  buffer_.put(HEX_DIGITS[(c >> 4) & 0xf]);
+                  buffer_.put(HEX_DIGITS[c & 0xf]);
+               } else if (c < 0x80) {
+                  buffer_.put((byte) c);
+               } else if (c < 0x800) {
+                  buffer_.put((byte) (0xc0 | (c >> 6)));
+                  buffer_.put((byte) (0x80 | (c & 0x3f)));
+               } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+                  int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                  buffer_.put((byte) (0xf0 | (codePoint >> 18)));
+                  buffer_.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                  buffer_.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                  buffer_.put((byte) (0x80 | (codePoint & 0x3f)));
+               } else if (c >= Character.MIN_SURROGATE &&
+                       c <= Character.MAX_SURROGATE) {
+                  // Unpaired surrogate; String.getBytes() writes '?' too.
+                  buffer_.put((byte) '?');
+               } else {
+                  buffer_.put((byte) (0xe0 | (c >> 12)));
+                  buffer_.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                  buffer_.put((byte) (0x80 | (c & 0x3f)));
+               }
+         }
+      }
+      buffer_.put((byte) '"');
+   }
+
+   private void putEscape(char c) {
+      buffer_.put((byte) '\\');
+      buffer_.put((byte) c);
+   }
+
+   private void ensureRemaining(int n) {
+      if (buffer_.remaining() >= n) {
+         return;
+      }
+      int capacity = Math.max(2 * buffer_.capacity(), buffer_.position() + n);
+      ByteBuffer larger = allocate(capacity);
+      buffer_.flip();
+      larger.put(buffer_);
+      buffer_ = larger;
+   }
+
+   private ByteBuffer allocate(int capacity) {
+      return direct_ ? ByteBuffer.allocateDirect(capacity) :
+              ByteBuffer.allocate(capacity);
+   }
+}
@@ -63,32 +63,9 @@ public class JavaUtils {
     */
    public static List<Class<?>> findAndLoadClasses(File directory, int recursionLevel) {
       List<Class<?>> classes = new ArrayList<Class<?>>();
-      if (!directory.exists()) {
-         return classes;
-      }
-
-      final URL directoryURL;
-      try {
-         directoryURL = directory.toURI().toURL();
-      }
-      catch (MalformedURLException e) {
-         ReportingUtils.logError(e, "Failed to search for classes");
-         return classes;
-      }
-
-      try {
-         addURL(directoryURL);
-      }
-      catch (IOException ignore) {
-         // Logged by addURL()
-      }
-
-      File[] files = directory.listFiles();
-      for (File file : files) {
+      for (File file : addToClassPath(directory, recursionLevel)) {
          final String fileName = file.getName();
-         if (file.isDirectory() && recursionLevel > 0) {
-            classes.addAll(findAndLoadClasses(file, recursionLevel - 1));
-         } else if (fileName.endsWith(".class")) {
+         if (fileName.endsWith(".class")) {
             final String className = stripFilenameExtension(fileName);
             try {
                classes.add(Class.forName(className));
@@ -97,9 +74,8 @@ public class JavaUtils {
                ReportingUtils.logError(e, "Failed to load class: " +
                      className + " (expected in " + fileName + ")");
             }
-         } else if (file.getName().endsWith(".jar")) {
+         } else {
             try {
-               addURL(new URL("jar:file:" + file.getAbsolutePath() + "!/"));
                JarInputStream jarFile = new JarInputStream(new FileInputStream(file));
                for (JarEntry jarEntry = jarFile.getNextJarEntry();
                        jarEntry != null;
@@ -129,6 +105,56 @@ public class JavaUtils {
       return classes;
    }
 
+   /**
+    * Add a directory and the JARs directly in it to the search path of the
+    * system class loader, and subdirectories up to recursionLevel, like
+    * findAndLoadClasses() but without loading any classes.
+    *
+    * @param directory
+    * @param recursionLevel Nesting level for searching subdirectories
+    * @return The JARs and .class files found
+    */
+   public static List<File> addToClassPath(File directory, int recursionLevel) {
+      List<File> found = new ArrayList<File>();
+      if (!directory.exists()) {
+         return found;
+      }
+
+      final URL directoryURL;
+      try {
+         directoryURL = directory.toURI().toURL();
+      }
+      catch (MalformedURLException e) {
+         ReportingUtils.logError(e, "Failed to search for classes");
+         return found;
+      }
+
+      try {
+         addURL(directoryURL);
+      }
+      catch (IOException ignore) {
+         // Logged by addURL()
+      }
+
+      File[] files = directory.listFiles();
+      for (File file : files) {
+         final String fileName = file.getName();
+         if (file.isDirectory() && recursionLevel > 0) {
+            found.addAll(addToClassPath(file, recursionLevel - 1));
+         } else if (fileName.endsWith(".class")) {
+            found.add(file);
+         } else if (fileName.endsWith(".jar")) {
+            try {
+               addURL(new URL("jar:file:" + file.getAbsolutePath() + "!/"));
+               found.add(file);
+            } catch (IOException e) {
+               // Logged by addURL()
+            }
+         }
+      }
+      return found;
+   }
+
    private static String stripFilenameExtension(String filename) {
       int i = filename.lastIndexOf('.');
       if (i > 0) {
@@ -0,0 +1,468 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LazyJSONObject.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * A JSONObject backed by its UTF-8 encoded text, as read from a file or a
+ * direct buffer. On first access the top level of the text is indexed
+ * (key -> byte range of the value); individual values are only parsed when
+ * they are asked for, and nested objects are themselves lazy.
+ *
+ * Operations that need every entry (keys(), length(), put(), remove()...)
+ * parse the remaining values first, after which the object behaves like a
+ * plain JSONObject. As long as no entry has been changed (and no nested
+ * object or array has been handed out, since the caller might change it),
+ * toString() and JSONByteWriter reuse the original bytes instead of
+ * serializing again.
+ *
+ * The text is expected to be strict JSON, as written by JSONObject; anything
+ * the index cannot handle is handed to the regular org.json parser.
+ */
+public class LazyJSONObject extends JSONObject {
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final byte[] bytes_;
+   private final int start_;
+   private final int end_;
+   // Bounds of the object's text, {...} inclusive, once indexed.
+   private int objectStart_;
+   private int objectEnd_;
+   private HashMap<String, Integer> index_;
+   private int[] valueStarts_;
+   private int[] valueEnds_;
+   private int numEntries_;
+   private boolean indexFailed_ = false;
+   private boolean materialized_ = false;
+   private boolean rawValid_ = true;
+
+   public LazyJSONObject(byte[] bytes) {
+      this(bytes, 0, bytes.length);
+   }
+
+   /**
+    * The array is not copied and must not be changed afterwards.
+    */
+   public LazyJSONObject(byte[] bytes, int offset, int length) {
+      bytes_ = bytes;
+      start_ = offset;
+      end_ = offset + length;
+   }
+
+   /**
+    * Copies the remaining bytes of buffer (without changing its position).
+    */
+   public static LazyJSONObject fromBuffer(ByteBuffer buffer) {
+      ByteBuffer source = buffer.duplicate();
+      byte[] bytes = new byte[source.remaining()];
+      source.get(bytes);
+      return new LazyJSONObject(bytes);
+   }
+
+   @Override
+   public synchronized Object opt(String key) {
+      if (key == null) {
+         return null;
+      }
+      Object value = super.opt(key);
+      if (value != null || materialized_) {
+         if (value instanceof JSONObject || value instanceof JSONArray) {
+            rawValid_ = false;
+         }
+         return value;
+      }
+      if (!ensureIndex()) {
+         materialize();
+         return opt(key);
+      }
+      Integer entry = index_.get(key);
+      if (entry == null) {
+         return null;
+      }
+      try {
+         value = parseValue(valueStarts_[entry], valueEnds_[entry]);
+         super.put(key, value);
+      } catch (JSONException ex) {
+         indexFailed_ = true;
+         materialize();
+         return opt(key);
+      }
+      if (value instanceof JSONObject || value instanceof JSONArray) {
+         rawValid_ = false;
+      }
+      return value;
+   }
+
+   @Override
+   public synchronized boolean has(String key) {
+      if (materialized_ || super.has(key)) {
+         return super.has(key);
+      }
+      if (!ensureIndex()) {
+         materialize();
+         return super.has(key);
+      }
+      return index_.containsKey(key);
+   }
+
+   @Override
+   public synchronized Iterator<String> keys() {
+      materialize();
+      return super.keys();
+   }
+
+   @Override
+   public synchronized int length() {
+      if (!materialized_ && ensureIndex()) {
+         return numEntries_;
+      }
+      materialize();
+      return super.length();
+   }
+
+   @Override
+   public synchronized JSONObject put(String key, Object value)
+           throws JSONException {
+      materialize();
+      rawValid_ = false;
+      return super.put(key, value);
+   }
+
+   @Override
+   public synchronized Object remove(String key) {
+      materialize();
+      rawValid_ = false;
+      return super.remove(key);
+   }
+
+   @Override
+   public synchronized String toString() {
+      if (rawValid_ && ensureIndex()) {
+         return new String(bytes_, objectStart_, objectEnd_ - objectStart_,
+                 UTF8);
+      }
+      materialize();
+      return super.toString();
+   }
+
+   @Override
+   public synchronized Writer write(Writer writer) throws JSONException {
+      if (rawValid_ && ensureIndex()) {
+         try {
+            writer.write(toString());
+            return writer;
+         } catch (IOException e) {
+            throw new JSONException(e);
+         }
+      }
+      materialize();
+      return super.write(writer);
+   }
+
+   /**
+    * Appends the original bytes to writer, if they still represent this
+    * object. Returns false if the object has to be serialized instead.
+    */
+   synchronized boolean writeRawTo(JSONByteWriter writer) {
+      if (!rawValid_ || !ensureIndex()) {
+         return false;
+      }
+      writer.writeRaw(bytes_, objectStart_, objectEnd_ - objectStart_);
+      return true;
+   }
+
+   /**
+    * Parses every entry that has not been parsed yet. Entries already handed
+    * out are kept as they are, so changes made to them are not lost.
+    */
+   private void materialize() {
+      if (materialized_) {
+         return;
+      }
+      materialized_ = true;
+      try {
+         if (ensureIndex()) {
+            for (String key : index_.keySet()) {
+               if (!super.has(key)) {
+                  int entry = index_.get(key);
+                  super.put(key, parseValue(valueStarts_[entry],
+                          valueEnds_[entry]));
+               }
+            }
+            return;
+         }
+      } catch (JSONException ex) {
+         indexFailed_ = true;
+      }
+      // Fall back to the regular parser.
+      rawValid_ = false;
+      try {
+         JSONObject parsed = new JSONObject(
+                 new String(bytes_, start_, end_ - start_, UTF8));
+         Iterator<String> keys = parsed.keys();
+         while (keys.hasNext()) {
+            String key = keys.next();
+            if (!super.has(key)) {
+               super.put(key, parsed.opt(key));
+            }
+         }
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex, "Unable to parse JSON metadata");
+      }
+   }
+
+   private boolean ensureIndex() {
+      if (index_ != null) {
+         return true;
+      }
+      if (indexFailed_) {
+         return false;
+      }
+      HashMap<String, Integer> index = new HashMap<String, Integer>();
+      int[] starts = new int[32];
+      int[] ends = new int[32];
+      int n = 0;
+      int p = skipWhitespace(start_);
+      if (p >= end_ || bytes_[p] != '{') {
+         indexFailed_ = true;
+         return false;
+      }
+      objectStart_ = p;
+      p = skipWhitespace(p + 1);
+      if (p < end_ && bytes_[p] == '}') {
+         objectEnd_ = p + 1;
+      } else {
+         while (true) {
+            if (p >= end_ || bytes_[p] != '"') {
+               indexFailed_ = true;
+               return false;
+            }
+            int keyEnd = skipString(p);
+            if (keyEnd < 0) {
+               indexFailed_ = true;
+               return false;
+            }
+            String key = decodeString(p + 1, keyEnd - 1);
+            p = skipWhitespace(keyEnd);
+            if (p >= end_ || bytes_[p] != ':') {
+               indexFailed_ = true;
+               return false;
+            }
+            int valueStart = skipWhitespace(p + 1);
+            int valueEnd = skipValue(valueStart);
+            if (valueEnd < 0 || key == null) {
+               indexFailed_ = true;
+               return false;
+            }
+            if (n == starts.length) {
+               int[] newStarts = new int[2 * n];
+               int[] newEnds = new int[2 * n];
+               System.arraycopy(starts, 0, newStarts, 0, n);
+               System.arraycopy(ends, 0, newEnds, 0, n);
+               starts = newStarts;
+               ends = newEnds;
+            }
+            starts[n] = valueStart;
+            ends[n] = valueEnd;
+            // Like the regular parser, the last duplicate key wins.
+            index.put(key, n);
+            ++n;
+            p = skipWhitespace(valueEnd);
+            if (p < end_ && bytes_[p] == ',') {
+               p = skipWhitespace(p + 1);
+            } else if (p < end_ && bytes_[p] == '}') {
+               objectEnd_ = p + 1;
+               break;
+            } else {
+               indexFailed_ = true;
+               return false;
+            }
+         }
+      }
+      valueStarts_ = starts;
+      valueEnds_ = ends;
+      numEntries_ = index.size();
+      index_ = index;
+      return true;
+   }
+
+   private Object parseValue(int start, int end) throws JSONException {
+      byte first = bytes_[start];
+      if (first == '"') {
+         String s = decodeString(start + 1, end - 1);
+         if (s == null) {
+            throw new JSONException("Malformed string in JSON metadata");
+         }
+         return s;
+      }
+      if (first == '{') {
+         return new LazyJSONObject(bytes_, start, end - start);
+      }
+      // Numbers, literals and arrays: let the regular parser pick the type.
+      return new JSONTokener(new String(bytes_, start, end - start, UTF8))
+              .nextValue();
+   }
+
+   private int skipWhitespace(int p) {
+      while (p < end_ && (bytes_[p] == ' ' || bytes_[p] == '\n' ||
+              bytes_[p] == '\r' || bytes_[p] == '\t')) {
+         ++p;
+      }
+      return p;
+   }
+
+   /**
+    * p points at an opening quote; returns the index after the closing
+    * quote, or -1.
+    */
+   private int skipString(int p) {
+      for (++p; p < end_; ++p) {
+         byte b = bytes_[p];
+         if (b == '\\') {
+            ++p;
+         } else if (b == '"') {
+            return p + 1;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Returns the index after the value starting at p, or -1.
+    */
+   private int skipValue(int p) {
+      if (p >= end_) {
+         return -1;
+      }
+      byte b = bytes_[p];
+      if (b == '"') {
+         return skipString(p);
+      }
+      if (b == '{' || b == '[') {
+         int depth = 0;
+         while (p < end_) {
+            b = bytes_[p];
+            if (b == '"') {
+               p = skipString(p);
+               if (p < 0) {
+                  return -1;
+               }
+               continue;
+            }
+            if (b == '{' || b == '[') {
+               ++depth;
+            } else if (b == '}' || b == ']') {
+               if (--depth == 0) {
+                  return p + 1;
+               }
+            }
+            ++p;
+         }
+         return -1;
+      }
+      int start = p;
+      while (p < end_ && b != ',' && b != '}' && b != ']' && b != ' ' &&
+              b != '\n' && b != '\r' && b != '\t') {
+         b = (++p < end_) ? bytes_[p] : 0;
+      }
+      return p > start ? p : -1;
+   }
+
+   /**
+    * Decodes the string between start (inclusive) and end (exclusive),
+    * which excludes the quotes. Returns null on a malformed escape.
+    */
+   private String decodeString(int start, int end) {
+      int firstEscape = -1;
+      for (int i = start; i < end; ++i) {
+         if (bytes_[i] == '\\') {
+            firstEscape = i;
+            break;
+         }
+      }
+      if (firstEscape < 0) {
+         return new String(bytes_, start, end - start, UTF8);
+      }
+      StringBuilder sb = new StringBuilder(end - start);
+      int runStart = start;
+      int i = firstEscape;
+      while (i < end) {
+         if (bytes_[i] != '\\') {
+            ++i;
+            continue;
+         }
+         if (i > runStart) {
+            sb.append(new String(bytes_, runStart, i - runStart, UTF8));
+         }
+         if (i + 1 >= end) {
+            return null;
+         }
+         byte c = bytes_[i + 1];
+         i += 2;
+         switch (c) {
+            case 'b':
+               sb.append('\b');
+               break;
+            case 't':
+               sb.append('\t');
+               break;
+            case 'n':
+               sb.append('\n');
+               break;
+            case 'f':
+               sb.append('\f');
+               break;
+            case 'r':
+               sb.append('\r');
+               break;
+            case 'u':
+               if (i + 4 > end) {
+                  return null;
+               }
+               try {
+                  sb.append((char) Integer.parseInt(
+                          new String(bytes_, i, 4, UTF8), 16));
+               } catch (NumberFormatException e) {
+                  return null;
+               }
+               i += 4;
+               break;
+            default:
+               sb.append((char) c);
+         }
+         runStart = i;
+      }
+      if (end > runStart) {
+         sb.append(new String(bytes_, runStart, end - runStart, UTF8));
+      }
+      return sb.toString();
+   }
+}
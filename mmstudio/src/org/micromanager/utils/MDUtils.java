@@ -28,6 +28,9 @@ import org.micromanager.api.MMTags;
  * By using this module, type safety is enforced, redundant tags can be 
  * identified (e.g. "Frame" vs. "FrameIndex"), and it becomes much easier to
  * track which bits of code are relying on which tags. 
+ *
+ * The per-image accessors read the typed fields of ImageMetadata directly
+ * when they are given one, and only fall back to the JSON lookup otherwise.
  */
 public class MDUtils {
    private final static SimpleDateFormat imageDateFormat_ =
@@ -42,6 +45,9 @@ public class MDUtils {
 
    public static JSONObject copy(JSONObject map) {
       try {
+         if (map instanceof ImageMetadata) {
+            return ((ImageMetadata) map).copy();
+         }
          return new JSONObject(map.toString());
       } catch (JSONException e) {
          return null;
@@ -49,6 +55,10 @@ public class MDUtils {
    }
    
    public static int getPositionIndex(JSONObject map) throws JSONException {
+      if (map instanceof ImageMetadata &&
+            ((ImageMetadata) map).hasPositionIndex()) {
+         return ((ImageMetadata) map).getPositionIndex();
+      }
       return map.getInt("PositionIndex");
    }
 
@@ -67,6 +77,9 @@ public class MDUtils {
    }
 
    public static int getWidth(JSONObject map) throws JSONException {
+      if (map instanceof ImageMetadata && ((ImageMetadata) map).hasWidth()) {
+         return ((ImageMetadata) map).getWidth();
+      }
       return map.getInt("Width");
    }
 
@@ -75,6 +88,9 @@ public class MDUtils {
    }
 
    public static int getHeight(JSONObject map) throws JSONException {
+      if (map instanceof ImageMetadata && ((ImageMetadata) map).hasHeight()) {
+         return ((ImageMetadata) map).getHeight();
+      }
       return map.getInt("Height");
    }
 
@@ -95,6 +111,10 @@ public class MDUtils {
    }
 
    public static int getSliceIndex(JSONObject map) throws JSONException {
+      if (map instanceof ImageMetadata &&
+            ((ImageMetadata) map).isSliceIndexKnown()) {
+         return ((ImageMetadata) map).getSliceIndex();
+      }
       if (map.has("SliceIndex")) {
          return map.getInt("SliceIndex");
       } else {
@@ -109,6 +129,10 @@ public class MDUtils {
    
 
    public static int getChannelIndex(JSONObject map) throws JSONException {
+      if (map instanceof ImageMetadata &&
+            ((ImageMetadata) map).hasChannelIndex()) {
+         return ((ImageMetadata) map).getChannelIndex();
+      }
       return map.getInt("ChannelIndex");
    }
 
@@ -117,6 +141,10 @@ public class MDUtils {
    }
 
    public static int getFrameIndex(JSONObject map) throws JSONException {
+      if (map instanceof ImageMetadata &&
+            ((ImageMetadata) map).isFrameIndexKnown()) {
+         return ((ImageMetadata) map).getFrameIndex();
+      }
       if (map.has("Frame")) {
          return map.getInt("Frame");
       } else {
@@ -212,6 +240,12 @@ public class MDUtils {
    }
 
    public static String getPixelType(JSONObject map)  throws JSONException, MMScriptException {
+      if (map instanceof ImageMetadata) {
+         String pixelType = ((ImageMetadata) map).getPixelType();
+         if (pixelType != null) {
+            return pixelType;
+         }
+      }
       try {
          if (map != null)
             return map.getString("PixelType");
@@ -404,6 +438,12 @@ public class MDUtils {
    }
 
    public static String getLabel(JSONObject md) {
+      if (md instanceof ImageMetadata) {
+         String label = ((ImageMetadata) md).getLabel();
+         if (label != null) {
+            return label;
+         }
+      }
       try {
          return generateLabel(getChannelIndex(md),
                               getSliceIndex(md),
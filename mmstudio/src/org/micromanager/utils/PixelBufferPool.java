@@ -0,0 +1,342 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelBufferPool.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import mmcorej.TaggedImage;
+
+/**
+ * A pool of reference-counted pixel arrays (byte[], short[] and int[]) that
+ * can be recycled once every consumer of an image is done with it.
+ *
+ * The protocol is:
+ * <ul>
+ * <li>A producer that needs a new pixel array calls takeBytes(), takeShorts(),
+ *     takeInts() or takeLike(). The array comes back with one reference,
+ *     owned by the producer, which hands it on with the TaggedImage.
+ * <li>Anybody who keeps the pixels after handing the image on (a storage
+ *     that writes asynchronously, a cache, a listener queue) calls retain(),
+ *     and release() once done.
+ * <li>Whoever drops the image last calls release() for the reference it was
+ *     handed. A DataProcessor that replaces the pixels of an image releases
+ *     the old array; the image sink releases after storing the image.
+ * </ul>
+ * When the count reaches zero the array goes back to the pool and is handed
+ * out again by a later take call. Arrays that did not come from the pool
+ * (e.g. fresh arrays from the core) are ignored by retain() and release(),
+ * so mixing pooled and unpooled images in the pipeline is always safe.
+ *
+ * Setting the system property "org.micromanager.pixelbufferpool.debug" to
+ * true (or calling setLeakDetectionEnabled) records where every outstanding
+ * array was taken, so that logLeaks() can report arrays that were never
+ * released, and logs releases of arrays that are already back in the pool.
+ */
+public final class PixelBufferPool {
+
+   private static final PixelBufferPool instance_ = new PixelBufferPool();
+
+   private static final int TYPE_BYTE = 1;
+   private static final int TYPE_SHORT = 2;
+   private static final int TYPE_INT = 4;
+
+   private static class Lease {
+      int refCount_ = 1;
+      final long takenAt_ = System.currentTimeMillis();
+      Throwable origin_;
+   }
+
+   // Free arrays, keyed by (bytes per element << 32 | length).
+   private final HashMap<Long, ArrayDeque<Object>> free_ =
+           new HashMap<Long, ArrayDeque<Object>>();
+   // Arrays currently handed out by the pool, keyed by identity.
+   private final IdentityHashMap<Object, Lease> leases_ =
+           new IdentityHashMap<Object, Lease>();
+   private long freeBytes_ = 0;
+   private long maxFreeBytes_ = Runtime.getRuntime().maxMemory() / 16;
+   private boolean leakDetection_ =
+           Boolean.getBoolean("org.micromanager.pixelbufferpool.debug");
+   private long numTaken_ = 0;
+   private long numRecycled_ = 0;
+
+   public static PixelBufferPool getInstance() {
+      return instance_;
+   }
+
+   private PixelBufferPool() {
+   }
+
+   public byte[] takeBytes(int length) {
+      return (byte[]) take(TYPE_BYTE, length);
+   }
+
+   public short[] takeShorts(int length) {
+      return (short[]) take(TYPE_SHORT, length);
+   }
+
+   public int[] takeInts(int length) {
+      return (int[]) take(TYPE_INT, length);
+   }
+
+   /**
+    * Returns a pooled array of the same type and length as pixels, or null
+    * if pixels is not a byte[], short[] or int[]. The contents of the
+    * returned array are undefined.
+    */
+   public Object takeLike(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return take(TYPE_BYTE, ((byte[]) pixels).length);
+      } else if (pixels instanceof short[]) {
+         return take(TYPE_SHORT, ((short[]) pixels).length);
+      } else if (pixels instanceof int[]) {
+         return take(TYPE_INT, ((int[]) pixels).length);
+      }
+      return null;
+   }
+
+   private synchronized Object take(int type, int length) {
+      ++numTaken_;
+      Object array = null;
+      ArrayDeque<Object> arrays = free_.get(key(type, length));
+      if (arrays != null) {
+         array = arrays.pollFirst();
+      }
+      if (array != null) {
+         freeBytes_ -= (long) type * length;
+         ++numRecycled_;
+      } else {
+         array = allocate(type, length);
+      }
+      Lease lease = new Lease();
+      if (leakDetection_) {
+         lease.origin_ = new Throwable("Pixel buffer taken here");
+      }
+      leases_.put(array, lease);
+      return array;
+   }
+
+   /**
+    * Adds a reference to a pooled array. Does nothing for arrays that do not
+    * belong to the pool.
+    */
+   public synchronized void retain(Object pixels) {
+      Lease lease = leases_.get(pixels);
+      if (lease != null) {
+         ++lease.refCount_;
+      }
+   }
+
+   /**
+    * Drops a reference to a pooled array, returning it to the pool when no
+    * references remain. Does nothing for arrays that do not belong to the
+    * pool.
+    */
+   public synchronized void release(Object pixels) {
+      if (pixels == null) {
+         return;
+      }
+      Lease lease = leases_.get(pixels);
+      if (lease == null) {
+         if (leakDetection_ && isFree(pixels)) {
+            ReportingUtils.logError(new Throwable(),
+                    "Pixel buffer released after it was returned to the pool");
+         }
+         return;
+      }
+      if (--lease.refCount_ > 0) {
+         return;
+      }
+      leases_.remove(pixels);
+      int type = typeOf(pixels);
+      int length = lengthOf(pixels);
+      long bytes = (long) type * length;
+      if (freeBytes_ + bytes > maxFreeBytes_) {
+         return; // Let the garbage collector have it.
+      }
+      Long key = key(type, length);
+      ArrayDeque<Object> arrays = free_.get(key);
+      if (arrays == null) {
+         arrays = new ArrayDeque<Object>();
+         free_.put(key, arrays);
+      }
+      arrays.addFirst(pixels);
+      freeBytes_ += bytes;
+   }
+
+   public void retain(TaggedImage image) {
+      if (image != null) {
+         retain(image.pix);
+      }
+   }
+
+   public void release(TaggedImage image) {
+      if (image != null) {
+         release(image.pix);
+      }
+   }
+
+   /**
+    * Returns image itself if its pixels do not belong to the pool, otherwise
+    * an image with the same tags and a plain copy of the pixels. Use this to
+    * hand an image to code that does not retain and release, such as
+    * displays reading from a storage. The caller must hold a reference to
+    * the pixels while this runs.
+    */
+   public TaggedImage copyIfPooled(TaggedImage image) {
+      if (image == null) {
+         return null;
+      }
+      synchronized (this) {
+         if (!leases_.containsKey(image.pix)) {
+            return image;
+         }
+      }
+      Object pixels;
+      if (image.pix instanceof byte[]) {
+         pixels = ((byte[]) image.pix).clone();
+      } else if (image.pix instanceof short[]) {
+         pixels = ((short[]) image.pix).clone();
+      } else {
+         pixels = ((int[]) image.pix).clone();
+      }
+      return new TaggedImage(pixels, image.tags);
+   }
+
+   /**
+    * Sets an upper bound on the memory held by arrays waiting in the pool.
+    * Arrays released beyond this limit are left to the garbage collector.
+    */
+   public synchronized void setMaxFreeBytes(long maxFreeBytes) {
+      maxFreeBytes_ = maxFreeBytes;
+      if (freeBytes_ > maxFreeBytes_) {
+         clear();
+      }
+   }
+
+   /**
+    * Drops every array waiting in the pool. Outstanding arrays are not
+    * affected.
+    */
+   public synchronized void clear() {
+      free_.clear();
+      freeBytes_ = 0;
+   }
+
+   public synchronized void setLeakDetectionEnabled(boolean enabled) {
+      leakDetection_ = enabled;
+   }
+
+   public synchronized boolean isLeakDetectionEnabled() {
+      return leakDetection_;
+   }
+
+   public synchronized int getNumOutstanding() {
+      return leases_.size();
+   }
+
+   /**
+    * Returns a one-line summary of the pool's state, for the log.
+    */
+   public synchronized String getStatistics() {
+      return "Pixel buffer pool: " + numTaken_ + " taken, " + numRecycled_ +
+              " recycled, " + leases_.size() + " outstanding, " +
+              (freeBytes_ / 1024) + " kB free";
+   }
+
+   /**
+    * Logs every array that has been outstanding for at least minAgeMs. With
+    * leak detection enabled the stack trace of the code that took the array
+    * is logged as well.
+    */
+   public synchronized void logLeaks(long minAgeMs) {
+      long now = System.currentTimeMillis();
+      int numLeaks = 0;
+      for (Map.Entry<Object, Lease> entry : leases_.entrySet()) {
+         Lease lease = entry.getValue();
+         if (now - lease.takenAt_ < minAgeMs) {
+            continue;
+         }
+         ++numLeaks;
+         if (lease.origin_ != null) {
+            ReportingUtils.logError(lease.origin_, "Pixel buffer of " +
+                    lengthOf(entry.getKey()) + " elements held for " +
+                    (now - lease.takenAt_) + " ms with " + lease.refCount_ +
+                    " reference(s)");
+         }
+      }
+      if (numLeaks > 0) {
+         ReportingUtils.logMessage(numLeaks + " pixel buffer(s) not released after " +
+                 minAgeMs + " ms. " + getStatistics());
+      }
+   }
+
+   private boolean isFree(Object pixels) {
+      ArrayDeque<Object> arrays = free_.get(key(typeOf(pixels), lengthOf(pixels)));
+      if (arrays == null) {
+         return false;
+      }
+      for (Object array : arrays) {
+         if (array == pixels) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static Long key(int type, int length) {
+      return Long.valueOf(((long) type << 32) | length);
+   }
+
+   private static Object allocate(int type, int length) {
+      switch (type) {
+         case TYPE_BYTE:
+            return new byte[length];
+         case TYPE_SHORT:
+            return new short[length];
+         default:
+            return new int[length];
+      }
+   }
+
+   private static int typeOf(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return TYPE_BYTE;
+      } else if (pixels instanceof short[]) {
+         return TYPE_SHORT;
+      } else if (pixels instanceof int[]) {
+         return TYPE_INT;
+      }
+      return 0;
+   }
+
+   private static int lengthOf(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels).length;
+      } else if (pixels instanceof short[]) {
+         return ((short[]) pixels).length;
+      } else if (pixels instanceof int[]) {
+         return ((int[]) pixels).length;
+      }
+      return 0;
+   }
+}
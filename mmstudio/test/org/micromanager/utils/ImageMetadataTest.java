@@ -0,0 +1,60 @@
+package org.micromanager.utils;
+
+import java.util.HashMap;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImageMetadataTest {
+   @Test
+   public void typedFieldsMatchJSON() throws Exception {
+      ImageMetadata tags = new ImageMetadata();
+      MDUtils.setChannelIndex(tags, 1);
+      MDUtils.setSliceIndex(tags, 2);
+      MDUtils.setFrameIndex(tags, 3);
+      MDUtils.setPositionIndex(tags, 4);
+      MDUtils.setWidth(tags, 512);
+      MDUtils.setPixelTypeFromByteDepth(tags, 2);
+      JSONObject plain = new JSONObject(tags.toString());
+      assertEquals(MDUtils.getLabel(plain), MDUtils.getLabel(tags));
+      assertEquals(MDUtils.getWidth(plain), MDUtils.getWidth(tags));
+      assertEquals(MDUtils.getPixelType(plain), MDUtils.getPixelType(tags));
+      assertEquals(plain.length(), tags.length());
+   }
+
+   @Test
+   public void untypedValuesFallBackToJSON() throws Exception {
+      ImageMetadata tags = new ImageMetadata();
+      tags.put("Width", "640");
+      tags.put("Frame", 7L);
+      assertFalse(tags.hasWidth());
+      assertEquals(640, MDUtils.getWidth(tags));
+      assertEquals(7, MDUtils.getFrameIndex(tags));
+      tags.remove("Frame");
+      assertFalse(tags.isFrameIndexKnown());
+   }
+
+   @Test
+   public void copyIsDeep() throws Exception {
+      ImageMetadata tags = new ImageMetadata();
+      tags.setChannelIndex(5);
+      tags.put("Summary", new JSONObject().put("Frames", 1));
+      ImageMetadata copy = tags.copy();
+      copy.getJSONObject("Summary").put("Frames", 2);
+      copy.setChannelIndex(6);
+      assertEquals(1, tags.getJSONObject("Summary").getInt("Frames"));
+      assertEquals(5, MDUtils.getChannelIndex(tags));
+      assertEquals(6, MDUtils.getChannelIndex(copy));
+   }
+
+   @Test
+   public void mapValuesAreNotChecked() throws Exception {
+      HashMap<String, Object> map = new HashMap<String, Object>();
+      map.put("ChannelIndex", 2);
+      map.put("Camera-Temperature", Double.NaN);
+      ImageMetadata tags = new ImageMetadata(map);
+      assertTrue(Double.isNaN(tags.getDouble("Camera-Temperature")));
+      assertEquals(2, MDUtils.getChannelIndex(tags));
+   }
+}
@@ -0,0 +1,55 @@
+package org.micromanager.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LazyJSONObjectTest {
+   private static JSONObject makeTags() throws Exception {
+      JSONObject tags = new JSONObject();
+      tags.put("Width", 512);
+      tags.put("Exposure-ms", 10.5);
+      tags.put("Label", "a\"b\\c</d\n\u00e9\u4e2d \u0001");
+      tags.put("Flag", true);
+      tags.put("Nothing", JSONObject.NULL);
+      tags.put("Summary", new JSONObject().put("Axes",
+            new JSONArray().put(1).put("two")));
+      return tags;
+   }
+
+   @Test
+   public void writerMatchesToString() throws Exception {
+      JSONObject tags = makeTags();
+      byte[] bytes = new JSONByteWriter(16, false).toByteArray(tags);
+      assertEquals(tags.toString(), new String(bytes, "UTF-8"));
+   }
+
+   @Test
+   public void lazyObjectReadsFields() throws Exception {
+      JSONObject tags = makeTags();
+      LazyJSONObject lazy = new LazyJSONObject(
+            new JSONByteWriter().toByteArray(tags));
+      assertEquals(512, lazy.getInt("Width"));
+      assertEquals(10.5, lazy.getDouble("Exposure-ms"), 0.0);
+      assertEquals(tags.getString("Label"), lazy.getString("Label"));
+      assertTrue(lazy.isNull("Nothing"));
+      assertFalse(lazy.has("Missing"));
+      assertEquals(tags.length(), lazy.length());
+      assertEquals("two",
+            lazy.getJSONObject("Summary").getJSONArray("Axes").getString(1));
+   }
+
+   @Test
+   public void changesAreSerialized() throws Exception {
+      LazyJSONObject lazy = new LazyJSONObject(
+            new JSONByteWriter().toByteArray(makeTags()));
+      lazy.getJSONObject("Summary").put("Frames", 3);
+      lazy.remove("Flag");
+      JSONObject reparsed = new JSONObject(lazy.toString());
+      assertEquals(3, reparsed.getJSONObject("Summary").getInt("Frames"));
+      assertFalse(reparsed.has("Flag"));
+      assertEquals(lazy.toString(),
+            new String(new JSONByteWriter().toByteArray(lazy), "UTF-8"));
+   }
+}
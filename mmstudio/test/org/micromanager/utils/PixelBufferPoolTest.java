@@ -0,0 +1,56 @@
+package org.micromanager.utils;
+
+import mmcorej.TaggedImage;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PixelBufferPoolTest {
+   @Test
+   public void releasedArrayIsRecycled() {
+      PixelBufferPool pool = PixelBufferPool.getInstance();
+      short[] first = pool.takeShorts(1234);
+      pool.release(first);
+      assertSame(first, pool.takeShorts(1234));
+      pool.release(first);
+   }
+
+   @Test
+   public void retainedArrayIsNotRecycled() {
+      PixelBufferPool pool = PixelBufferPool.getInstance();
+      byte[] first = pool.takeBytes(4321);
+      pool.retain(first);
+      pool.release(first);
+      byte[] second = pool.takeBytes(4321);
+      assertNotSame(first, second);
+      pool.release(first);
+      pool.release(second);
+   }
+
+   @Test
+   public void foreignArraysAreIgnored() {
+      PixelBufferPool pool = PixelBufferPool.getInstance();
+      int[] foreign = new int[99];
+      int outstanding = pool.getNumOutstanding();
+      pool.retain(foreign);
+      pool.release(foreign);
+      pool.release(foreign);
+      assertEquals(outstanding, pool.getNumOutstanding());
+      int[] taken = pool.takeInts(99);
+      assertNotSame(foreign, taken);
+      pool.release(taken);
+   }
+
+   @Test
+   public void pooledPixelsAreCopied() {
+      PixelBufferPool pool = PixelBufferPool.getInstance();
+      short[] pooled = pool.takeShorts(567);
+      pooled[3] = 42;
+      TaggedImage copy = pool.copyIfPooled(new TaggedImage(pooled, null));
+      assertNotSame(pooled, copy.pix);
+      assertEquals(42, ((short[]) copy.pix)[3]);
+      pool.release(pooled);
+      TaggedImage plain = new TaggedImage(new short[567], null);
+      assertSame(plain, pool.copyIfPooled(plain));
+   }
+}
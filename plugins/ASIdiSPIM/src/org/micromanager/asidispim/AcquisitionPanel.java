@@ -31,6 +31,8 @@ import org.micromanager.asidispim.Data.MyStrings;
 import org.micromanager.asidispim.Data.Positions;
 import org.micromanager.asidispim.Data.Prefs;
 import org.micromanager.asidispim.Data.Properties;
+import org.micromanager.asidispim.Utils.AcquisitionImagePipeline;
+import org.micromanager.asidispim.Utils.DeskewProcessor;
 import org.micromanager.asidispim.Utils.DevicesListenerInterface;
 import org.micromanager.asidispim.Utils.ListeningJPanel;
 import org.micromanager.asidispim.Utils.MyDialogUtils;
@@ -48,6 +50,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -82,12 +86,14 @@ import mmcorej.TaggedImage;
 import org.micromanager.api.MultiStagePosition;
 import org.micromanager.api.PositionList;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.api.DataProcessor;
 import org.micromanager.api.ImageCache;
 import org.micromanager.api.MMTags;
 import org.micromanager.MMStudio;
 import org.micromanager.acquisition.ComponentTitledBorder;
 import org.micromanager.acquisition.DefaultTaggedImageSink;
 import org.micromanager.acquisition.MMAcquisition;
+import org.micromanager.acquisition.ProcessorStack;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
 import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
@@ -169,6 +175,7 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
    private final JFormattedTextField rootField_;
    private final JFormattedTextField prefixField_;
    private final JLabel acquisitionStatusLabel_;
+   private static final long STATUS_UPDATE_INTERVAL_MS = 500;  // how often to show circular buffer margin during acquisition
    private int numTimePointsDone_;
    private final AtomicBoolean cancelAcquisition_ = new AtomicBoolean(false);  // true if we should stop acquisition
    private final AtomicBoolean acquisitionRequested_ = new AtomicBoolean(false);  // true if acquisition has been requested to start or is underway
@@ -182,6 +189,8 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
    private final JCheckBox minSlicePeriodCB_;
    private final JCheckBox separateTimePointsCB_;
    private final JCheckBox saveCB_;
+   private final JCheckBox deskewCB_;
+   private final JCheckBox deskewVolumesCB_;
    private final JComboBox spimMode_;
    private final JCheckBox navigationJoysticksCB_;
    private final JCheckBox usePositionsCB_;
@@ -645,6 +654,23 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
          }
       });
       
+      // only used in stage scanning modes
+      deskewCB_ = pu.makeCheckBox("Deskewed projections (stage scan)",
+            Properties.Keys.PREFS_DESKEW_PROJECTIONS, panelName_, false);
+      savePanel_.add(deskewCB_, "span 3, left, wrap");
+      
+      deskewVolumesCB_ = pu.makeCheckBox("Also store deskewed volumes",
+            Properties.Keys.PREFS_DESKEW_STORE_VOLUMES, panelName_, false);
+      savePanel_.add(deskewVolumesCB_, "skip 1, span 2, center, wrap");
+      deskewVolumesCB_.setEnabled(deskewCB_.isSelected());
+      
+      deskewCB_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            deskewVolumesCB_.setEnabled(deskewCB_.isSelected());
+         }
+      });
+      
       // end save panel
       
       // start duration report panel
@@ -1445,6 +1471,19 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
       acquisitionStatusLabel_.setText(text);
    }
    
+   /**
+    * Shows how much of the circular buffer is free during acquisition,
+    *   i.e. how far the acquisition is from losing images
+    * @param pipeline
+    */
+   private void updateBufferStatus(AcquisitionImagePipeline pipeline) {
+      updateAcquisitionStatus(AcquisitionStatus.ACQUIRING);
+      acquisitionStatusLabel_.setText(acquisitionStatusLabel_.getText()
+            + " Buffer " + Math.round(pipeline.getOverflowMargin() * 100) + "% free"
+            + " (min " + Math.round(pipeline.getMinOverflowMargin() * 100) + "%), "
+            + NumberUtils.intToDisplayString(pipeline.getDrainedImageCount()) + " images queued.");
+   }
+   
    /**
     * runs a test acquisition with the following features:
     *   - not saved to disk
@@ -2081,8 +2120,15 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
             vad = acq.getAcquisitionWindow();
             imageCache.addImageCacheListener(vad);
             
+            // in stage scanning modes optionally deskew the volumes as they are acquired
+            BlockingQueue<TaggedImage> sinkQueue = bq;
+            if (acqSettings.isStageScanning && deskewCB_.isSelected()) {
+               sinkQueue = startDeskewing(acqName, rootDir, save, nrFrames, nrPositions,
+                     acqSettings, twoSided, bq);
+            }
+            
             // Start pumping images into the ImageCache
-            DefaultTaggedImageSink sink = new DefaultTaggedImageSink(bq, imageCache);
+            DefaultTaggedImageSink sink = new DefaultTaggedImageSink(sinkQueue, imageCache);
             sink.start();
             
             // remove usual window listener(s) and replace it with our own
@@ -2221,6 +2267,7 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                   // usually just once, but will be the number of channels if we have
                   //  multiple channels and aren't using PLogic to change between them
                   for (int channelNum = 0; channelNum < nrChannelsSoftware; channelNum++) {
+                     AcquisitionImagePipeline pipeline = null;
                      try {
                         // flag that we are using the cameras/controller
                         ASIdiSPIM.getFrame().setHardwareInUse(true);
@@ -2239,6 +2286,13 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                         if (twoSided) {
                            core_.startSequenceAcquisition(secondCamera, nrSlicesSoftware, 0, true);
                         }
+                        
+                        // drain the circular buffer on its own thread from now on, and
+                        //   store the images of each camera on its own thread
+                        pipeline = new AcquisitionImagePipeline(core_,
+                              twoSided ? new String[] {firstCamera, secondCamera} : new String[] {firstCamera},
+                              twoSided ? 2 : 1);
+                        pipeline.start();
 
                         // deal with channel if needed (hardware channel switching doesn't happen here)
                         if (changeChannelPerVolumeSoftware) {
@@ -2258,15 +2312,8 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
 
                         // Wait for first image to create ImageWindow, so that we can be sure about image size
                         // Do not actually grab first image here, just make sure it is there
-                        long start = System.currentTimeMillis();
-                        long now = start;
                         final long timeout = Math.max(3000, Math.round(10*sliceDuration + 2*acqSettings.delayBeforeSide));
-                        while (core_.getRemainingImageCount() == 0 && (now - start < timeout)
-                              && !cancelAcquisition_.get()) {
-                           now = System.currentTimeMillis();
-                           Thread.sleep(5);
-                        }
-                        if (now - start >= timeout) {
+                        if (!pipeline.awaitFirstImage(timeout, cancelAcquisition_) && !cancelAcquisition_.get()) {
                            String msg = "Camera did not send first image within a reasonable time.\n";
                            if (acqSettings.isStageScanning) {
                               msg += "Make sure jumpers are correct on XY card and also micro-micromirror card.";
@@ -2286,16 +2333,15 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                               && (acqSettings.channelMode == MultichannelModes.Keys.SLICE_HW); 
                         boolean done = false;
                         final long timeout2 = Math.max(1000, Math.round(5*sliceDuration));
-                        start = System.currentTimeMillis();
-                        long last = start;
+                        long last = System.currentTimeMillis();
+                        long lastStatusUpdate = last;
                         try {
-                           while ((core_.getRemainingImageCount() > 0
-                                 || core_.isSequenceRunning(firstCamera)
-                                 || (twoSided && core_.isSequenceRunning(secondCamera)))
-                                 && !done) {
-                              now = System.currentTimeMillis();
-                              if (core_.getRemainingImageCount() > 0) {  // we have an image to grab
-                                 TaggedImage timg = core_.popNextTaggedImage();
+                           while (!pipeline.isFinished() && !done) {
+                              // waits for the drain thread instead of polling the core
+                              AcquisitionImagePipeline.DrainedImage drainedImage = pipeline.take(5);
+                              long now = System.currentTimeMillis();
+                              if (drainedImage != null) {  // we have an image to sort
+                                 final TaggedImage timg = drainedImage.image;
                                  
                                  if (skipNextImage) {
                                     skipNextImage = false;
@@ -2335,17 +2381,27 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                                     actualTimePoint = tpNumber[channelIndex];
                                  }
                                  
-                                 // add image to acquisition
+                                 // add image to acquisition on the store thread for this camera
+                                 final String storeAcqName = acqName;
+                                 final int storePosition = positionNum;
+                                 final long elapsedMs = drainedImage.timeMs - acqStart;
+                                 final BlockingQueue<TaggedImage> storeQueue = bq;
+                                 final int frame, slice;
                                  if (spimMode == AcquisitionModes.Keys.NO_SCAN && !acqSettings.separateTimepoints) {
                                     // create time series for no scan
-                                    addImageToAcquisition(acqName,
-                                          frNumber[channelIndex], channelIndex, actualTimePoint, 
-                                          positionNum, now - acqStart, timg, bq);
+                                    frame = frNumber[channelIndex];
+                                    slice = actualTimePoint;
                                  } else { // standard, create Z-stacks
-                                    addImageToAcquisition(acqName, actualTimePoint, channelIndex,
-                                          frNumber[channelIndex], positionNum,
-                                          now - acqStart, timg, bq);
+                                    frame = actualTimePoint;
+                                    slice = frNumber[channelIndex];
                                  }
+                                 pipeline.store(cameraIndex, new AcquisitionImagePipeline.StoreTask() {
+                                    @Override
+                                    public void store() throws Exception {
+                                       addImageToAcquisition(storeAcqName, frame, channelIndex,
+                                             slice, storePosition, elapsedMs, timg, storeQueue);
+                                    }
+                                 });
 
                                  // update our counters to be ready for next image
                                  frNumber[channelIndex]++;
@@ -2384,7 +2440,6 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
 
                               } else {  // no image ready yet
                                  done = cancelAcquisition_.get();
-                                 Thread.sleep(1);
                                  if (now - last >= timeout2) {
                                     ReportingUtils.logError("Camera did not send all expected images within" +
                                           " a reasonable period for timepoint " + (timePoint+1) + ".  Continuing anyway.");
@@ -2392,6 +2447,12 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                                     done = true;
                                  }
                               }
+                              
+                              // show how close the circular buffer is to overflowing
+                              if (now - lastStatusUpdate >= STATUS_UPDATE_INTERVAL_MS) {
+                                 lastStatusUpdate = now;
+                                 updateBufferStatus(pipeline);
+                              }
                            }
 
                            // update count if we stopped in the middle
@@ -2419,6 +2480,15 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                      } finally {
                         // cleanup at the end of each time we trigger the controller
                         
+                        // wait for images already sorted to be stored
+                        if (pipeline != null) {
+                           try {
+                              pipeline.close();
+                           } catch (Exception ex) {
+                              MyDialogUtils.showError(ex);
+                           }
+                        }
+                        
                         ASIdiSPIM.getFrame().setHardwareInUse(false);
 
                         // put shutter back to original state
@@ -2705,8 +2775,11 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
          }
 
          // update frames if necessary
-         if (acq.getFrames() <= frame) {
-            acq.setProperty(MMTags.Summary.FRAMES, Integer.toString(frame + 1));
+         // (images of the two cameras are added from separate threads)
+         synchronized (acq) {
+            if (acq.getFrames() <= frame) {
+               acq.setProperty(MMTags.Summary.FRAMES, Integer.toString(frame + 1));
+            }
          }
 
       } catch (JSONException e) {
@@ -2717,6 +2790,51 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
    }
    
    
+   /**
+    * Inserts a DeskewProcessor between the queue the acquisition adds images to
+    *   and the queue that feeds the ImageCache.  The processor opens acquisitions
+    *   for the projections and deskewed volumes next to the raw acquisition.
+    * @param acqName raw acquisition
+    * @param rootDir
+    * @param save
+    * @param nrFrames
+    * @param nrPositions
+    * @param acqSettings
+    * @param twoSided
+    * @param bq queue the acquisition adds images to
+    * @return queue to hook up to the ImageCache of the raw acquisition
+    * @throws MMScriptException
+    */
+   private BlockingQueue<TaggedImage> startDeskewing(String acqName, String rootDir,
+         boolean save, int nrFrames, int nrPositions, AcquisitionSettings acqSettings,
+         boolean twoSided, BlockingQueue<TaggedImage> bq) throws MMScriptException {
+      double pixelSizeUm = core_.getPixelSizeUm();
+      if (pixelSizeUm <= 0) {
+         ReportingUtils.logMessage("diSPIM: pixel size is not calibrated, not deskewing");
+         return bq;
+      }
+      // the two views see the sample move in opposite directions;
+      //   same algorithm for channel index vs. side as when naming channels
+      boolean[] reverseChannel = new boolean[channelNames_.length];
+      Color[] channelColors = new Color[channelNames_.length];
+      for (int i = 0; i < channelNames_.length; i++) {
+         boolean firstSide = !twoSided || (i % 2 == 0);
+         reverseChannel[i] = (firstSide != acqSettings.firstSideIsA);
+         channelColors[i] = getChannelColor(i);
+      }
+      DeskewProcessor deskewer = new DeskewProcessor(gui_, acqName,
+            (int) core_.getImageWidth(), (int) core_.getImageHeight(),
+            acqSettings.numSlices,
+            DeskewProcessor.getShiftPerSlice(acqSettings.stepSizeUm, pixelSizeUm),
+            reverseChannel, deskewVolumesCB_.isSelected());
+      deskewer.open(rootDir, save, nrFrames, nrPositions, channelNames_, channelColors,
+            (int) core_.getImageBitDepth());
+      List<DataProcessor<TaggedImage>> processors = new ArrayList<DataProcessor<TaggedImage>>();
+      processors.add(deskewer);
+      return ProcessorStack.run(bq, processors);
+   }
+   
+   
    /***************** API  *******************/
    
    
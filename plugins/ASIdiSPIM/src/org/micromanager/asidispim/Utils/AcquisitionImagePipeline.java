@@ -0,0 +1,314 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          AcquisitionImagePipeline.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ASIdiSPIM plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Jon Daniels
+//
+// COPYRIGHT:    University of California, San Francisco, & ASI, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.asidispim.Utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.micromanager.utils.ReportingUtils;
+
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+
+/**
+ * Moves images from the camera circular buffer to the acquisition in three
+ *   decoupled stages, so that slow storage doesn't hold up draining the
+ *   circular buffer and cause it to overflow:
+ *   - a drain thread pops images from the core into a bounded queue
+ *     as soon as they arrive
+ *   - the acquisition thread takes images from that queue and works out
+ *     where each one belongs (sorting)
+ *   - one store thread per view (camera/side) adds the sorted images to the acquisition
+ *
+ * The fraction of the circular buffer that is still free (the overflow margin)
+ *   is tracked as images are drained.
+ */
+public class AcquisitionImagePipeline {
+
+   /**
+    * Image popped from the circular buffer, with the time it was popped
+    */
+   public static class DrainedImage {
+      public final TaggedImage image;
+      public final long timeMs;
+
+      private DrainedImage(TaggedImage image, long timeMs) {
+         this.image = image;
+         this.timeMs = timeMs;
+      }
+   }
+
+   /**
+    * Adds one sorted image to the acquisition, run on the store thread of its view
+    */
+   public interface StoreTask {
+      void store() throws Exception;
+   }
+
+   private static final int STORE_QUEUE_CAPACITY = 32;
+   // don't use more than this fraction of the java heap for images waiting to be sorted
+   private static final double MAX_HEAP_FRACTION = 0.25;
+
+   private final CMMCore core_;
+   private final String[] cameras_;
+   private final BlockingQueue<DrainedImage> drained_;
+   private final StoreThread[] storeThreads_;
+   private final Thread drainThread_;
+   private final CountDownLatch firstImage_ = new CountDownLatch(1);
+   private final AtomicBoolean stopRequested_ = new AtomicBoolean(false);
+   private volatile boolean drainFinished_ = false;
+   private volatile Exception drainError_ = null;
+   private volatile double overflowMargin_ = 1.0;
+   private volatile double minOverflowMargin_ = 1.0;
+
+   /**
+    * @param core
+    * @param cameras cameras acquiring sequences, draining finishes once none
+    *   of them is running and the circular buffer is empty
+    * @param numViews number of store threads, images are stored in order within each view
+    */
+   public AcquisitionImagePipeline(CMMCore core, String[] cameras, int numViews) {
+      core_ = core;
+      cameras_ = cameras;
+      long imageBytes = Math.max(1, core.getImageBufferSize());
+      long heapCapacity = (long) (Runtime.getRuntime().maxMemory() * MAX_HEAP_FRACTION) / imageBytes;
+      int capacity = (int) Math.max(STORE_QUEUE_CAPACITY,
+            Math.min(core.getBufferTotalCapacity(), heapCapacity));
+      drained_ = new ArrayBlockingQueue<DrainedImage>(capacity);
+      storeThreads_ = new StoreThread[numViews];
+      for (int i = 0; i < numViews; i++) {
+         storeThreads_[i] = new StoreThread("diSPIM store thread for view " + i);
+      }
+      drainThread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            drain();
+         }
+      }, "diSPIM circular buffer drain thread");
+      drainThread_.setDaemon(true);
+   }
+
+   /**
+    * Starts draining, call once the cameras have been started
+    */
+   public void start() {
+      for (StoreThread thread : storeThreads_) {
+         thread.start();
+      }
+      drainThread_.start();
+   }
+
+   private void drain() {
+      try {
+         while (!stopRequested_.get()) {
+            if (core_.getRemainingImageCount() > 0) {
+               TaggedImage timg = core_.popNextTaggedImage();
+               DrainedImage image = new DrainedImage(timg, System.currentTimeMillis());
+               updateOverflowMargin();
+               // blocks if sorting falls behind, images then wait in the circular buffer
+               drained_.put(image);
+               firstImage_.countDown();
+            } else if (!isAnyCameraRunning() && core_.getRemainingImageCount() == 0) {
+               break;
+            } else {
+               // the core has no way to wait for the next image
+               Thread.sleep(1);
+            }
+         }
+      } catch (InterruptedException ex) {
+         // stopped
+      } catch (Exception ex) {
+         drainError_ = ex;
+      } finally {
+         drainFinished_ = true;
+      }
+   }
+
+   private boolean isAnyCameraRunning() throws Exception {
+      for (String camera : cameras_) {
+         if (core_.isSequenceRunning(camera)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private void updateOverflowMargin() {
+      long total = core_.getBufferTotalCapacity();
+      if (total > 0) {
+         overflowMargin_ = (double) core_.getBufferFreeCapacity() / total;
+         minOverflowMargin_ = Math.min(minOverflowMargin_, overflowMargin_);
+      }
+   }
+
+   /**
+    * Waits for the first image to be drained
+    * @param timeoutMs
+    * @param cancel stop waiting if this becomes true
+    * @return true if an image arrived in time
+    * @throws InterruptedException
+    */
+   public boolean awaitFirstImage(long timeoutMs, AtomicBoolean cancel) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (!cancel.get()) {
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0) {
+            return false;
+         }
+         if (firstImage_.await(Math.min(remaining, 50), TimeUnit.MILLISECONDS)) {
+            return true;
+         }
+         if (drainFinished_ && drained_.isEmpty()) {
+            return false;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * @param timeoutMs
+    * @return next drained image, or null if none arrived within the timeout
+    * @throws Exception if draining failed
+    */
+   public DrainedImage take(long timeoutMs) throws Exception {
+      DrainedImage image = drained_.poll(timeoutMs, TimeUnit.MILLISECONDS);
+      if (image == null && drainError_ != null) {
+         throw drainError_;
+      }
+      return image;
+   }
+
+   /**
+    * @return true once the cameras are done and every drained image has been taken
+    */
+   public boolean isFinished() {
+      return drainFinished_ && drained_.isEmpty();
+   }
+
+   /**
+    * Queues image for storage on its view's thread, blocking if that view is
+    *   too far behind
+    * @param view
+    * @param task
+    * @throws Exception if storing an earlier image of the view failed
+    */
+   public void store(int view, StoreTask task) throws Exception {
+      storeThreads_[view].put(task);
+   }
+
+   /**
+    * @return fraction of the circular buffer that was free when the last image was drained
+    */
+   public double getOverflowMargin() {
+      return overflowMargin_;
+   }
+
+   /**
+    * @return smallest fraction of the circular buffer that was free since the start
+    */
+   public double getMinOverflowMargin() {
+      return minOverflowMargin_;
+   }
+
+   /**
+    * @return number of images drained but not yet taken for sorting
+    */
+   public int getDrainedImageCount() {
+      return drained_.size();
+   }
+
+   /**
+    * Stops draining (images still in the circular buffer or not yet taken are
+    *   left alone) and waits for every image already handed to a store thread to be stored
+    * @throws Exception first exception thrown while storing images
+    */
+   public void close() throws Exception {
+      stopRequested_.set(true);
+      drainThread_.interrupt();
+      drainThread_.join();
+      Exception storeError = null;
+      for (StoreThread thread : storeThreads_) {
+         thread.finish();
+      }
+      for (StoreThread thread : storeThreads_) {
+         thread.join();
+         if (storeError == null) {
+            storeError = thread.error_;
+         }
+      }
+      ReportingUtils.logDebugMessage("diSPIM acquisition minimum circular buffer margin: "
+            + Math.round(minOverflowMargin_ * 100) + "% free");
+      if (storeError != null) {
+         throw storeError;
+      }
+   }
+
+   private static class StoreThread extends Thread {
+      private static final StoreTask FINISH = new StoreTask() {
+         @Override
+         public void store() {
+         }
+      };
+      private final BlockingQueue<StoreTask> tasks_ =
+            new ArrayBlockingQueue<StoreTask>(STORE_QUEUE_CAPACITY);
+      private volatile Exception error_ = null;
+
+      StoreThread(String name) {
+         super(name);
+         setDaemon(true);
+      }
+
+      void put(StoreTask task) throws Exception {
+         if (error_ != null) {
+            throw error_;
+         }
+         tasks_.put(task);
+      }
+
+      void finish() throws InterruptedException {
+         tasks_.put(FINISH);
+      }
+
+      @Override
+      public void run() {
+         try {
+            StoreTask task;
+            while ((task = tasks_.take()) != FINISH) {
+               // once storing has failed, keep taking tasks so the acquisition thread doesn't block
+               if (error_ == null) {
+                  try {
+                     task.store();
+                  } catch (Exception ex) {
+                     error_ = ex;
+                  }
+               }
+            }
+         } catch (InterruptedException ex) {
+            // stopped
+         }
+      }
+   }
+
+}
@@ -0,0 +1,367 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DeskewProcessor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ASIdiSPIM plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Jon Daniels
+//
+// COPYRIGHT:    University of California, San Francisco, & ASI, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.asidispim.Utils;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import org.micromanager.api.DataProcessor;
+import org.micromanager.api.ImageCache;
+import org.micromanager.api.MMTags;
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.acquisition.DefaultTaggedImageSink;
+import org.micromanager.acquisition.MMAcquisition;
+import org.micromanager.acquisition.TaggedImageQueue;
+import org.micromanager.asidispim.ASIdiSPIM;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.ReportingUtils;
+
+import mmcorej.TaggedImage;
+
+/**
+ * Deskews stage scanning volumes while they are being acquired.
+ *
+ * When stage scanning the sample moves through the light sheet at an angle,
+ *   so each plane is offset along the image Y axis from the one before it
+ *   (in opposite directions for the two views).  Each arriving plane is shifted
+ *   back by its offset, interpolating linearly between rows, and added to
+ *   running XY, XZ and YZ maximum projections of its volume.  Once the last plane
+ *   of a volume has arrived, the projections are added to a separate acquisition
+ *   as a single orthogonal view (XY with YZ to its right and XZ below it, one
+ *   pixel per slice along Z).  Optionally the deskewed planes are added to
+ *   another acquisition as they are computed, so the data doesn't have to be
+ *   read back to deskew it afterwards.
+ *
+ * Raw images are passed on unchanged.  Only 16-bit images are deskewed.
+ */
+public class DeskewProcessor extends DataProcessor<TaggedImage> {
+
+   private final String sourceName_;
+   private final int width_;
+   private final int height_;
+   private final int numSlices_;
+   private final double shiftPerSlice_;  // pixels
+   private final boolean[] reverseChannel_;
+   private final boolean storeDeskewed_;
+   private final int deskewedHeight_;
+   // volumes that are still receiving planes, by frame, channel and position
+   private final Map<String, Volume> volumes_ = new HashMap<String, Volume>();
+   private String projectionsName_ = null;
+   private String deskewedName_ = null;
+   private BlockingQueue<TaggedImage> projectionsQueue_ = null;
+   private BlockingQueue<TaggedImage> deskewedQueue_ = null;
+   private boolean warnedPixelType_ = false;
+
+   /**
+    * @param gui
+    * @param sourceName acquisition the raw images belong to
+    * @param width of raw images
+    * @param height of raw images
+    * @param numSlices planes per volume
+    * @param shiftPerSlice offset between consecutive planes along the image Y axis,
+    *   in pixels, see getShiftPerSlice()
+    * @param reverseChannel for each channel, true if the offset increases
+    *   from the last plane to the first (views scanned from the other side)
+    * @param storeDeskewed true to also store the deskewed planes
+    */
+   public DeskewProcessor(ScriptInterface gui, String sourceName,
+         int width, int height, int numSlices, double shiftPerSlice,
+         boolean[] reverseChannel, boolean storeDeskewed) {
+      super();
+      setApp(gui);
+      setName("diSPIM deskew processor");
+      sourceName_ = sourceName;
+      width_ = width;
+      height_ = height;
+      numSlices_ = numSlices;
+      shiftPerSlice_ = Math.abs(shiftPerSlice);
+      reverseChannel_ = reverseChannel;
+      storeDeskewed_ = storeDeskewed;
+      deskewedHeight_ = height + (int) Math.ceil(shiftPerSlice_ * (numSlices - 1));
+   }
+
+   /**
+    * The stage moves at an angle to the light sheet, see the scan speed
+    *   calculation in ControllerUtils.  Planes are stepSizeUm apart
+    *   perpendicular to the sheet, and the in-plane component of each stage
+    *   step is the offset between consecutive planes.
+    * @param stepSizeUm slice step size
+    * @param pixelSizeUm
+    * @return offset between consecutive planes in pixels
+    */
+   public static double getShiftPerSlice(double stepSizeUm, double pixelSizeUm) {
+      final double speedFactor = ASIdiSPIM.oSPIM ? (2 / Math.sqrt(3.)) : Math.sqrt(2.);
+      return stepSizeUm * Math.sqrt(speedFactor * speedFactor - 1) / pixelSizeUm;
+   }
+
+   /**
+    * Opens and initializes the acquisitions for projections (and deskewed
+    *   volumes if requested), call before the processor is started
+    * @param rootDir
+    * @param save
+    * @param nrFrames
+    * @param nrPositions
+    * @param channelNames same channels as the raw acquisition
+    * @param channelColors
+    * @param bitDepth of raw images
+    * @throws MMScriptException
+    */
+   public void open(String rootDir, boolean save, int nrFrames, int nrPositions,
+         String[] channelNames, Color[] channelColors, int bitDepth) throws MMScriptException {
+      projectionsName_ = gui_.getUniqueAcquisitionName(sourceName_ + "_MIP");
+      projectionsQueue_ = openAcquisition(projectionsName_, rootDir, save,
+            nrFrames, 1, nrPositions, channelNames, channelColors,
+            width_ + numSlices_, deskewedHeight_ + numSlices_, bitDepth);
+      if (storeDeskewed_) {
+         deskewedName_ = gui_.getUniqueAcquisitionName(sourceName_ + "_deskewed");
+         deskewedQueue_ = openAcquisition(deskewedName_, rootDir, save,
+               nrFrames, numSlices_, nrPositions, channelNames, channelColors,
+               width_, deskewedHeight_, bitDepth);
+      }
+   }
+
+   private BlockingQueue<TaggedImage> openAcquisition(String name, String rootDir,
+         boolean save, int nrFrames, int nrSlices, int nrPositions,
+         String[] channelNames, Color[] channelColors,
+         int width, int height, int bitDepth) throws MMScriptException {
+      gui_.openAcquisition(name, rootDir, nrFrames, channelNames.length,
+            nrSlices, nrPositions, true, save);
+      for (int i = 0; i < channelNames.length; i++) {
+         gui_.setChannelName(name, i, channelNames[i]);
+         gui_.setChannelColor(name, i, channelColors[i]);
+      }
+      gui_.initializeAcquisition(name, width, height, 2, bitDepth);
+      gui_.setAcquisitionProperty(name, "PixelType", "GRAY16");
+      gui_.setAcquisitionProperty(name, "SourceAcquisition", sourceName_);
+      MMAcquisition acq = gui_.getAcquisition(name);
+      ImageCache imageCache = acq.getImageCache();
+      imageCache.addImageCacheListener(acq.getAcquisitionWindow());
+      BlockingQueue<TaggedImage> queue = new LinkedBlockingQueue<TaggedImage>(10);
+      DefaultTaggedImageSink sink = new DefaultTaggedImageSink(queue, imageCache);
+      sink.start();
+      return queue;
+   }
+
+   @Override
+   protected void process() {
+      TaggedImage image = poll();
+      if (image == null) {
+         return;
+      }
+      if (TaggedImageQueue.isPoison(image)) {
+         finish();
+         produce(image);
+         requestStop();
+         return;
+      }
+      // pass the raw image on first so that storing it isn't held up,
+      //   keeping our own copy of the tags in case they are changed downstream
+      TaggedImage plane = new TaggedImage(image.pix, MDUtils.copy(image.tags));
+      produce(image);
+      try {
+         addPlane(plane);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "diSPIM: could not deskew image");
+      }
+   }
+
+   private void addPlane(TaggedImage image) throws JSONException, MMScriptException,
+         InterruptedException {
+      if (!(image.pix instanceof short[])) {
+         if (!warnedPixelType_) {
+            ReportingUtils.logMessage("diSPIM: only 16-bit images are deskewed");
+            warnedPixelType_ = true;
+         }
+         return;
+      }
+      JSONObject tags = image.tags;
+      int frame = MDUtils.getFrameIndex(tags);
+      int channel = MDUtils.getChannelIndex(tags);
+      int slice = MDUtils.getSliceIndex(tags);
+      int position = MDUtils.getPositionIndex(tags);
+      if (slice < 0 || slice >= numSlices_ || channel >= reverseChannel_.length) {
+         return;
+      }
+      String key = frame + "_" + channel + "_" + position;
+      Volume volume = volumes_.get(key);
+      if (volume == null) {
+         volume = new Volume(frame, channel, position, tags);
+         volumes_.put(key, volume);
+      }
+      int planeIndex = reverseChannel_[channel] ? numSlices_ - 1 - slice : slice;
+      short[] deskewed = storeDeskewed_ ? new short[width_ * deskewedHeight_] : null;
+      volume.add((short[]) image.pix, slice, planeIndex * shiftPerSlice_, deskewed);
+      if (deskewed != null) {
+         deskewedQueue_.put(makeImage(deskewedName_, deskewed, width_, deskewedHeight_,
+               tags, frame, channel, slice, position));
+      }
+      if (volume.planes_ == numSlices_) {
+         volumes_.remove(key);
+         storeProjections(volume);
+      }
+   }
+
+   /**
+    * Stores the projections of incomplete volumes (e.g. when the acquisition
+    *   was stopped) and ends the projection and deskewed acquisitions
+    */
+   private void finish() {
+      try {
+         for (Volume volume : volumes_.values()) {
+            storeProjections(volume);
+         }
+         volumes_.clear();
+         if (projectionsQueue_ != null) {
+            projectionsQueue_.put(TaggedImageQueue.POISON);
+         }
+         if (deskewedQueue_ != null) {
+            deskewedQueue_.put(TaggedImageQueue.POISON);
+         }
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "diSPIM: could not store deskewed projections");
+      }
+   }
+
+   private void storeProjections(Volume volume) throws JSONException,
+         MMScriptException, InterruptedException {
+      projectionsQueue_.put(makeImage(projectionsName_, volume.getOrthogonalView(),
+            width_ + numSlices_, deskewedHeight_ + numSlices_, volume.tags_,
+            volume.frame_, volume.channel_, 0, volume.position_));
+   }
+
+   private TaggedImage makeImage(String acqName, short[] pix, int width, int height,
+         JSONObject sourceTags, int frame, int channel, int slice, int position)
+               throws JSONException, MMScriptException {
+      JSONObject tags = MDUtils.copy(sourceTags);
+      MDUtils.setWidth(tags, width);
+      MDUtils.setHeight(tags, height);
+      MDUtils.setFrameIndex(tags, frame);
+      MDUtils.setChannelIndex(tags, channel);
+      MDUtils.setSliceIndex(tags, slice);
+      MDUtils.setPositionIndex(tags, position);
+      // update frames if necessary, as the raw acquisition does
+      MMAcquisition acq = gui_.getAcquisition(acqName);
+      synchronized (acq) {
+         if (acq.getFrames() <= frame) {
+            acq.setProperty(MMTags.Summary.FRAMES,
+                  Integer.toString(frame + 1));
+         }
+      }
+      return new TaggedImage(pix, tags);
+   }
+
+   /**
+    * Running maximum projections of one deskewed volume
+    */
+   private class Volume {
+      private final int frame_;
+      private final int channel_;
+      private final int position_;
+      private final JSONObject tags_;  // of the first plane, for the projections
+      private final short[] xy_ = new short[width_ * deskewedHeight_];
+      private final short[] xz_ = new short[width_ * numSlices_];
+      private final short[] yz_ = new short[deskewedHeight_ * numSlices_];
+      private int planes_ = 0;
+
+      Volume(int frame, int channel, int position, JSONObject tags) {
+         frame_ = frame;
+         channel_ = channel;
+         position_ = position;
+         tags_ = tags;
+      }
+
+      /**
+       * Shifts a plane down by offset rows and adds it to the projections
+       * @param pix raw plane
+       * @param slice
+       * @param offset in pixels
+       * @param deskewed if not null, receives the shifted plane
+       */
+      void add(short[] pix, int slice, double offset, short[] deskewed) {
+         final int shift = (int) Math.floor(offset);
+         // output row r samples raw row r - offset, which lies between
+         //   rows r - shift - 1 (weight t) and r - shift (weight 1 - t)
+         final double t = offset - shift;
+         final int endRow = Math.min(deskewedHeight_, shift + height_ + (t > 0 ? 1 : 0));
+         final int xzRow = slice * width_;
+         final int yzRow = slice * deskewedHeight_;
+         for (int r = shift; r < endRow; r++) {
+            final int y = r - shift;
+            final int below = y < height_ ? y * width_ : -1;
+            final int above = (y > 0 && t > 0) ? (y - 1) * width_ : -1;
+            final int xyRow = r * width_;
+            int rowMax = 0;
+            for (int x = 0; x < width_; x++) {
+               double v = 0;
+               if (below >= 0) {
+                  v += (1 - t) * (pix[below + x] & 0xffff);
+               }
+               if (above >= 0) {
+                  v += t * (pix[above + x] & 0xffff);
+               }
+               final int value = (int) (v + 0.5);
+               if (deskewed != null) {
+                  deskewed[xyRow + x] = (short) value;
+               }
+               if (value > (xy_[xyRow + x] & 0xffff)) {
+                  xy_[xyRow + x] = (short) value;
+               }
+               if (value > (xz_[xzRow + x] & 0xffff)) {
+                  xz_[xzRow + x] = (short) value;
+               }
+               if (value > rowMax) {
+                  rowMax = value;
+               }
+            }
+            yz_[yzRow + r] = (short) rowMax;
+         }
+         planes_++;
+      }
+
+      /**
+       * @return XY projection with the YZ projection to its right (Z along X)
+       *   and the XZ projection below it (Z along Y)
+       */
+      short[] getOrthogonalView() {
+         final int viewWidth = width_ + numSlices_;
+         short[] view = new short[viewWidth * (deskewedHeight_ + numSlices_)];
+         for (int r = 0; r < deskewedHeight_; r++) {
+            System.arraycopy(xy_, r * width_, view, r * viewWidth, width_);
+            for (int z = 0; z < numSlices_; z++) {
+               view[r * viewWidth + width_ + z] = yz_[z * deskewedHeight_ + r];
+            }
+         }
+         for (int z = 0; z < numSlices_; z++) {
+            System.arraycopy(xz_, z * width_, view, (deskewedHeight_ + z) * viewWidth, width_);
+         }
+         return view;
+      }
+   }
+
+}
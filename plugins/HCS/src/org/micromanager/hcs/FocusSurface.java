@@ -0,0 +1,166 @@
+package org.micromanager.hcs;
+
+import java.util.ArrayList;
+
+import org.micromanager.api.MultiStagePosition;
+
+/**
+ * Focus surface of a plate, fitted to focus positions that were marked on the
+ * plate (e.g. after focusing by hand or with autofocus at a few wells), and
+ * refined with autofocus results while a screen runs (see
+ * SurfaceFocusRunnable).
+ *
+ * The surface is a least squares fit: flat for one or two points, a plane for
+ * three to five points and a quadratic, which follows the bowing of plate
+ * bottoms, for six or more. The residuals of the fit are interpolated by
+ * inverse distance weighting, so the surface passes through every point.
+ */
+public class FocusSurface {
+   private final ArrayList<double[]> points_ = new ArrayList<double[]>();
+   // fit in coordinates centered on the points and scaled to about +-1
+   private double centerX_ = 0.0;
+   private double centerY_ = 0.0;
+   private double scale_ = 1.0;
+   private double[] coefficients_ = new double[0];
+   private double[] residuals_ = new double[0];
+
+   /**
+    * Surface through the given positions
+    */
+   public FocusSurface(MultiStagePosition posList[]) {
+      for (MultiStagePosition mps : posList) {
+         points_.add(new double[] {mps.getX(), mps.getY(), mps.getZ()});
+      }
+      fit();
+   }
+
+   public synchronized void addPoint(double x, double y, double z) {
+      points_.add(new double[] {x, y, z});
+      fit();
+   }
+
+   /**
+    * @return true if no point of the surface is within maxDistance of the
+    * position, so that the prediction there is an extrapolation
+    */
+   public synchronized boolean needsAutofocus(double x, double y, double maxDistance) {
+      double minD2 = Double.POSITIVE_INFINITY;
+      for (double[] p : points_) {
+         minD2 = Math.min(minD2, (p[0] - x) * (p[0] - x) + (p[1] - y) * (p[1] - y));
+      }
+      return Math.sqrt(minD2) > maxDistance;
+   }
+
+   /**
+    * @return predicted focus position, or NaN if there are no points
+    */
+   public synchronized double getZPos(double x, double y) {
+      if (points_.isEmpty()) {
+         return Double.NaN;
+      }
+      double weightSum = 0.0;
+      double residualSum = 0.0;
+      for (int i = 0; i < points_.size(); i++) {
+         double[] p = points_.get(i);
+         double d2 = (p[0] - x) * (p[0] - x) + (p[1] - y) * (p[1] - y);
+         if (d2 == 0.0) {
+            return p[2];
+         }
+         weightSum += 1.0 / d2;
+         residualSum += residuals_[i] / d2;
+      }
+      return evaluate(x, y) + residualSum / weightSum;
+   }
+
+   private double evaluate(double x, double y) {
+      double[] terms = getTerms(x, y, coefficients_.length);
+      double z = 0.0;
+      for (int i = 0; i < coefficients_.length; i++) {
+         z += coefficients_[i] * terms[i];
+      }
+      return z;
+   }
+
+   private double[] getTerms(double x, double y, int numTerms) {
+      double u = (x - centerX_) / scale_;
+      double v = (y - centerY_) / scale_;
+      double[] all = {1.0, u, v, u * u, u * v, v * v};
+      double[] terms = new double[numTerms];
+      System.arraycopy(all, 0, terms, 0, numTerms);
+      return terms;
+   }
+
+   private void fit() {
+      int n = points_.size();
+      centerX_ = 0.0;
+      centerY_ = 0.0;
+      for (double[] p : points_) {
+         centerX_ += p[0] / n;
+         centerY_ += p[1] / n;
+      }
+      scale_ = 0.0;
+      for (double[] p : points_) {
+         scale_ = Math.max(scale_, Math.max(Math.abs(p[0] - centerX_), Math.abs(p[1] - centerY_)));
+      }
+      if (scale_ == 0.0) {
+         scale_ = 1.0;
+      }
+      // fall back to fewer terms if the points don't determine the surface,
+      // e.g. when they lie on a line
+      int numTerms = n >= 6 ? 6 : (n >= 3 ? 3 : 1);
+      coefficients_ = null;
+      while (coefficients_ == null) {
+         coefficients_ = solveLeastSquares(numTerms);
+         numTerms = numTerms == 6 ? 3 : 1;
+      }
+      residuals_ = new double[n];
+      for (int i = 0; i < n; i++) {
+         double[] p = points_.get(i);
+         residuals_[i] = p[2] - evaluate(p[0], p[1]);
+      }
+   }
+
+   /**
+    * Solves the normal equations by Gaussian elimination with partial pivoting
+    * @return coefficients, or null if the system is singular
+    */
+   private double[] solveLeastSquares(int numTerms) {
+      double[][] a = new double[numTerms][numTerms + 1];
+      for (double[] p : points_) {
+         double[] t = getTerms(p[0], p[1], numTerms);
+         for (int r = 0; r < numTerms; r++) {
+            for (int c = 0; c < numTerms; c++) {
+               a[r][c] += t[r] * t[c];
+            }
+            a[r][numTerms] += t[r] * p[2];
+         }
+      }
+      for (int col = 0; col < numTerms; col++) {
+         int pivot = col;
+         for (int r = col + 1; r < numTerms; r++) {
+            if (Math.abs(a[r][col]) > Math.abs(a[pivot][col])) {
+               pivot = r;
+            }
+         }
+         if (Math.abs(a[pivot][col]) < 1e-9 * points_.size()) {
+            return null;
+         }
+         double[] tmp = a[col];
+         a[col] = a[pivot];
+         a[pivot] = tmp;
+         for (int r = 0; r < numTerms; r++) {
+            if (r != col) {
+               double f = a[r][col] / a[col][col];
+               for (int c = col; c <= numTerms; c++) {
+                  a[r][c] -= f * a[col][c];
+               }
+            }
+         }
+      }
+      double[] coefficients = new double[numTerms];
+      for (int r = 0; r < numTerms; r++) {
+         coefficients[r] = a[r][numTerms] / a[r][r];
+      }
+      return coefficients;
+   }
+}
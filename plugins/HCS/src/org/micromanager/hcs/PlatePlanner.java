@@ -0,0 +1,180 @@
+package org.micromanager.hcs;
+
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.PositionList;
+
+/**
+ * Orders the selected wells of a plate, and the sites within each well, so
+ * that the stage travels as little as possible between them.
+ *
+ * Wells are put in nearest neighbour order starting from the current stage
+ * position, and the tour is then shortened by 2-opt exchanges. Sites keep the
+ * pattern they were generated in (e.g. snake), but each well is entered from
+ * whichever end of its pattern is closest to where the previous well ended.
+ *
+ * A move is measured along its longer axis (Chebyshev distance): both axes of
+ * an XY stage move at the same time, so the shorter axis adds nothing to the
+ * duration of the move.
+ */
+public class PlatePlanner {
+   // 2-opt converges in a few passes for plate sized tours, this only
+   // guards against pathological inputs
+   private static final int MAX_2OPT_PASSES = 50;
+
+   public static double getMoveDistance(double x1, double y1, double x2, double y2) {
+      return Math.max(Math.abs(x2 - x1), Math.abs(y2 - y1));
+   }
+
+   /**
+    * @param wells wells to visit, they are not modified
+    * @param startX current stage position
+    * @param startY current stage position
+    * @return copies of the wells in the order they should be visited, with
+    * their sites reversed where that shortens the move into the well
+    */
+   public WellPositionList[] plan(WellPositionList[] wells, double startX, double startY) {
+      int n = wells.length;
+      if (n == 0) {
+         return new WellPositionList[0];
+      }
+      double[][] centers = new double[n][];
+      for (int i = 0; i < n; i++) {
+         centers[i] = getCenter(wells[i], startX, startY);
+      }
+      int[] tour = orderNearestNeighbour(centers, startX, startY);
+      improve(tour, centers, startX, startY);
+
+      WellPositionList[] ordered = new WellPositionList[n];
+      double x = startX;
+      double y = startY;
+      for (int i = 0; i < n; i++) {
+         WellPositionList well = wells[tour[i]];
+         PositionList sites = well.getSitePositions();
+         int last = sites.getNumberOfPositions() - 1;
+         boolean reverse = last > 0
+               && getMoveDistance(x, y, sites.getPosition(last).getX(), sites.getPosition(last).getY())
+               < getMoveDistance(x, y, sites.getPosition(0).getX(), sites.getPosition(0).getY());
+         ordered[i] = copy(well, reverse);
+         PositionList orderedSites = ordered[i].getSitePositions();
+         if (orderedSites.getNumberOfPositions() > 0) {
+            MultiStagePosition exit = orderedSites.getPosition(last);
+            x = exit.getX();
+            y = exit.getY();
+         }
+      }
+      return ordered;
+   }
+
+   /**
+    * @return stage travel to and between all sites of the wells, in the order
+    * given, in stage units (usually um)
+    */
+   public double getTravelDistance(WellPositionList[] wells, double startX, double startY) {
+      double distance = 0.0;
+      double x = startX;
+      double y = startY;
+      for (WellPositionList well : wells) {
+         PositionList sites = well.getSitePositions();
+         for (int i = 0; i < sites.getNumberOfPositions(); i++) {
+            MultiStagePosition mps = sites.getPosition(i);
+            distance += getMoveDistance(x, y, mps.getX(), mps.getY());
+            x = mps.getX();
+            y = mps.getY();
+         }
+      }
+      return distance;
+   }
+
+   private static double[] getCenter(WellPositionList well, double defaultX, double defaultY) {
+      PositionList sites = well.getSitePositions();
+      int count = sites.getNumberOfPositions();
+      if (count == 0) {
+         return new double[] {defaultX, defaultY};
+      }
+      double x = 0.0;
+      double y = 0.0;
+      for (int i = 0; i < count; i++) {
+         x += sites.getPosition(i).getX() / count;
+         y += sites.getPosition(i).getY() / count;
+      }
+      return new double[] {x, y};
+   }
+
+   private int[] orderNearestNeighbour(double[][] centers, double startX, double startY) {
+      int n = centers.length;
+      int[] tour = new int[n];
+      boolean[] visited = new boolean[n];
+      double x = startX;
+      double y = startY;
+      for (int i = 0; i < n; i++) {
+         int nearest = -1;
+         double nearestDistance = Double.POSITIVE_INFINITY;
+         for (int j = 0; j < n; j++) {
+            if (!visited[j]) {
+               double distance = getMoveDistance(x, y, centers[j][0], centers[j][1]);
+               if (distance < nearestDistance) {
+                  nearestDistance = distance;
+                  nearest = j;
+               }
+            }
+         }
+         visited[nearest] = true;
+         tour[i] = nearest;
+         x = centers[nearest][0];
+         y = centers[nearest][1];
+      }
+      return tour;
+   }
+
+   /**
+    * 2-opt on an open path from the start position: reverses the stretch
+    * tour[i..j] whenever that shortens the path.
+    */
+   private void improve(int[] tour, double[][] centers, double startX, double startY) {
+      int n = tour.length;
+      boolean improved = true;
+      for (int pass = 0; improved && pass < MAX_2OPT_PASSES; pass++) {
+         improved = false;
+         for (int i = 0; i < n - 1; i++) {
+            double[] before = i == 0 ? new double[] {startX, startY} : centers[tour[i - 1]];
+            double[] first = centers[tour[i]];
+            for (int j = i + 1; j < n; j++) {
+               double[] last = centers[tour[j]];
+               double current = getMoveDistance(before[0], before[1], first[0], first[1]);
+               double reversed = getMoveDistance(before[0], before[1], last[0], last[1]);
+               if (j < n - 1) {
+                  double[] after = centers[tour[j + 1]];
+                  current += getMoveDistance(last[0], last[1], after[0], after[1]);
+                  reversed += getMoveDistance(first[0], first[1], after[0], after[1]);
+               }
+               if (reversed < current - 1e-9) {
+                  for (int a = i, b = j; a < b; a++, b--) {
+                     int tmp = tour[a];
+                     tour[a] = tour[b];
+                     tour[b] = tmp;
+                  }
+                  first = centers[tour[i]];
+                  improved = true;
+               }
+            }
+         }
+      }
+   }
+
+   private static WellPositionList copy(WellPositionList well, boolean reverse) {
+      WellPositionList copy = new WellPositionList();
+      copy.setLabel(well.getLabel());
+      copy.setGridCoordinates(well.getRow(), well.getColumn());
+      if (reverse) {
+         PositionList sites = well.getSitePositions();
+         PositionList reversed = new PositionList();
+         for (int i = sites.getNumberOfPositions() - 1; i >= 0; i--) {
+            reversed.addPosition(sites.getPosition(i));
+         }
+         copy.setSitePositions(reversed);
+      } else {
+         copy.setSitePositions(well.getSitePositions());
+      }
+      return copy;
+   }
+}
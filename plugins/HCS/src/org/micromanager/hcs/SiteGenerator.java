@@ -68,7 +68,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
    private String stageWell_;
    private String cursorWell_;
    PositionList threePtList_;
-   AFPlane focusPlane_;
+   FocusSurface focusPlane_;
    private final String PLATE_FORMAT_ID = "plate_format_id";
    private final String SITE_SPACING_X  = "site_spacing"; //keep string for backward compatibility
    private final String SITE_SPACING_Y  = "site_spacing_y";
@@ -76,6 +76,8 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
    private final String SITE_ROWS       = "site_rows";
    private final String SITE_COLS       = "site_cols";
    private final String USE_SNAKE       = "use_snake";
+   private final String OPTIMIZE_TRAVEL = "optimize_travel";
+   private final String REFINE_FOCUS    = "refine_focus";
 
    public static final String menuName = "HCS Site Generator";
    public static final String tooltipDescription =
@@ -87,6 +89,9 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
    static private final String INFO = "Not available";
    private final JCheckBox chckbxThreePt_;
    private final JCheckBox useSnake_;
+   private final JCheckBox optimizeTravel_;
+   private final JCheckBox refineFocus_;
+   private boolean focusRunnableAttached_ = false;
    private final ButtonGroup toolButtonGroup = new ButtonGroup();
    private JRadioButton rdbtnSelectWells_;
    private JRadioButton rdbtnMoveStage_;
@@ -157,7 +162,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
     */
    public SiteGenerator() {
       super();
-      setMinimumSize(new Dimension(600, 600));
+      setMinimumSize(new Dimension(600, 640));
       addWindowListener(new WindowAdapter() {
          @Override
          public void windowClosing(final WindowEvent e) {
@@ -332,9 +337,16 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       });
       getContentPane().add(useSnake_);
 
+      optimizeTravel_ = new JCheckBox("Optimize Stage Travel");
+      optimizeTravel_.setToolTipText("Visit the selected wells in the order that minimizes stage travel");
+      springLayout.putConstraint(SpringLayout.NORTH, optimizeTravel_, 375, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.WEST, optimizeTravel_, 6, SpringLayout.EAST, platePanel_);
+      springLayout.putConstraint(SpringLayout.EAST, optimizeTravel_, -4, SpringLayout.EAST, getContentPane());
+      getContentPane().add(optimizeTravel_);
+
       final JButton setPositionListButton = new JButton();
       springLayout.putConstraint(SpringLayout.WEST, setPositionListButton, 6, SpringLayout.EAST, platePanel_);
-      springLayout.putConstraint(SpringLayout.NORTH, setPositionListButton, 380, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, setPositionListButton, 405, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.SOUTH, setPositionListButton, 25, SpringLayout.NORTH, setPositionListButton);
       springLayout.putConstraint(SpringLayout.EAST, setPositionListButton, -4, SpringLayout.EAST, getContentPane());
       setPositionListButton.setIcon(SwingResourceManager.getIcon(SiteGenerator.class, "/org/micromanager/icons/table.png"));
@@ -352,9 +364,9 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       
       final JButton calibrateXyButton = new JButton();
       springLayout.putConstraint(SpringLayout.WEST, calibrateXyButton, 6, SpringLayout.EAST, platePanel_);
-      springLayout.putConstraint(SpringLayout.SOUTH, calibrateXyButton, 435, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.SOUTH, calibrateXyButton, 460, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.EAST, calibrateXyButton, -4, SpringLayout.EAST, getContentPane());
-      springLayout.putConstraint(SpringLayout.NORTH, calibrateXyButton, 410, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, calibrateXyButton, 435, SpringLayout.NORTH, getContentPane());
       calibrateXyButton.setIcon(SwingResourceManager.getIcon(SiteGenerator.class, "/org/micromanager/icons/cog.png"));
       calibrateXyButton.addActionListener(new ActionListener() {
          @Override
@@ -366,7 +378,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       getContentPane().add(calibrateXyButton);
 
       chckbxThreePt_ = new JCheckBox("Use 3-Point AF");
-      springLayout.putConstraint(SpringLayout.NORTH, chckbxThreePt_, 440, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, chckbxThreePt_, 465, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.WEST, chckbxThreePt_, 6, SpringLayout.EAST, platePanel_);
       springLayout.putConstraint(SpringLayout.EAST, chckbxThreePt_, -4, SpringLayout.EAST, getContentPane());
       chckbxThreePt_.addActionListener(new ActionListener() {
@@ -379,9 +391,9 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 
       JButton btnMarkPt = new JButton("Mark Point");
       springLayout.putConstraint(SpringLayout.SOUTH, chckbxThreePt_, -6, SpringLayout.NORTH, btnMarkPt);
-      springLayout.putConstraint(SpringLayout.NORTH, btnMarkPt, 470, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, btnMarkPt, 495, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.WEST, btnMarkPt, 6, SpringLayout.EAST, platePanel_);
-      springLayout.putConstraint(SpringLayout.SOUTH, btnMarkPt, 495, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.SOUTH, btnMarkPt, 520, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.EAST, btnMarkPt, -4, SpringLayout.EAST, getContentPane());
       btnMarkPt.setIcon(SwingResourceManager.getIcon(SiteGenerator.class, "/org/micromanager/icons/plus.png"));
       btnMarkPt.addActionListener(new ActionListener() {
@@ -406,6 +418,13 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
          }
       });
       getContentPane().add(btnSetThreePt);
+
+      refineFocus_ = new JCheckBox("Refine with Autofocus");
+      refineFocus_.setToolTipText("During acquisition, run autofocus in wells far from the 3-point list and add the results to the focus surface");
+      springLayout.putConstraint(SpringLayout.NORTH, refineFocus_, 6, SpringLayout.SOUTH, btnSetThreePt);
+      springLayout.putConstraint(SpringLayout.WEST, refineFocus_, 6, SpringLayout.EAST, platePanel_);
+      springLayout.putConstraint(SpringLayout.EAST, refineFocus_, -4, SpringLayout.EAST, getContentPane());
+      getContentPane().add(refineFocus_);
           
       statusLabel_ = new JLabel();
       springLayout.putConstraint(SpringLayout.SOUTH, platePanel_, -6, SpringLayout.NORTH, statusLabel_);
@@ -550,6 +569,8 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       prefs.put(SITE_ROWS, rowsField_.getText());
       prefs.put(SITE_COLS, columnsField_.getText());
       prefs.putBoolean(USE_SNAKE, useSnake_.isSelected());
+      prefs.putBoolean(OPTIMIZE_TRAVEL, optimizeTravel_.isSelected());
+      prefs.putBoolean(REFINE_FOCUS, refineFocus_.isSelected());
    }
 
    protected final void loadSettings() {
@@ -561,10 +582,15 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       rowsField_.setText(prefs.get(SITE_ROWS, "1"));
       columnsField_.setText(prefs.get(SITE_COLS, "1"));
       useSnake_.setSelected(prefs.getBoolean(USE_SNAKE, true));
+      optimizeTravel_.setSelected(prefs.getBoolean(OPTIMIZE_TRAVEL, false));
+      refineFocus_.setSelected(prefs.getBoolean(REFINE_FOCUS, false));
    }
 
    private void setPositionList() {
       WellPositionList[] wpl = platePanel_.getSelectedWellPositions();
+      if (optimizeTravel_.isSelected()) {
+         wpl = planStageTravel(wpl);
+      }
       PositionList platePl = new PositionList();
       for (WellPositionList wpl1 : wpl) {
          PositionList pl = PositionList.newInstance(wpl1.getSitePositions());
@@ -586,7 +612,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
             // add Z position if 3-point focus is enabled
             if (useThreePtAF()) {
                if (focusPlane_ == null) {
-                  displayError("3-point AF is seleced but 3 points are not defined.");
+                  displayError("3-point AF is selected but focus points are not defined.");
                   return;
                }
                // add z position from the 3-point plane estimate
@@ -603,6 +629,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       try {
          if (app_ != null) {
             app_.setPositionList(platePl);
+            attachFocusRunnable();
          }
       } catch (MMScriptException e) {
          displayError(e.getMessage());
@@ -610,6 +637,43 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 
    }
 
+   /**
+    * Lets the acquisition refine the focus surface with autofocus, if asked to.
+    * The engine can't detach a single runnable, so a runnable attached for an
+    * earlier list is removed by clearing them all.
+    */
+   private void attachFocusRunnable() {
+      if (focusRunnableAttached_) {
+         app_.clearRunnables();
+         focusRunnableAttached_ = false;
+      }
+      if (!useThreePtAF() || !refineFocus_.isSelected()) {
+         return;
+      }
+      if (app_.getAutofocus() == null) {
+         displayError("Refining the focus surface needs an autofocus device.");
+         return;
+      }
+      // wells next to an autofocus point are predicted from the surface
+      double maxDistance = Math.max(plate_.getWellSpacingX(), plate_.getWellSpacingY());
+      app_.attachRunnable(-1, -1, 0, 0, new SurfaceFocusRunnable(app_, focusPlane_, maxDistance));
+      focusRunnableAttached_ = true;
+   }
+
+   /**
+    * Orders wells and their sites for the shortest stage travel from the
+    * current stage position, and logs the stage travel saved
+    */
+   private WellPositionList[] planStageTravel(WellPositionList[] wpl) {
+      PlatePlanner planner = new PlatePlanner();
+      WellPositionList[] planned = planner.plan(wpl, xyStagePos_.x, xyStagePos_.y);
+      double before = planner.getTravelDistance(wpl, xyStagePos_.x, xyStagePos_.y);
+      double after = planner.getTravelDistance(planned, xyStagePos_.x, xyStagePos_.y);
+      ReportingUtils.logMessage("HCS: stage travel " + TextUtils.FMT2.format(after / 1000.0)
+              + " mm, was " + TextUtils.FMT2.format(before / 1000.0) + " mm in plate order");
+      return planned;
+   }
+
    /**
     * Mark current position as one point in the 3-pt set
     */
@@ -620,13 +684,13 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
    private void setThreePoint() {
       try {
          PositionList plist = app_.getPositionList();
-         if (plist.getNumberOfPositions() != 3) {
-            displayError("We need exactly three positions to fit AF plane. Please create XY list with 3 positions.");
+         if (plist.getNumberOfPositions() < 3) {
+            displayError("We need at least three positions to fit AF surface. Please create XY list with 3 or more positions.");
             return;
          }
 
          threePtList_ = PositionList.newInstance(plist);
-         focusPlane_ = new AFPlane(threePtList_.getPositions());
+         focusPlane_ = new FocusSurface(threePtList_.getPositions());
          chckbxThreePt_.setSelected(true);
          platePanel_.repaint();
 
@@ -0,0 +1,62 @@
+package org.micromanager.hcs;
+
+import java.awt.geom.Point2D;
+
+import mmcorej.CMMCore;
+
+import org.micromanager.api.Autofocus;
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.TextUtils;
+
+/**
+ * Refines a focus surface while a screen runs. Attached to the acquisition
+ * engine at the first channel and slice of every position, it runs autofocus
+ * where the surface has no point nearby and adds the result to the surface.
+ * Everywhere else it moves focus to the prediction of the surface, which
+ * improves as points are added, so autofocus only runs in a fraction of the
+ * wells.
+ *
+ * By the time runnables run the engine has already moved to the first slice,
+ * so acquisitions with Z stacks are left alone.
+ */
+public class SurfaceFocusRunnable implements Runnable {
+   private final ScriptInterface app_;
+   private final FocusSurface surface_;
+   private final double maxDistanceUm_;
+
+   /**
+    * @param maxDistanceUm autofocus runs farther than this from all points of
+    * the surface
+    */
+   public SurfaceFocusRunnable(ScriptInterface app, FocusSurface surface, double maxDistanceUm) {
+      app_ = app;
+      surface_ = surface;
+      maxDistanceUm_ = maxDistanceUm;
+   }
+
+   @Override
+   public void run() {
+      if (app_.getAcquisitionSettings().slices.size() > 1) {
+         return;
+      }
+      try {
+         CMMCore core = app_.getMMCore();
+         String focusDevice = core.getFocusDevice();
+         Point2D.Double xy = app_.getXYStagePosition();
+         Autofocus af = app_.getAutofocus();
+         if (af != null && surface_.needsAutofocus(xy.x, xy.y, maxDistanceUm_)) {
+            af.fullFocus();
+            double z = core.getPosition(focusDevice);
+            surface_.addPoint(xy.x, xy.y, z);
+            ReportingUtils.logMessage("HCS: added autofocus point " + TextUtils.FMT2.format(z)
+                    + " um at " + TextUtils.FMT2.format(xy.x) + ", " + TextUtils.FMT2.format(xy.y));
+         } else {
+            core.setPosition(focusDevice, surface_.getZPos(xy.x, xy.y));
+            core.waitForDevice(focusDevice);
+         }
+      } catch (Exception e) {
+         ReportingUtils.logError(e, "HCS: failed to refine the focus surface");
+      }
+   }
+}
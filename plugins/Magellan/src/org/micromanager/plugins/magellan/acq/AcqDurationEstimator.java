@@ -27,6 +27,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import org.apache.commons.math3.analysis.interpolation.LinearInterpolator;
 import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
+import org.micromanager.acquisition.DeviceLatencyModel;
 import org.micromanager.plugins.magellan.coordinates.XYStagePosition;
 import org.micromanager.plugins.magellan.gui.GUI;
 import org.micromanager.plugins.magellan.main.Magellan;
@@ -103,7 +104,24 @@ public class AcqDurationEstimator {
       return avgTime;
    }
 
+   /**
+    * Average of the times Magellan measured, or if there are none yet, the
+    * latency the acquisition engine measured for the device
+    */
+   private double averageOrShared(LinkedList<Double> list, String device, String kind, double feature) {
+      if (!list.isEmpty()) {
+         return averageList(list);
+      }
+      double latency = DeviceLatencyModel.getInstance().predict(device, kind, feature);
+      return Double.isNaN(latency) ? 0 : latency;
+   }
+
    public double estimateImageAcquisitionTime(double exposure) {
+      if (exposureMap_.isEmpty()) {
+         double pixels = (double) Magellan.getCore().getImageWidth() * Magellan.getCore().getImageHeight();
+         return exposure + averageOrShared(new LinkedList<Double>(), Magellan.getCore().getCameraDevice(),
+                 DeviceLatencyModel.CAMERA_READOUT, pixels);
+      }
       double[] exposures = new double[exposureMap_.keySet().size()];
       double[] avgTimes = new double[exposureMap_.keySet().size()];
       int i = 0;
@@ -168,11 +186,14 @@ public class AcqDurationEstimator {
 
                double imageTime = estimateImageAcquisitionTime(Magellan.getCore().getExposure());
                checkForInterrupt();
-               double xyMoveTime = averageList(xyMoveTimeList_);
+               double xyMoveTime = averageOrShared(xyMoveTimeList_, Magellan.getCore().getXYStageDevice(),
+                       DeviceLatencyModel.XY_MOVE, Math.max(Magellan.getCore().getImageWidth(),
+                       Magellan.getCore().getImageHeight()) * Magellan.getCore().getPixelSizeUm());
                checkForInterrupt();
-               double zMoveTime = averageList(zStepMoveTimeList_);
+               double zMoveTime = averageOrShared(zStepMoveTimeList_, Magellan.getCore().getFocusDevice(),
+                       DeviceLatencyModel.Z_MOVE, settings.zStep_);
                checkForInterrupt();
-               double channelMoveTime = averageList(channelSwitchTimeList_);
+               double channelMoveTime = channelSwitchTimeList_.isEmpty() ? 0 : averageList(channelSwitchTimeList_);
                checkForInterrupt();
 
                List<XYStagePosition> positions = getXYPositions(settings);
@@ -0,0 +1,574 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.acq;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.micromanager.plugins.magellan.coordinates.PositionManager;
+import org.micromanager.plugins.magellan.json.JSONObject;
+import org.micromanager.plugins.magellan.misc.Log;
+import org.micromanager.plugins.magellan.misc.MD;
+
+/**
+ * Builds the downsampled resolution levels of a MultiResMultipageTiffStorage
+ * on a small pool of background threads, so that pyramid maintenance doesn't
+ * hold up the thread that writes full resolution tiles.
+ *
+ * Each low res tile is assembled in an in-memory accumulator: higher res
+ * tiles are averaged into the appropriate quadrant, and the accumulated tile
+ * is then written (or overwritten) on disk asynchronously. A tile that is
+ * updated many times in quick succession is written only once per pending
+ * write. Accumulators are kept in memory up to a byte budget, least recently
+ * used ones are dropped first, and they are reread from disk when needed
+ * again. Every write also updates the storage's TileCache, so the display
+ * sees new low res tiles without reading them back.
+ *
+ * Lock order: the accumulator of level r - 1 before that of level r, an
+ * accumulator before its storage, and an accumulator before accumulators_.
+ */
+class LowResPyramidBuilder {
+
+   // fraction of the max heap that the resident accumulators of all
+   // builders may occupy together
+   private static final double MEMORY_FRACTION = 0.125;
+   private static final long MAX_RESIDENT_BYTES = (long) (Runtime.getRuntime().maxMemory() * MEMORY_FRACTION);
+   //bytes of the resident accumulators of all builders
+   private static final AtomicLong totalResidentBytes_ = new AtomicLong();
+   // number of full res tiles that may wait to be downsampled before
+   // addTile() blocks
+   private static final int MAX_QUEUED_TILES = 64;
+   // reads of a low res tile before giving up on a 0 length result
+   private static final int MAX_READ_ATTEMPTS = 3;
+
+   private final MultiResMultipageTiffStorage storage_;
+   private final PositionManager posManager_;
+   private final TileCache tileCache_;
+   private final int byteDepth_;
+   private final int tileWidth_, tileHeight_;
+   private final int fullResWidth_, fullResHeight_;
+   private final int fullResXOffset_, fullResYOffset_; //overlap pixels thrown away at res level 1
+   private final ThreadPoolExecutor executor_;
+   //map of key (resIndex_label) to accumulator, in access order
+   private final LinkedHashMap<String, Accumulator> accumulators_ =
+           new LinkedHashMap<String, Accumulator>(16, 0.75f, true);
+   private final Object pendingLock_ = new Object();
+   private int pendingTasks_ = 0, queuedTiles_ = 0;
+
+   private static class Accumulator {
+
+      final String key_;
+      final int resIndex_, channel_, slice_, frame_, positionIndex_;
+      Object pix_;
+      JSONObject tags_;
+      boolean onDisk_ = false;
+      boolean dirty_ = false;
+      boolean writeScheduled_ = false;
+      //number of tasks holding this accumulator; guarded by accumulators_
+      int users_ = 0;
+
+      Accumulator(String key, int resIndex, int channel, int slice, int frame, int positionIndex) {
+         key_ = key;
+         resIndex_ = resIndex;
+         channel_ = channel;
+         slice_ = slice;
+         frame_ = frame;
+         positionIndex_ = positionIndex;
+      }
+   }
+
+   LowResPyramidBuilder(MultiResMultipageTiffStorage storage, PositionManager posManager, TileCache tileCache,
+           int byteDepth, int tileWidth, int tileHeight, int fullResWidth, int fullResHeight, int xOverlap, int yOverlap) {
+      storage_ = storage;
+      posManager_ = posManager;
+      tileCache_ = tileCache;
+      byteDepth_ = byteDepth;
+      tileWidth_ = tileWidth;
+      tileHeight_ = tileHeight;
+      fullResWidth_ = fullResWidth;
+      fullResHeight_ = fullResHeight;
+      fullResXOffset_ = xOverlap / 2;
+      fullResYOffset_ = yOverlap / 2;
+      int numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+      executor_ = new ThreadPoolExecutor(numThreads, numThreads, 5, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Magellan pyramid builder");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      executor_.allowCoreThreadTimeOut(true);
+   }
+
+   /**
+    * Queue a full resolution tile to be averaged into resolution levels 1
+    * through numLowResLevels. Blocks only if too many tiles are already
+    * waiting.
+    */
+   void addTile(final MagellanTaggedImage img, final int fullResPositionIndex, final int numLowResLevels) {
+      if (numLowResLevels < 1) {
+         return;
+      }
+      synchronized (pendingLock_) {
+         while (queuedTiles_ >= MAX_QUEUED_TILES) {
+            try {
+               pendingLock_.wait();
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               break;
+            }
+         }
+         queuedTiles_++;
+      }
+      submit(new Runnable() {
+         @Override
+         public void run() {
+            synchronized (pendingLock_) {
+               queuedTiles_--;
+               pendingLock_.notifyAll();
+            }
+            downsampleTile(img, fullResPositionIndex, numLowResLevels);
+         }
+      });
+   }
+
+   /**
+    * Build resolution level resIndex, whose storage must already exist, from
+    * all tiles of level resIndex - 1, and wait until it is finished. Callers
+    * must not add tiles concurrently and should awaitIdle() first so that
+    * level resIndex - 1 is complete on disk.
+    */
+   void buildLevel(final int resIndex) {
+      TaggedImageStorageMultipageTiff previousLevelStorage = storage_.getStorage(resIndex - 1);
+      List<String> keys;
+      synchronized (previousLevelStorage) {
+         keys = new ArrayList<String>(previousLevelStorage.imageKeys());
+      }
+      for (String key : keys) {
+         final int[] indices = MD.getIndices(key);
+         final int fullResPositionIndex = resIndex == 1 ? indices[3]
+                 : posManager_.getFullResPositionIndex(indices[3], resIndex - 1);
+         submit(new Runnable() {
+            @Override
+            public void run() {
+               addFromPreviousLevel(resIndex, indices, fullResPositionIndex);
+            }
+         });
+      }
+      awaitIdle();
+   }
+
+   /**
+    * Wait until all queued tiles have been downsampled and all low res tiles
+    * have been handed to their storages
+    */
+   void awaitIdle() {
+      synchronized (pendingLock_) {
+         while (pendingTasks_ > 0) {
+            try {
+               pendingLock_.wait();
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
+      }
+   }
+
+   private void submit(final Runnable task) {
+      synchronized (pendingLock_) {
+         pendingTasks_++;
+      }
+      executor_.execute(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               task.run();
+            } catch (RuntimeException ex) {
+               Log.log(ex);
+            } finally {
+               synchronized (pendingLock_) {
+                  pendingTasks_--;
+                  if (pendingTasks_ == 0) {
+                     pendingLock_.notifyAll();
+                  }
+               }
+            }
+         }
+      });
+   }
+
+   private void downsampleTile(MagellanTaggedImage img, int fullResPositionIndex, int numLowResLevels) {
+      int channel = MD.getChannelIndex(img.tags);
+      int slice = MD.getSliceIndex(img.tags);
+      int frame = MD.getFrameIndex(img.tags);
+      Accumulator previous = null;
+      try {
+         for (int resIndex = 1; resIndex <= numLowResLevels; resIndex++) {
+            //Determine which position in 2x2 this tile sits in
+            int xPos = (int) Math.abs(posManager_.getGridCol(fullResPositionIndex, resIndex - 1) % 2);
+            int yPos = (int) Math.abs(posManager_.getGridRow(fullResPositionIndex, resIndex - 1) % 2);
+            Accumulator current = acquire(resIndex, channel, slice, frame,
+                    posManager_.getLowResPositionIndex(fullResPositionIndex, resIndex));
+            if (previous == null) {
+               synchronized (current) {
+                  if (!load(current, img.tags, fullResPositionIndex)) {
+                     release(current);
+                     return;
+                  }
+                  downsample(img.pix, fullResWidth_, fullResHeight_, fullResXOffset_, fullResYOffset_,
+                          current.pix_, xPos, yPos);
+                  markDirty(current);
+               }
+            } else {
+               synchronized (previous) {
+                  synchronized (current) {
+                     if (!load(current, previous.tags_, fullResPositionIndex)) {
+                        release(current);
+                        return;
+                     }
+                     downsample(previous.pix_, tileWidth_, tileHeight_, 0, 0, current.pix_, xPos, yPos);
+                     markDirty(current);
+                  }
+               }
+               release(previous);
+            }
+            previous = current;
+         }
+      } finally {
+         if (previous != null) {
+            release(previous);
+         }
+      }
+   }
+
+   private void addFromPreviousLevel(int resIndex, int[] indices, int fullResPositionIndex) {
+      int xPos = (int) Math.abs(posManager_.getGridCol(fullResPositionIndex, resIndex - 1) % 2);
+      int yPos = (int) Math.abs(posManager_.getGridRow(fullResPositionIndex, resIndex - 1) % 2);
+      Accumulator current = acquire(resIndex, indices[0], indices[1], indices[2],
+              posManager_.getLowResPositionIndex(fullResPositionIndex, resIndex));
+      try {
+         if (resIndex == 1) {
+            TaggedImageStorageMultipageTiff fullResStorage = storage_.getStorage(0);
+            MagellanTaggedImage tile;
+            synchronized (fullResStorage) {
+               tile = fullResStorage.getImage(indices[0], indices[1], indices[2], indices[3]);
+            }
+            if (tile == null || Array.getLength(tile.pix) != fullResWidth_ * fullResHeight_) {
+               return;
+            }
+            synchronized (current) {
+               if (load(current, tile.tags, fullResPositionIndex)) {
+                  downsample(tile.pix, fullResWidth_, fullResHeight_, fullResXOffset_, fullResYOffset_,
+                          current.pix_, xPos, yPos);
+                  markDirty(current);
+               }
+            }
+         } else {
+            Accumulator previous = acquire(resIndex - 1, indices[0], indices[1], indices[2], indices[3]);
+            try {
+               synchronized (previous) {
+                  synchronized (current) {
+                     if (load(previous, null, fullResPositionIndex)
+                             && load(current, previous.tags_, fullResPositionIndex)) {
+                        downsample(previous.pix_, tileWidth_, tileHeight_, 0, 0, current.pix_, xPos, yPos);
+                        markDirty(current);
+                     }
+                  }
+               }
+            } finally {
+               release(previous);
+            }
+         }
+      } finally {
+         release(current);
+      }
+   }
+
+   private Accumulator acquire(int resIndex, int channel, int slice, int frame, int positionIndex) {
+      String key = TileCache.getKey(resIndex, channel, slice, frame, positionIndex);
+      synchronized (accumulators_) {
+         Accumulator acc = accumulators_.get(key);
+         if (acc == null) {
+            acc = new Accumulator(key, resIndex, channel, slice, frame, positionIndex);
+            accumulators_.put(key, acc);
+            totalResidentBytes_.addAndGet(getTileBytes());
+         }
+         acc.users_++;
+         return acc;
+      }
+   }
+
+   private void release(Accumulator acc) {
+      synchronized (accumulators_) {
+         acc.users_--;
+         if (totalResidentBytes_.get() <= MAX_RESIDENT_BYTES) {
+            return;
+         }
+         //drop least recently used accumulators that no task holds; they
+         //are clean, since a pending write holds its accumulator
+         Iterator<Accumulator> it = accumulators_.values().iterator();
+         while (totalResidentBytes_.get() > MAX_RESIDENT_BYTES && it.hasNext()) {
+            if (it.next().users_ == 0) {
+               it.remove();
+               totalResidentBytes_.addAndGet(-getTileBytes());
+            }
+         }
+      }
+   }
+
+   /**
+    * Drop all accumulators no task holds, e.g. once the acquisition is
+    * finished, so that the memory budget goes to the builders still in use.
+    * They are reread from disk if needed again.
+    */
+   void trim() {
+      synchronized (accumulators_) {
+         Iterator<Accumulator> it = accumulators_.values().iterator();
+         while (it.hasNext()) {
+            if (it.next().users_ == 0) {
+               it.remove();
+               totalResidentBytes_.addAndGet(-getTileBytes());
+            }
+         }
+      }
+   }
+
+   private long getTileBytes() {
+      return (long) tileWidth_ * tileHeight_ * byteDepth_;
+   }
+
+   /**
+    * Make sure the pixels of acc are in memory, reading them from disk or
+    * starting a new tile filled with the background value. Caller holds acc.
+    *
+    * @param sourceTags tags of a higher res tile, used to make the tags of a
+    * new tile. If null, only existing tiles are loaded
+    * @return false if the tile doesn't exist and can't be created, or exists
+    * but can't be read
+    */
+   private boolean load(Accumulator acc, JSONObject sourceTags, int fullResPositionIndex) {
+      if (acc.pix_ != null) {
+         return true;
+      }
+      TaggedImageStorageMultipageTiff storage = storage_.getStorage(acc.resIndex_);
+      MagellanTaggedImage existing = tileCache_.get(acc.key_);
+      if (existing != null) {
+         //cached tiles are shared, so work on a copy
+         existing = new MagellanTaggedImage(copyPixels(existing.pix), existing.tags);
+      } else {
+         //pixels can occasionally be read back with 0 length right after being
+         //written, so read again a few times in that case
+         for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            synchronized (storage) {
+               existing = storage.getImage(acc.channel_, acc.slice_, acc.frame_, acc.positionIndex_);
+            }
+            if (existing == null || Array.getLength(existing.pix) == tileWidth_ * tileHeight_) {
+               break;
+            }
+            Thread.yield();
+         }
+      }
+      if (existing != null) {
+         if (Array.getLength(existing.pix) != tileWidth_ * tileHeight_) {
+            //starting from background would overwrite the quadrants already
+            //on disk, so leave the tile as it is
+            Log.log("Couldn't read lower resolution tile " + acc.key_ + ", skipping update");
+            return false;
+         }
+         acc.tags_ = existing.tags;
+         acc.onDisk_ = true;
+         acc.pix_ = existing.pix;
+         return true;
+      }
+      if (sourceTags == null) {
+         return false;
+      }
+      try {
+         //create a copy of tags so tags from a different res level arent inadvertantly modified
+         JSONObject tags = new JSONObject(sourceTags.toString());
+         //modify tags to reflect image size, and correct position index
+         MD.setWidth(tags, tileWidth_);
+         MD.setHeight(tags, tileHeight_);
+         long gridRow = posManager_.getGridRow(fullResPositionIndex, acc.resIndex_);
+         long gridCol = posManager_.getGridCol(fullResPositionIndex, acc.resIndex_);
+         MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
+         MD.setPositionIndex(tags, acc.positionIndex_);
+         acc.tags_ = tags;
+      } catch (Exception e) {
+         Log.log("Couldnt modify tags for lower resolution level");
+         return false;
+      }
+      acc.pix_ = newTile(acc.channel_);
+      return true;
+   }
+
+   private Object copyPixels(Object pix) {
+      return byteDepth_ == 1 ? ((byte[]) pix).clone() : ((short[]) pix).clone();
+   }
+
+   private Object newTile(int channel) {
+      if (byteDepth_ == 1) {
+         byte[] pix = new byte[tileWidth_ * tileHeight_];
+         Arrays.fill(pix, (byte) storage_.getBackgroundPixelValue(channel));
+         return pix;
+      } else {
+         short[] pix = new short[tileWidth_ * tileHeight_];
+         Arrays.fill(pix, (short) storage_.getBackgroundPixelValue(channel));
+         return pix;
+      }
+   }
+
+   /**
+    * Schedule a write of acc unless one is already pending, in which case
+    * that write picks up the new pixels. Caller holds acc.
+    */
+   private void markDirty(final Accumulator acc) {
+      acc.dirty_ = true;
+      if (acc.writeScheduled_) {
+         return;
+      }
+      acc.writeScheduled_ = true;
+      synchronized (accumulators_) {
+         acc.users_++;
+      }
+      submit(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               write(acc);
+            } finally {
+               release(acc);
+            }
+         }
+      });
+   }
+
+   private void write(Accumulator acc) {
+      synchronized (acc) {
+         acc.writeScheduled_ = false;
+         if (!acc.dirty_) {
+            return;
+         }
+         acc.dirty_ = false;
+         TaggedImageStorageMultipageTiff storage = storage_.getStorage(acc.resIndex_);
+         //the storage and the tile cache hold on to the image, so give them a
+         //copy that won't change underneath them
+         MagellanTaggedImage tile = new MagellanTaggedImage(copyPixels(acc.pix_), acc.tags_);
+         try {
+            synchronized (storage) {
+               if (acc.onDisk_) {
+                  //Image already exists, only overwrite pixels to include new tiles
+                  storage.overwritePixels(tile.pix, acc.channel_, acc.slice_, acc.frame_, acc.positionIndex_);
+               } else {
+                  storage.putImage(tile);
+                  acc.onDisk_ = true;
+               }
+            }
+            tileCache_.update(acc.key_, tile);
+         } catch (IOException ex) {
+            Log.log("Couldn't write lower resolution tile " + acc.key_);
+         }
+      }
+   }
+
+   /**
+    * Average 2x2 blocks of the tileWidth_ x tileHeight_ region of src whose
+    * top left corner is (srcX, srcY) into quadrant (xPos, yPos) of dst. At
+    * the right and bottom edges of src only the pixels that exist are
+    * averaged.
+    */
+   private void downsample(Object src, int srcWidth, int srcHeight, int srcX, int srcY,
+           Object dst, int xPos, int yPos) {
+      if (byteDepth_ == 1) {
+         downsample((byte[]) src, srcWidth, srcHeight, srcX, srcY, (byte[]) dst, xPos, yPos);
+      } else {
+         downsample((short[]) src, srcWidth, srcHeight, srcX, srcY, (short[]) dst, xPos, yPos);
+      }
+   }
+
+   private void downsample(byte[] src, int srcWidth, int srcHeight, int srcX, int srcY,
+           byte[] dst, int xPos, int yPos) {
+      //columns with a right hand neighbor
+      int fullColumns = Math.min(tileWidth_, srcWidth - 1);
+      int dstX = xPos * tileWidth_;
+      for (int y = 0; y < tileHeight_; y += 2) {
+         int row = (y + srcY) * srcWidth + srcX;
+         //if full res tile has an odd number of pix, the last one gets chopped off
+         //to make it fit into tile containers
+         int dstRow = ((y + yPos * tileHeight_) / 2) * tileWidth_;
+         int x = 0;
+         if (y < srcHeight - 1) {
+            int nextRow = row + srcWidth;
+            for (; x < fullColumns; x += 2) {
+               dst[dstRow + (x + dstX) / 2] = (byte) (((src[row + x] & 0xff) + (src[row + x + 1] & 0xff)
+                       + (src[nextRow + x] & 0xff) + (src[nextRow + x + 1] & 0xff)) >> 2);
+            }
+            if (x < tileWidth_) {
+               dst[dstRow + (x + dstX) / 2] = (byte) (((src[row + x] & 0xff) + (src[nextRow + x] & 0xff)) >> 1);
+            }
+         } else {
+            for (; x < fullColumns; x += 2) {
+               dst[dstRow + (x + dstX) / 2] = (byte) (((src[row + x] & 0xff) + (src[row + x + 1] & 0xff)) >> 1);
+            }
+            if (x < tileWidth_) {
+               dst[dstRow + (x + dstX) / 2] = src[row + x];
+            }
+         }
+      }
+   }
+
+   private void downsample(short[] src, int srcWidth, int srcHeight, int srcX, int srcY,
+           short[] dst, int xPos, int yPos) {
+      int fullColumns = Math.min(tileWidth_, srcWidth - 1);
+      int dstX = xPos * tileWidth_;
+      for (int y = 0; y < tileHeight_; y += 2) {
+         int row = (y + srcY) * srcWidth + srcX;
+         int dstRow = ((y + yPos * tileHeight_) / 2) * tileWidth_;
+         int x = 0;
+         if (y < srcHeight - 1) {
+            int nextRow = row + srcWidth;
+            for (; x < fullColumns; x += 2) {
+               dst[dstRow + (x + dstX) / 2] = (short) (((src[row + x] & 0xffff) + (src[row + x + 1] & 0xffff)
+                       + (src[nextRow + x] & 0xffff) + (src[nextRow + x + 1] & 0xffff)) >> 2);
+            }
+            if (x < tileWidth_) {
+               dst[dstRow + (x + dstX) / 2] = (short) (((src[row + x] & 0xffff) + (src[nextRow + x] & 0xffff)) >> 1);
+            }
+         } else {
+            for (; x < fullColumns; x += 2) {
+               dst[dstRow + (x + dstX) / 2] = (short) (((src[row + x] & 0xffff) + (src[row + x + 1] & 0xffff)) >> 1);
+            }
+            if (x < tileWidth_) {
+               dst[dstRow + (x + dstX) / 2] = src[row + x];
+            }
+         }
+      }
+   }
+}
@@ -28,12 +28,23 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -59,6 +70,7 @@ public class MultiResMultipageTiffStorage {
    private final double BACKGROUND_PIXEL_PERCENTILE = 0.1; // assume background pixels are at 10th percentile of histogram
    private static final String FULL_RES_SUFFIX = "Full resolution";
    private static final String DOWNSAMPLE_SUFFIX = "Downsampled_x";
+   private static ThreadPoolExecutor tileCopyExecutor_; //shared by all storages
    private TaggedImageStorageMultipageTiff fullResStorage_;
    private TreeMap<Integer, TaggedImageStorageMultipageTiff> lowResStorages_; //map of resolution index to storage instance
    private String directory_;
@@ -70,12 +82,14 @@ public class MultiResMultipageTiffStorage {
    private boolean finished_;
    private String uniqueAcqName_;
    private int byteDepth_;
-   private TreeMap<Integer, Integer> backgroundPix_ = new TreeMap<Integer, Integer>(); //map of channel index to background pixel value
+   private Map<Integer, Integer> backgroundPix_ = new ConcurrentHashMap<Integer, Integer>(); //map of channel index to background pixel value
    private boolean estimateBackground_;
    private double pixelSizeXY_, pixelSizeZ_;
    private AffineTransform affine_;
    private BDVXMLWriter bdvXML_;
    private int currentTP_ = -1;
+   private LowResPyramidBuilder pyramid_;
+   private final TileCache tileCache_ = new TileCache(); //budget shared by all storages
    
    /**
     * Constructor to load existing storage from disk
@@ -126,7 +140,10 @@ public class MultiResMultipageTiffStorage {
 
       } catch (Exception e) {
          Log.log("Couldn't create position manager", true);
+         return;
       }
+      createPyramidBuilder();
+      buildMissingLowResLevels();
    }
 
    /**
@@ -166,6 +183,7 @@ public class MultiResMultipageTiffStorage {
       } catch (Exception e) {
          Log.log("Couldn't create position manaher", true);
       }
+      createPyramidBuilder();
       try {
          //Create full Res storage
          fullResStorage_ = new TaggedImageStorageMultipageTiff(fullResDir, true, summaryMetadata);
@@ -180,6 +198,11 @@ public class MultiResMultipageTiffStorage {
       }
    }
 
+   private void createPyramidBuilder() {
+      pyramid_ = new LowResPyramidBuilder(this, posManager_, tileCache_, byteDepth_, tileWidth_, tileHeight_,
+              fullResTileWidthIncludingOverlap_, fullResTileHeightIncludingOverlap_, xOverlap_, yOverlap_);
+   }
+
    public static JSONObject readSummaryMetadata(String dir) throws IOException {
       String fullResDir = dir + (dir.endsWith(File.separator) ? "" : File.separator) + FULL_RES_SUFFIX;
       return TaggedImageStorageMultipageTiff.readSummaryMD(fullResDir);
@@ -304,29 +327,18 @@ public class MultiResMultipageTiffStorage {
    }
    
    /**
-    * Method for reading 3D volumes for compatibility with TeraFly
-    * @return 
+    * Method for reading 3D volumes for compatibility with TeraFly, and for
+    * loading BigDataViewer blocks. Tiles come from the same tile cache as
+    * getImageForDisplay and are copied straight into the returned array, with
+    * all slices loaded in parallel.
+    * @return pixels of all slices, one after another, with the tags of the top
+    * left tile of the last slice (or null if there is none)
     */
    public MagellanTaggedImage loadSubvolume(int channel, int frame, int resIndex,
-           int xStart, int yStart, int zStart, int width, int height, int depth) {
-      JSONObject metadata = null;
-      if (byteDepth_ == 1) {
-         byte[] pix = new byte[width*height*depth];
-         for (int z = zStart; z < zStart + depth; z++ ) {
-            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height);
-            metadata = image.tags;
-            System.arraycopy(image.pix, 0, pix, (z-zStart)*(width*height), width*height);
-         }
-         return new MagellanTaggedImage(pix, metadata);
-      } else {
-         short[] pix = new short[width*height*depth];
-         for (int z = zStart; z < zStart + depth; z++ ) {
-            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height);
-            metadata = image.tags;
-            System.arraycopy(image.pix, 0, pix, (z-zStart)*(width*height), width*height);
-         }
-         return new MagellanTaggedImage(pix, metadata);
-      }
+           long xStart, long yStart, int zStart, int width, int height, int depth) {
+      Object pixels = createPixels(channel, width * height * depth);
+      JSONObject[] tags = stitchPlanes(channel, zStart, depth, frame, resIndex, xStart, yStart, width, height, pixels);
+      return new MagellanTaggedImage(pixels, tags[depth - 1]);
    }
 
    /**
@@ -347,108 +359,177 @@ public class MultiResMultipageTiffStorage {
     */
    public MagellanTaggedImage getImageForDisplay(int channel, int slice, int frame, int dsIndex, long x, long y, 
            int width, int height) {
-      Object pixels;
+      Object pixels = createPixels(channel, width * height);
+      JSONObject[] tags = stitchPlanes(channel, slice, 1, frame, dsIndex, x, y, width, height, pixels);
+      return new MagellanTaggedImage(pixels, tags[0]);
+   }
+
+   /**
+    * @return pixel array of the given length filled with the background value
+    */
+   private Object createPixels(int channel, int length) {
       if (byteDepth_ == 1) {
-         pixels = new byte[width * height]; 
+         byte[] pixels = new byte[length];
          if (backgroundPix_.containsKey(channel)) {
-            Arrays.fill((byte[]) pixels, (byte)getBackgroundPixelValue(channel));
+            Arrays.fill(pixels, (byte) getBackgroundPixelValue(channel));
          }
-      } else {            
-         pixels = new short[width * height];      
+         return pixels;
+      } else {
+         short[] pixels = new short[length];
          if (backgroundPix_.containsKey(channel)) {
-            Arrays.fill((short[]) pixels, (short)getBackgroundPixelValue(channel));
+            Arrays.fill(pixels, (short) getBackgroundPixelValue(channel));
          }
+         return pixels;
       }
-      //go line by line through one column of tiles at a time, then move to next column
-      JSONObject topLeftMD = null;
-      //first calculate how many columns and rows of tiles are relevant and the number of pixels
-      //of each tile to copy into the returned image
-      long previousCol = tileIndexFromPixelIndex(x, true) - 1; //make it one less than the first col in loop
-      LinkedList<Integer> lineWidths = new LinkedList<Integer>();
-      for (long i = x; i < x + width; i++) { //Iterate through every column of pixels in the image to be returned
-         long colIndex = tileIndexFromPixelIndex(i, true);
-         if (colIndex != previousCol) {
-            lineWidths.add(0);
-         }
-         //Increment current width
-         lineWidths.add(lineWidths.removeLast() + 1);
-         previousCol = colIndex;
-      }
-      //do the same thing for rows
-      long previousRow = tileIndexFromPixelIndex(y, false) - 1; //one less than first row in loop?
-      LinkedList<Integer> lineHeights = new LinkedList<Integer>();
-      for (long i = y; i < y + height; i++) {
-         long rowIndex = tileIndexFromPixelIndex(i, false);
-         if (rowIndex != previousRow) {
-            lineHeights.add(0);
+   }
+
+   /**
+    * Stitch the width x height area at (x, y) of depth consecutive slices into
+    * pixels, one plane after another
+    *
+    * @return for each plane the tags of its top left tile, or null if no pixel
+    * data is present
+    */
+   private JSONObject[] stitchPlanes(final int channel, final int zStart, int depth, final int frame,
+           final int dsIndex, final long x, final long y, final int width, final int height, final Object pixels) {
+      //tiles that overlap the requested area, and their position indices
+      final long rowStart = tileIndexFromPixelIndex(y, false);
+      final long colStart = tileIndexFromPixelIndex(x, true);
+      int numRows = (int) (tileIndexFromPixelIndex(y + height - 1, false) - rowStart + 1);
+      int numCols = (int) (tileIndexFromPixelIndex(x + width - 1, true) - colStart + 1);
+      final int[][] posIndices = new int[numRows][numCols];
+      for (int row = 0; row < numRows; row++) {
+         for (int col = 0; col < numCols; col++) {
+            posIndices[row][col] = posManager_.getPositionIndexFromTilePosition(dsIndex, rowStart + row, colStart + col);
          }
-         //add one to pixel count of current height
-         lineHeights.add(lineHeights.removeLast() + 1);
-         previousRow = rowIndex;
-      }
-      //get starting row and column
-      long rowStart = tileIndexFromPixelIndex(y, false);
-      long colStart = tileIndexFromPixelIndex(x, true);
-      //xOffset and y offset are the distance from the top left of the display image into which 
-      //we are copying data
-      int xOffset = 0;
-      for (long col = colStart; col < colStart + lineWidths.size(); col++) {
-         int yOffset = 0;
-         for (long row = rowStart; row < rowStart + lineHeights.size(); row++) {
-            MagellanTaggedImage tile = null;          
-            if (dsIndex == 0) {
-               tile = fullResStorage_.getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            } else {               
-               tile = lowResStorages_.get(dsIndex) == null ? null : 
-                       lowResStorages_.get(dsIndex).getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            }
-            if (tile == null) {
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue; //If no data present for this tile go on to next one
-            } else if ( (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0) ||
-                    (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0))  {
-               //Somtimes an inability to read IFDs soon after they are written results in an image being read 
-               //with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
-               //a black flickering during acquisition
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue;
+      }
+      //each row of tiles of each plane covers a separate block of lines of
+      //pixels, so they can be read and copied in parallel
+      final MagellanTaggedImage[][][] tiles = new MagellanTaggedImage[depth][numRows][numCols];
+      if (depth == 1 && numRows == 1) {
+         copyTileRow(channel, zStart, frame, dsIndex, x, y, width, height, rowStart, colStart,
+                 posIndices[0], tiles[0][0], pixels, 0);
+      } else {
+         List<Callable<Void>> rowCopies = new ArrayList<Callable<Void>>(depth * numRows);
+         for (int plane = 0; plane < depth; plane++) {
+            for (int row = 0; row < numRows; row++) {
+               final int planeIndex = plane, rowIndex = row;
+               rowCopies.add(new Callable<Void>() {
+                  @Override
+                  public Void call() {
+                     copyTileRow(channel, zStart + planeIndex, frame, dsIndex, x, y, width, height,
+                             rowStart + rowIndex, colStart, posIndices[rowIndex], tiles[planeIndex][rowIndex],
+                             pixels, planeIndex * width * height);
+                     return null;
+                  }
+               });
             }
-            //take top left tile for metadata
-            if (topLeftMD == null) {
-               topLeftMD = tile.tags;
+         }
+         try {
+            for (Future<Void> future : getTileCopyExecutor().invokeAll(rowCopies)) {
+               future.get();
             }
-            //Copy pixels into the image to be returned
-            //yOffset is how many rows from top of viewable area, y is top of image to top of area
-            for (int line = yOffset; line < lineHeights.get((int)(row - rowStart)) + yOffset; line++) {
-               int tileYPix = (int) ((y + line) % tileHeight_);
-               int tileXPix = (int) ((x + xOffset) % tileWidth_);                   
-               //make sure tile pixels are positive
-               while (tileXPix < 0) {
-                  tileXPix += tileWidth_;
-               }
-               while (tileYPix < 0) {
-                  tileYPix += tileHeight_;
-               }
-               try {
-                  if (dsIndex == 0) {
-                     //account for overlaps when viewing full resolution tiles
-                     tileYPix += yOverlap_ / 2;
-                     tileXPix += xOverlap_ / 2;
-                     System.arraycopy(tile.pix, tileYPix * fullResTileWidthIncludingOverlap_ + tileXPix, pixels, xOffset + width * line, lineWidths.get((int) (col - colStart)));                 
-                  } else {
-                     System.arraycopy(tile.pix, tileYPix * tileWidth_ + tileXPix, pixels, xOffset + width * line, lineWidths.get((int)(col - colStart)));
-                  }
-               } catch (Exception e) {
-                  e.printStackTrace();
-                  Log.log("Problem copying pixels");
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         } catch (ExecutionException ex) {
+            Log.log("Problem copying pixels");
+         }
+      }
+      //take top left tile for metadata
+      JSONObject[] topLeftMD = new JSONObject[depth];
+      for (int plane = 0; plane < depth; plane++) {
+         for (int col = 0; col < numCols && topLeftMD[plane] == null; col++) {
+            for (int row = 0; row < numRows && topLeftMD[plane] == null; row++) {
+               if (tiles[plane][row][col] != null) {
+                  topLeftMD[plane] = tiles[plane][row][col].tags;
                }
             }
-            yOffset += lineHeights.get((int)(row - rowStart));
+         }
+      }
+      return topLeftMD;
+   }
 
+   /**
+    * Copy the part of one row of tiles that falls within the requested area
+    * into the plane of pixels starting at planeOffset
+    *
+    * @param tiles filled with the tiles that were found
+    */
+   private void copyTileRow(int channel, int slice, int frame, int dsIndex, long x, long y,
+           int width, int height, long row, long colStart, int[] posIndices, MagellanTaggedImage[] tiles,
+           Object pixels, int planeOffset) {
+      //account for overlaps when viewing full resolution tiles
+      int tileXOffset = dsIndex == 0 ? xOverlap_ / 2 : 0;
+      int tileYOffset = dsIndex == 0 ? yOverlap_ / 2 : 0;
+      int tileWidthIncludingOverlap = dsIndex == 0 ? fullResTileWidthIncludingOverlap_ : tileWidth_;
+      //lines of the returned image that this row of tiles covers
+      long rowTop = row * tileHeight_;
+      int firstLine = (int) (Math.max(y, rowTop) - y);
+      int endLine = (int) (Math.min(y + height, rowTop + tileHeight_) - y);
+      for (int i = 0; i < tiles.length; i++) {
+         MagellanTaggedImage tile = getTile(channel, slice, frame, dsIndex, posIndices[i]);
+         if (tile == null) {
+            continue; //If no data present for this tile go on to next one
+         }
+         tiles[i] = tile;
+         //columns of the returned image that this tile covers
+         long colLeft = (colStart + i) * tileWidth_;
+         int xOffset = (int) (Math.max(x, colLeft) - x);
+         int lineWidth = (int) (Math.min(x + width, colLeft + tileWidth_) - x) - xOffset;
+         int tileXPix = (int) (x + xOffset - colLeft) + tileXOffset;
+         try {
+            for (int line = firstLine; line < endLine; line++) {
+               int tileYPix = (int) (y + line - rowTop) + tileYOffset;
+               System.arraycopy(tile.pix, tileYPix * tileWidthIncludingOverlap + tileXPix, pixels,
+                       planeOffset + xOffset + width * line, lineWidth);
+            }
+         } catch (Exception e) {
+            e.printStackTrace();
+            Log.log("Problem copying pixels");
          }
-         xOffset += lineWidths.get((int)(col - colStart));
       }
-      return new MagellanTaggedImage(pixels, topLeftMD);
+   }
+
+   /**
+    * @return tile from the tile cache or disk, or null if there is none
+    */
+   private MagellanTaggedImage getTile(int channel, int slice, int frame, int dsIndex, int positionIndex) {
+      TaggedImageStorageMultipageTiff storage = getStorage(dsIndex);
+      if (storage == null || positionIndex < 0) {
+         return null;
+      }
+      String key = TileCache.getKey(dsIndex, channel, slice, frame, positionIndex);
+      MagellanTaggedImage tile = tileCache_.get(key);
+      if (tile != null) {
+         return tile;
+      }
+      long generation = tileCache_.getGeneration();
+      tile = storage.getImage(channel, slice, frame, positionIndex);
+      if (tile == null || Array.getLength(tile.pix) == 0) {
+         //Somtimes an inability to read IFDs soon after they are written results in an image being read 
+         //with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
+         //a black flickering during acquisition
+         return null;
+      }
+      tileCache_.putIfUnchanged(key, tile, generation);
+      return tile;
+   }
+
+   private static synchronized ThreadPoolExecutor getTileCopyExecutor() {
+      if (tileCopyExecutor_ == null) {
+         int numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+         tileCopyExecutor_ = new ThreadPoolExecutor(numThreads, numThreads, 5, TimeUnit.SECONDS,
+                 new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "Magellan tile copying");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+         tileCopyExecutor_.allowCoreThreadTimeOut(true);
+      }
+      return tileCopyExecutor_;
    }
    
    /**
@@ -456,8 +537,8 @@ public class MultiResMultipageTiffStorage {
     * @param resIndex 
     */
    public void initializeToLevel(int resIndex) {
-      //create a null pointer in lower res storages to signal addToLoResStorage function
-      //to continue downsampling to this level
+      //create a null pointer in lower res storages to signal ensureLowResLevels
+      //to build this level
       for (int i = lowResStorages_.keySet().size() + 1; i <= resIndex; i++) {
          lowResStorages_.put(i, null);
       }
@@ -474,184 +555,82 @@ public class MultiResMultipageTiffStorage {
             //nothing to downsample
             return false;
          }
-         //create a null pointer in lower res storages to signal addToLoResStorage function
-         //to continue downsampling to this level
+         //create a null pointer in lower res storages to signal ensureLowResLevels
+         //to build this level
          lowResStorages_.put(1 + lowResStorages_.keySet().size(), null);
          //update position manager to reflect addition of new resolution level
          posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
-         String aLabel = fullResStorage_.imageKeys().iterator().next();
-         int[] indices = MD.getIndices(aLabel);
-         MagellanTaggedImage anImage = fullResStorage_.getImage(indices[0], indices[1], indices[2], indices[3]);         
-         addToLowResStorage(anImage, 0, indices[3]);
+         ensureLowResLevels();
          return true;
       }
    }
    
-   private void addToLowResStorage(MagellanTaggedImage img, int previousResIndex, int fullResPositionIndex) {
-      //Read indices
-      int channel = MD.getChannelIndex(img.tags);
-      int slice = MD.getSliceIndex(img.tags);
-      int frame = MD.getFrameIndex(img.tags);
-
-      if (estimateBackground_) {
-         readBackgroundPixelValue(channel, img); //find a background pixel value in the first image
-      }
-      Object previousLevelPix = img.pix;
-      int resolutionIndex = previousResIndex + 1;
-      
-      //Auto downsample until max number of tiles in either direction is less than the highest dsFactor
-      //or keep going until lowest user created resolution exists
-      while (lowResStorages_.containsKey(resolutionIndex) ||
-              (posManager_.getNumRows() >= Math.pow(2, resolutionIndex) || posManager_.getNumCols() >= Math.pow(2, resolutionIndex)) ) {
-
-         //See if storage level exists
-         if (!lowResStorages_.containsKey(resolutionIndex) || lowResStorages_.get(resolutionIndex) == null) {
-            createDownsampledStorage(resolutionIndex);
-            //add all tiles from existing resolution levels to this new one            
-            TaggedImageStorageMultipageTiff previousLevelStorage;
-            if (resolutionIndex == 1) {
-               previousLevelStorage = fullResStorage_;
-            } else {
-               previousLevelStorage = lowResStorages_.get(resolutionIndex - 1);
-            }            
-            Set<String> imageKeys = previousLevelStorage.imageKeys();
-            for (String key : imageKeys) {
-               String[] indices = key.split("_");
-               MagellanTaggedImage ti = previousLevelStorage.getImage(Integer.parseInt(indices[0]), Integer.parseInt(indices[1]),
-                       Integer.parseInt(indices[2]), Integer.parseInt(indices[3]));
-               addToLowResStorage(ti, resolutionIndex - 1, posManager_.getFullResPositionIndex(Integer.parseInt(indices[3]), resolutionIndex - 1)); 
-            }
-            return; //this will include the higher res tile intially added, so can return here and
-            //not worry about having to add it again
-         }
-         //Create pixels or get appropriate pixels to add to
-         MagellanTaggedImage existingImage = lowResStorages_.get(resolutionIndex).getImage(channel, slice, frame,
-                 posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
-         Object currentLevelPix;
-         if (existingImage == null) {
-            currentLevelPix = byteDepth_ == 1 ? new byte[tileWidth_ * tileHeight_] : new short[tileWidth_ * tileHeight_];
-            //fill in with background pixel value
-            if (byteDepth_ == 1) {
-               Arrays.fill((byte[]) currentLevelPix, (byte) getBackgroundPixelValue(channel));
-            } else {
-               Arrays.fill((short[]) currentLevelPix, (short) getBackgroundPixelValue(channel));
-            }
-         } else {
-            currentLevelPix = existingImage.pix; 
-         }     
-
-         
-         //Determine which position in 2x2 this tile sits in
-         int xPos = (int) Math.abs((posManager_.getGridCol(fullResPositionIndex, resolutionIndex - 1) % 2));
-         int yPos = (int) Math.abs((posManager_.getGridRow(fullResPositionIndex, resolutionIndex - 1) % 2));
-         //Add one if top or left so border pixels from an odd length image gets added in
-         for (int x = 0; x < tileWidth_; x += 2) { //iterate over previous res level pixels
-            for (int y = 0; y < tileHeight_; y += 2) {
-               //average a square of 4 pixels from previous level
-               //edges: if odd number of pixels in tile, round to determine which
-               //tiles pixels make it to next res level
-               int count = 1; //count is number of pixels (out of 4) used to create a pixel at this level
-               //these are the indices of pixels at the previous res level, which are offset
-               //when moving from res level 0 to one as we throw away the overlapped image edges
-               int pixelX, pixelY, previousLevelWidth, previousLevelHeight; 
-               if ( resolutionIndex == 1 ) {                  
-                  //add offsets to account for overlap pixels at resolution level 0
-                  pixelX = x + xOverlap_ / 2;
-                  pixelY = y + yOverlap_ /2;
-                  previousLevelWidth = fullResTileWidthIncludingOverlap_;
-                  previousLevelHeight = fullResTileHeightIncludingOverlap_;
-               } else {
-                  pixelX = x;
-                  pixelY = y;
-                  previousLevelWidth = tileWidth_;
-                  previousLevelHeight = tileHeight_;
+   /**
+    * Number of low res levels the pyramid should have: every level that has
+    * been requested, and enough that the lowest resolution fits the whole grid
+    * of tiles in one tile
+    */
+   private int getNumLowResLevelsNeeded() {
+      int numLevels = lowResStorages_.isEmpty() ? 0 : lowResStorages_.lastKey();
+      while (posManager_.getNumRows() >= Math.pow(2, numLevels + 1)
+              || posManager_.getNumCols() >= Math.pow(2, numLevels + 1)) {
+         numLevels++;
+      }
+      return numLevels;
+   }
 
-               }
-               
-               //always take top left pixel, maybe take others depending on whether at image edge
-               int sum = 0;
-               if (byteDepth_ == 1) {
-                  sum += ((byte[])previousLevelPix)[pixelY * previousLevelWidth + pixelX] & 0xff;                  
-               } else {
-                  sum += ((short[])previousLevelPix)[pixelY * previousLevelWidth + pixelX] & 0xffff;
-               }
-               //pixel index can be different from index in tile at resolution level 0 if there is nonzero overlap
-               if (x < previousLevelWidth - 1 && y < previousLevelHeight - 1) { //if not bottom right corner, add three more pix
-                  count += 3;
-                  if (byteDepth_ == 1) {
-                     sum += (((byte[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX + 1] & 0xff)
-                             + (((byte[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xff)
-                             + (((byte[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xff);
-                  } else {
-                     sum += (((short[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX + 1] & 0xffff)
-                             + (((short[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xffff)
-                             + (((short[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xffff);
-                  }
-               } else if (x < previousLevelWidth - 1) { //if not right edge, add two more pix
-                  count++;
-                  if (byteDepth_ == 1) {
-                     sum += ((byte[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xff;
-                  } else {
-                     sum += ((short[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xffff;
-                  }
-               } else if (y < previousLevelHeight - 1) { // if not bottom edge, add two more pix
-                  count++;
-                  if (byteDepth_ == 1) {
-                     sum += ((byte[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xff;
-                  } else {
-                     sum += ((short[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xffff;
-                  }
-               } else {
-                  //it is the bottom right corner, no more pix to add
-               }
-               //add averaged pixel into appropriate quadrant of current res level
-               //if full res tile has an odd number of pix, the last one gets chopped off
-               //to make it fit into tile containers
-               try {
-                  int index = ((y + yPos * tileHeight_)/2) * tileWidth_ + (x + xPos * tileWidth_)/2;
-                  if (byteDepth_ == 1) {
-                     ((byte[])currentLevelPix)[index] = (byte) (sum / count);
-                  } else {
-                     ((short[])currentLevelPix)[index] = (short) (sum / count);
-                  }
-               } catch (Exception e) {
-                  Log.log("Couldn't copy pixels to lower resolution");
-                  e.printStackTrace();
-                  return;
-               }
-            }
-         }
-         
-         //store this tile in the storage class correspondign to this resolution
-         try {
-            if (existingImage == null) {     //Image doesn't yet exist at this level, so add it
-               //create a copy of tags so tags from a different res level arent inadverntanly modified
-               // while waiting for being written to disk
-               JSONObject tags = new JSONObject(img.tags.toString());
-               //modify tags to reflect image size, and correct position index
-               MD.setWidth(tags, tileWidth_);
-               MD.setHeight(tags, tileHeight_);
-               long gridRow = posManager_.getGridRow(fullResPositionIndex, resolutionIndex);
-               long gridCol = posManager_.getGridCol(fullResPositionIndex, resolutionIndex);
-               MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
-               MD.setPositionIndex(tags, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));  
-               lowResStorages_.get(resolutionIndex).putImage(new MagellanTaggedImage(currentLevelPix, tags));
-            } else {
-               //Image already exists, only overwrite pixels to include new tiles
-               lowResStorages_.get(resolutionIndex).overwritePixels(currentLevelPix,
-                       channel, slice, frame, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
+   /**
+    * Create and build all resolution levels that are needed but don't exist
+    * yet. Tiles already queued are finished first, and each new level is built
+    * in parallel from the one above it. This only blocks when a level is added,
+    * which happens a handful of times per acquisition.
+    *
+    * @return number of low res levels that exist
+    */
+   private int ensureLowResLevels() {
+      int numLevels = getNumLowResLevelsNeeded();
+      for (int resIndex = 1; resIndex <= numLevels; resIndex++) {
+         if (lowResStorages_.get(resIndex) == null) {
+            pyramid_.awaitIdle();
+            createDownsampledStorage(resIndex);
+            if (lowResStorages_.get(resIndex) == null) {
+               return resIndex - 1;
             }
-         } catch (Exception e) {
-            e.printStackTrace();
-            Log.log("Couldnt modify tags for lower resolution level");
+            pyramid_.buildLevel(resIndex);
          }
+      }
+      return numLevels;
+   }
 
-         //go on to next level of downsampling
-         previousLevelPix = currentLevelPix;
-         resolutionIndex++;
+   /**
+    * Build the low res levels missing from an opened dataset (e.g. one whose
+    * acquisition was aborted) from the existing data, so it can be zoomed out
+    * as usual.
+    */
+   private void buildMissingLowResLevels() {
+      int numExisting = lowResStorages_.size();
+      int numLevels = getNumLowResLevelsNeeded();
+      if (numLevels == numExisting) {
+         return;
+      }
+      Log.log("Building " + (numLevels - numExisting) + " missing resolution levels", false);
+      posManager_.updateLowerResolutionNodes(numLevels);
+      numLevels = ensureLowResLevels();
+      pyramid_.awaitIdle();
+      pyramid_.trim();
+      for (int resIndex = numExisting + 1; resIndex <= numLevels; resIndex++) {
+         lowResStorages_.get(resIndex).finished();
       }
    }
 
+   /**
+    * @return storage for the given resolution level (0 for full res), or null
+    * if the level hasn't been created yet
+    */
+   TaggedImageStorageMultipageTiff getStorage(int resIndex) {
+      return resIndex == 0 ? fullResStorage_ : lowResStorages_.get(resIndex);
+   }
+
    private void createDownsampledStorage(int resIndex) {
       String dsDir = directory_ + (directory_.endsWith(File.separator) ? "" : File.separator) + 
               DOWNSAMPLE_SUFFIX + (int) Math.pow(2, resIndex);
@@ -677,7 +656,17 @@ public class MultiResMultipageTiffStorage {
          synchronized (this) {            
             //write to full res storage as normal (i.e. with overlap pixels present)
             fullResStorage_.putImage(MagellanTaggedImage);
-            addToLowResStorage(MagellanTaggedImage, 0, MD.getPositionIndex(MagellanTaggedImage.tags));
+            //newly acquired tiles are usually displayed right away
+            tileCache_.update(TileCache.getKey(0, MD.getChannelIndex(MagellanTaggedImage.tags),
+                    MD.getSliceIndex(MagellanTaggedImage.tags), MD.getFrameIndex(MagellanTaggedImage.tags),
+                    MD.getPositionIndex(MagellanTaggedImage.tags)), MagellanTaggedImage);
+            if (estimateBackground_) {
+               //find a background pixel value in the first image
+               readBackgroundPixelValue(MD.getChannelIndex(MagellanTaggedImage.tags), MagellanTaggedImage);
+            }
+            //lower resolutions are built in the background
+            int numLowResLevels = ensureLowResLevels();
+            pyramid_.addTile(MagellanTaggedImage, MD.getPositionIndex(MagellanTaggedImage.tags), numLowResLevels);
             if (currentTP_ < MD.getFrameIndex(MagellanTaggedImage.tags)) {
                bdvXML_.addTP();
                currentTP_ = MD.getFrameIndex(MagellanTaggedImage.tags);
@@ -710,6 +699,11 @@ public class MultiResMultipageTiffStorage {
    }
 
    public void finished() {
+      if (pyramid_ != null) {
+         //wait for lower resolution tiles to be handed to their storages
+         pyramid_.awaitIdle();
+         pyramid_.trim();
+      }
       try {
          if (bdvXML_ != null) { //if its not an oened dataset
             bdvXML_.close();
@@ -761,10 +755,16 @@ public class MultiResMultipageTiffStorage {
                   throw new RuntimeException("closing thread interrupted");
                }
             }
+            if (pyramid_ != null) {
+               //give the memory budget back to the other datasets
+               pyramid_.awaitIdle();
+               pyramid_.trim();
+            }
             fullResStorage_.close();
             for (TaggedImageStorageMultipageTiff s : lowResStorages_.values()) {
                s.close();
             }
+            tileCache_.clear();
          } 
       },"closing thread").start();
    }
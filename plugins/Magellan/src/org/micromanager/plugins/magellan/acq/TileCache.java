@@ -0,0 +1,133 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.acq;
+
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.micromanager.plugins.magellan.misc.MD;
+
+/**
+ * Decoded tiles (pixels and parsed tags) of all resolution levels of a
+ * MultiResMultipageTiffStorage, so that panning and zooming don't reread and
+ * reparse the same tiles from disk.
+ *
+ * The tiles of all open storages are kept in one least recently used list
+ * with a single byte budget, so opening more datasets doesn't take more
+ * memory; each TileCache only sees the tiles of its own storage.
+ *
+ * Cached tiles are shared and must not be modified.
+ */
+class TileCache {
+
+   // fraction of the max heap used for decoded tiles of all storages
+   private static final double MEMORY_FRACTION = 0.125;
+   private static final long MAX_BYTES = (long) (Runtime.getRuntime().maxMemory() * MEMORY_FRACTION);
+   //tiles of all storages, keyed by storage prefix and tile key; guarded by itself
+   private static final LinkedHashMap<String, MagellanTaggedImage> tiles_ =
+           new LinkedHashMap<String, MagellanTaggedImage>(16, 0.75f, true);
+   private static long bytes_ = 0;
+   private static int nextId_ = 0;
+
+   private final String prefix_;
+   //incremented whenever a tile changes, so that a tile read from disk
+   //while it was being rewritten isn't cached; guarded by tiles_
+   private long generation_ = 0;
+
+   TileCache() {
+      synchronized (tiles_) {
+         prefix_ = (nextId_++) + ":";
+      }
+   }
+
+   static String getKey(int resIndex, int channel, int slice, int frame, int positionIndex) {
+      return resIndex + "_" + MD.generateLabel(channel, slice, frame, positionIndex);
+   }
+
+   MagellanTaggedImage get(String key) {
+      synchronized (tiles_) {
+         return tiles_.get(prefix_ + key);
+      }
+   }
+
+   /**
+    * @return value to pass to putIfUnchanged() for a tile about to be read
+    */
+   long getGeneration() {
+      synchronized (tiles_) {
+         return generation_;
+      }
+   }
+
+   /**
+    * Cache a tile that was read from disk, unless any tile has been updated
+    * since generation was obtained
+    */
+   void putIfUnchanged(String key, MagellanTaggedImage tile, long generation) {
+      synchronized (tiles_) {
+         if (generation == generation_) {
+            put(key, tile);
+         }
+      }
+   }
+
+   /**
+    * Cache the new contents of a tile that has just been written
+    */
+   void update(String key, MagellanTaggedImage tile) {
+      synchronized (tiles_) {
+         generation_++;
+         put(key, tile);
+      }
+   }
+
+   /**
+    * Drop the tiles of this cache's storage
+    */
+   void clear() {
+      synchronized (tiles_) {
+         Iterator<Map.Entry<String, MagellanTaggedImage>> it = tiles_.entrySet().iterator();
+         while (it.hasNext()) {
+            Map.Entry<String, MagellanTaggedImage> entry = it.next();
+            if (entry.getKey().startsWith(prefix_)) {
+               bytes_ -= getSize(entry.getValue());
+               it.remove();
+            }
+         }
+      }
+   }
+
+   //caller holds tiles_
+   private void put(String key, MagellanTaggedImage tile) {
+      MagellanTaggedImage previous = tiles_.put(prefix_ + key, tile);
+      if (previous != null) {
+         bytes_ -= getSize(previous);
+      }
+      bytes_ += getSize(tile);
+      Iterator<MagellanTaggedImage> it = tiles_.values().iterator();
+      while (bytes_ > MAX_BYTES && it.hasNext()) {
+         bytes_ -= getSize(it.next());
+         it.remove();
+      }
+   }
+
+   private static long getSize(MagellanTaggedImage tile) {
+      return (long) Array.getLength(tile.pix) * (tile.pix instanceof short[] ? 2 : 1);
+   }
+}
@@ -19,9 +19,7 @@ package org.micromanager.plugins.magellan.autofocus;
 
 import org.micromanager.plugins.magellan.acq.FixedAreaAcquisition;
 import org.micromanager.plugins.magellan.acq.MultiResMultipageTiffStorage;
-import ij.ImagePlus;
 import ij.ImageStack;
-import ij3d.image3d.FHTImage3D;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
@@ -67,6 +65,10 @@ public class CrossCorrelationAutofocus {
    private int downsampledWidth_;
    private int downsampledHeight_;
    private ExecutorService afExecutor_;
+   private final CrossCorrelationEngine engine_;
+   //spectra of the most recent time point, which is the reference for the next one
+   private volatile CrossCorrelationEngine.StackSpectra referenceSpectra_;
+   private volatile int referenceTimeIndex_ = -1;
            
    
    public CrossCorrelationAutofocus(final FixedAreaAcquisition acq, int channelIndex, double maxDisplacement , double initialPosition) {
@@ -76,6 +78,7 @@ public class CrossCorrelationAutofocus {
               return new Thread(r, acq.getName() + " Autofocusexecutor");
           }
       });
+      engine_ = new CrossCorrelationEngine(acq.getName());
        channelIndex_ = channelIndex;
       maxDisplacement_ = maxDisplacement;
       acq_ = acq;
@@ -118,6 +121,8 @@ public class CrossCorrelationAutofocus {
    
    public void close() {
        afExecutor_.shutdownNow();
+       engine_.close();
+       referenceSpectra_ = null;
    }
    
    /**
@@ -155,15 +160,19 @@ public class CrossCorrelationAutofocus {
             Log.log("Drift compensation DS Index: " + downsampleIndex_, false);
             Log.log("Drift compensation DS Width: " + downsampledWidth_, false);
             Log.log("Drift compensation DS Height: " + downsampledHeight_, false);
+            referenceSpectra_ = null;
+            referenceTimeIndex_ = -1;
         } else {
-            ImageStack lastTPStack = createAFStack(acq_, timeIndex - 1, channelIndex_, downsampledWidth_, downsampledHeight_, downsampleIndex_);
+            //previous time point only needs to be read if its spectra weren't kept
+            ImageStack lastTPStack = referenceTimeIndex_ == timeIndex - 1 ? null
+                    : createAFStack(acq_, timeIndex - 1, channelIndex_, downsampledWidth_, downsampledHeight_, downsampleIndex_);
             ImageStack currentTPStack = createAFStack(acq_, timeIndex, channelIndex_, downsampledWidth_, downsampledHeight_, downsampleIndex_);
             //run autofocus
             //image drift is the difference between this TP and the previous one
             //but does not represent the acutal drift because these 2 TPs will likely have different 
             //positions for the AF compensation Z device
             //drifteCorrection = move for the AF drive to bring current TP to position of previous TP
-            double driftCorrection = -calcFocusDrift(acq_.getName(), lastTPStack, currentTPStack, acq_.getZStep());
+            double driftCorrection = -calcFocusDrift(acq_.getName(), lastTPStack, currentTPStack, timeIndex, acq_.getZStep());
             Log.log(acq_.getName() + " Drift compensation: correction = " + driftCorrection, true);
             //now add in a factor accounting for the previous AF
             //i.e. how far the reference image is from the desired position
@@ -213,25 +222,31 @@ public class CrossCorrelationAutofocus {
 
    /**
     *
-    * @param original
+    * @param lastTPStack previous time point, or null to use the spectra kept from the last call
    * @param current
    * @param pixelSizeZ
    * @return double representing the focus position of current relative to original (i.e. 4 means
    * that current is focused 4 um deeper than current)
    */
-   private double calcFocusDrift(String acqName, final ImageStack tp0Stack, final ImageStack currentTPStack, double pixelSizeZ) throws Exception {    
+   private double calcFocusDrift(String acqName, final ImageStack lastTPStack, final ImageStack currentTPStack,
+           final int timeIndex, double pixelSizeZ) throws Exception {    
       Log.log( acqName + " Autofocus: cross correlating", true);    
       //do actual autofocusing on a seperate thread so a bug in it won't crash everything
-      Future<ImageStack> f = afExecutor_.submit(new Callable<ImageStack>() {
+      Future<CrossCorrelationEngine.CorrelationProfile> f = afExecutor_.submit(new Callable<CrossCorrelationEngine.CorrelationProfile>() {
           @Override
-          public ImageStack call() throws Exception {
-              return FHTImage3D.crossCorrelation(tp0Stack, currentTPStack);
+          public CrossCorrelationEngine.CorrelationProfile call() throws Exception {
+              CrossCorrelationEngine.StackSpectra reference = lastTPStack == null ? referenceSpectra_ : engine_.transform(lastTPStack);
+              CrossCorrelationEngine.StackSpectra current = engine_.transform(currentTPStack);
+              referenceSpectra_ = current;
+              referenceTimeIndex_ = timeIndex;
+              return engine_.correlate(reference, current);
           }
       });
-      ImageStack xCorrStack;
+      CrossCorrelationEngine.CorrelationProfile profile;
        try {
-           xCorrStack = f.get(AF_TIMEOUT_MIN, TimeUnit.MINUTES);
+           profile = f.get(AF_TIMEOUT_MIN, TimeUnit.MINUTES);
        } catch (InterruptedException ex) {
+           f.cancel(true);
            Log.log("autofocus aborted");
            throw new Exception();
        } catch (ExecutionException ex) {
@@ -239,54 +254,42 @@ public class CrossCorrelationAutofocus {
            Log.log(ex);
            throw new Exception();
        } catch (TimeoutException ex) {
+           f.cancel(true);
            Log.log("Autofocus timeout for acquisition: " + acqName);
            throw new Exception();
        }
       
       Log.log( acqName + " Autofocus: finished cross correlating..calculating drift", true);      
-      ImagePlus xCorr = new ImagePlus("XCorr", xCorrStack);      
-      //find the maximum cross correlation intensity at each z slice
-      double[] ccIntensity = new double[xCorr.getNSlices()], interpolatedCCMax = new double[xCorr.getNSlices()];
-      for (int i = 1; i <= ccIntensity.length; i++) {
-         xCorr.setSlice(i);      
-         ccIntensity[i - 1] = findMaxPixelVal((float[]) xCorr.getProcessor().getPixels(), xCorr.getWidth(), xCorr.getHeight());
-         interpolatedCCMax[i - 1] = i - 1;
+      //maximum cross correlation intensity at each z offset searched
+      double[] ccIntensity = profile.getMaxima(), interpolatedCCMax = new double[ccIntensity.length];
+      for (int i = 0; i < ccIntensity.length; i++) {
+         interpolatedCCMax[i] = i;
       }
-
-      //find maximum value of interpolated spline function
-      PolynomialSplineFunction func = new SplineInterpolator().interpolate(interpolatedCCMax, ccIntensity);
-      double[] sliceIndexInterpolationPoints = new double[(int) (SPLINE_PRECISION * (interpolatedCCMax.length - 1))];
-      int maxIndex = 0;
-      for (int i = 0; i < sliceIndexInterpolationPoints.length; i++) {
-         sliceIndexInterpolationPoints[i] = i / SPLINE_PRECISION;
-         try {
-            if (func.value(sliceIndexInterpolationPoints[i]) > func.value(sliceIndexInterpolationPoints[maxIndex])) {
-               maxIndex = i;
+      double ccMaxSliceIndex;
+      if (ccIntensity.length < 3) {
+         //too few points for a spline
+         ccMaxSliceIndex = profile.getPeakLag() - profile.getFirstLag();
+      } else {
+         //find maximum value of interpolated spline function
+         PolynomialSplineFunction func = new SplineInterpolator().interpolate(interpolatedCCMax, ccIntensity);
+         double[] sliceIndexInterpolationPoints = new double[(int) (SPLINE_PRECISION * (interpolatedCCMax.length - 1))];
+         int maxIndex = 0;
+         for (int i = 0; i < sliceIndexInterpolationPoints.length; i++) {
+            sliceIndexInterpolationPoints[i] = i / SPLINE_PRECISION;
+            try {
+               if (func.value(sliceIndexInterpolationPoints[i]) > func.value(sliceIndexInterpolationPoints[maxIndex])) {
+                  maxIndex = i;
+               }
+            } catch (ArgumentOutsideDomainException ex) {
+               Log.log("Spline value calculation outside range");
             }
-         } catch (ArgumentOutsideDomainException ex) {
-            Log.log("Spline value calculation outside range");
          }
+         //get maximum value of xCorr in slice index units
+         ccMaxSliceIndex = sliceIndexInterpolationPoints[maxIndex];
       }
-      //get maximum value of xCorr in slice index units
-      double ccMaxSliceIndex = sliceIndexInterpolationPoints[maxIndex];
-      //convert to um
-      double drift_um = (ccMaxSliceIndex - (((double) xCorr.getNSlices()) / 2.0)) * pixelSizeZ;
-      xCorr.close();
-      
+      //convert z offset to um
+      double drift_um = (profile.getFirstLag() + ccMaxSliceIndex) * pixelSizeZ;
       return drift_um;
    }
    
-   private static float findMaxPixelVal(float[] pix, int width, int height) {
-      //only use central square for calulating max, because weird large values can occur on the edges of the xCorr
-      float max = 0;
-      for (int i = 0; i < width*height; i++) {
-         if (i / width < height / 4 || i / width > 3*height / 4 ||
-                 i % width  < width / 4 || i % width > 3*width/4) {
-            continue; // use only central square of pixels
-         }
-         max = Math.max(max, pix[i]);
-      }
-      return max;
-   }
-   
 }
@@ -0,0 +1,378 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.autofocus;
+
+import ij.ImageStack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cross correlation of z stacks for drift compensation. Every slice is Fourier
+ * transformed once (zero padded to power of 2 dimensions), and the
+ * correlation at each z offset is accumulated from the slice spectra, so the
+ * spectra of a stack can be kept and reused as the reference for the next
+ * time point. The z offset is first found on copies of the stacks downsampled
+ * further in XY, and only offsets close to it are correlated at full
+ * resolution. Slices and z offsets are processed in parallel.
+ */
+class CrossCorrelationEngine {
+
+   //additional XY downsampling of the stacks for the coarse search
+   private static final int COARSE_DOWNSAMPLE = 4;
+   //don't bother with a coarse search when it would have images smaller than this
+   private static final int MIN_COARSE_SIZE = 32;
+   //number of z offsets either side of the coarse maximum that are correlated at full resolution
+   private static final int FINE_SEARCH_MARGIN = 3;
+
+   private final ExecutorService executor_;
+
+   CrossCorrelationEngine(final String name) {
+      executor_ = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " cross correlation thread");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   void close() {
+      executor_.shutdownNow();
+   }
+
+   /**
+    * @param stack stack of 32 bit slices
+    * @return spectra of all slices, at full and coarse resolution
+    */
+   StackSpectra transform(ImageStack stack) throws InterruptedException, ExecutionException {
+      final int width = stack.getWidth(), height = stack.getHeight();
+      int numSlices = stack.getSize();
+      final Spectra fine = new Spectra(width, height, numSlices);
+      final Spectra coarse = width / COARSE_DOWNSAMPLE >= MIN_COARSE_SIZE && height / COARSE_DOWNSAMPLE >= MIN_COARSE_SIZE
+              ? new Spectra(width / COARSE_DOWNSAMPLE, height / COARSE_DOWNSAMPLE, numSlices) : null;
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int i = 0; i < numSlices; i++) {
+         final int slice = i;
+         final float[] pix = (float[]) stack.getPixels(slice + 1);
+         tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+               fine.transformSlice(slice, pix);
+               if (coarse != null) {
+                  coarse.transformSlice(slice, downsample(pix, width, height));
+               }
+               return null;
+            }
+         });
+      }
+      waitFor(executor_.invokeAll(tasks));
+      return new StackSpectra(fine, coarse);
+   }
+
+   /**
+    * Correlate current stack with reference stack
+    *
+    * @return maximum correlation (over the central half of XY offsets) at
+    * each z offset searched
+    */
+   CorrelationProfile correlate(StackSpectra reference, StackSpectra current) throws InterruptedException, ExecutionException {
+      if (!reference.fine_.hasSameSize(current.fine_)) {
+         throw new IllegalArgumentException("Stacks to correlate are different sizes");
+      }
+      int maxLag = reference.fine_.numSlices_ - 1;
+      int firstLag = -maxLag, lastLag = maxLag;
+      if (reference.coarse_ != null && current.coarse_ != null && lastLag - firstLag > 2 * FINE_SEARCH_MARGIN) {
+         int peakLag = correlate(reference.coarse_, current.coarse_, firstLag, lastLag).getPeakLag();
+         firstLag = Math.max(firstLag, peakLag - FINE_SEARCH_MARGIN);
+         lastLag = Math.min(lastLag, peakLag + FINE_SEARCH_MARGIN);
+      }
+      return correlate(reference.fine_, current.fine_, firstLag, lastLag);
+   }
+
+   private CorrelationProfile correlate(final Spectra reference, final Spectra current, int firstLag, int lastLag)
+           throws InterruptedException, ExecutionException {
+      List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+      for (int i = firstLag; i <= lastLag; i++) {
+         final int lag = i;
+         tasks.add(new Callable<Double>() {
+            @Override
+            public Double call() {
+               return (double) reference.correlate(current, lag);
+            }
+         });
+      }
+      List<Future<Double>> results = executor_.invokeAll(tasks);
+      waitFor(results);
+      double[] maxima = new double[results.size()];
+      for (int i = 0; i < maxima.length; i++) {
+         maxima[i] = results.get(i).get();
+      }
+      return new CorrelationProfile(firstLag, maxima);
+   }
+
+   private static void waitFor(List<? extends Future<?>> futures) throws InterruptedException, ExecutionException {
+      for (Future<?> f : futures) {
+         f.get();
+      }
+   }
+
+   private static float[] downsample(float[] pix, int width, int height) {
+      int dsWidth = width / COARSE_DOWNSAMPLE, dsHeight = height / COARSE_DOWNSAMPLE;
+      float[] dsPix = new float[dsWidth * dsHeight];
+      for (int y = 0; y < dsHeight * COARSE_DOWNSAMPLE; y++) {
+         int rowOffset = (y / COARSE_DOWNSAMPLE) * dsWidth;
+         for (int x = 0; x < dsWidth * COARSE_DOWNSAMPLE; x++) {
+            dsPix[rowOffset + x / COARSE_DOWNSAMPLE] += pix[y * width + x];
+         }
+      }
+      for (int i = 0; i < dsPix.length; i++) {
+         dsPix[i] /= COARSE_DOWNSAMPLE * COARSE_DOWNSAMPLE;
+      }
+      return dsPix;
+   }
+
+   private static int nextPowerOf2(int n) {
+      int p = 1;
+      while (p < n) {
+         p *= 2;
+      }
+      return p;
+   }
+
+   /**
+    * Spectra of a stack, to be used as the reference for the next time point
+    */
+   static class StackSpectra {
+
+      private final Spectra fine_, coarse_;
+
+      private StackSpectra(Spectra fine, Spectra coarse) {
+         fine_ = fine;
+         coarse_ = coarse;
+      }
+   }
+
+   /**
+    * Maximum correlation at consecutive z offsets, in slices, of the current
+    * stack relative to the reference
+    */
+   static class CorrelationProfile {
+
+      private final int firstLag_;
+      private final double[] maxima_;
+
+      private CorrelationProfile(int firstLag, double[] maxima) {
+         firstLag_ = firstLag;
+         maxima_ = maxima;
+      }
+
+      int getFirstLag() {
+         return firstLag_;
+      }
+
+      double[] getMaxima() {
+         return maxima_;
+      }
+
+      int getPeakLag() {
+         int peak = 0;
+         for (int i = 1; i < maxima_.length; i++) {
+            if (maxima_[i] > maxima_[peak]) {
+               peak = i;
+            }
+         }
+         return firstLag_ + peak;
+      }
+   }
+
+   /**
+    * 2D spectra of the slices of a stack. Slices are real, so only the non
+    * negative x frequencies are kept.
+    */
+   private static class Spectra {
+
+      private final int width_, height_, numSlices_;
+      private final int paddedWidth_, paddedHeight_, spectrumWidth_;
+      private final float[][] re_, im_;
+
+      Spectra(int width, int height, int numSlices) {
+         width_ = width;
+         height_ = height;
+         numSlices_ = numSlices;
+         paddedWidth_ = nextPowerOf2(width);
+         paddedHeight_ = nextPowerOf2(height);
+         spectrumWidth_ = paddedWidth_ / 2 + 1;
+         re_ = new float[numSlices][];
+         im_ = new float[numSlices][];
+      }
+
+      boolean hasSameSize(Spectra other) {
+         return width_ == other.width_ && height_ == other.height_ && numSlices_ == other.numSlices_;
+      }
+
+      void transformSlice(int slice, float[] pix) {
+         float[] re = new float[spectrumWidth_ * paddedHeight_];
+         float[] im = new float[spectrumWidth_ * paddedHeight_];
+         float[] rowRe = new float[paddedWidth_], rowIm = new float[paddedWidth_];
+         FFT rowFFT = FFT.get(paddedWidth_);
+         //rows beyond the image are zero padding, so their spectra are 0 too
+         for (int y = 0; y < height_; y++) {
+            System.arraycopy(pix, y * width_, rowRe, 0, width_);
+            Arrays.fill(rowRe, width_, paddedWidth_, 0);
+            Arrays.fill(rowIm, 0);
+            rowFFT.transform(rowRe, rowIm, 0, 1, false);
+            System.arraycopy(rowRe, 0, re, y * spectrumWidth_, spectrumWidth_);
+            System.arraycopy(rowIm, 0, im, y * spectrumWidth_, spectrumWidth_);
+         }
+         FFT columnFFT = FFT.get(paddedHeight_);
+         for (int x = 0; x < spectrumWidth_; x++) {
+            columnFFT.transform(re, im, x, spectrumWidth_, false);
+         }
+         re_[slice] = re;
+         im_[slice] = im;
+      }
+
+      /**
+       * Correlate with current at one z offset, averaging the correlations of
+       * all overlapping pairs of slices so that offsets with less overlap
+       * aren't penalized
+       *
+       * @return the maximum correlation over the central half of XY offsets,
+       * as in the center of a quadrant swapped correlation image
+       */
+      float correlate(Spectra current, int lag) {
+         int size = spectrumWidth_ * paddedHeight_;
+         float[] re = new float[size], im = new float[size];
+         int firstSlice = Math.max(0, -lag), lastSlice = Math.min(numSlices_, numSlices_ - lag);
+         for (int slice = firstSlice; slice < lastSlice; slice++) {
+            float[] refRe = re_[slice + lag], refIm = im_[slice + lag];
+            float[] curRe = current.re_[slice], curIm = current.im_[slice];
+            //reference times complex conjugate of current
+            for (int i = 0; i < size; i++) {
+               re[i] += refRe[i] * curRe[i] + refIm[i] * curIm[i];
+               im[i] += refIm[i] * curRe[i] - refRe[i] * curIm[i];
+            }
+         }
+         FFT columnFFT = FFT.get(paddedHeight_);
+         for (int x = 0; x < spectrumWidth_; x++) {
+            columnFFT.transform(re, im, x, spectrumWidth_, true);
+         }
+         //only rows in the central half of the quadrant swapped image are needed
+         FFT rowFFT = FFT.get(paddedWidth_);
+         float[] rowRe = new float[paddedWidth_], rowIm = new float[paddedWidth_];
+         float max = 0;
+         for (int swappedY = paddedHeight_ / 4; swappedY <= 3 * paddedHeight_ / 4; swappedY++) {
+            int rowOffset = ((swappedY + paddedHeight_ / 2) % paddedHeight_) * spectrumWidth_;
+            //negative frequencies are complex conjugates of positive ones
+            for (int x = 0; x < paddedWidth_; x++) {
+               if (x < spectrumWidth_) {
+                  rowRe[x] = re[rowOffset + x];
+                  rowIm[x] = im[rowOffset + x];
+               } else {
+                  rowRe[x] = re[rowOffset + paddedWidth_ - x];
+                  rowIm[x] = -im[rowOffset + paddedWidth_ - x];
+               }
+            }
+            rowFFT.transform(rowRe, rowIm, 0, 1, true);
+            for (int swappedX = paddedWidth_ / 4; swappedX <= 3 * paddedWidth_ / 4; swappedX++) {
+               max = Math.max(max, rowRe[(swappedX + paddedWidth_ / 2) % paddedWidth_]);
+            }
+         }
+         return max / ((float) paddedWidth_ * paddedHeight_ * (lastSlice - firstSlice));
+      }
+   }
+
+   /**
+    * Unscaled in place radix 2 FFT of one size
+    */
+   private static class FFT {
+
+      private static final ConcurrentHashMap<Integer, FFT> ffts_ = new ConcurrentHashMap<Integer, FFT>();
+      private final int n_;
+      private final double[] cos_, sin_;
+      private final int[] reversed_;
+
+      static FFT get(int n) {
+         FFT fft = ffts_.get(n);
+         if (fft == null) {
+            ffts_.putIfAbsent(n, new FFT(n));
+            fft = ffts_.get(n);
+         }
+         return fft;
+      }
+
+      private FFT(int n) {
+         n_ = n;
+         cos_ = new double[n / 2];
+         sin_ = new double[n / 2];
+         for (int i = 0; i < n / 2; i++) {
+            cos_[i] = Math.cos(2 * Math.PI * i / n);
+            sin_[i] = Math.sin(2 * Math.PI * i / n);
+         }
+         int bits = Integer.numberOfTrailingZeros(n);
+         reversed_ = new int[n];
+         for (int i = 0; i < n; i++) {
+            reversed_[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+         }
+      }
+
+      /**
+       * Transform n elements of re and im starting at offset and spaced by
+       * stride
+       */
+      void transform(float[] re, float[] im, int offset, int stride, boolean inverse) {
+         for (int i = 0; i < n_; i++) {
+            int j = reversed_[i];
+            if (j > i) {
+               int a = offset + i * stride, b = offset + j * stride;
+               float tmp = re[a];
+               re[a] = re[b];
+               re[b] = tmp;
+               tmp = im[a];
+               im[a] = im[b];
+               im[b] = tmp;
+            }
+         }
+         for (int size = 2; size <= n_; size *= 2) {
+            int half = size / 2, step = n_ / size;
+            for (int start = 0; start < n_; start += size) {
+               for (int k = 0; k < half; k++) {
+                  double wRe = cos_[k * step];
+                  double wIm = inverse ? sin_[k * step] : -sin_[k * step];
+                  int a = offset + (start + k) * stride, b = a + half * stride;
+                  double tRe = re[b] * wRe - im[b] * wIm;
+                  double tIm = re[b] * wIm + im[b] * wRe;
+                  re[b] = (float) (re[a] - tRe);
+                  im[b] = (float) (im[a] - tIm);
+                  re[a] = (float) (re[a] + tRe);
+                  im[a] = (float) (im[a] + tIm);
+               }
+            }
+         }
+      }
+   }
+}
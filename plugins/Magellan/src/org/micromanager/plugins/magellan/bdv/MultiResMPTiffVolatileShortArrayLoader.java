@@ -59,8 +59,12 @@ public class MultiResMPTiffVolatileShortArrayLoader implements CacheArrayLoader<
       //From Tobias: To clarify that a bit better: 
       //You do not need to be able to load arbitrary blocks here. Just the ones that you will use from the images returned by your ImgLoader.
       //So this is the only "shape" of block that your CacheArrayLoader needs to be able to load (plus they will be aligned at multiples of tileWidth, tileHeight, 1).
-      //c, z, f, ds, x, y, w, h
-      MagellanTaggedImage img = tiffStorage_.getImageForDisplay(setup, (int)min[2], timepoint, level, min[0], min[1], dimensions[0], dimensions[1]);
+      //Blocks are read straight into the returned array from the storage's tile cache, which is shared
+      //with the 2D viewer. Blocks deeper than one slice have their slices loaded in parallel
+      //c, f, ds, x, y, z, w, h, d
+      int depth = dimensions.length > 2 ? dimensions[2] : 1;
+      MagellanTaggedImage img = tiffStorage_.loadSubvolume(setup, timepoint, level, min[0], min[1], (int) min[2],
+              dimensions[0], dimensions[1], depth);
       return new VolatileShortArray((short[])img.pix, true);
    }
 
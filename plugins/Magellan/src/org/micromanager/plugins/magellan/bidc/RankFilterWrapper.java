@@ -7,83 +7,167 @@ package org.micromanager.plugins.magellan.bidc;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Class that wraps rank filtering
+ *
+ * Pixel values are 8 bit, so the rank of each 3x3xnumFrames neighborhood is
+ * found from a histogram that slides along each row, rather than by sorting.
+ * Bands of rows are filtered in parallel.
  */
 public class RankFilterWrapper extends FrameIntegrationMethod{
 
-   //first index: pixel index, second index: 9*numFrames values to be sorted
-   //has to be short to get rid of signed byte for sorting
-   private short[][] pixelValues_;
+   private static final int NUM_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+   private static ExecutorService filterExecutor_;
+   
+   //unwarped pixels of every frame, frame after frame
+   private byte[] pixelValues_;
    private double rank_; 
 
    public RankFilterWrapper(int offset, int doubleWidth, int numFrames, double rank) {
       super(doubleWidth, offset, numFrames);
-      pixelValues_ = new short[width_ * height_][numFrames_ * 9];
+      pixelValues_ = new byte[numFrames_ * width_ * height_];
       rank_ = rank;
    }
 
+   private static synchronized ExecutorService getFilterExecutor() {
+      if (filterExecutor_ == null) {
+         filterExecutor_ = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Rank filter thread");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return filterExecutor_;
+   }
 
     @Override
    public byte[] constructImage() {
         long start = System.currentTimeMillis();
-      //iterate through every pixel location in final image
-      for (int x = -1; x < width_ + 1; x++) {
-         for (int y = -1; y < height_ + 1; y++) {
-            for (int frame = 0; frame < numFrames_; frame++) {
-               //get value of pixel or value of relevant edge
-               short val = rawBuffers_.get(frame).getUnwarpedImageValue(Math.max(0, Math.min(width_ - 1, x)), Math.max(0, Math.min(height_ - 1, y)));
-               //add to all 9 positions at the appropriate index            
-               addValToRelevantArrays(frame, val, x, y);
-            }
+      final byte[] filteredPix = new byte[width_ * height_];
+      //all frames must be unwarped before any band is filtered, since bands read the rows on either side
+      runInBands(new Band() {
+         @Override
+         public void process(int firstRow, int lastRow) {
+            unwarp(firstRow, lastRow);
          }
-      }
-      //sort all lists and construct final image
-      byte[] filteredPix = new byte[width_ * height_];
-      for (int i = 0; i < filteredPix.length; i++ ) {
-         Arrays.sort(pixelValues_[i]);
-         filteredPix[i] = (byte) pixelValues_[i][(int)((numFrames_*9 -1) *rank_)];
-      }
+      });
+      runInBands(new Band() {
+         @Override
+         public void process(int firstRow, int lastRow) {
+            filter(firstRow, lastRow, filteredPix);
+         }
+      });
 //      System.out.println("rank filtering time: " + (System.currentTimeMillis() - start));
       return filteredPix;
    }
-   
-   private void addValToRelevantArrays(int frameIndex, short val, int x, int y) {
-      if (y > 0) {
-         if (x > 0) {
-            pixelValues_[x - 1 + (y - 1) * width_][frameIndex*9 + 0] = val;
-         }
-         if (x >= 0 && x < width_) {
-            pixelValues_[x + (y - 1) * width_][frameIndex*9 + 1] = val;
+
+   private interface Band {
+
+      void process(int firstRow, int lastRow);
+   }
+
+   private void runInBands(final Band band) {
+      int numBands = Math.min(height_, NUM_THREADS);
+      ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int b = 0; b < numBands; b++) {
+         final int firstRow = height_ * b / numBands;
+         final int lastRow = height_ * (b + 1) / numBands;
+         futures.add(getFilterExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+               band.process(firstRow, lastRow);
+               return null;
+            }
+         }));
+      }
+      try {
+         for (Future<Void> f : futures) {
+            f.get();
          }
-         if (x < width_ - 1) {
-            pixelValues_[x + 1 + (y - 1) * width_][frameIndex*9 + 2] = val;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      }
+   }
+
+   private void unwarp(int firstRow, int lastRow) {
+      for (int frame = 0; frame < numFrames_; frame++) {
+         RawBufferWrapper buffer = rawBuffers_.get(frame);
+         int frameOffset = frame * width_ * height_;
+         for (int y = firstRow; y < lastRow; y++) {
+            for (int x = 0; x < width_; x++) {
+               pixelValues_[frameOffset + y * width_ + x] = (byte) buffer.getUnwarpedImageValue(x, y);
+            }
          }
       }
-      if (y >= 0 && y < height_) {
-         if (x > 0) {
-            pixelValues_[x - 1 + y * width_][frameIndex*9 + 3] = val;
+   }
+
+   /**
+    * Rank filter rows, with values beyond the edges of the image taken from
+    * the nearest edge pixel
+    */
+   private void filter(int firstRow, int lastRow, byte[] filteredPix) {
+      //counts of every pixel value in the neighborhood, and of every 16 values so the rank is found quickly
+      int[] histogram = new int[256];
+      int[] coarseHistogram = new int[16];
+      int rankIndex = (int) ((numFrames_ * 9 - 1) * rank_);
+      int[] rowOffsets = new int[3];
+      for (int y = firstRow; y < lastRow; y++) {
+         for (int i = 0; i < 3; i++) {
+            rowOffsets[i] = Math.max(0, Math.min(height_ - 1, y - 1 + i)) * width_;
          }
-         if (x >= 0 && x < width_) {
-            pixelValues_[x + y * width_][frameIndex*9 + 4] = val;
+         Arrays.fill(histogram, 0);
+         Arrays.fill(coarseHistogram, 0);
+         for (int x = -1; x <= 1; x++) {
+            addColumn(clampX(x), rowOffsets, histogram, coarseHistogram, 1);
          }
-         if (x < width_ - 1) {
-            pixelValues_[x + 1 + y * width_][frameIndex*9 + 5] = val;
+         for (int x = 0; x < width_; x++) {
+            if (x > 0) {
+               addColumn(clampX(x - 2), rowOffsets, histogram, coarseHistogram, -1);
+               addColumn(clampX(x + 1), rowOffsets, histogram, coarseHistogram, 1);
+            }
+            //value at rankIndex in sorted order is the first whose cumulative count exceeds it
+            int count = 0;
+            int coarse = 0;
+            while (count + coarseHistogram[coarse] <= rankIndex) {
+               count += coarseHistogram[coarse];
+               coarse++;
+            }
+            int value = coarse * 16;
+            while (count + histogram[value] <= rankIndex) {
+               count += histogram[value];
+               value++;
+            }
+            filteredPix[y * width_ + x] = (byte) value;
          }
       }
-      if (y < height_ - 1) {
-         if (x > 0) {
-            pixelValues_[x - 1 + (y + 1) * width_][frameIndex*9 + 6] = val;
-         }
-         if (x >= 0 && x < width_) {
-            pixelValues_[x + (y + 1) * width_][frameIndex*9 + 7] = val;
-         }
-         if (x < width_ - 1) {
-            pixelValues_[x + 1 + (y + 1) * width_][frameIndex*9 + 8] = val;
+   }
+
+   private int clampX(int x) {
+      return Math.max(0, Math.min(width_ - 1, x));
+   }
+
+   private void addColumn(int x, int[] rowOffsets, int[] histogram, int[] coarseHistogram, int sign) {
+      int frameSize = width_ * height_;
+      for (int frame = 0; frame < numFrames_; frame++) {
+         for (int i = 0; i < 3; i++) {
+            int val = pixelValues_[frame * frameSize + rowOffsets[i] + x] & 0xff;
+            histogram[val] += sign;
+            coarseHistogram[val >> 4] += sign;
          }
       }
    }
 
-  
 }
@@ -17,9 +17,6 @@
 
 package org.micromanager.plugins.magellan.surfacesandregions;
 
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.TreeSet;
 import org.apache.commons.math3.geometry.euclidean.twod.Euclidean2D;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
 import org.apache.commons.math3.geometry.partitioning.Region;
@@ -30,14 +27,17 @@ import org.apache.commons.math3.geometry.partitioning.Region;
  */
 public class SingleResolutionInterpolation {
    
+   //distance from the convex hull edges within which points count as inside
+   private static final double HULL_TOLERANCE = 1e-6;
    private final int pixPerInterpPoint_;
    private final boolean[][] interpDefined_;
    private final float[][] interpolation_;
    private final float[][] normals_; //stored in degrees
    private final double boundXMin_, boundXMax_, boundYMin_, boundYMax_;
    private Region<Euclidean2D> convexHullRegion_;
-   //for extrapolation
-   private TreeSet<Vector2D> convexHullVertices_;
+   //hull polygon and the length of each edge, for point in hull tests much
+   //cheaper than checking the region
+   private final double[] hullX_, hullY_, hullEdgeLength_;
    private Point3d[] allPoints_;
    
    public SingleResolutionInterpolation(int pixPerPoint, boolean[][] defined, float[][] interp, float[][] normals, double boundXMin, double boundXMax, double boundYMin, double boundYMax, 
@@ -51,20 +51,18 @@ public class SingleResolutionInterpolation {
       boundXMin_ = boundXMin;
       boundYMin_ = boundYMin;
       convexHullRegion_ = ch;
-      //keep them sorted for fast searching
-      convexHullVertices_ = new TreeSet<Vector2D>(new Comparator<Vector2D>() {
-         @Override
-         public int compare(Vector2D o1, Vector2D o2) {
-            if (o1.getX() != o2.getX()) {
-               return o1.getX() < o2.getX() ? -1 : 1;
-            }
-            if (o1.getY() == o2.getY()) {
-               return 0;
-            }
-            return o1.getY() < o2.getY() ? -1 : 1;
-         }
-      });
-      convexHullVertices_.addAll(Arrays.asList(convexHullVertices));
+      int numVertices = convexHullVertices == null ? 0 : convexHullVertices.length;
+      hullX_ = new double[numVertices];
+      hullY_ = new double[numVertices];
+      hullEdgeLength_ = new double[numVertices];
+      for (int i = 0; i < numVertices; i++) {
+         hullX_[i] = convexHullVertices[i].getX();
+         hullY_[i] = convexHullVertices[i].getY();
+      }
+      for (int i = 0; i < numVertices; i++) {
+         int next = (i + 1) % numVertices;
+         hullEdgeLength_[i] = Math.hypot(hullX_[next] - hullX_[i], hullY_[next] - hullY_[i]);
+      }
       allPoints_ = allPoints;
    }
    
@@ -126,6 +124,25 @@ public class SingleResolutionInterpolation {
       if (convexHullRegion_ == null) {
          return false;
       }
-      return convexHullRegion_.checkPoint(new Vector2D(x, y)) != Region.Location.OUTSIDE;
+      if (hullX_.length < 3) {
+         return convexHullRegion_.checkPoint(new Vector2D(x, y)) != Region.Location.OUTSIDE;
+      }
+      //inside (or on the edge of) a convex polygon if on the same side of every edge
+      boolean left = false, right = false;
+      for (int i = 0; i < hullX_.length; i++) {
+         int next = (i + 1) % hullX_.length;
+         double cross = (hullX_[next] - hullX_[i]) * (y - hullY_[i]) - (hullY_[next] - hullY_[i]) * (x - hullX_[i]);
+         //cross product is edge length times distance from the edge
+         double tolerance = HULL_TOLERANCE * hullEdgeLength_[i];
+         if (cross > tolerance) {
+            left = true;
+         } else if (cross < -tolerance) {
+            right = true;
+         }
+         if (left && right) {
+            return false;
+         }
+      }
+      return true;
    }
 }
@@ -275,17 +275,18 @@ public abstract class SurfaceInterpolator implements XYFootprint {
            int mode, boolean extrapolate) throws InterruptedException {
       //get the corners with padding added in
       Point2D.Double[] corners = getPositionCornersWithPadding(pos, surface.xyPadding_um_);
+      SingleResolutionInterpolation interp = surface.waitForCurentInterpolation();
       //First check position corners before going into a more detailed set of test points
       for (Point2D.Double point : corners) {
          float interpVal;
-         if (!surface.waitForCurentInterpolation().isInterpDefined(point.x, point.y)) {
+         if (!interp.isInterpDefined(point.x, point.y)) {
             if (extrapolate) {
                interpVal = surface.getExtrapolatedValue(point.x, point.y);
             } else {
                continue;
             }
          } else {
-            interpVal = surface.waitForCurentInterpolation().getInterpolatedValue(point.x, point.y);
+            interpVal = interp.getInterpolatedValue(point.x, point.y);
          }
          if ((towardsSampleIsPositive_ && mode == ABOVE_SURFACE && zPos >= interpVal)
                  || (towardsSampleIsPositive_ && mode == BELOW_SURFACE && zPos <= interpVal)
@@ -306,28 +307,30 @@ public abstract class SurfaceInterpolator implements XYFootprint {
       } catch (NoninvertibleTransformException ex) {
          Log.log("Problem inverting affine transform");
       }
+      //convert these abritray pixel coordinates back to stage coordinates
+      double[] transformMaxtrix = new double[6];
+      transform.getMatrix(transformMaxtrix);
+      transformMaxtrix[4] = corners[0].getX();
+      transformMaxtrix[5] = corners[0].getY();
+      //create new transform with translation applied
+      transform = new AffineTransform(transformMaxtrix);
+      Point2D.Double pixelCoords = new Point2D.Double();
+      Point2D.Double stageCoords = new Point2D.Double();
       outerloop:
       for (double x = 0; x <= pixelSpan.x; x += pixelSpan.x / (double) NUM_XY_TEST_POINTS) {
          for (double y = 0; y <= pixelSpan.y; y += pixelSpan.y / (double) NUM_XY_TEST_POINTS) {
-            //convert these abritray pixel coordinates back to stage coordinates
-             double[] transformMaxtrix = new double[6];
-             transform.getMatrix(transformMaxtrix);
-             transformMaxtrix[4] = corners[0].getX();
-             transformMaxtrix[5] = corners[0].getY();
-             //create new transform with translation applied
-             transform = new AffineTransform(transformMaxtrix);
-            Point2D.Double stageCoords = new Point2D.Double();
-            transform.transform(new Point2D.Double(x, y), stageCoords);
+            pixelCoords.setLocation(x, y);
+            transform.transform(pixelCoords, stageCoords);
             //test point for inclusion of position
             float interpVal;
-            if (!surface.waitForCurentInterpolation().isInterpDefined(stageCoords.x, stageCoords.y)) {
+            if (!interp.isInterpDefined(stageCoords.x, stageCoords.y)) {
                if (extrapolate) {
                   interpVal = surface.getExtrapolatedValue(stageCoords.x, stageCoords.y);
                } else {
                   continue;
                }
             } else {
-               interpVal = surface.waitForCurentInterpolation().getInterpolatedValue(stageCoords.x, stageCoords.y);
+               interpVal = interp.getInterpolatedValue(stageCoords.x, stageCoords.y);
             }
             if ((towardsSampleIsPositive_ && mode == ABOVE_SURFACE && zPos >= interpVal)
                     || (towardsSampleIsPositive_ && mode == BELOW_SURFACE && zPos <= interpVal)
@@ -18,20 +18,18 @@ package org.micromanager.plugins.magellan.surfacesandregions;
 
 import delaunay_triangulation.Delaunay_Triangulation;
 import delaunay_triangulation.Point_dt;
-import delaunay_triangulation.Triangle_dt;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.micromanager.plugins.magellan.main.Magellan;
-import org.apache.commons.math3.geometry.euclidean.threed.Line;
-import org.apache.commons.math3.geometry.euclidean.threed.Plane;
-import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
-import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
-import org.apache.commons.math3.geometry.partitioning.Region;
-import java.util.Iterator;
-import java.util.List;
+import org.micromanager.plugins.magellan.misc.Log;
 
 /**
  * Subclass that implements a particular interpolation method This one creates a
@@ -40,21 +38,42 @@ import java.util.List;
  */
 public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
 
-   private static final double TOLERANCE = 0.01;
+   //rows of the interpolation grid are split into this many blocks per thread, to even out the load
+   private static final int BLOCKS_PER_THREAD = 4;
+   private static final int NUM_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+   private static ExecutorService rowExecutor_;
+
+   private volatile NearestPoints extrapolationPoints_;
 
    public SurfaceInterpolatorSimple(String xyName, String zName) {
       super(xyName, zName);
    }
 
+   private static synchronized ExecutorService getRowExecutor() {
+      if (rowExecutor_ == null) {
+         rowExecutor_ = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Surface interpolation row thread");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return rowExecutor_;
+   }
+
    protected void interpolateSurface(LinkedList<Point3d> points) throws InterruptedException {
 
       double pixSize = Magellan.getCore().getPixelSizeUm();
+      extrapolationPoints_ = new NearestPoints(points);
       //provide interpolator with current list of data points
       Point_dt triangulationPoints[] = new Point_dt[points.size()];
       for (int i = 0; i < points.size(); i++) {
          triangulationPoints[i] = new Point_dt(points.get(i).x, points.get(i).y, points.get(i).z);
       }
       Delaunay_Triangulation dTri = new Delaunay_Triangulation(triangulationPoints);
+      TriangulatedSurface surface = new TriangulatedSurface(dTri);
 
       int maxPixelDimension = (int) (Math.max(boundXMax_ - boundXMin_, boundYMax_ - boundYMin_) / pixSize);
       //Start with at least 20 interp points and go smaller and smaller until every pixel interped?
@@ -75,33 +94,7 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
          float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
          float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
          boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
-         for (int yInd = 0; yInd < interpVals.length; yInd++) {
-            for (int xInd = 0; xInd < interpVals[0].length; xInd++) {
-               if (Thread.interrupted()) {
-                  throw new InterruptedException();
-               }
-               double xVal = boundXMin_ + dx * xInd;
-               double yVal = boundYMin_ + dy * yInd;
-               boolean inHull = convexHullRegion_.checkPoint(new Vector2D(xVal, yVal)) == Region.Location.INSIDE;
-               if (inHull) {
-                  Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal));
-                  //convert to apache commons coordinates to make a plane
-                  Vector3D v1 = new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z());
-                  Vector3D v2 = new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z());
-                  Vector3D v3 = new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z());
-                  Plane plane = new Plane(v1, v2, v3, TOLERANCE);
-                  //intersetion of vertical line at these x+y values with plane gives point in plane
-                  Vector3D pointInPlane = plane.intersection(new Line(new Vector3D(xVal, yVal, 0), new Vector3D(xVal, yVal, 1), TOLERANCE));
-                  float zVal = (float) pointInPlane.getZ();
-                  interpVals[yInd][xInd] = zVal;
-                  float angle = (float) (Vector3D.angle(plane.getNormal(), new Vector3D(0, 0, 1)) / Math.PI * 180.0);
-                  interpNormals[yInd][xInd] = angle;
-                  interpDefined[yInd][xInd] = true;
-               } else {
-                  interpDefined[yInd][xInd] = false;
-               }
-            }
-         }
+         interpolateRows(surface, dx, dy, interpVals, interpNormals, interpDefined);
          if (Thread.interrupted()) {
             throw new InterruptedException();
          }
@@ -116,50 +109,161 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
       }
    }
 
+   /**
+    * Fill in the interpolation grid, with blocks of rows evaluated in parallel
+    */
+   private void interpolateRows(final TriangulatedSurface surface, final double dx, final double dy,
+           final float[][] interpVals, final float[][] interpNormals, final boolean[][] interpDefined) throws InterruptedException {
+      int numRows = interpVals.length;
+      int numBlocks = Math.min(numRows, NUM_THREADS * BLOCKS_PER_THREAD);
+      ArrayList<Future<Void>> blocks = new ArrayList<Future<Void>>();
+      for (int b = 0; b < numBlocks; b++) {
+         final int firstRow = (int) ((long) numRows * b / numBlocks);
+         final int lastRow = (int) ((long) numRows * (b + 1) / numBlocks);
+         blocks.add(getRowExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+               //successive grid points are usually in the same triangle, so start each search there
+               int rowStartTriangle = -1;
+               for (int yInd = firstRow; yInd < lastRow; yInd++) {
+                  if (Thread.currentThread().isInterrupted()) {
+                     return null;
+                  }
+                  double yVal = boundYMin_ + dy * yInd;
+                  int triangle = rowStartTriangle;
+                  boolean rowStarted = false;
+                  for (int xInd = 0; xInd < interpVals[yInd].length; xInd++) {
+                     double xVal = boundXMin_ + dx * xInd;
+                     int found = surface.find(xVal, yVal, triangle);
+                     if (found >= 0) {
+                        interpVals[yInd][xInd] = surface.getValue(found, xVal, yVal);
+                        interpNormals[yInd][xInd] = surface.getNormalAngle(found);
+                        interpDefined[yInd][xInd] = true;
+                        if (!rowStarted) {
+                           rowStartTriangle = found;
+                           rowStarted = true;
+                        }
+                        triangle = found;
+                     }
+                  }
+               }
+               return null;
+            }
+         }));
+      }
+      try {
+         for (Future<Void> block : blocks) {
+            block.get();
+         }
+      } catch (InterruptedException e) {
+         for (Future<Void> block : blocks) {
+            block.cancel(true);
+         }
+         throw e;
+      } catch (ExecutionException e) {
+         Log.log("Problem calculating surface interpolation: " + e.getCause());
+         throw new RuntimeException(e.getCause());
+      }
+   }
+
    @Override
    public float getExtrapolatedValue(double x, double y) {
-      //duplicate points for thread safety
-     final LinkedList<Point3d> points = new LinkedList<Point3d>(points_);
-
-      //find 3 closest points and calculate value
-      //find closest convex hull vertex
-      final LinkedList<Integer> closestIndices = new LinkedList<Integer>();
-      final LinkedList<Double> closestDistances = new LinkedList<Double>();
-      for  (int i = 0; i < points.size(); i++) {
-         //get current distance
-         Vector2D vertex = new Vector2D(points.get(i).x, points.get(i).y);
-         double distance = vertex.distance(new Vector2D(x, y));
-         if (closestDistances.size() < 3) {
-            closestIndices.add(i);
-            closestDistances.add(distance);
-         } else if (distance < closestDistances.get(2)) {
-            closestIndices.removeLast();
-            closestDistances.removeLast();
-            closestIndices.add(i);
-            closestDistances.add(distance);
-         }
-         //sort
-         Collections.sort(closestIndices, new Comparator<Integer>() {
-            public int compare(Integer left, Integer right) {
-               return (new Double(closestDistances.get(closestIndices.indexOf(left)))).
-                       compareTo(closestDistances.get(closestIndices.indexOf(right)));
+      NearestPoints nearest = extrapolationPoints_;
+      if (nearest == null) {
+         //no interpolation calculated yet
+         nearest = new NearestPoints(new LinkedList<Point3d>(Arrays.asList(getPoints())));
+      }
+      //find 3 closest points and calculate value in the plane through them
+      Point3d[] closest = nearest.findClosest3(x, y);
+      double ux = closest[1].x - closest[0].x, uy = closest[1].y - closest[0].y, uz = closest[1].z - closest[0].z;
+      double vx = closest[2].x - closest[0].x, vy = closest[2].y - closest[0].y, vz = closest[2].z - closest[0].z;
+      double nx = uy * vz - uz * vy;
+      double ny = uz * vx - ux * vz;
+      double nz = ux * vy - uy * vx;
+      if (nz == 0) {
+         //points are in a line in XY, so there's no plane to extrapolate on
+         return (float) closest[0].z;
+      }
+      //intersection of vertical line at these x+y values with plane gives point in plane
+      return (float) (closest[0].z - (nx * (x - closest[0].x) + ny * (y - closest[0].y)) / nz);
+   }
+
+   /**
+    * Surface points sorted by x, so that the ones nearest to a given point can
+    * be found by searching outward from its x position
+    */
+   private static class NearestPoints {
+
+      private final Point3d[] points_;
+      private final double[] xs_;
+
+      public NearestPoints(LinkedList<Point3d> points) {
+         points_ = points.toArray(new Point3d[points.size()]);
+         Arrays.sort(points_, new Comparator<Point3d>() {
+            @Override
+            public int compare(Point3d p1, Point3d p2) {
+               return Double.compare(p1.x, p2.x);
             }
          });
-         Collections.sort(closestDistances);
+         xs_ = new double[points_.length];
+         for (int i = 0; i < points_.length; i++) {
+            xs_[i] = points_[i].x;
+         }
+      }
+
+      /**
+       * @return the 3 points closest in XY, closest first
+       */
+      public Point3d[] findClosest3(double x, double y) {
+         if (points_.length < 3) {
+            throw new RuntimeException("Need at least 3 points to extrapolate surface");
+         }
+         Point3d[] closest = new Point3d[3];
+         double[] distances = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+         int start = Arrays.binarySearch(xs_, x);
+         if (start < 0) {
+            start = -start - 1;
+         }
+         int left = start - 1, right = start;
+         boolean searchLeft = true, searchRight = true;
+         while (searchLeft || searchRight) {
+            if (searchRight) {
+               if (right >= points_.length || square(points_[right].x - x) > distances[2]) {
+                  searchRight = false;
+               } else {
+                  insert(points_[right], x, y, closest, distances);
+                  right++;
+               }
+            }
+            if (searchLeft) {
+               if (left < 0 || square(points_[left].x - x) > distances[2]) {
+                  searchLeft = false;
+               } else {
+                  insert(points_[left], x, y, closest, distances);
+                  left--;
+               }
+            }
+         }
+         return closest;
       }
-      Point3d point1 = points.get(closestIndices.get(0));
-      Point3d point2 = points.get(closestIndices.get(1));
-      Point3d point3 = points.get(closestIndices.get(2));
-      Vector3D v1 = new Vector3D(point1.x, point1.y, point1.z);
-      Vector3D v2 = new Vector3D(point2.x, point2.y, point2.z);
-      Vector3D v3 = new Vector3D(point3.x, point3.y, point3.z);
-      Plane plane = new Plane(v1, v2, v3, TOLERANCE);
-      //intersetion of vertical line at these x+y values with plane gives point in plane
-      Vector3D pointInPlane = plane.intersection(new Line(new Vector3D(x, y, 0), new Vector3D(x, y, 1), TOLERANCE));
-      float zVal = (float) pointInPlane.getZ();
-      return zVal;
-   }
 
-   
-   
+      private static void insert(Point3d point, double x, double y, Point3d[] closest, double[] distances) {
+         double distance = square(point.x - x) + square(point.y - y);
+         int i = 2;
+         if (distance >= distances[i]) {
+            return;
+         }
+         while (i > 0 && distance < distances[i - 1]) {
+            closest[i] = closest[i - 1];
+            distances[i] = distances[i - 1];
+            i--;
+         }
+         closest[i] = point;
+         distances[i] = distance;
+      }
+
+      private static double square(double d) {
+         return d * d;
+      }
+   }
 }
@@ -0,0 +1,188 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.plugins.magellan.surfacesandregions;
+
+import delaunay_triangulation.Delaunay_Triangulation;
+import delaunay_triangulation.Point_dt;
+import delaunay_triangulation.Triangle_dt;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Piecewise planar surface over a Delaunay triangulation, with the plane of
+ * every triangle precomputed so that evaluating the surface at a point takes a
+ * handful of multiplications. Triangles are located through a uniform grid of
+ * buckets, after first trying a caller supplied triangle: when walking a grid
+ * of points, consecutive points are almost always in the same triangle.
+ *
+ * The union of the triangles is the convex hull of the points, so find()
+ * also serves as the hull test. Immutable and safe to use from multiple
+ * threads.
+ */
+class TriangulatedSurface {
+
+   //relative tolerance of barycentric coordinates, so points on shared edges
+   //aren't missed due to rounding
+   private static final double EPSILON = 1e-9;
+
+   private final int numTriangles_;
+   //barycentric coordinates l1 = l1x * x + l1y * y + l10, likewise l2
+   private final double[] l1x_, l1y_, l10_, l2x_, l2y_, l20_;
+   //planes z = a * x + b * y + c
+   private final double[] a_, b_, c_;
+   private final float[] normalAngle_; //degrees
+   private final double minX_, minY_, bucketWidth_, bucketHeight_;
+   private final int numBucketsX_, numBucketsY_;
+   private final int[][] buckets_; //triangle indices overlapping each bucket
+
+   TriangulatedSurface(Delaunay_Triangulation dTri) {
+      ArrayList<Triangle_dt> triangles = new ArrayList<Triangle_dt>();
+      Iterator<Triangle_dt> it = dTri.trianglesIterator();
+      while (it.hasNext()) {
+         Triangle_dt tri = it.next();
+         if (!tri.isHalfplane()) {
+            triangles.add(tri);
+         }
+      }
+      int n = triangles.size();
+      l1x_ = new double[n];
+      l1y_ = new double[n];
+      l10_ = new double[n];
+      l2x_ = new double[n];
+      l2y_ = new double[n];
+      l20_ = new double[n];
+      a_ = new double[n];
+      b_ = new double[n];
+      c_ = new double[n];
+      normalAngle_ = new float[n];
+      double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+      int count = 0;
+      for (Triangle_dt tri : triangles) {
+         Point_dt p1 = tri.p1(), p2 = tri.p2(), p3 = tri.p3();
+         //normal of the plane through the 3 vertices, oriented as apache commons Plane does
+         double ux = p2.x() - p1.x(), uy = p2.y() - p1.y(), uz = p2.z() - p1.z();
+         double vx = p3.x() - p1.x(), vy = p3.y() - p1.y(), vz = p3.z() - p1.z();
+         double nx = uy * vz - uz * vy;
+         double ny = uz * vx - ux * vz;
+         double nz = ux * vy - uy * vx;
+         double det = (p2.y() - p3.y()) * (p1.x() - p3.x()) + (p3.x() - p2.x()) * (p1.y() - p3.y());
+         if (nz == 0 || det == 0) {
+            //vertical or degenerate triangle, has no height anywhere
+            continue;
+         }
+         l1x_[count] = (p2.y() - p3.y()) / det;
+         l1y_[count] = (p3.x() - p2.x()) / det;
+         l10_[count] = -(l1x_[count] * p3.x() + l1y_[count] * p3.y());
+         l2x_[count] = (p3.y() - p1.y()) / det;
+         l2y_[count] = (p1.x() - p3.x()) / det;
+         l20_[count] = -(l2x_[count] * p3.x() + l2y_[count] * p3.y());
+         a_[count] = -nx / nz;
+         b_[count] = -ny / nz;
+         c_[count] = p1.z() - a_[count] * p1.x() - b_[count] * p1.y();
+         normalAngle_[count] = (float) (Math.acos(nz / Math.sqrt(nx * nx + ny * ny + nz * nz)) / Math.PI * 180.0);
+         minX = Math.min(minX, Math.min(p1.x(), Math.min(p2.x(), p3.x())));
+         minY = Math.min(minY, Math.min(p1.y(), Math.min(p2.y(), p3.y())));
+         maxX = Math.max(maxX, Math.max(p1.x(), Math.max(p2.x(), p3.x())));
+         maxY = Math.max(maxY, Math.max(p1.y(), Math.max(p2.y(), p3.y())));
+         triangles.set(count, tri);
+         count++;
+      }
+      numTriangles_ = count;
+      //about one triangle per bucket
+      int bucketsPerSide = Math.max(1, (int) Math.sqrt(count));
+      numBucketsX_ = bucketsPerSide;
+      numBucketsY_ = bucketsPerSide;
+      minX_ = minX;
+      minY_ = minY;
+      bucketWidth_ = count == 0 ? 1 : Math.max((maxX - minX) / numBucketsX_, Double.MIN_VALUE);
+      bucketHeight_ = count == 0 ? 1 : Math.max((maxY - minY) / numBucketsY_, Double.MIN_VALUE);
+      ArrayList<ArrayList<Integer>> lists = new ArrayList<ArrayList<Integer>>(numBucketsX_ * numBucketsY_);
+      for (int i = 0; i < numBucketsX_ * numBucketsY_; i++) {
+         lists.add(new ArrayList<Integer>());
+      }
+      for (int t = 0; t < count; t++) {
+         Triangle_dt tri = triangles.get(t);
+         int xMin = getBucketX(Math.min(tri.p1().x(), Math.min(tri.p2().x(), tri.p3().x())));
+         int xMax = getBucketX(Math.max(tri.p1().x(), Math.max(tri.p2().x(), tri.p3().x())));
+         int yMin = getBucketY(Math.min(tri.p1().y(), Math.min(tri.p2().y(), tri.p3().y())));
+         int yMax = getBucketY(Math.max(tri.p1().y(), Math.max(tri.p2().y(), tri.p3().y())));
+         for (int by = yMin; by <= yMax; by++) {
+            for (int bx = xMin; bx <= xMax; bx++) {
+               lists.get(by * numBucketsX_ + bx).add(t);
+            }
+         }
+      }
+      buckets_ = new int[lists.size()][];
+      for (int i = 0; i < buckets_.length; i++) {
+         ArrayList<Integer> list = lists.get(i);
+         buckets_[i] = new int[list.size()];
+         for (int j = 0; j < buckets_[i].length; j++) {
+            buckets_[i][j] = list.get(j);
+         }
+      }
+   }
+
+   private int getBucketX(double x) {
+      return Math.max(0, Math.min(numBucketsX_ - 1, (int) ((x - minX_) / bucketWidth_)));
+   }
+
+   private int getBucketY(double y) {
+      return Math.max(0, Math.min(numBucketsY_ - 1, (int) ((y - minY_) / bucketHeight_)));
+   }
+
+   private boolean contains(int t, double x, double y) {
+      double l1 = l1x_[t] * x + l1y_[t] * y + l10_[t];
+      double l2 = l2x_[t] * x + l2y_[t] * y + l20_[t];
+      return l1 >= -EPSILON && l2 >= -EPSILON && 1 - l1 - l2 >= -EPSILON;
+   }
+
+   /**
+    * @param hint index of a triangle likely to contain the point (e.g. the one
+    * found for the previous point), or -1
+    * @return index of the triangle containing the point, or -1 if the point is
+    * outside the convex hull
+    */
+   int find(double x, double y, int hint) {
+      if (hint >= 0 && contains(hint, x, y)) {
+         return hint;
+      }
+      double bucketX = (x - minX_) / bucketWidth_, bucketY = (y - minY_) / bucketHeight_;
+      //allow for points on the far edges of the hull
+      if (numTriangles_ == 0 || bucketX < 0 || bucketY < 0
+              || bucketX > numBucketsX_ + EPSILON || bucketY > numBucketsY_ + EPSILON) {
+         return -1;
+      }
+      for (int t : buckets_[getBucketY(y) * numBucketsX_ + getBucketX(x)]) {
+         if (contains(t, x, y)) {
+            return t;
+         }
+      }
+      return -1;
+   }
+
+   float getValue(int triangle, double x, double y) {
+      return (float) (a_[triangle] * x + b_[triangle] * y + c_[triangle]);
+   }
+
+   /**
+    * @return angle of the triangle's normal to vertical, in degrees
+    */
+   float getNormalAngle(int triangle) {
+      return normalAngle_[triangle];
+   }
+}
@@ -36,6 +36,7 @@ import org.micromanager.api.DataProcessor;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -143,7 +144,7 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
       }  
       
       if (ijType == ImagePlus.GRAY8) {
-         byte[] newPixels = new byte[width * height];
+         byte[] newPixels = PixelBufferPool.getInstance().takeBytes(width * height);
          byte[] oldPixels = (byte[]) bgSubtracted.pix;
          int length = oldPixels.length;
          float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
@@ -155,12 +156,13 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
             }
             newPixels[index] = (byte) (newValue);
          }
+         releaseReplacedPixels(nextImage, bgSubtracted);
          newImage = new TaggedImage(newPixels, newTags);
          myFrame_.setStatus("Done");
          return newImage;
        
       } else if (ijType == ImagePlus.GRAY16) {
-         short[] newPixels = new short[width * height];
+         short[] newPixels = PixelBufferPool.getInstance().takeShorts(width * height);
          short[] oldPixels = (short[]) bgSubtracted.pix;
          int length = oldPixels.length;
          for (int index = 0; index < length; index++){
@@ -174,6 +176,7 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
             }
             newPixels[index] = (short) newValue;
          }
+         releaseReplacedPixels(nextImage, bgSubtracted);
          newImage = new TaggedImage(newPixels, newTags);
          myFrame_.setStatus("Done");
          return newImage;         
@@ -183,6 +186,18 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
       return nextImage;
      
    }
+   /**
+    * Hands the pixels of images replaced by this processor back to the pixel
+    * buffer pool (a no-op for arrays that did not come from the pool)
+    */
+   private static void releaseReplacedPixels(TaggedImage original,
+           TaggedImage intermediate) {
+      PixelBufferPool.getInstance().release(original);
+      if (intermediate != original) {
+         PixelBufferPool.getInstance().release(intermediate);
+      }
+   }
+
    /**
     * Given the tags of the image currently being processed,
     * find a matching preset from the channelgroup used by the tablemodel
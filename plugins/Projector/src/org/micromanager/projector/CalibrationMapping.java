@@ -0,0 +1,206 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CalibrationMapping.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Projector plugin
+//-----------------------------------------------------------------------------
+//COPYRIGHT:     University of California, San Francisco, 2015
+//LICENSE:       This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.projector;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Nonlinear calibration mapping (polygon cells in camera coordinates, each
+ * with the AffineTransform to phototargeter coordinates), indexed for fast
+ * lookup.
+ *
+ * The bounding box of the cells is divided into a grid of bins, and each
+ * bin lists the cells that overlap it, so a point is only tested against
+ * a few cells. Points outside every cell use the cell with the nearest
+ * center, as before. Immutable, and safe to use from several threads.
+ */
+class CalibrationMapping {
+   private final Polygon[] cells_;
+   private final AffineTransform[] transforms_;
+   // mean of the vertices of each cell
+   private final double[] centerX_;
+   private final double[] centerY_;
+   // lookup grid over the bounding box of all cells
+   private final double gridX_;
+   private final double gridY_;
+   private final double binWidth_;
+   private final double binHeight_;
+   private final int nBinsX_;
+   private final int nBinsY_;
+   // indices of the cells overlapping each bin, row by row
+   private final int[][] bins_;
+
+   CalibrationMapping(Map<Polygon, AffineTransform> mapping) {
+      int n = mapping.size();
+      cells_ = new Polygon[n];
+      transforms_ = new AffineTransform[n];
+      centerX_ = new double[n];
+      centerY_ = new double[n];
+      Rectangle bounds = null;
+      int c = 0;
+      for (Map.Entry<Polygon, AffineTransform> entry : mapping.entrySet()) {
+         Polygon cell = entry.getKey();
+         cells_[c] = cell;
+         transforms_[c] = entry.getValue();
+         double xsum = 0;
+         double ysum = 0;
+         for (int i = 0; i < cell.npoints; ++i) {
+            xsum += cell.xpoints[i];
+            ysum += cell.ypoints[i];
+         }
+         centerX_[c] = xsum / cell.npoints;
+         centerY_[c] = ysum / cell.npoints;
+         if (bounds == null) {
+            bounds = new Rectangle(cell.getBounds());
+         } else {
+            bounds.add(cell.getBounds());
+         }
+         ++c;
+      }
+
+      if (bounds == null || bounds.isEmpty()) {
+         gridX_ = 0;
+         gridY_ = 0;
+         binWidth_ = 1;
+         binHeight_ = 1;
+         nBinsX_ = 0;
+         nBinsY_ = 0;
+         bins_ = new int[0][];
+         return;
+      }
+      // about two bins per cell along each axis, so most bins overlap
+      // one to four cells
+      int nSide = Math.max(1, (int) Math.ceil(2 * Math.sqrt(n)));
+      gridX_ = bounds.x;
+      gridY_ = bounds.y;
+      nBinsX_ = nSide;
+      nBinsY_ = nSide;
+      binWidth_ = bounds.width / (double) nBinsX_;
+      binHeight_ = bounds.height / (double) nBinsY_;
+
+      List<List<Integer>> bins = new ArrayList<List<Integer>>();
+      for (int b = 0; b < nBinsX_ * nBinsY_; ++b) {
+         bins.add(new ArrayList<Integer>());
+      }
+      for (int i = 0; i < n; ++i) {
+         Rectangle r = cells_[i].getBounds();
+         int x0 = binX(r.x);
+         int x1 = binX(r.x + r.width);
+         int y0 = binY(r.y);
+         int y1 = binY(r.y + r.height);
+         for (int by = y0; by <= y1; ++by) {
+            for (int bx = x0; bx <= x1; ++bx) {
+               bins.get(by * nBinsX_ + bx).add(i);
+            }
+         }
+      }
+      bins_ = new int[bins.size()][];
+      for (int b = 0; b < bins_.length; ++b) {
+         List<Integer> bin = bins.get(b);
+         bins_[b] = new int[bin.size()];
+         for (int i = 0; i < bin.size(); ++i) {
+            bins_[b][i] = bin.get(i);
+         }
+      }
+   }
+
+   private int binX(double x) {
+      int bx = (int) Math.floor((x - gridX_) / binWidth_);
+      return Math.min(nBinsX_ - 1, Math.max(0, bx));
+   }
+
+   private int binY(double y) {
+      int by = (int) Math.floor((y - gridY_) / binHeight_);
+      return Math.min(nBinsY_ - 1, Math.max(0, by));
+   }
+
+   /**
+    * Returns true if there are no cells to map points with.
+    */
+   boolean isEmpty() {
+      return cells_.length == 0;
+   }
+
+   /**
+    * Index of the cell whose transform applies to x, y: the first cell
+    * that contains the point, or else the one with the nearest center.
+    */
+   private int findCell(double x, double y) {
+      if (nBinsX_ > 0 && x >= gridX_ && y >= gridY_
+            && x <= gridX_ + nBinsX_ * binWidth_
+            && y <= gridY_ + nBinsY_ * binHeight_) {
+         for (int i : bins_[binY(y) * nBinsX_ + binX(x)]) {
+            if (cells_[i].contains(x, y)) {
+               return i;
+            }
+         }
+      }
+      int best = -1;
+      double minDistanceSq = Double.MAX_VALUE;
+      for (int i = 0; i < cells_.length; ++i) {
+         double dx = centerX_[i] - x;
+         double dy = centerY_[i] - y;
+         double distanceSq = dx * dx + dy * dy;
+         if (minDistanceSq > distanceSq) {
+            best = i;
+            minDistanceSq = distanceSq;
+         }
+      }
+      if (best < 0) {
+         throw new RuntimeException("Unable to map point to device.");
+      }
+      return best;
+   }
+
+   /**
+    * Transforms a point from camera to phototargeter coordinates.
+    */
+   Point2D.Double transform(Point2D.Double pt) {
+      return (Point2D.Double) transforms_[findCell(pt.x, pt.y)].transform(pt, null);
+   }
+
+   /**
+    * Transforms a series of points in place, e.g. the outline of a ROI.
+    * Consecutive points in the same cell are transformed together.
+    * @param coords x and y of each point, one after the other
+    * @param nPoints number of points in coords
+    */
+   void transform(double[] coords, int nPoints) {
+      int start = 0;
+      int startCell = -1;
+      for (int i = 0; i < nPoints; ++i) {
+         int cell = findCell(coords[2 * i], coords[2 * i + 1]);
+         if (cell != startCell) {
+            if (startCell >= 0) {
+               transforms_[startCell].transform(coords, 2 * start,
+                     coords, 2 * start, i - start);
+            }
+            start = i;
+            startCell = cell;
+         }
+      }
+      if (startCell >= 0) {
+         transforms_[startCell].transform(coords, 2 * start,
+               coords, 2 * start, nPoints - start);
+      }
+   }
+}
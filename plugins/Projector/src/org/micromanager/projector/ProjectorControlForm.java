@@ -65,7 +65,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
@@ -108,6 +107,8 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    private final boolean isSLM_;
    private Roi[] individualRois_ = {};
    private Map<Polygon, AffineTransform> mapping_ = null;
+   // mapping_ indexed for lookup
+   private CalibrationMapping mappingIndex_ = null;
    private String mappingNode_ = null;
    private String targetingChannel_;
    AtomicBoolean stopRequested_ = new AtomicBoolean(false);
@@ -125,31 +126,6 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
       polygon.addPoint(p.x, p.y);
    }
    
-   /**
-    * Returns the vertices of the given polygon as a series of points.
-    */
-   private static Point[] getVertices(Polygon polygon) {
-      Point vertices[] = new Point[polygon.npoints];
-      for (int i = 0; i < polygon.npoints; ++i) {
-         vertices[i] = new Point(polygon.xpoints[i], polygon.ypoints[i]);
-      }   
-      return vertices;
-   }
-   
-   /**
-    * Gets the vectorial mean of an array of Points.
-    */
-   private static Point2D.Double meanPosition2D(Point[] points) {
-      double xsum = 0;
-      double ysum = 0;
-      int n = points.length;
-      for (int i = 0; i < n; ++i) {
-         xsum += points[i].x;
-         ysum += points[i].y;
-      }
-      return new Point2D.Double(xsum/n, ysum/n);
-   }
-
    /**
     * Converts a Point with double values for x,y to a point
     * with x and y rounded to the nearest integer.
@@ -372,8 +348,9 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
     /**
      * Load the mapping for the current calibration node. The mapping maps each
      * polygon cell to an AffineTransform.
+     * @return the mapping, indexed for lookup
      */
-    private Map<Polygon, AffineTransform> loadMapping() {
+    private CalibrationMapping loadMapping() {
         Preferences prefs = getCalibrationNode();
         if (prefs == null) {
             return null;
@@ -385,8 +362,9 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
                     prefs,
                     dev_.getName(),
                     new HashMap<Polygon, AffineTransform>());
+            mappingIndex_ = new CalibrationMapping(mapping_);
         }
-        return mapping_;
+        return mappingIndex_;
     }
 
    /**
@@ -396,6 +374,7 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    private void saveMapping(HashMap<Polygon, AffineTransform> mapping) {
       JavaUtils.putObjectInPrefs(getCalibrationNode(), dev_.getName(), mapping);
       mapping_ = mapping;
+      mappingIndex_ = new CalibrationMapping(mapping);
       mappingNode_ = getCalibrationNode().toString();
    }
    
@@ -690,32 +669,10 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    
    // ## Transforming points according to a nonlinear calibration mapping.
      
-   // Transform a point, pt, given the mapping, which is a Map of polygon cells
-   // to AffineTransforms.
-   private static Point2D.Double transformPoint(Map<Polygon, AffineTransform> mapping, Point2D.Double pt) {
-      Set<Polygon> set = mapping.keySet();
-      // First find out if the given point is inside a cell, and if so,
-      // transform it with that cell's AffineTransform.
-      for (Polygon poly : set) {
-         if (poly.contains(pt)) {
-            return (Point2D.Double) mapping.get(poly).transform(pt, null);
-         }
-      }
-      // The point isn't inside any cell, so search for the closest cell
-      // and use the AffineTransform from that.
-      double minDistance = Double.MAX_VALUE;
-      Polygon bestPoly = null;
-      for (Polygon poly : set) {
-         double distance = meanPosition2D(getVertices(poly)).distance(pt.x, pt.y);
-         if (minDistance > distance) {
-            bestPoly = poly;
-            minDistance = distance;
-         }
-      }
-      if (bestPoly == null) {
-         throw new RuntimeException("Unable to map point to device.");
-      }
-      return (Point2D.Double) mapping.get(bestPoly).transform(pt, null);
+   // Transform a point, pt, given the mapping. The point is transformed with
+   // the AffineTransform of the cell it is in, or else of the nearest cell.
+   private static Point2D.Double transformPoint(CalibrationMapping mapping, Point2D.Double pt) {
+      return mapping.transform(pt);
    }
    
       
@@ -743,7 +700,7 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    
    // Transform and mirror (if necessary) a point on an image to 
    // a point on phototargeter coordinates.
-   private static Point2D.Double transformAndMirrorPoint(Map<Polygon, AffineTransform> mapping, 
+   private static Point2D.Double transformAndMirrorPoint(CalibrationMapping mapping, 
            ImagePlus imgp, Point2D.Double pt) {
       Point2D.Double pOffscreen = mirrorIfNecessary(pt, imgp);
       return transformPoint(mapping, pOffscreen);
@@ -984,25 +941,30 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
    
    /**
     * Transform the Roi polygons with the given nonlinear mapping.
+    * The vertices of each polygon are transformed in one batch.
     */
    private static List<FloatPolygon> transformRoiPolygons(final ImagePlus imgp, 
-           Polygon[] roiPolygons, Map<Polygon, AffineTransform> mapping) {
+           Polygon[] roiPolygons, CalibrationMapping mapping) {
       ArrayList<FloatPolygon> transformedROIs = new ArrayList<FloatPolygon>();
+      // the metadata lookup is the same for every point
+      final boolean mirrored = isImageMirrored(imgp);
       for (Polygon roiPolygon : roiPolygons) {
-         FloatPolygon targeterPolygon = new FloatPolygon();
          try {
-            Point2D targeterPoint;
-            for (int i = 0; i < roiPolygon.npoints; ++i) {
-               Point2D.Double imagePoint = new Point2D.Double(
-                       roiPolygon.xpoints[i], roiPolygon.ypoints[i]);
-               targeterPoint = transformAndMirrorPoint(mapping, imgp, imagePoint);
-               if (targeterPoint == null) {
-                  throw new Exception();
-               }
-               targeterPolygon.addPoint( (float) targeterPoint.getX(), 
-                       (float) targeterPoint.getY() );
+            int n = roiPolygon.npoints;
+            double[] coords = new double[2 * n];
+            for (int i = 0; i < n; ++i) {
+               coords[2 * i] = mirrored ? imgp.getWidth() - roiPolygon.xpoints[i]
+                       : roiPolygon.xpoints[i];
+               coords[2 * i + 1] = roiPolygon.ypoints[i];
+            }
+            mapping.transform(coords, n);
+            float[] xpoints = new float[n];
+            float[] ypoints = new float[n];
+            for (int i = 0; i < n; ++i) {
+               xpoints[i] = (float) coords[2 * i];
+               ypoints[i] = (float) coords[2 * i + 1];
             }
-            transformedROIs.add(targeterPolygon);
+            transformedROIs.add(new FloatPolygon(xpoints, ypoints, n));
          } catch (Exception ex) {
             ReportingUtils.showError(ex);
             break;
@@ -1021,7 +983,7 @@ public class ProjectorControlForm extends MMFrame implements OnStateListener {
     * 
     */
    public List<FloatPolygon> transformROIs(ImagePlus contextImagePlus, Roi[] rois) {
-      return transformRoiPolygons(contextImagePlus, roisAsPolygons(rois), mapping_);
+      return transformRoiPolygons(contextImagePlus, roisAsPolygons(rois), mappingIndex_);
    }
    
    // Save ROIs in the acquisition path, if it exists.
@@ -23,12 +23,32 @@ import ij.process.FloatPolygon;
 import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import mmcorej.CMMCore;
 import org.micromanager.utils.ReportingUtils;
 
 public class SLM implements ProjectionDevice {
+   // Bands of the image are rasterized in parallel, each at least this tall
+   private static final int MIN_BAND_HEIGHT = 64;
+   private static final int N_THREADS = Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService rasterExecutor_ =
+         Executors.newFixedThreadPool(N_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "SLM rasterizer");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
 
    String slm_;
    CMMCore mmc_;
@@ -194,14 +214,66 @@ public class SLM implements ProjectionDevice {
    }
 
    // Convert an array of polygonal ROIs to a single pixel image. If 
-   // polygonIntensities is null, then all polygons are set to white
-   public byte[] roisToPixels(int width, int height, List<Polygon>roiPolygons, List<Integer> polygonIntensities) {
-      ByteProcessor processor = new ByteProcessor(width, height);
+   // polygonIntensities is null, then all polygons are set to white.
+   // The image is split in horizontal bands that are filled in parallel,
+   // each with the ROIs that overlap it, in order.
+   public byte[] roisToPixels(final int width, final int height,
+         final List<Polygon>roiPolygons, final List<Integer> polygonIntensities) {
+      final byte[] pixels = new byte[width * height];
+      int nBands = Math.max(1, Math.min(N_THREADS, height / MIN_BAND_HEIGHT));
+      if (nBands == 1 || roiPolygons.size() <= 1) {
+         fillBand(pixels, width, 0, height, roiPolygons, polygonIntensities);
+         return pixels;
+      }
+      List<Future<Void>> bands = new ArrayList<Future<Void>>();
+      for (int b = 0; b < nBands; ++b) {
+         final int y0 = b * height / nBands;
+         final int y1 = (b + 1) * height / nBands;
+         bands.add(rasterExecutor_.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+               fillBand(pixels, width, y0, y1, roiPolygons, polygonIntensities);
+               return null;
+            }
+         }));
+      }
+      try {
+         for (Future<Void> band : bands) {
+            band.get();
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      }
+      return pixels;
+   }
+
+   // Fills rows y0 (inclusive) to y1 (exclusive) of pixels with the ROIs.
+   private void fillBand(byte[] pixels, int width, int y0, int y1,
+         List<Polygon> roiPolygons, List<Integer> polygonIntensities) {
+      ByteProcessor processor = new ByteProcessor(width, y1 - y0);
       processor.setColor(Color.black);
       processor.fill();
       processor.setColor(Color.white);
+      final int diameter = (int) spotDiameter_;
       for (int i = 0; i < roiPolygons.size(); ++i) {
          Polygon roiPolygon = roiPolygons.get(i);
+         // rows the ROI can cover, with a row of margin
+         int top;
+         int bottom;
+         if (roiPolygon.npoints == 1) {
+            top = (int) (roiPolygon.ypoints[0] - spotDiameter_ / 2);
+            bottom = top + diameter + 1;
+         } else {
+            Rectangle bounds = roiPolygon.getBounds();
+            top = bounds.y;
+            bottom = bounds.y + bounds.height + 1;
+         }
+         if (bottom < y0 || top >= y1) {
+            continue;
+         }
          if (polygonIntensities != null) {
             int intensity = polygonIntensities.get(i);
             processor.setColor(new Color(intensity, intensity, intensity));
@@ -209,13 +281,19 @@ public class SLM implements ProjectionDevice {
          // TODO: Fix overlapping ROIs so we choose the maximum intensity,
          // rather than simply overwriting earlier ROIs.
          if (roiPolygon.npoints == 1) {
-            fillSpot(processor, roiPolygon.xpoints[0], roiPolygon.ypoints[0], spotDiameter_);
+            // same as fillSpot, with the top rounded before shifting
+            processor.fillOval((int) (roiPolygon.xpoints[0] - spotDiameter_ / 2),
+                  top - y0, diameter, diameter);
          } else {
-            Roi roi = new PolygonRoi(roiPolygon, Roi.POLYGON);
+            Polygon shifted = new Polygon(roiPolygon.xpoints, roiPolygon.ypoints,
+                  roiPolygon.npoints);
+            shifted.translate(0, -y0);
+            Roi roi = new PolygonRoi(shifted, Roi.POLYGON);
             processor.fill(roi);
          }
       }
-      return (byte[]) processor.getPixels();
+      System.arraycopy((byte[]) processor.getPixels(), 0, pixels, y0 * width,
+            width * (y1 - y0));
    }
 
    // Convert an array of polygonal ROIs to a single pixel image.
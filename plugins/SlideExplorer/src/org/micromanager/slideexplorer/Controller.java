@@ -56,15 +56,61 @@ public class Controller {
         goToMapPosition(mapPosition);
         ImageProcessor img = hardware_.acquireImage();
         Point measuredMapPosition = stageToMap(hardware_.getXYStagePosition());
-        return trimImage(img, mapPosition, measuredMapPosition);
+        return trimImage(img, mapPosition, measuredMapPosition, getTileDimensions());
+    }
+
+    /** Untrimmed image snapped at a tile position, see snapAndMoveOn(). **/
+    public static class Snap {
+        private final ImageProcessor image_;
+        private final Point mapPosition_;
+        private final Point measuredMapPosition_;
+        private final Dimension tileDimensions_;
+
+        private Snap(ImageProcessor image, Point mapPosition,
+                Point measuredMapPosition, Dimension tileDimensions) {
+            image_ = image;
+            mapPosition_ = mapPosition;
+            measuredMapPosition_ = measuredMapPosition;
+            tileDimensions_ = tileDimensions;
+        }
+    }
+
+    /**
+     * Snap an image at a map position the stage has been sent to, and start
+     * moving the stage to the next map position (if not null) as soon as the
+     * exposure has ended, so that the move overlaps with reading out the image
+     * and with trimming and caching it (trimSnap()) on another thread.
+     * Returns null if the image couldn't be acquired, the stage is sent on
+     * to the next map position either way.
+     **/
+    public synchronized Snap snapAndMoveOn(Point mapPosition, Point nextMapPosition) {
+        hardware_.waitForStage();
+        boolean snapped = hardware_.snapImage();
+        Point measuredMapPosition = snapped ? stageToMap(hardware_.getXYStagePosition()) : null;
+        if (nextMapPosition != null) {
+            hardware_.startStageMove(mapToStage(nextMapPosition));
+        }
+        if (!snapped) {
+            return null;
+        }
+        ImageProcessor img = hardware_.getSnappedImage();
+        if (img == null) {
+            return null;
+        }
+        return new Snap(img, mapPosition, measuredMapPosition, getTileDimensions());
+    }
+
+    /** Get a snapped image ready for caching and display. **/
+    public ImageProcessor trimSnap(Snap snap) {
+        return trimImage(snap.image_, snap.mapPosition_, snap.measuredMapPosition_,
+                snap.tileDimensions_);
     }
 
     /** Trim the image to correct for sloppiness in stage position. **/
     private ImageProcessor trimImage(ImageProcessor img, Point mapPosition,
-            Point measuredMapPosition) {
+            Point measuredMapPosition, Dimension tileDimensions) {
         int dx = mapPosition.x - measuredMapPosition.x;
         int dy = mapPosition.y - measuredMapPosition.y;
-        Dimension tileDimensions = getTileDimensions();
         Rectangle croppingRoi = new Rectangle(trimx / 2 + dx, trimy / 2 + dy, tileDimensions.width, tileDimensions.height);
         img.setRoi(croppingRoi);
         return img.crop();
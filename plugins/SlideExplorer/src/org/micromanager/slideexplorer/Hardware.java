@@ -22,8 +22,26 @@ public class Hardware {
 
     // Camera commands -----------------------
     ImageProcessor acquireImage() {
+        if (!snapImage()) {
+            return null;
+        }
+        return getSnappedImage();
+    }
+
+    // Returns once the exposure has ended, the stage can be moved
+    // while the image is read out with getSnappedImage().
+    boolean snapImage() {
         try {
             core_.snapImage();
+            return true;
+        } catch (Exception e) {
+            ReportingUtils.logError(e);
+            return false;
+        }
+    }
+
+    ImageProcessor getSnappedImage() {
+        try {
             Object img = core_.getImage();
             return ImageUtils.makeProcessor(core_, img);
         } catch (Exception e) {
@@ -78,6 +96,14 @@ public class Hardware {
     }
 
     public void stageGo(Point2D.Double stagePos) {
+        if (startStageMove(stagePos)) {
+            waitForStage();
+        }
+    }
+
+    // Starts moving the stage without waiting for it to get there.
+    // Returns false if the stage is already there.
+    boolean startStageMove(Point2D.Double stagePos) {
         String xystage = core_.getXYStageDevice();
         Point2D.Double oldPos = getXYStagePosition();
 
@@ -88,15 +114,16 @@ public class Hardware {
                 ReportingUtils.logError(e);
             }
             setXYStagePosition(stagePos.x, stagePos.y);
-            try {
-                while (core_.deviceBusy(xystage)) {
-                    //updateStagePositionRect();
-                    core_.sleep(100);
-                }
-            } catch (Exception e) {
-                ReportingUtils.logError(e);
-            }
-            //updateStagePositionRect();
+            return true;
+        }
+        return false;
+    }
+
+    void waitForStage() {
+        try {
+            core_.waitForDevice(core_.getXYStageDevice());
+        } catch (Exception e) {
+            ReportingUtils.logError(e);
         }
     }
 
@@ -7,8 +7,14 @@ import java.awt.Point;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Hashtable;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.Preferences;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -38,6 +44,8 @@ public class Hub {
    public boolean stopTileGrabberThread_;
    private ImageProcessor blackImg_;
    private TileGrabberThread tgt_;
+   // survey in serpentine batches, moving on while images are read out and cached
+   private volatile boolean pipelinedSurvey_ = true;
    private boolean running_ = false;
    private CMMCore core_;
    private ConfigurationDialog configDialog_;
@@ -190,6 +198,10 @@ public class Hub {
       }
    }
 
+   public void setPipelinedSurvey(boolean pipelined) {
+      pipelinedSurvey_ = pipelined;
+   }
+
    public void shutdown() {
       if (configDialog_ != null) {
          configDialog_.dispose();
@@ -618,21 +630,44 @@ public class Hub {
    class TileGrabberThread extends Thread {
 
       double tol_;
+      // trims and caches snapped tiles, blocking the hardware thread if it
+      // gets more than a few tiles behind
+      private final ThreadPoolExecutor tileInserter_;
 
       public TileGrabberThread() {
          setName("SlideExplorer hardware thread");
+         tileInserter_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                 new ArrayBlockingQueue<Runnable>(4), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "SlideExplorer tile insertion thread");
+               thread.setDaemon(true);
+               return thread;
+            }
+         }, new ThreadPoolExecutor.CallerRunsPolicy());
       }
 
       public void run() {
+         try {
+            grabTiles();
+         } finally {
+            tileInserter_.shutdown();
+         }
+      }
+
+      private void grabTiles() {
          while (stopTileGrabberThread_ == false) {
 
             if (modeMgr_.getMode() == ModeManager.SURVEY) {
                ArrayList<Point> missingTiles = findMissingTiles();
                if (missingTiles.size() > 0) {
                   try {
-                     Point tile = findBestTile(missingTiles);
-                     acquireNewTile(tile);
-                     SwingUtilities.invokeLater(new GUIUpdater(tile));
+                     if (pipelinedSurvey_) {
+                        surveyTiles(orderSerpentine(missingTiles));
+                     } else {
+                        Point tile = findBestTile(missingTiles);
+                        acquireNewTile(tile);
+                        SwingUtilities.invokeLater(new GUIUpdater(tile));
+                     }
                   } catch (Throwable e) {
                      ReportingUtils.logError(e);
                   }
@@ -696,6 +731,86 @@ public class Hub {
          }
       }
 
+      /*
+       * Acquire tiles in the given order. The stage is sent on to the next
+       * tile as soon as each exposure has ended, and images are trimmed and
+       * cached on the tile insertion thread. Stops early if a snap fails, if
+       * the mode changes or if the next tile is no longer on screen.
+       */
+      protected void surveyTiles(ArrayList<Point> tiles) throws Exception {
+         app_.getSnapLiveManager().setLiveMode(false);
+         try {
+            controller_.goToMapPosition(coords_.tileToMap(tiles.get(0)));
+            for (int i = 0; i < tiles.size(); i++) {
+               final Point tile = tiles.get(i);
+               Point nextTile = (i + 1 < tiles.size()) ? tiles.get(i + 1) : null;
+               final Controller.Snap snap = controller_.snapAndMoveOn(coords_.tileToMap(tile),
+                       nextTile == null ? null : coords_.tileToMap(nextTile));
+               if (snap == null) {
+                  // the camera failed, don't keep snapping along the batch
+                  break;
+               }
+               tileInserter_.execute(new Runnable() {
+                  public void run() {
+                     if (!cache_.hasImage(tile)) {
+                        cache_.addImage(tile, controller_.trimSnap(snap));
+                     }
+                     SwingUtilities.invokeLater(new GUIUpdater(tile));
+                  }
+               });
+               if (stopTileGrabberThread_ || modeMgr_.getMode() != ModeManager.SURVEY
+                       || (nextTile != null && !coords_.getTilesOnScreen().contains(nextTile))) {
+                  break;
+               }
+            }
+         } finally {
+            // tiles still being inserted would otherwise be acquired again
+            tileInserter_.submit(new Runnable() {
+               public void run() {
+               }
+            }).get();
+         }
+      }
+
+      /*
+       * Order tiles row by row, starting with the end row nearest to the
+       * stage and starting each row at the end nearest to where the previous
+       * row ended, so that the stage sweeps back and forth.
+       */
+      protected ArrayList<Point> orderSerpentine(ArrayList<Point> tiles) {
+         Point curTile = coords_.getNearestTileFromMapPosition(controller_.getCurrentMapPosition());
+         TreeMap<Integer, ArrayList<Point>> rows = new TreeMap<Integer, ArrayList<Point>>();
+         for (Point tile : tiles) {
+            ArrayList<Point> row = rows.get(tile.y);
+            if (row == null) {
+               row = new ArrayList<Point>();
+               rows.put(tile.y, row);
+            }
+            row.add(tile);
+         }
+         ArrayList<Integer> rowOrder = new ArrayList<Integer>(rows.keySet());
+         if (Math.abs(rows.lastKey() - curTile.y) < Math.abs(rows.firstKey() - curTile.y)) {
+            Collections.reverse(rowOrder);
+         }
+         Comparator<Point> byX = new Comparator<Point>() {
+            public int compare(Point a, Point b) {
+               return a.x < b.x ? -1 : (a.x == b.x ? 0 : 1);
+            }
+         };
+         ArrayList<Point> ordered = new ArrayList<Point>(tiles.size());
+         int x = curTile.x;
+         for (Integer y : rowOrder) {
+            ArrayList<Point> row = rows.get(y);
+            Collections.sort(row, byX);
+            if (Math.abs(row.get(row.size() - 1).x - x) < Math.abs(row.get(0).x - x)) {
+               Collections.reverse(row);
+            }
+            ordered.addAll(row);
+            x = row.get(row.size() - 1).x;
+         }
+         return ordered;
+      }
+
       protected Point findBestTile(ArrayList<Point> neededTiles) {
          ArrayList<Point> nearestTiles = findNearestTiles(neededTiles);
          //return gravitateToBufferTiles(nearestTiles);
@@ -4,96 +4,212 @@ import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
-import java.util.Hashtable;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
+/*
+ * Tile pyramid of the slide. Level 0 holds the acquired tiles, every level
+ * below it down to minZoomLevel_ holds tiles made of four tiles of the level
+ * above, shrunk by half.
+ *
+ * Decoded tiles are kept in memory up to a byte budget; least recently used
+ * tiles beyond that are written to a TileStore and read back when needed.
+ * The lower levels are brought up to date on a background thread after a
+ * tile is added, and right away for a tile that is asked for before then.
+ */
 public class MultiTileCache {
 	
+	private static final double MAX_HEAP_FRACTION = 0.25;
+	
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
 	private int type_ = -1;
+	private final long maxBytes_;
+	private long bytes_ = 0;
+	
+	// every tile that has, or is about to have, an image
+	private final HashSet<Point3D> allTiles_ = new HashSet<Point3D>();
+	// decoded tiles, least recently used first
+	private final LinkedHashMap<Point3D,MultiTile> loadedTiles_ =
+			new LinkedHashMap<Point3D,MultiTile>(16, 0.75f, true);
+	// tiles whose children have changed since they were last shrunk into them,
+	// in the order they changed
+	private final LinkedHashMap<Point3D,HashSet<Point3D>> pendingChildren_ =
+			new LinkedHashMap<Point3D,HashSet<Point3D>>();
+	private TileStore store_ = null;
 	
-	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
+	private final ThreadPoolExecutor propagator_;
+	private boolean propagating_ = false;
+	private final Runnable propagateTask_ = new Runnable() {
+		public void run() {
+			while (propagateNext()) {
+			}
+		}
+	};
 	
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
-
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
+		maxBytes_ = (long) (Runtime.getRuntime().maxMemory() * MAX_HEAP_FRACTION);
+		
+		propagator_ = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SlideExplorer tile pyramid thread");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		propagator_.allowCoreThreadTimeOut(true);
 	}
 	
-	public void addImage(Point idx, ImageProcessor proc) {
+	public synchronized void addImage(Point idx, ImageProcessor proc) {
 		if (type_ == -1) {
 			type_ = ImageUtils.getImageProcessorType(proc);
 		}
 		
-		MultiTile tile = getTile(idx);
-		tile.setImage(proc);
-		propagateTile(idx, tile);
+		Point3D tileIdx = new Point3D(idx, 0);
+		getMultiTile(tileIdx).setImage(proc);
+		
+		// mark the ancestors, they are updated by the propagator
+		Point3D child = tileIdx;
+		while (child.k>minZoomLevel_) {
+			Point3D parent = getParentIndex(child);
+			HashSet<Point3D> children = pendingChildren_.get(parent);
+			if (children == null) {
+				children = new HashSet<Point3D>();
+				pendingChildren_.put(parent, children);
+			}
+			children.add(child);
+			allTiles_.add(parent);
+			child = parent;
+		}
+		trimToBudget();
+		
+		if (!propagating_) {
+			propagating_ = true;
+			propagator_.execute(propagateTask_);
+		}
 	}
 	
-	public ImageProcessor getImage(Point3D multiTileIndex) {
-		return getMultiTile(multiTileIndex).getImage();
+	public synchronized ImageProcessor getImage(Point3D multiTileIndex) {
+		bringUpToDate(multiTileIndex);
+		ImageProcessor proc = getMultiTile(multiTileIndex).getImage();
+		trimToBudget();
+		return proc;
 	}
 	
-	public boolean hasImage(Point p) {
-		return allTiles_.containsKey(new Point3D(p,0));
+	public synchronized boolean hasImage(Point p) {
+		return allTiles_.contains(new Point3D(p,0));
 	}
 	
-	public boolean hasImage(Point3D p) {
-		return allTiles_.containsKey(p);
-	}
-		
-	protected void propagateTile(Point idx, MultiTile multiTile) {
-		propagateTile(new Point3D(idx, 0), multiTile);
+	public synchronized boolean hasImage(Point3D p) {
+		return allTiles_.contains(p);
 	}
 	
-	protected void propagateTile(Point3D idx, MultiTile multiTile) {
-		if (idx.k>minZoomLevel_) {
-			Point3D pidx = getParentIndex(idx);
-			Point pquad = getParentQuadrant(idx);
-			MultiTile parentTile = getMultiTile(pidx);
-			
-			ImageProcessor proc = multiTile.getImage();
-			parentTile.insertQuadrantImage(pquad, proc);
-			propagateTile(pidx, parentTile);
+	/*
+	 * Brings the oldest out of date tile up to date, holding the lock only
+	 * for that one tile so that panning isn't held up.
+	 * Returns false once all tiles are up to date.
+	 */
+	private synchronized boolean propagateNext() {
+		Iterator<Point3D> it = pendingChildren_.keySet().iterator();
+		if (!it.hasNext()) {
+			propagating_ = false;
+			return false;
 		}
-	}
-		
-	protected MultiTile getMultiTile(int i, int j, int z) {
-		return getMultiTile(new Point3D(i,j,z));
+		bringUpToDate(it.next());
+		trimToBudget();
+		return true;
 	}
 	
-	protected MultiTile getTile(Point idx) {
-		return getMultiTile(new Point3D(idx.x, idx.y, 0));
+	/*
+	 * Shrinks the changed children into a tile, after bringing them up to
+	 * date themselves. Memory is trimmed after each child, so that a deep
+	 * subtree isn't held in memory all at once; the tile is touched last, so
+	 * it stays loaded for the next child.
+	 */
+	private void bringUpToDate(Point3D idx) {
+		HashSet<Point3D> children = pendingChildren_.remove(idx);
+		if (children == null) {
+			return;
+		}
+		for (Point3D child : children) {
+			bringUpToDate(child);
+			ImageProcessor childImage = getMultiTile(child).getImage();
+			getMultiTile(idx).insertQuadrantImage(getParentQuadrant(child), childImage);
+			trimToBudget();
+		}
 	}
 	
-	protected synchronized MultiTile getMultiTile(Point3D idx) {
-
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
+	/*
+	 * Returns the decoded tile, reading it from the store or creating a
+	 * blank one if it isn't in memory. Doesn't evict other tiles.
+	 */
+	protected MultiTile getMultiTile(Point3D idx) {
+		MultiTile tile = loadedTiles_.get(idx);
+		if (tile == null) {
+			ImageProcessor proc = null;
+			if (store_ != null && store_.contains(idx)) {
+				try {
+					proc = store_.read(idx);
+				} catch (IOException e) {
+					ReportingUtils.logError(e, "SlideExplorer could not read tile " + idx);
+				}
 			}
+			if (proc == null) {
+				proc = ImageUtils.makeProcessor(type_, width_, height_);
+			}
+			tile = new MultiTile(proc);
+			loadedTiles_.put(idx, tile);
+			bytes_ += getTileBytes();
+			allTiles_.add(idx);
 		}
-
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
-			allTiles_.put(idx, tile);
-			return tile;
-		} else {
-			return allTiles_.get(idx);
+		return tile;
+	}
+	
+	/*
+	 * Writes the least recently used tiles to the store (if they changed)
+	 * and drops them from memory, until within the byte budget.
+	 */
+	private void trimToBudget() {
+		Iterator<Map.Entry<Point3D,MultiTile>> it = loadedTiles_.entrySet().iterator();
+		while (bytes_ > maxBytes_ && it.hasNext()) {
+			Map.Entry<Point3D,MultiTile> entry = it.next();
+			MultiTile tile = entry.getValue();
+			if (tile.isDirty()) {
+				try {
+					if (store_ == null) {
+						store_ = new TileStore(type_, width_, height_);
+					}
+					store_.write(entry.getKey(), tile.getImage());
+					tile.setClean();
+				} catch (IOException e) {
+					ReportingUtils.logError(e, "SlideExplorer could not store tile " + entry.getKey());
+					// acquired again if it is needed
+					allTiles_.remove(entry.getKey());
+				}
+			}
+			it.remove();
+			bytes_ -= getTileBytes();
 		}
 	}
+	
+	private long getTileBytes() {
+		return (long) width_ * height_ * TileStore.getBytesPerPixel(type_);
+	}
 		
 	protected Point3D getParentIndex(Point3D idx) {
 		return new Point3D(idx.i>>1, idx.j>>1, idx.k-1);
@@ -102,19 +218,16 @@ public class MultiTileCache {
 	protected Point getParentQuadrant(Point3D idx) {
 		return new Point(idx.i & 1, idx.j & 1);
 	}
-	
-	protected Point3D newPoint3D(int i, int j, int k) {
-		return new Point3D(i,j,k);
-	}
 
-	public void clear() {
-		for (MultiTile multiTile:allTiles_.values()) {
-			multiTile.wipeFromDisk();
+	public synchronized void clear() {
+		if (store_ != null) {
+			store_.close();
+			store_ = null;
 		}
-        currentTiles_.clear();
-        allTiles_.clear();
+		pendingChildren_.clear();
+		loadedTiles_.clear();
+		allTiles_.clear();
+		bytes_ = 0;
 	}
-	
-	
 
-}
\ No newline at end of file
+}
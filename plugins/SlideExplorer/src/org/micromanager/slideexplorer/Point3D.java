@@ -32,6 +32,6 @@ public class Point3D {
 	}
 	
 	public int hashCode() {
-		return 10000*i + 100*j + k;
+		return 31*(31*i + j) + k;
 	}
 }
\ No newline at end of file
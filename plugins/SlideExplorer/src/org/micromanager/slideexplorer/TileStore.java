@@ -0,0 +1,152 @@
+package org.micromanager.slideexplorer;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import org.micromanager.utils.ImageUtils;
+
+/*
+ * Pixels of tiles that don't fit in memory, in one file per zoom level.
+ * Each file is a sequence of fixed size slots, a tile gets the next free
+ * slot of its level the first time it is written and keeps it from then on.
+ * Pixels are stored raw, so reading a tile back takes a single read.
+ *
+ * Not thread safe, MultiTileCache serializes access.
+ */
+class TileStore {
+
+	private final File dir_;
+	private final int type_;
+	private final int width_;
+	private final int height_;
+	private final ByteBuffer buffer_;
+	private final HashMap<Integer, Level> levels_ = new HashMap<Integer, Level>();
+	private final HashMap<Point3D, Long> offsets_ = new HashMap<Point3D, Long>();
+
+	private static class Level {
+		RandomAccessFile file_;
+		File path_;
+		long size_ = 0;
+	}
+
+	TileStore(int type, int width, int height) throws IOException {
+		type_ = type;
+		width_ = width;
+		height_ = height;
+		buffer_ = ByteBuffer.allocateDirect(width * height * getBytesPerPixel(type));
+		buffer_.order(ByteOrder.nativeOrder());
+		dir_ = File.createTempFile("slideexplorer", "");
+		if (!dir_.delete() || !dir_.mkdir()) {
+			throw new IOException("Could not create tile directory " + dir_);
+		}
+		dir_.deleteOnExit();
+	}
+
+	static int getBytesPerPixel(int type) {
+		switch (type) {
+			case ImagePlus.GRAY8:
+				return 1;
+			case ImagePlus.GRAY16:
+				return 2;
+			default:
+				return 4;
+		}
+	}
+
+	boolean contains(Point3D idx) {
+		return offsets_.containsKey(idx);
+	}
+
+	void write(Point3D idx, ImageProcessor proc) throws IOException {
+		Level level = getLevel(idx.k);
+		Long offset = offsets_.get(idx);
+		if (offset == null) {
+			offset = level.size_;
+			level.size_ += buffer_.capacity();
+			offsets_.put(idx, offset);
+		}
+		buffer_.clear();
+		Object pixels = proc.getPixels();
+		if (pixels instanceof byte[]) {
+			buffer_.put((byte[]) pixels);
+		} else if (pixels instanceof short[]) {
+			buffer_.asShortBuffer().put((short[]) pixels);
+		} else if (pixels instanceof int[]) {
+			buffer_.asIntBuffer().put((int[]) pixels);
+		} else {
+			buffer_.asFloatBuffer().put((float[]) pixels);
+		}
+		buffer_.position(0).limit(buffer_.capacity());
+		FileChannel channel = level.file_.getChannel();
+		while (buffer_.hasRemaining()) {
+			channel.write(buffer_, offset + buffer_.position());
+		}
+	}
+
+	/*
+	 * Returns null if the tile was never written.
+	 */
+	ImageProcessor read(Point3D idx) throws IOException {
+		Long offset = offsets_.get(idx);
+		if (offset == null) {
+			return null;
+		}
+		buffer_.clear();
+		FileChannel channel = getLevel(idx.k).file_.getChannel();
+		while (buffer_.hasRemaining()) {
+			if (channel.read(buffer_, offset + buffer_.position()) < 0) {
+				throw new IOException("Tile " + idx + " is missing from " + dir_);
+			}
+		}
+		buffer_.flip();
+		ImageProcessor proc = ImageUtils.makeProcessor(type_, width_, height_);
+		Object pixels = proc.getPixels();
+		if (pixels instanceof byte[]) {
+			buffer_.get((byte[]) pixels);
+		} else if (pixels instanceof short[]) {
+			buffer_.asShortBuffer().get((short[]) pixels);
+		} else if (pixels instanceof int[]) {
+			buffer_.asIntBuffer().get((int[]) pixels);
+		} else {
+			buffer_.asFloatBuffer().get((float[]) pixels);
+		}
+		return proc;
+	}
+
+	private Level getLevel(int k) throws IOException {
+		Level level = levels_.get(k);
+		if (level == null) {
+			level = new Level();
+			level.path_ = new File(dir_, "level" + k + ".tiles");
+			level.path_.deleteOnExit();
+			level.file_ = new RandomAccessFile(level.path_, "rw");
+			levels_.put(k, level);
+		}
+		return level;
+	}
+
+	/*
+	 * Closes and deletes the files of all levels.
+	 */
+	void close() {
+		for (Level level : levels_.values()) {
+			try {
+				level.file_.close();
+			} catch (IOException e) {
+				// deleting it anyway
+			}
+			level.path_.delete();
+		}
+		levels_.clear();
+		offsets_.clear();
+		dir_.delete();
+	}
+}
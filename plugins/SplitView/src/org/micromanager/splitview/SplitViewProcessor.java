@@ -35,6 +35,8 @@ import org.json.JSONObject;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.api.DataProcessor;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.utils.JSONByteWriter;
+import org.micromanager.utils.LazyJSONObject;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -49,6 +51,7 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
 
    private SplitViewFrame myFrame_;
    private String orientation_ = SplitViewFrame.LR;
+   private final JSONByteWriter tagWriter_ = new JSONByteWriter();
 
    @Override
    public void makeConfigurationGUI() {
@@ -138,8 +141,10 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
             
             // first channel
 
-            // Weird way of copying a JSONObject
-            JSONObject tags = new JSONObject(taggedImage.tags.toString());
+            // Both output images get a deep copy of the tags; serialize
+            // once and let each copy parse the shared bytes.
+            byte[] tagBytes = tagWriter_.toByteArray(taggedImage.tags);
+            JSONObject tags = new LazyJSONObject(tagBytes);
             MDUtils.setWidth(tags, width);
             MDUtils.setHeight(tags, height);
             MDUtils.setChannelIndex(tags, channelIndex * 2);
@@ -149,7 +154,8 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
             TaggedImage firstIm = new TaggedImage(tmpImg.crop().getPixels(), tags);
 
             // second channel
-            JSONObject tags2 = new JSONObject(tags.toString());
+            // Every field changed in tags is set again below.
+            JSONObject tags2 = new LazyJSONObject(tagBytes);
             tags2.put("Channel", MDUtils.getChannelName(taggedImage.tags)  + getChannelSuffix(channelIndex*2+1));
 
             if (orientation_.equals(SplitViewFrame.LR)) {
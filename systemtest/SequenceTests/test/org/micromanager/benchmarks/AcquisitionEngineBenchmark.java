@@ -0,0 +1,411 @@
+package org.micromanager.benchmarks;
+
+import clojure.lang.Atom;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.micromanager.AcquisitionEngine2010;
+import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.micromanager.acquisition.TaggedImageStorageRamFast;
+import org.micromanager.api.IAcquisitionEngine2010;
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.PositionList;
+import org.micromanager.api.SequenceSettings;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PerformanceMetrics;
+import org.micromanager.testing.MMCoreWithDemoDevicesResource;
+import org.micromanager.utils.ChannelSpec;
+import static org.junit.Assert.*;
+import static org.micromanager.acquisition.TaggedImageQueue.POISON;
+
+
+/**
+ * Measures the overhead of the acquisition engine and the throughput of the
+ * storage backends, against DemoCamera devices producing synthetic frames.
+ *
+ * These take minutes and only report numbers, so they are skipped unless
+ * MM_BENCHMARK is set:
+ *    MM_BENCHMARK=1 ./ant_test.sh org.micromanager.benchmarks.AcquisitionEngineBenchmark
+ * The results end up in the test report. Optional settings:
+ *    MM_BENCHMARK_FRAMES  frames per burst (default 500)
+ *    MM_BENCHMARK_RATES   frame rates to try, in fps (default 10,50,100,200,500,1000)
+ *    MM_BENCHMARK_SIZE    image width and height (default 512)
+ */
+public class AcquisitionEngineBenchmark {
+   private static final String ENGINE_NS = "org.micromanager.acq-engine";
+   private static final String GENERATOR_NS = "org.micromanager.sequence-generator";
+   private static final String CHANNEL_GROUP = "Channel";
+   // A frame rate is sustained if at least this fraction of it is reached
+   // without losing frames
+   private static final double SUSTAINED_FRACTION = 0.95;
+   private static final int WARMUP_ITERATIONS = 5;
+   private static final int MEASURED_ITERATIONS = 20;
+
+   private static final TestRule onlyIfRequested = new TestRule() {
+      @Override
+      public Statement apply(final Statement base, Description description) {
+         return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+               Assume.assumeTrue(System.getenv("MM_BENCHMARK") != null);
+               base.evaluate();
+            }
+         };
+      }
+   };
+
+   private final MMCoreWithDemoDevicesResource coreResource =
+      new MMCoreWithDemoDevicesResource();
+
+   // Check before loading devices, which fails without DemoCamera
+   @Rule
+   public TestRule rules =
+      RuleChain.outerRule(onlyIfRequested).around(coreResource);
+
+   private static class Run {
+      final long startNs;
+      final List<Long> arrivalNs = new ArrayList<Long>();
+      final List<TaggedImage> images = new ArrayList<TaggedImage>();
+      long endNs;
+
+      Run(long startNs) {
+         this.startNs = startNs;
+      }
+
+      double getFirstImageMs() {
+         return arrivalNs.isEmpty() ? Double.NaN :
+            (arrivalNs.get(0) - startNs) / 1e6;
+      }
+
+      // Rate after the first image, which includes starting the camera
+      double getFps() {
+         int n = arrivalNs.size();
+         if (n < 2) {
+            return Double.NaN;
+         }
+         return (n - 1) / ((arrivalNs.get(n - 1) - arrivalNs.get(0)) / 1e9);
+      }
+
+      double getGapPercentileMs(double fraction) {
+         int n = arrivalNs.size();
+         if (n < 2) {
+            return Double.NaN;
+         }
+         double[] gaps = new double[n - 1];
+         for (int i = 1; i < n; i++) {
+            gaps[i - 1] = (arrivalNs.get(i) - arrivalNs.get(i - 1)) / 1e6;
+         }
+         Arrays.sort(gaps);
+         return gaps[(int) Math.min(gaps.length - 1, fraction * gaps.length)];
+      }
+   }
+
+   @Test
+   public void burstFrameRates() throws Exception {
+      CMMCore mmc = prepareCore();
+      int frames = getIntSetting("MM_BENCHMARK_FRAMES", 500);
+      System.out.println("Burst of " + frames + " frames");
+      System.out.println("  target fps  actual fps  first image ms" +
+            "  gap p50 ms  gap p99 ms  gap max ms");
+      double maxSustained = 0.0;
+      for (double rate : getRates()) {
+         mmc.setExposure(1000.0 / rate);
+         SequenceSettings settings = new SequenceSettings();
+         settings.numFrames = frames;
+         Run run = run(mmc, settings, false);
+         boolean sustained = run.arrivalNs.size() == frames &&
+            run.getFps() >= SUSTAINED_FRACTION * rate;
+         if (sustained) {
+            maxSustained = Math.max(maxSustained, rate);
+         }
+         System.out.println(String.format(
+                  "  %10.1f  %10.1f  %14.1f  %10.2f  %10.2f  %10.2f%s",
+                  rate, run.getFps(), run.getFirstImageMs(),
+                  run.getGapPercentileMs(0.5), run.getGapPercentileMs(0.99),
+                  run.getGapPercentileMs(1.0),
+                  sustained ? "" : "  not sustained, " +
+                  run.arrivalNs.size() + " frames received"));
+      }
+      System.out.println("Highest sustained rate: " + maxSustained + " fps");
+      printMetrics();
+   }
+
+   @Test
+   public void snapEventOverhead() throws Exception {
+      CMMCore mmc = prepareCore();
+      double exposureMs = 1.0;
+      SequenceSettings settings = new SequenceSettings();
+      settings.numFrames = 5;
+      settings.channels = defineChannels(mmc, 2, exposureMs);
+      settings.channelGroup = CHANNEL_GROUP;
+      for (int i = 0; i < 20; i++) {
+         settings.slices.add((double) i);
+      }
+      int events = settings.numFrames * settings.channels.size() *
+         settings.slices.size();
+      System.out.println("Snap events (frames x channels x slices): " + events);
+      System.out.println("  look-ahead  parallel setup  ms per event" +
+            "  overhead ms per event");
+      for (boolean lookAhead : new boolean[] {false, true}) {
+         for (boolean parallel : new boolean[] {false, true}) {
+            setEngineFlag("look-ahead", lookAhead);
+            setEngineFlag("parallel-device-setup", parallel);
+            Run run = run(mmc, settings, false);
+            assertEquals(events, run.arrivalNs.size());
+            double msPerEvent = (run.endNs - run.startNs) / 1e6 / events;
+            System.out.println(String.format("  %10s  %14s  %12.2f  %21.2f",
+                     lookAhead, parallel, msPerEvent, msPerEvent - exposureMs));
+         }
+      }
+      setEngineFlag("look-ahead", true);
+      setEngineFlag("parallel-device-setup", false);
+   }
+
+   @Test
+   public void eventGenerationAndTagging() throws Exception {
+      CMMCore mmc = prepareCore();
+      // Loads the engine and gives it the core, which converting settings uses
+      new AcquisitionEngine2010(mmc);
+      SequenceSettings settings = new SequenceSettings();
+      settings.numFrames = 100;
+      settings.channels = defineChannels(mmc, 2, 10.0);
+      settings.channelGroup = CHANNEL_GROUP;
+      for (int i = 0; i < 20; i++) {
+         settings.slices.add((double) i);
+      }
+      settings.usePositionList = true;
+      PositionList positions = new PositionList();
+      for (int i = 0; i < 10; i++) {
+         positions.addPosition(new MultiStagePosition("XY", 100.0 * i, 0.0,
+                  MMCoreWithDemoDevicesResource.Z_STAGE, 0.0));
+      }
+
+      Var generate = RT.var(GENERATOR_NS, "generate-acq-sequence");
+      Object converted = RT.var(ENGINE_NS, "convert-settings").invoke(
+            settings, positions);
+      int events = 0;
+      long[] sequenceNs = new long[MEASURED_ITERATIONS];
+      for (int i = -WARMUP_ITERATIONS; i < MEASURED_ITERATIONS; i++) {
+         long start = System.nanoTime();
+         events = RT.count(generate.invoke(converted, PersistentVector.EMPTY));
+         if (i >= 0) {
+            sequenceNs[i] = System.nanoTime() - start;
+         }
+      }
+      Arrays.sort(sequenceNs);
+      System.out.println(String.format(
+               "Event generation: %d events in %.2f ms (median), %.0f ns per event",
+               events, sequenceNs[MEASURED_ITERATIONS / 2] / 1e6,
+               (double) sequenceNs[MEASURED_ITERATIONS / 2] / events));
+
+      // Tag images the way the engine does for every frame
+      Var annotate = RT.var(ENGINE_NS, "annotate-image");
+      Var makeTaggedImage = RT.var(ENGINE_NS, "make-TaggedImage");
+      Object event = RT.first(generate.invoke(converted, PersistentVector.EMPTY));
+      Object state = PersistentHashMap.create(
+            Keyword.intern("start-time"), System.nanoTime() / 1000000,
+            Keyword.intern("position-list"), positions,
+            Keyword.intern("default-z-drive"), MMCoreWithDemoDevicesResource.Z_STAGE);
+      Object image = PersistentHashMap.create(
+            Keyword.intern("pix"), new byte[(int) mmc.getImageBufferSize()],
+            Keyword.intern("tags"), PersistentHashMap.EMPTY);
+      int images = 1000;
+      long[] taggingNs = new long[MEASURED_ITERATIONS];
+      for (int i = -WARMUP_ITERATIONS; i < MEASURED_ITERATIONS; i++) {
+         long start = System.nanoTime();
+         for (int j = 0; j < images; j++) {
+            makeTaggedImage.invoke(annotate.invoke(image, event, state, 0L));
+         }
+         if (i >= 0) {
+            taggingNs[i] = System.nanoTime() - start;
+         }
+      }
+      Arrays.sort(taggingNs);
+      System.out.println(String.format("Image tagging: %.1f us per image (median)",
+               taggingNs[MEASURED_ITERATIONS / 2] / 1e3 / images));
+   }
+
+   @Test
+   public void storageThroughput() throws Exception {
+      CMMCore mmc = prepareCore();
+      int frames = getIntSetting("MM_BENCHMARK_FRAMES", 500);
+      // Acquire once, then replay the images into each backend as fast as
+      // it takes them
+      mmc.setExposure(1.0);
+      SequenceSettings settings = new SequenceSettings();
+      settings.numFrames = frames;
+      IAcquisitionEngine2010 engine = new AcquisitionEngine2010(mmc);
+      long start = System.nanoTime();
+      Run run = collect(start, engine.run(settings, true, null, null), true);
+      assertEquals(frames, run.images.size());
+      JSONObject summary = engine.getSummaryMetadata();
+      long imageBytes = mmc.getImageBufferSize();
+
+      System.out.println("Storage of " + frames + " images of " +
+            imageBytes + " bytes");
+      System.out.println("  backend                             fps     MB/s");
+      for (String backend : new String[] {"RamFast", "MultipageTiff", "DiskDefault"}) {
+         File dir = createTempDir();
+         try {
+            JSONObject md = new JSONObject(summary.toString());
+            md.put("Prefix", dir.getName());
+            List<TaggedImage> images = new ArrayList<TaggedImage>();
+            for (TaggedImage image : run.images) {
+               images.add(new TaggedImage(image.pix,
+                        new JSONObject(image.tags.toString())));
+            }
+            start = System.nanoTime();
+            TaggedImageStorage storage = createStorage(backend, dir, md);
+            for (TaggedImage image : images) {
+               storage.putImage(image);
+            }
+            storage.finished();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            storage.close();
+            System.out.println(String.format("  %-30s  %8.1f  %7.1f", backend,
+                     frames / seconds, frames * imageBytes / seconds / 1e6));
+         } finally {
+            deleteRecursively(dir);
+         }
+      }
+      printMetrics();
+   }
+
+   private CMMCore prepareCore() throws Exception {
+      int size = getIntSetting("MM_BENCHMARK_SIZE", 512);
+      coreResource.setImageSize(size, size);
+      return coreResource.getMMCore();
+   }
+
+   private Run run(CMMCore mmc, SequenceSettings settings, boolean keepImages)
+      throws Exception
+   {
+      IAcquisitionEngine2010 engine = new AcquisitionEngine2010(mmc);
+      long start = System.nanoTime();
+      return collect(start, engine.run(settings, true, null, null), keepImages);
+   }
+
+   private static Run collect(long startNs, BlockingQueue<TaggedImage> queue,
+         boolean keepImages) throws InterruptedException
+   {
+      Run run = new Run(startNs);
+      for (;;) {
+         TaggedImage image = queue.poll(30, TimeUnit.SECONDS);
+         assertNotNull("acquisition stalled", image);
+         if (image == POISON) {
+            break;
+         }
+         run.arrivalNs.add(System.nanoTime());
+         if (keepImages) {
+            run.images.add(image);
+         }
+      }
+      run.endNs = System.nanoTime();
+      return run;
+   }
+
+   private static ArrayList<ChannelSpec> defineChannels(CMMCore mmc,
+         int count, double exposureMs) throws Exception
+   {
+      ArrayList<ChannelSpec> channels = new ArrayList<ChannelSpec>();
+      for (int i = 0; i < count; i++) {
+         String preset = "Ch" + i;
+         mmc.defineConfig(CHANNEL_GROUP, preset,
+               MMCoreWithDemoDevicesResource.WHEEL, "State",
+               Integer.toString(i));
+         ChannelSpec channel = new ChannelSpec();
+         channel.config = preset;
+         channel.exposure = exposureMs;
+         channels.add(channel);
+      }
+      return channels;
+   }
+
+   private static void setEngineFlag(String name, boolean value) {
+      RT.var("clojure.core", "require").invoke(Symbol.intern(ENGINE_NS));
+      ((Atom) RT.var(ENGINE_NS, name).deref()).reset(value);
+   }
+
+   private static TaggedImageStorage createStorage(String backend, File dir,
+         JSONObject summary) throws Exception
+   {
+      if (backend.equals("RamFast")) {
+         return new TaggedImageStorageRamFast(summary);
+      }
+      if (backend.equals("MultipageTiff")) {
+         return new TaggedImageStorageMultipageTiff(dir.getPath(), true,
+               summary, false, false, true);
+      }
+      return new TaggedImageStorageDiskDefault(dir.getPath(), true, summary);
+   }
+
+   private static void printMetrics() {
+      System.out.println("Pipeline latencies:");
+      for (LatencyHistogram histogram : PerformanceMetrics.getHistograms()) {
+         if (histogram.getCount() > 0) {
+            System.out.println(String.format(
+                     "  %-30s  n=%d  mean %.3f ms  p99 %.3f ms  max %.3f ms",
+                     histogram.getName(), histogram.getCount(),
+                     histogram.getMeanMs(), histogram.getPercentileMs(0.99),
+                     histogram.getMaxMs()));
+         }
+      }
+   }
+
+   private static List<Double> getRates() {
+      String setting = System.getenv("MM_BENCHMARK_RATES");
+      if (setting == null) {
+         setting = "10,50,100,200,500,1000";
+      }
+      List<Double> rates = new ArrayList<Double>();
+      for (String rate : setting.split(",")) {
+         rates.add(Double.parseDouble(rate.trim()));
+      }
+      return rates;
+   }
+
+   private static int getIntSetting(String name, int defaultValue) {
+      String setting = System.getenv(name);
+      return setting == null ? defaultValue : Integer.parseInt(setting.trim());
+   }
+
+   private static File createTempDir() throws IOException {
+      File dir = File.createTempFile("mmbenchmark", "");
+      if (!dir.delete() || !dir.mkdir()) {
+         throw new IOException("Could not create " + dir);
+      }
+      return dir;
+   }
+
+   private static void deleteRecursively(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            deleteRecursively(child);
+         }
+      }
+      file.delete();
+   }
+}
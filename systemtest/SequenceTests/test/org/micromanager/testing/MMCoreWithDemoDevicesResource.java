@@ -0,0 +1,33 @@
+package org.micromanager.testing;
+
+
+/**
+ * Core with devices of the DemoCamera adapter, which (unlike SequenceTester)
+ * honor exposure times, so that they can stand in for a camera running at a
+ * given frame rate.
+ */
+@org.junit.Ignore
+public class MMCoreWithDemoDevicesResource extends MMCoreResource {
+   public static final String CAMERA = "DCam";
+   public static final String Z_STAGE = "DStage";
+   public static final String WHEEL = "DWheel";
+
+   @Override
+   protected void before() throws Exception {
+      super.before();
+
+      for (String device : new String[] {CAMERA, Z_STAGE, WHEEL}) {
+         mmc_.loadDevice(device, "DemoCamera", device);
+         mmc_.initializeDevice(device);
+      }
+      mmc_.setCameraDevice(CAMERA);
+      mmc_.setFocusDevice(Z_STAGE);
+      // Skip drawing the test pattern, so that frames cost only the exposure
+      mmc_.setProperty(CAMERA, "FastImage", "1");
+   }
+
+   public void setImageSize(int width, int height) throws Exception {
+      mmc_.setProperty(CAMERA, "OnCameraCCDXSize", width);
+      mmc_.setProperty(CAMERA, "OnCameraCCDYSize", height);
+   }
+}